@@ -0,0 +1,51 @@
+package com.ss.avframework.simpledecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A trace event per sample, with tracing off and on, against the log message the decoder
+ * used to build for every sample whether debug logging was on or not.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class EventTracerBenchmark {
+    private EventTracer.Ring mDisabled;
+    private EventTracer.Ring mEnabled;
+    private long mPtsUs;
+    private int mSize = 5000;
+
+    @Setup
+    public void setUp() {
+        mDisabled = new EventTracer(4096).ring();
+        EventTracer tracer = new EventTracer(4096);
+        tracer.setEnabled(true);
+        mEnabled = tracer.ring();
+    }
+
+    @Benchmark
+    public void disabled() {
+        mPtsUs += 33333;
+        mDisabled.record(EventTracer.DEMUX, EventTracer.TRACK_VIDEO, mPtsUs, mSize);
+    }
+
+    @Benchmark
+    public void enabled() {
+        mPtsUs += 33333;
+        mEnabled.record(EventTracer.DEMUX, EventTracer.TRACK_VIDEO, mPtsUs, mSize);
+    }
+
+    @Benchmark
+    public String logMessage() {
+        mPtsUs += 33333;
+        return "Video sample: size " + mSize + " bytes, pts " + (mPtsUs / 1000) + "ms";
+    }
+}
@@ -0,0 +1,59 @@
+package com.ss.avframework.simpledecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-frame sync decision of CompareClockAndSleep() without the sleep: how long until
+ * a frame is due by the clock, and the audio keeping the clock in sync.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class MediaClockBenchmark {
+    private MediaClock mClock;
+    private MediaClock mSystemClock;
+    private long mNowNs;
+    private long mPtsUs;
+
+    @Setup
+    public void setUp() {
+        //simulated time, a frame period per call
+        mClock = new MediaClock(new MediaClock.TimeSource() {
+            @Override
+            public long nanoTime() {
+                return mNowNs;
+            }
+        });
+        mClock.anchor(0);
+        mSystemClock = new MediaClock();
+        mSystemClock.anchor(0);
+    }
+
+    @Benchmark
+    public long timeUntil() {
+        mPtsUs += 33333;
+        mNowNs += 33333000;
+        return mClock.timeUntilUs(mPtsUs);
+    }
+
+    @Benchmark
+    public long sync() {
+        mPtsUs += 21333;
+        mNowNs += 21333000 + (mPtsUs & 0x3fff); //drifting a little
+        return mClock.sync(mPtsUs);
+    }
+
+    //as the decoder does it, on the system time
+    @Benchmark
+    public long timeUntilAtCurrentTime() {
+        return mSystemClock.timeUntilUs(mPtsUs);
+    }
+}
@@ -0,0 +1,114 @@
+package com.ss.avframework.simpledecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opening a file with {@link Mp4Demuxer}, with and without the {@link SampleIndexCache},
+ * and reading all of its samples the way DemuxMp4() does.  30 s and 5 min of 30 fps video
+ * with AAC audio.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class Mp4ParseBenchmark {
+    @Param({"900", "9000"})
+    public int videoSamples;
+
+    private File mDir;
+    private File mFile;
+    private SampleIndexCache mCache;
+    private Mp4Demuxer mDemuxer;
+    private ByteBuffer mReadBuffer;
+    private ByteBuffer mAnnexBBuffer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("mp4bench", "");
+        mDir.delete();
+        mDir.mkdirs();
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        fixture.videoSamples = videoSamples;
+        fixture.audioSamples = videoSamples * 130 / 90;
+        fixture.bFrames = true;
+        mFile = fixture.write(new File(mDir, "clip.mp4"));
+        mCache = new SampleIndexCache(new File(mDir, "index"));
+        new Mp4Demuxer(mFile.getPath(), mCache).release(); //warm the cache
+        mDemuxer = new Mp4Demuxer(mFile.getPath());
+        for (int i = 0; i < mDemuxer.getTrackCount(); i++) {
+            mDemuxer.selectTrack(i);
+        }
+        int maxSampleSize = 0;
+        for (int i = 0; i < mDemuxer.getTrackCount(); i++) {
+            maxSampleSize = Math.max(maxSampleSize, mDemuxer.getTrack(i).maxSampleSize);
+        }
+        mReadBuffer = ByteBuffer.allocateDirect(PacketPool.alignUp(maxSampleSize));
+        mAnnexBBuffer = ByteBuffer.allocateDirect(PacketPool.alignUp(AvcUtils.maxAnnexBSize(maxSampleSize, 4)));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mDemuxer.release();
+        mCache.clear();
+        new File(mDir, "index").delete();
+        mFile.delete();
+        mDir.delete();
+    }
+
+    @Benchmark
+    public int open() throws IOException {
+        Mp4Demuxer demuxer = new Mp4Demuxer(mFile.getPath());
+        int count = demuxer.getTrack(0).sampleCount;
+        demuxer.release();
+        return count;
+    }
+
+    @Benchmark
+    public int openFromIndexCache() throws IOException {
+        Mp4Demuxer demuxer = new Mp4Demuxer(mFile.getPath(), mCache);
+        int count = demuxer.getTrack(0).sampleCount;
+        demuxer.release();
+        return count;
+    }
+
+    //copies every sample out, as MediaExtractor.readSampleData()
+    @Benchmark
+    public long readAllSamples() {
+        mDemuxer.seekTo(0, Mp4Demuxer.SEEK_TO_PREVIOUS_SYNC);
+        long bytes = 0;
+        int size;
+        while ((size = mDemuxer.readSampleData(mReadBuffer, 0)) >= 0) {
+            bytes += size;
+            mDemuxer.advance();
+        }
+        return bytes;
+    }
+
+    //the video samples rewritten from length prefixed NAL units to Annex B
+    @Benchmark
+    public long convertToAnnexB() {
+        mDemuxer.seekTo(0, Mp4Demuxer.SEEK_TO_PREVIOUS_SYNC);
+        long bytes = 0;
+        while (mDemuxer.getSampleTrackIndex() >= 0) {
+            if (mDemuxer.getSampleTrackIndex() == 0) {
+                mAnnexBBuffer.clear();
+                bytes += AvcUtils.copyAsAnnexB(mDemuxer.getSampleData(), mAnnexBBuffer, 4);
+            }
+            mDemuxer.advance();
+        }
+        return bytes;
+    }
+}
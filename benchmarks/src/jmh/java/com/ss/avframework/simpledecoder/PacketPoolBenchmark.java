@@ -0,0 +1,52 @@
+package com.ss.avframework.simpledecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Getting a demuxed sample into a packet: from the {@link PacketPool}, and into a freshly
+ * allocated buffer per sample as before the pool.  Sizes of an audio frame, a typical
+ * 1080p frame and a large key frame.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class PacketPoolBenchmark {
+    @Param({"512", "65536", "1048576"})
+    public int sampleSize;
+
+    private ByteBuffer mReadBuffer;
+    private PacketPool mPool;
+
+    @Setup
+    public void setUp() {
+        mReadBuffer = ByteBuffer.allocateDirect(PacketPool.alignUp(sampleSize));
+        mPool = new PacketPool(22, 0);
+    }
+
+    @Benchmark
+    public int pooled() {
+        PacketBuffer packet = mPool.acquire(sampleSize);
+        packet.fill(mReadBuffer, sampleSize, 0);
+        int size = packet.size;
+        mPool.release(packet);
+        return size;
+    }
+
+    @Benchmark
+    public Object allocatedPerSample() {
+        byte[] data = new byte[sampleSize];
+        mReadBuffer.position(0);
+        mReadBuffer.get(data, 0, sampleSize);
+        return data;
+    }
+}
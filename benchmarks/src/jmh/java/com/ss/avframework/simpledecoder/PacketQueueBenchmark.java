@@ -0,0 +1,90 @@
+package com.ss.avframework.simpledecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Control;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packet handoff from the demux thread to a decoder input thread, through the
+ * {@link SpscQueue} the decoder uses and through the ArrayBlockingQueue it replaced.
+ * The queue is as deep as the video packet queue.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Group)
+public class PacketQueueBenchmark {
+    private static final int CAPACITY = 20;
+
+    private SpscQueue<PacketBuffer> mSpsc;
+    private ArrayBlockingQueue<PacketBuffer> mBlocking;
+    private PacketBuffer mPacket;
+
+    @Setup
+    public void setUp() {
+        mSpsc = new SpscQueue<PacketBuffer>(CAPACITY);
+        mBlocking = new ArrayBlockingQueue<PacketBuffer>(CAPACITY);
+        mPacket = new PacketPool(1, 0).acquire(1024);
+    }
+
+    @Benchmark
+    @Group("spsc")
+    @GroupThreads(1)
+    public void spscOffer(Control control) {
+        while (!mSpsc.offer(mPacket)) {
+            if (control.stopMeasurement) {
+                return;
+            }
+            Thread.yield();
+        }
+    }
+
+    @Benchmark
+    @Group("spsc")
+    @GroupThreads(1)
+    public Object spscPoll(Control control) {
+        PacketBuffer packet;
+        while ((packet = mSpsc.poll()) == null) {
+            if (control.stopMeasurement) {
+                return null;
+            }
+            Thread.yield();
+        }
+        return packet;
+    }
+
+    @Benchmark
+    @Group("arrayBlockingQueue")
+    @GroupThreads(1)
+    public void blockingOffer(Control control) {
+        while (!mBlocking.offer(mPacket)) {
+            if (control.stopMeasurement) {
+                return;
+            }
+            Thread.yield();
+        }
+    }
+
+    @Benchmark
+    @Group("arrayBlockingQueue")
+    @GroupThreads(1)
+    public Object blockingPoll(Control control) {
+        PacketBuffer packet;
+        while ((packet = mBlocking.poll()) == null) {
+            if (control.stopMeasurement) {
+                return null;
+            }
+            Thread.yield();
+        }
+        return packet;
+    }
+}
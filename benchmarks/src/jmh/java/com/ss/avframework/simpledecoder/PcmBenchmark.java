@@ -0,0 +1,69 @@
+package com.ss.avframework.simpledecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Getting the decoded 16 bit PCM of one AAC frame out of the codec's direct output buffer,
+ * which IAudioSampleListener implementations have to do before the buffer is released.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class PcmBenchmark {
+    private static final int FRAMES = 1024;
+
+    @Param({"1", "2"})
+    public int channelCount;
+
+    private ByteBuffer mOutputBuffer;
+    private short[] mShorts;
+    private float[] mFloats;
+
+    @Setup
+    public void setUp() {
+        int samples = FRAMES * channelCount;
+        mOutputBuffer = ByteBuffer.allocateDirect(samples * 2).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < samples; i++) {
+            mOutputBuffer.putShort(i * 2, (short) (Math.sin(i * 0.05) * 20000));
+        }
+        mShorts = new short[samples];
+        mFloats = new float[samples];
+    }
+
+    @Benchmark
+    public short[] copyPerSample() {
+        for (int i = 0; i < mShorts.length; i++) {
+            mShorts[i] = mOutputBuffer.getShort(i * 2);
+        }
+        return mShorts;
+    }
+
+    @Benchmark
+    public short[] copyBulk() {
+        mOutputBuffer.clear();
+        mOutputBuffer.asShortBuffer().get(mShorts);
+        return mShorts;
+    }
+
+    //what a float mixer needs
+    @Benchmark
+    public float[] toFloat() {
+        mOutputBuffer.clear();
+        mOutputBuffer.asShortBuffer().get(mShorts);
+        for (int i = 0; i < mShorts.length; i++) {
+            mFloats[i] = mShorts[i] * (1f / 32768);
+        }
+        return mFloats;
+    }
+}
@@ -0,0 +1,58 @@
+package com.ss.avframework.simpledecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What recording the pipeline stats costs per sample, which has to stay small enough to
+ * leave them on: a histogram value, and a sample's way from the input to the output thread.
+ * Run with -prof gc to see that recording doesn't allocate.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class PipelineStatsBenchmark {
+    private Histogram mHistogram;
+    private PipelineStats mStats;
+    private PipelineStats.Track mTrack;
+    private long mValue;
+    private long mPtsUs;
+
+    @Setup
+    public void setUp() {
+        mHistogram = new Histogram();
+        mStats = new PipelineStats(true, true);
+        mTrack = mStats.track(PipelineStats.TRACK_VIDEO);
+    }
+
+    @Benchmark
+    public void record() {
+        //spread over the buckets like latencies, 1us to 1s
+        mValue = (mValue * 6364136223846793005L + 1442695040888963407L);
+        mHistogram.record((mValue >>> 44) & 0xfffff);
+    }
+
+    //every call of one sample: demuxed, queued, decoded, slept for and rendered
+    @Benchmark
+    public void sample() {
+        long nowNs = System.nanoTime();
+        mPtsUs += 33333;
+        mTrack.onDemuxed(5000, 10);
+        mTrack.onQueued(mPtsUs, 2000, nowNs);
+        mTrack.onDecoded(mPtsUs, nowNs + 8000000);
+        mTrack.onScheduled(12000);
+        mTrack.onRendered(nowNs + 20000000, nowNs + 21000000);
+    }
+
+    @Benchmark
+    public DecoderStats snapshot() {
+        return mStats.snapshot(10, 20);
+    }
+}
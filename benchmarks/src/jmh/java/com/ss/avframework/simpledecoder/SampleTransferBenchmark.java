@@ -0,0 +1,100 @@
+package com.ss.avframework.simpledecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every sample of a mapped file from {@link Mp4Demuxer} into a codec input buffer the way
+ * PlayerCore moves them, 10 s of 30 fps video with AAC audio.  {@code copied}: read into the
+ * read buffer, as Annex B for the video, copied into a pooled packet and then into the input
+ * buffer, three copies of every byte.  {@code mapped}: the packet only says where the sample
+ * is and it is copied once, from the mapping into the input buffer.  Bytes per pass over
+ * time per pass is the throughput; a video sample scale of 1 averages 1 KB a frame, 400
+ * about 50 Mbps at 60 fps.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class SampleTransferBenchmark {
+    @Param({"1", "100", "400"})
+    public int videoSampleScale;
+
+    private File mFile;
+    private Mp4Demuxer mDemuxer;
+    private PacketPool mPool;
+    private ByteBuffer mReadBuffer;
+    private ByteBuffer mInput;          // the codec's
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        fixture.videoSamples = 300;
+        fixture.audioSamples = 431;
+        fixture.videoSampleScale = videoSampleScale;
+        mFile = fixture.write(File.createTempFile("transfer", ".mp4"));
+        mDemuxer = new Mp4Demuxer(mFile.getPath());
+        mDemuxer.selectTrack(0);
+        mDemuxer.selectTrack(1);
+        int maxSampleSize = Math.max(mDemuxer.getTrack(0).maxSampleSize, mDemuxer.getTrack(1).maxSampleSize);
+        mPool = new PacketPool(22, 0);
+        mReadBuffer = ByteBuffer.allocateDirect(PacketPool.alignUp(maxSampleSize));
+        mInput = ByteBuffer.allocateDirect(PacketPool.alignUp(maxSampleSize));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mDemuxer.release();
+        mFile.delete();
+    }
+
+    @Benchmark
+    public long copied() {
+        mDemuxer.seekTo(0, Mp4Demuxer.SEEK_TO_PREVIOUS_SYNC);
+        long bytes = 0;
+        int track;
+        while ((track = mDemuxer.getSampleTrackIndex()) >= 0) {
+            mReadBuffer.clear();
+            int size = track == 0 ? AvcUtils.copyAsAnnexB(mDemuxer.getSampleData(), mReadBuffer, 4)
+                    : mDemuxer.readSampleData(mReadBuffer, 0);
+            mReadBuffer.position(0);
+            PacketBuffer packet = mPool.acquire(size);
+            packet.fill(mReadBuffer, size, mDemuxer.getSampleTime());
+            mDemuxer.advance();
+            mInput.clear();
+            packet.copyTo(mInput);
+            bytes += packet.size;
+            mPool.release(packet);
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    public long mapped() {
+        mDemuxer.seekTo(0, Mp4Demuxer.SEEK_TO_PREVIOUS_SYNC);
+        long bytes = 0;
+        int track;
+        while ((track = mDemuxer.getSampleTrackIndex()) >= 0) {
+            PacketBuffer packet = mPool.acquireReference();
+            packet.refer(mDemuxer.getSampleOffset(), mDemuxer.getSampleSize(), mDemuxer.getSampleTime());
+            mDemuxer.advance();
+            ByteBuffer sample = mDemuxer.getMappedData(packet.offset, packet.size);
+            mInput.clear();
+            bytes += track == 0 ? AvcUtils.copyAsAnnexB(sample, mInput, 4) : Mp4Demuxer.copySample(sample, mInput, 0);
+            mPool.release(packet);
+        }
+        return bytes;
+    }
+}
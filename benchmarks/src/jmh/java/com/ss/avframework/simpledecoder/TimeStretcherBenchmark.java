@@ -0,0 +1,62 @@
+package com.ss.avframework.simpledecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time-stretching one AAC frame of decoded audio (1024 frames, 21ms at 48kHz) through
+ * write() and read(), per channel layout and rate.  The fraction of the 21333000ns the
+ * block plays for is the CPU share stretching takes; rate 1 is the pass-through.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class TimeStretcherBenchmark {
+    private static final int FRAMES = 1024;
+
+    @Param({"1", "2", "6"})
+    public int channels;
+
+    @Param({"0.5", "1.0", "1.5", "2.0"})
+    public float rate;
+
+    private TimeStretcher mStretcher;
+    private ByteBuffer mInput;
+    private ByteBuffer mOutput;
+
+    @Setup
+    public void setUp() {
+        mStretcher = new TimeStretcher(48000, channels);
+        mStretcher.setRate(rate);
+        //music-like: a few tones and some noise
+        Random random = new Random(1);
+        mInput = ByteBuffer.allocateDirect(FRAMES * channels * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < FRAMES; i++) {
+            double t = i / 48000.0;
+            for (int c = 0; c < channels; c++) {
+                double value = 4000 * Math.sin(2 * Math.PI * 220 * (c + 1) * t) + 2000 * Math.sin(2 * Math.PI * 1330 * t)
+                        + 500 * random.nextGaussian();
+                mInput.putShort((short) value);
+            }
+        }
+        mOutput = ByteBuffer.allocateDirect(FRAMES * channels * 2 * 8).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Benchmark
+    public int block() {
+        mStretcher.write(mInput, 0, FRAMES * channels * 2);
+        mOutput.clear();
+        return mStretcher.read(mOutput);
+    }
+}
@@ -0,0 +1,491 @@
+package com.ss.avframework.simpledecoder;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Converts 16-bit PCM to another sample rate and channel count, e.g. whatever a file decodes to
+ * into the 48kHz stereo a mixer runs at.
+ * <p>
+ * The channels are remixed first: mono is copied to every channel, anything is averaged down to
+ * mono, 5.1 is downmixed to stereo the ITU way, and otherwise the channels are kept up to the
+ * count asked for and the others dropped or left silent.  The rate is then converted by a
+ * polyphase windowed sinc filter: a Kaiser windowed low-pass of {@link #TAPS} taps at the lower
+ * of the two rates, cut off just below its Nyquist frequency, with a phase of it for every
+ * output position between two input frames.  The ratio of the rates is reduced, so 44.1kHz to
+ * 48kHz has 160 phases and 32kHz to 48kHz 3; past {@link #MAX_PHASES} the two phases around a
+ * position are interpolated.  That keeps the passband flat to about 0.45 of the lower rate and
+ * aliasing and images about 90dB down.
+ * <p>
+ * The output is aligned with the input: frame n of it is at time n / outRate, and
+ * {@link #lastOutputOffset()} tells where the frames of each call start.  It lags the input by
+ * half the filter, which {@link #drain} flushes out at the end.  The filter runs on planar float
+ * history that grows to the largest block written and is reused from then on, so a steady
+ * stream of blocks doesn't allocate.  Not thread-safe.
+ */
+final class AudioResampler {
+    static final int TAPS = 128;            // of a phase, at the lower rate
+    static final int MAX_PHASES = 512;
+    private static final double CUTOFF = 0.955;     // of the lower Nyquist frequency
+    private static final double KAISER_BETA = 9.0;
+
+    private final int mInputRate;
+    private final int mInputChannels;
+    private final int mOutputRate;
+    private final int mOutputChannels;
+    private final float[] mMatrix;          // [out][in], null for the channels as they are
+    private final boolean mResampling;
+    //the filter
+    private final int mTaps;
+    private final int mUp;                  // phases between two input frames
+    private final int mDownWhole;           // input frames advanced per output frame,
+    private final int mDownFraction;        // and phases on top
+    private final int mRows;                // of mCoefficients, mUp, or MAX_PHASES + 1 interpolated
+    private final float[] mCoefficients;    // [row][tap]
+    private final float[] mRow;             // an interpolated row
+
+    //input remixed, a frame per index from mStart on. A channel per output channel, or one for mono
+    private float[][] mHistory;
+    private int mFrames;
+    private int mPosition;                  // the first frame the next output frame filters
+    private int mPhase;                     // between it and the next, 0 - mUp-1
+    private long mStart;                    // the input frame at index 0, counting from the first written
+    private long mWritten;                  // input frames written
+    private double mLastOffset;
+    private short[] mOutput = new short[0];
+
+    /**
+     * @throws IllegalArgumentException if a rate or a channel count isn't positive
+     */
+    AudioResampler(int inputRate, int inputChannels, int outputRate, int outputChannels) {
+        if (inputRate <= 0 || inputChannels <= 0 || outputRate <= 0 || outputChannels <= 0) {
+            throw new IllegalArgumentException(inputRate + "Hz " + inputChannels + "ch to "
+                    + outputRate + "Hz " + outputChannels + "ch");
+        }
+        mInputRate = inputRate;
+        mInputChannels = inputChannels;
+        mOutputRate = outputRate;
+        mOutputChannels = outputChannels;
+        mMatrix = inputChannels == outputChannels ? null : Matrix(inputChannels, outputChannels);
+        mResampling = inputRate != outputRate;
+        int gcd = Gcd(inputRate, outputRate);
+        mUp = outputRate / gcd;
+        int down = inputRate / gcd;
+        mDownWhole = down / mUp;
+        mDownFraction = down % mUp;
+        //the filter is as long in time at either rate, so longer in input frames when decimating
+        mTaps = mResampling ? (int) Math.max(TAPS, (long) TAPS * inputRate / outputRate) & ~1 : 0;
+        mRows = !mResampling ? 0 : mUp <= MAX_PHASES ? mUp : MAX_PHASES + 1;
+        mCoefficients = new float[mRows * mTaps];
+        mRow = new float[mTaps];
+        double cutoff = 0.5 * CUTOFF * Math.min(1.0, (double) outputRate / inputRate); // cycles per input frame
+        int phases = mUp <= MAX_PHASES ? mUp : MAX_PHASES;
+        for (int row = 0; row < mRows; row++) {
+            DesignRow(row, (double) row / phases, cutoff);
+        }
+        //mono is filtered once and copied to every channel
+        mHistory = new float[inputChannels == 1 ? 1 : outputChannels][0];
+        clear();
+    }
+
+    int getInputRate() {
+        return mInputRate;
+    }
+
+    int getInputChannels() {
+        return mInputChannels;
+    }
+
+    int getOutputRate() {
+        return mOutputRate;
+    }
+
+    int getOutputChannels() {
+        return mOutputChannels;
+    }
+
+    //drops everything written, e.g. after a seek: the next frame written is the first again
+    void clear() {
+        mFrames = 0;
+        mPosition = 0;
+        mPhase = 0;
+        mWritten = 0;
+        mLastOffset = 0;
+        if (mResampling) {
+            //silence before the first frame, for the first output frame to be centred on it
+            int lead = mTaps / 2 - 1;
+            EnsureRoom(lead);
+            for (float[] channel : mHistory) {
+                Arrays.fill(channel, 0, lead, 0f);
+            }
+            mFrames = lead;
+            mStart = -lead;
+        }
+    }
+
+    //the most frames the next call for inputFrames may output
+    int maxOutputFrames(int inputFrames) {
+        if (!mResampling) {
+            return inputFrames;
+        }
+        return (int) ((mFrames - mPosition + (long) inputFrames) * mUp / ((long) mDownWhole * mUp + mDownFraction)) + 1;
+    }
+
+    /**
+     * Where the first frame the last call output is, in input frames from the first frame that
+     * call took, negative when it is from input before: its pts is the input's plus this many
+     * input frames.
+     */
+    double lastOutputOffset() {
+        return mLastOffset;
+    }
+
+    /**
+     * Converts inputFrames interleaved frames of input from inputOffset into output from
+     * outputOffset, which must have room for {@link #maxOutputFrames} of them.
+     *
+     * @return the frames output
+     */
+    int process(short[] input, int inputOffset, int inputFrames, short[] output, int outputOffset) {
+        if (!mResampling) {
+            Remix(input, inputOffset, inputFrames, output, outputOffset);
+            return inputFrames;
+        }
+        mLastOffset = OutputPosition(0) - mWritten;
+        EnsureRoom(inputFrames);
+        Append(input, inputOffset, inputFrames);
+        return Filter(output, outputOffset);
+    }
+
+    /**
+     * Converts size bytes of interleaved little-endian input at offset of pcm into out from its
+     * position on, moving it past them.
+     *
+     * @return the frames output
+     * @throws BufferOverflowException if out has no room for {@link #maxOutputFrames}
+     */
+    int process(ByteBuffer pcm, int offset, int size, ByteBuffer out) {
+        int inputFrames = size / 2 / mInputChannels;
+        if (out.remaining() < maxOutputFrames(inputFrames) * mOutputChannels * 2) {
+            throw new BufferOverflowException();
+        }
+        int frames;
+        if (!mResampling) {
+            EnsureOutputRoom(inputFrames);
+            RemixBytes(pcm, offset, inputFrames, mOutput);
+            frames = inputFrames;
+        } else {
+            mLastOffset = OutputPosition(0) - mWritten;
+            EnsureRoom(inputFrames);
+            AppendBytes(pcm, offset, inputFrames);
+            EnsureOutputRoom(maxOutputFrames(0));
+            frames = Filter(mOutput, 0);
+        }
+        int position = out.position();
+        short[] output = mOutput;
+        for (int i = 0, n = frames * mOutputChannels; i < n; i++) {
+            short sample = output[i];
+            out.put(position++, (byte) sample);
+            out.put(position++, (byte) (sample >> 8));
+        }
+        out.position(position);
+        return frames;
+    }
+
+    /**
+     * Outputs what the filter still holds back, as if silence followed the last frame written.
+     *
+     * @return the frames output, at most {@link #maxOutputFrames}(TAPS / 2)
+     */
+    int drain(short[] output, int outputOffset) {
+        if (!mResampling) {
+            mLastOffset = 0;
+            return 0;
+        }
+        int frames = mTaps / 2;
+        EnsureRoom(frames);
+        for (float[] channel : mHistory) {
+            Arrays.fill(channel, mFrames, mFrames + frames, 0f);
+        }
+        mFrames += frames;
+        long end = mWritten;
+        mLastOffset = OutputPosition(0) - end;
+        int count = Filter(output, outputOffset);
+        //only as far as the frames written, not the silence after them
+        int keep = count;
+        while (keep > 0 && OutputPosition(keep - 1 - count) >= end) {
+            keep--;
+        }
+        return keep;
+    }
+
+    //the position in input frames the output frame after the last one filtered plus index is at
+    private double OutputPosition(int index) {
+        double step = mDownWhole + (double) mDownFraction / mUp;
+        return mStart + mPosition + mTaps / 2 - 1 + (double) mPhase / mUp + index * step;
+    }
+
+    private void Append(short[] input, int offset, int frames) {
+        int inChannels = mInputChannels;
+        float[] matrix = mMatrix;
+        for (int c = 0; c < mHistory.length; c++) {
+            float[] history = mHistory[c];
+            int to = mFrames;
+            if (matrix == null) {
+                for (int i = 0, from = offset + c; i < frames; i++, from += inChannels) {
+                    history[to + i] = input[from];
+                }
+            } else {
+                int row = c * inChannels;
+                for (int i = 0, from = offset; i < frames; i++, from += inChannels) {
+                    float sum = 0;
+                    for (int k = 0; k < inChannels; k++) {
+                        sum += matrix[row + k] * input[from + k];
+                    }
+                    history[to + i] = sum;
+                }
+            }
+        }
+        mFrames += frames;
+        mWritten += frames;
+    }
+
+    private void AppendBytes(ByteBuffer pcm, int offset, int frames) {
+        int inChannels = mInputChannels;
+        float[] matrix = mMatrix;
+        for (int c = 0; c < mHistory.length; c++) {
+            float[] history = mHistory[c];
+            int to = mFrames;
+            if (matrix == null) {
+                for (int i = 0, from = offset + 2 * c; i < frames; i++, from += 2 * inChannels) {
+                    history[to + i] = ReadSample(pcm, from);
+                }
+            } else {
+                int row = c * inChannels;
+                for (int i = 0, from = offset; i < frames; i++, from += 2 * inChannels) {
+                    float sum = 0;
+                    for (int k = 0; k < inChannels; k++) {
+                        sum += matrix[row + k] * ReadSample(pcm, from + 2 * k);
+                    }
+                    history[to + i] = sum;
+                }
+            }
+        }
+        mFrames += frames;
+        mWritten += frames;
+    }
+
+    //every output frame the history covers the filter of, then drops the history no later one needs
+    private int Filter(short[] output, int outputOffset) {
+        int taps = mTaps;
+        int channels = mHistory.length;
+        int outChannels = mOutputChannels;
+        float[] coefficients = mCoefficients;
+        int frames = 0;
+        int out = outputOffset;
+        while (mPosition + taps <= mFrames) {
+            float[] row;
+            int base;
+            if (mRows == mUp) {
+                row = coefficients;
+                base = mPhase * taps;
+            } else {
+                InterpolateRow();
+                row = mRow;
+                base = 0;
+            }
+            for (int c = 0; c < channels; c++) {
+                float[] x = mHistory[c];
+                int from = mPosition;
+                float sum = 0;
+                for (int k = 0; k < taps; k++) {
+                    sum += row[base + k] * x[from + k];
+                }
+                output[out + c] = Clip(sum);
+            }
+            for (int c = channels; c < outChannels; c++) {
+                output[out + c] = output[out];
+            }
+            out += outChannels;
+            frames++;
+            mPosition += mDownWhole;
+            mPhase += mDownFraction;
+            if (mPhase >= mUp) {
+                mPhase -= mUp;
+                mPosition++;
+            }
+        }
+        Compact();
+        return frames;
+    }
+
+    private void InterpolateRow() {
+        double position = (double) mPhase * MAX_PHASES / mUp;
+        int row = (int) position;
+        float fraction = (float) (position - row);
+        float[] coefficients = mCoefficients;
+        int a = row * mTaps;
+        int b = a + mTaps;
+        for (int k = 0; k < mTaps; k++) {
+            mRow[k] = coefficients[a + k] + (coefficients[b + k] - coefficients[a + k]) * fraction;
+        }
+    }
+
+    private void Compact() {
+        int drop = Math.min(mPosition, mFrames);
+        if (drop == 0) {
+            return;
+        }
+        for (float[] channel : mHistory) {
+            System.arraycopy(channel, drop, channel, 0, mFrames - drop);
+        }
+        mFrames -= drop;
+        mPosition -= drop;
+        mStart += drop;
+    }
+
+    private void Remix(short[] input, int inputOffset, int frames, short[] output, int outputOffset) {
+        mLastOffset = 0;
+        int inChannels = mInputChannels;
+        int outChannels = mOutputChannels;
+        float[] matrix = mMatrix;
+        if (matrix == null) {
+            System.arraycopy(input, inputOffset, output, outputOffset, frames * inChannels);
+            return;
+        }
+        for (int i = 0, from = inputOffset, to = outputOffset; i < frames; i++, from += inChannels, to += outChannels) {
+            for (int c = 0, row = 0; c < outChannels; c++, row += inChannels) {
+                float sum = 0;
+                for (int k = 0; k < inChannels; k++) {
+                    sum += matrix[row + k] * input[from + k];
+                }
+                output[to + c] = Clip(sum);
+            }
+        }
+    }
+
+    private void RemixBytes(ByteBuffer pcm, int offset, int frames, short[] output) {
+        mLastOffset = 0;
+        int inChannels = mInputChannels;
+        int outChannels = mOutputChannels;
+        float[] matrix = mMatrix;
+        if (matrix == null) {
+            for (int i = 0, n = frames * inChannels; i < n; i++) {
+                output[i] = ReadSample(pcm, offset + 2 * i);
+            }
+            return;
+        }
+        for (int i = 0, from = offset, to = 0; i < frames; i++, from += 2 * inChannels, to += outChannels) {
+            for (int c = 0, row = 0; c < outChannels; c++, row += inChannels) {
+                float sum = 0;
+                for (int k = 0; k < inChannels; k++) {
+                    sum += matrix[row + k] * ReadSample(pcm, from + 2 * k);
+                }
+                output[to + c] = Clip(sum);
+            }
+        }
+    }
+
+    //phase: where the output frame is between the two input frames in the middle of the taps, 0 - 1
+    private void DesignRow(int row, double phase, double cutoff) {
+        int taps = mTaps;
+        int half = taps / 2;
+        double i0Beta = BesselI0(KAISER_BETA);
+        double sum = 0;
+        int base = row * taps;
+        for (int k = 0; k < taps; k++) {
+            double t = k - (half - 1) - phase;           // input frames from the output frame, -half to half
+            double x = 2 * cutoff * t;
+            double sinc = x == 0 ? 1 : Math.sin(Math.PI * x) / (Math.PI * x);
+            double w = t / half;
+            double window = Math.abs(w) >= 1 ? 0 : BesselI0(KAISER_BETA * Math.sqrt(1 - w * w)) / i0Beta;
+            double value = 2 * cutoff * sinc * window;
+            mCoefficients[base + k] = (float) value;
+            sum += value;
+        }
+        //unity gain at DC for every phase, else the phases differing would be noise
+        for (int k = 0; k < taps; k++) {
+            mCoefficients[base + k] = (float) (mCoefficients[base + k] / sum);
+        }
+    }
+
+    private void EnsureRoom(int frames) {
+        int needed = mFrames + frames;
+        if (needed > mHistory[0].length) {
+            int capacity = Math.max(needed, mHistory[0].length * 2);
+            for (int c = 0; c < mHistory.length; c++) {
+                float[] history = new float[capacity];
+                System.arraycopy(mHistory[c], 0, history, 0, mFrames);
+                mHistory[c] = history;
+            }
+        }
+    }
+
+    private void EnsureOutputRoom(int frames) {
+        int needed = frames * Math.max(mInputChannels, mOutputChannels);
+        if (needed > mOutput.length) {
+            mOutput = new short[Math.max(needed, mOutput.length * 2)];
+        }
+    }
+
+    //[out][in] weights, each output channel's summing to at most 1 so nothing clips that didn't
+    private static float[] Matrix(int in, int out) {
+        float[] matrix = new float[out * in];
+        if (in == 1) {
+            for (int c = 0; c < out; c++) {
+                matrix[c] = 1;
+            }
+        } else if (out == 1) {
+            for (int k = 0; k < in; k++) {
+                matrix[k] = 1.0f / in;
+            }
+        } else if (in == 6 && out == 2) {
+            //FL FR C LFE SL SR, the centre and surrounds at -3dB, no LFE
+            float side = (float) Math.sqrt(0.5);
+            float norm = 1 / (1 + 2 * side);
+            float[] left = {1, 0, side, 0, side, 0};
+            float[] right = {0, 1, side, 0, 0, side};
+            for (int k = 0; k < 6; k++) {
+                matrix[k] = left[k] * norm;
+                matrix[6 + k] = right[k] * norm;
+            }
+        } else {
+            for (int c = 0; c < Math.min(in, out); c++) {
+                matrix[c * in + c] = 1;
+            }
+        }
+        return matrix;
+    }
+
+    private static double BesselI0(double x) {
+        double sum = 1;
+        double term = 1;
+        for (int k = 1; k < 50; k++) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+            if (term < sum * 1e-12) {
+                break;
+            }
+        }
+        return sum;
+    }
+
+    private static int Gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    private static short ReadSample(ByteBuffer pcm, int index) {
+        return (short) ((pcm.get(index) & 0xff) | pcm.get(index + 1) << 8);
+    }
+
+    private static short Clip(float value) {
+        int sample = Math.round(value);
+        return (short) (sample > Short.MAX_VALUE ? Short.MAX_VALUE : sample < Short.MIN_VALUE ? Short.MIN_VALUE : sample);
+    }
+}
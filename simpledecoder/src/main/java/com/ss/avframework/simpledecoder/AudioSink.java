@@ -0,0 +1,46 @@
+package com.ss.avframework.simpledecoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Where {@link Mp4Decoder} plays the audio, see {@link Mp4Decoder#setAudioSink}: 16-bit PCM
+ * written without ever blocking, into a buffer a device consumes at the sample rate.  How much
+ * it has consumed is what the player's clock follows, so the video stays in sync with what is
+ * heard rather than with when the PCM was written.
+ * <p>
+ * {@link AudioTrackSink} plays on the device, {@link SimulatedAudioSink} consumes the PCM in
+ * real time without a device, discarding it or writing it to a file.  Called by one thread at a
+ * time, not always the same one.
+ */
+public interface AudioSink {
+    /**
+     * Gets ready for PCM of the format, paused, dropping whatever was written before.  Called
+     * before the first write and on every format change.
+     */
+    void configure(int sampleRate, int channelCount) throws IOException;
+
+    //frames write() takes right now
+    int writableFrames();
+
+    /**
+     * Takes as many whole frames from pcm's position on as there is room for without blocking,
+     * moving its position past them.
+     *
+     * @return the frames taken
+     */
+    int write(ByteBuffer pcm) throws IOException;
+
+    //frames the device consumed since configure() or flush(), never more than were written
+    long playedFrames();
+
+    void play();
+
+    void pause();
+
+    //drops what was written and not played yet, and counts the frames from 0 again
+    void flush();
+
+    //done with it until configure() is called again
+    void release();
+}
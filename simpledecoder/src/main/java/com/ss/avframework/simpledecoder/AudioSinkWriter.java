@@ -0,0 +1,194 @@
+package com.ss.avframework.simpledecoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Feeds an {@link AudioSink} from the core task and tells which media time it is playing, for
+ * the clock to follow.
+ * <p>
+ * Every write is marked with the pts of its first frame and the playback rate it is at, by
+ * the count of frames written before it, so the frames the sink has played map back to the
+ * pts playing now.  What the sink has no room for waits here and goes first the next time;
+ * {@link #roomInUs} tells when to write again so it doesn't pile up.  A format change
+ * reconfigures the sink, a seek flushes it.  Core task only.
+ */
+final class AudioSinkWriter {
+    private static final int MAX_MARKS = 64;    // writes not played yet that can be told apart
+
+    private final AudioSink mSink;
+    private int mSampleRate;                    // 0 until configured
+    private int mChannelCount;
+    private boolean mPaused = true;
+    private int mGeneration;
+    private long mWrittenFrames;                // since the sink counts from 0, the frames waiting here included
+    private ByteBuffer mPending = ByteBuffer.allocateDirect(0);
+    //the marks, oldest first from mFirstMark, a ring
+    private final long[] mMarkFrames = new long[MAX_MARKS];
+    private final long[] mMarkPtsUs = new long[MAX_MARKS];
+    private final float[] mMarkRates = new float[MAX_MARKS];
+    private int mFirstMark;
+    private int mMarks;
+
+    AudioSinkWriter(AudioSink sink) {
+        if (sink == null) {
+            throw new IllegalArgumentException("sink is null");
+        }
+        mSink = sink;
+    }
+
+    /**
+     * Writes the PCM from pcm's position to its limit, moving the position to the limit.
+     *
+     * @param ptsUs of the first frame
+     * @param rate the media time a frame stands for, in frames, see {@link PcmRing#write}
+     * @param generation of the seek the PCM is from, a new one flushes the sink
+     */
+    void write(ByteBuffer pcm, int sampleRate, int channelCount, long ptsUs, float rate, int generation) throws IOException {
+        if (generation != mGeneration) {
+            flush();
+            mGeneration = generation;
+        }
+        if (sampleRate != mSampleRate || channelCount != mChannelCount) {
+            mSink.configure(sampleRate, channelCount);
+            mSampleRate = sampleRate;
+            mChannelCount = channelCount;
+            Reset();
+            if (!mPaused) {
+                mSink.play();
+            }
+        }
+        int frameBytes = channelCount * 2;
+        int frames = pcm.remaining() / frameBytes;
+        if (frames == 0) {
+            return;
+        }
+        Mark(mWrittenFrames, ptsUs, rate);
+        mWrittenFrames += frames;
+        if (WritePending()) {
+            mSink.write(pcm);
+        }
+        if (pcm.remaining() >= frameBytes) { //the rest waits
+            int bytes = pcm.remaining() / frameBytes * frameBytes;
+            mPending.compact();
+            if (bytes > mPending.remaining()) {
+                ByteBuffer pending = ByteBuffer.allocateDirect(PacketPool.alignUp((mPending.position() + bytes) * 2));
+                mPending.flip();
+                pending.put(mPending);
+                mPending = pending;
+            }
+            pcm.limit(pcm.position() + bytes);
+            mPending.put(pcm);
+            mPending.flip();
+        }
+        pcm.position(pcm.limit());
+    }
+
+    /**
+     * How long until the sink has room for frames more on top of what waits here, 0 if it has
+     * now.  Writes what waits if it can.
+     */
+    long roomInUs(int frames) throws IOException {
+        if (mSampleRate == 0) {
+            return 0;
+        }
+        WritePending();
+        long room = mSink.writableFrames() - (long) mPending.remaining() / (mChannelCount * 2);
+        if (room >= frames) {
+            return 0;
+        }
+        return Math.max(1000, (frames - room) * 1000000L / mSampleRate);
+    }
+
+    /**
+     * The media time the sink is playing now, Long.MIN_VALUE before it played any of the
+     * PCM of generation.
+     */
+    long playingPtsUs(int generation) {
+        if (generation != mGeneration || mMarks == 0) {
+            return Long.MIN_VALUE;
+        }
+        long played = mSink.playedFrames();
+        if (played <= 0) {
+            return Long.MIN_VALUE;
+        }
+        //the last mark played from, the ones before it are done with
+        while (mMarks > 1 && mMarkFrames[(mFirstMark + 1) % MAX_MARKS] <= played) {
+            mFirstMark = (mFirstMark + 1) % MAX_MARKS;
+            mMarks--;
+        }
+        int mark = mFirstMark;
+        return mMarkPtsUs[mark] + (long) ((played - mMarkFrames[mark]) * (double) mMarkRates[mark] * 1000000.0 / mSampleRate);
+    }
+
+    //real time until what was written is played. Writes what waits if it can
+    long unplayedUs() throws IOException {
+        if (mSampleRate == 0) {
+            return 0;
+        }
+        WritePending();
+        return Math.max(0, mWrittenFrames - mSink.playedFrames()) * 1000000L / mSampleRate;
+    }
+
+    void setPaused(boolean paused) {
+        if (paused == mPaused) {
+            return;
+        }
+        mPaused = paused;
+        if (mSampleRate != 0) {
+            if (paused) {
+                mSink.pause();
+            } else {
+                mSink.play();
+            }
+        }
+    }
+
+    //drops what was written and not played, e.g. on a seek
+    void flush() {
+        if (mSampleRate != 0) {
+            mSink.flush();
+        }
+        Reset();
+    }
+
+    void release() {
+        mSink.release();
+        mSampleRate = 0;
+        mChannelCount = 0;
+        Reset();
+    }
+
+    //false if some still waits
+    private boolean WritePending() throws IOException {
+        if (mPending.hasRemaining()) {
+            mSink.write(mPending);
+            if (mPending.hasRemaining()) {
+                return false;
+            }
+        }
+        mPending.clear();
+        mPending.limit(0);
+        return true;
+    }
+
+    private void Mark(long frame, long ptsUs, float rate) {
+        if (mMarks == MAX_MARKS) { //the sink holds more writes than there are marks, forget the oldest
+            mFirstMark = (mFirstMark + 1) % MAX_MARKS;
+            mMarks--;
+        }
+        int mark = (mFirstMark + mMarks) % MAX_MARKS;
+        mMarkFrames[mark] = frame;
+        mMarkPtsUs[mark] = ptsUs;
+        mMarkRates[mark] = rate;
+        mMarks++;
+    }
+
+    private void Reset() {
+        mWrittenFrames = 0;
+        mPending.clear();
+        mPending.limit(0);
+        mFirstMark = 0;
+        mMarks = 0;
+    }
+}
@@ -0,0 +1,169 @@
+package com.ss.avframework.simpledecoder;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+import android.os.Build;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link AudioSink} playing on the device through a streaming AudioTrack of
+ * {@code bufferMs}.  Never writes more than the track has room for, so writing doesn't block
+ * even before API 21's WRITE_NON_BLOCKING.  The frames played come from the track's timestamp
+ * where it has one, which unlike the playback head moves smoothly, else from the head.
+ */
+public final class AudioTrackSink implements AudioSink {
+    public static final int DEFAULT_BUFFER_MS = 100;
+
+    private final int mBufferMs;
+    private AudioTrack mTrack;
+    private int mSampleRate;
+    private int mFrameBytes;
+    private int mBufferFrames;
+    private long mWrittenFrames;
+    //the playback head is an unsigned int that wraps, see PlayedFrames()
+    private long mHeadWraps;
+    private long mLastHead;
+    private final AudioTimestamp mTimestamp = new AudioTimestamp();
+    private byte[] mScratch;            // before API 21 only
+    private boolean mPlaying;
+
+    public AudioTrackSink() {
+        this(DEFAULT_BUFFER_MS);
+    }
+
+    /**
+     * @param bufferMs how far ahead of what is heard the PCM is written, at least the device's minimum
+     */
+    public AudioTrackSink(int bufferMs) {
+        if (bufferMs <= 0) {
+            throw new IllegalArgumentException("buffer " + bufferMs + "ms");
+        }
+        mBufferMs = bufferMs;
+    }
+
+    @Override
+    public void configure(int sampleRate, int channelCount) throws IOException {
+        if (channelCount > 2) {
+            throw new IOException("AudioTrackSink plays mono or stereo, not " + channelCount + " channels");
+        }
+        release();
+        int channelConfig = channelCount == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+        mFrameBytes = channelCount * 2;
+        int minSize = AudioTrack.getMinBufferSize(sampleRate, channelConfig, AudioFormat.ENCODING_PCM_16BIT);
+        int size = Math.max(minSize, (int) ((long) sampleRate * mBufferMs / 1000) * mFrameBytes);
+        AudioTrack track = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate, channelConfig,
+                AudioFormat.ENCODING_PCM_16BIT, size, AudioTrack.MODE_STREAM);
+        if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+            track.release();
+            throw new IOException("Can't create an AudioTrack for " + sampleRate + "Hz " + channelCount + "ch");
+        }
+        mTrack = track;
+        mSampleRate = sampleRate;
+        mBufferFrames = size / mFrameBytes;
+        mWrittenFrames = 0;
+        mHeadWraps = 0;
+        mLastHead = 0;
+        mPlaying = false;
+    }
+
+    @Override
+    public int writableFrames() {
+        if (mTrack == null) {
+            return 0;
+        }
+        return (int) Math.max(0, mBufferFrames - (mWrittenFrames - PlayedFrames()));
+    }
+
+    @Override
+    public int write(ByteBuffer pcm) throws IOException {
+        int frames = Math.min(pcm.remaining() / mFrameBytes, writableFrames());
+        if (frames == 0) {
+            return 0;
+        }
+        int size = frames * mFrameBytes;
+        int written;
+        if (Build.VERSION.SDK_INT >= 21) {
+            written = mTrack.write(pcm, size, AudioTrack.WRITE_NON_BLOCKING);
+        } else { //it fits, so the blocking write doesn't
+            if (mScratch == null || mScratch.length < size) {
+                mScratch = new byte[size];
+            }
+            pcm.get(mScratch, 0, size);
+            written = mTrack.write(mScratch, 0, size);
+            if (written > 0 && written < size) {
+                pcm.position(pcm.position() - size + written);
+            }
+        }
+        if (written < 0) {
+            throw new IOException("AudioTrack write error " + written);
+        }
+        mWrittenFrames += written / mFrameBytes;
+        return written / mFrameBytes;
+    }
+
+    @Override
+    public long playedFrames() {
+        return mTrack != null ? PlayedFrames() : 0;
+    }
+
+    @Override
+    public void play() {
+        if (mTrack != null && !mPlaying) {
+            mTrack.play();
+            mPlaying = true;
+        }
+    }
+
+    @Override
+    public void pause() {
+        if (mTrack != null && mPlaying) {
+            mTrack.pause();
+            mPlaying = false;
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (mTrack == null) {
+            return;
+        }
+        boolean playing = mPlaying;
+        pause(); //a track only flushes paused
+        mTrack.flush();
+        mWrittenFrames = 0;
+        mHeadWraps = 0;
+        mLastHead = 0;
+        if (playing) {
+            play();
+        }
+    }
+
+    @Override
+    public void release() {
+        if (mTrack != null) {
+            mTrack.release();
+            mTrack = null;
+        }
+    }
+
+    private long PlayedFrames() {
+        long head = mTrack.getPlaybackHeadPosition() & 0xffffffffL;
+        if (head < mLastHead) {
+            mHeadWraps += 1L << 32;
+        }
+        mLastHead = head;
+        long played = mHeadWraps + head;
+        if (mPlaying && Build.VERSION.SDK_INT >= 19 && mTrack.getTimestamp(mTimestamp)) {
+            long sinceNs = System.nanoTime() - mTimestamp.nanoTime;
+            //a timestamp from before a flush counts from before it
+            if (mTimestamp.framePosition <= played) {
+                played = Math.max(played, mTimestamp.framePosition + sinceNs * mSampleRate / 1000000000L);
+            }
+        }
+        return Math.min(played, mWrittenFrames);
+    }
+}
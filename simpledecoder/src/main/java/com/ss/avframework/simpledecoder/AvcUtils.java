@@ -0,0 +1,208 @@
+package com.ss.avframework.simpledecoder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers for H.264/H.265 elementary streams.
+ */
+final class AvcUtils {
+    private AvcUtils() {
+    }
+
+    /**
+     * Copies one MP4 sample, made of NAL units prefixed by their length, into {@code dst}
+     * as an Annex B byte stream (each NAL unit prefixed by a 00 00 00 01 start code), which
+     * is what MediaCodec wants.  Consumes {@code src} from position to limit.
+     *
+     * @param nalLengthSize size of the length prefix, 1 to 4 bytes
+     * @return number of bytes written to {@code dst}
+     */
+    static int copyAsAnnexB(ByteBuffer src, ByteBuffer dst, int nalLengthSize) {
+        int start = dst.position();
+        int end = src.limit();
+        while (src.remaining() > nalLengthSize) {
+            int nalSize = 0;
+            for (int i = 0; i < nalLengthSize; i++) {
+                nalSize = (nalSize << 8) | (src.get() & 0xff);
+            }
+            if (nalSize <= 0 || nalSize > src.remaining()) { //corrupt, pass the rest through
+                break;
+            }
+            dst.putInt(1);
+            src.limit(src.position() + nalSize);
+            dst.put(src);
+            src.limit(end);
+        }
+        if (src.hasRemaining()) {
+            dst.put(src);
+        }
+        return dst.position() - start;
+    }
+
+    /**
+     * @return the size {@link #copyAsAnnexB} produces for a sample of {@code size} bytes
+     * in the worst case
+     */
+    static int maxAnnexBSize(int size, int nalLengthSize) {
+        //every NAL unit grows by 4 - nalLengthSize bytes, and takes at least nalLengthSize + 1
+        return nalLengthSize >= 4 ? size : size + size / (nalLengthSize + 1) * (4 - nalLengthSize);
+    }
+
+    /**
+     * Reads the picture size out of an H.264 sequence parameter set, after the frame
+     * cropping MediaExtractor reports as crop-left/right/top/bottom.
+     *
+     * @param sps the SPS NAL unit, with or without a start code
+     * @return {width, height}, or null if it isn't a valid SPS
+     */
+    static int[] parseSpsSize(byte[] sps) {
+        int start = 0;
+        while (start + 1 < sps.length && sps[start] == 0) { //skip a start code
+            start++;
+        }
+        if (start >= 2 && sps[start] == 1) {
+            start++;
+        } else {
+            start = 0;
+        }
+        if (start >= sps.length || (sps[start] & 0x1f) != 7) {
+            return null;
+        }
+        try {
+            BitReader bits = new BitReader(sps, start + 1);
+            int profileIdc = bits.readBits(8);
+            bits.skipBits(16);          // constraint flags, level_idc
+            bits.readUe();              // seq_parameter_set_id
+            int chromaFormatIdc = 1;
+            boolean separateColourPlane = false;
+            if (profileIdc == 100 || profileIdc == 110 || profileIdc == 122 || profileIdc == 244 || profileIdc == 44
+                    || profileIdc == 83 || profileIdc == 86 || profileIdc == 118 || profileIdc == 128
+                    || profileIdc == 138 || profileIdc == 139 || profileIdc == 134 || profileIdc == 135) {
+                chromaFormatIdc = bits.readUe();
+                if (chromaFormatIdc == 3) {
+                    separateColourPlane = bits.readBit();
+                }
+                bits.readUe();          // bit_depth_luma_minus8
+                bits.readUe();          // bit_depth_chroma_minus8
+                bits.skipBits(1);       // qpprime_y_zero_transform_bypass_flag
+                if (bits.readBit()) {   // seq_scaling_matrix_present_flag
+                    for (int i = 0; i < (chromaFormatIdc != 3 ? 8 : 12); i++) {
+                        if (bits.readBit()) {
+                            skipScalingList(bits, i < 6 ? 16 : 64);
+                        }
+                    }
+                }
+            }
+            bits.readUe();              // log2_max_frame_num_minus4
+            int picOrderCntType = bits.readUe();
+            if (picOrderCntType == 0) {
+                bits.readUe();          // log2_max_pic_order_cnt_lsb_minus4
+            } else if (picOrderCntType == 1) {
+                bits.skipBits(1);       // delta_pic_order_always_zero_flag
+                bits.readSe();          // offset_for_non_ref_pic
+                bits.readSe();          // offset_for_top_to_bottom_field
+                int cycle = bits.readUe();
+                for (int i = 0; i < cycle; i++) {
+                    bits.readSe();
+                }
+            }
+            bits.readUe();              // max_num_ref_frames
+            bits.skipBits(1);           // gaps_in_frame_num_value_allowed_flag
+            int widthInMbs = bits.readUe() + 1;
+            int heightInMapUnits = bits.readUe() + 1;
+            boolean frameMbsOnly = bits.readBit();
+            if (!frameMbsOnly) {
+                bits.skipBits(1);       // mb_adaptive_frame_field_flag
+            }
+            bits.skipBits(1);           // direct_8x8_inference_flag
+            int width = widthInMbs * 16;
+            int height = (frameMbsOnly ? 1 : 2) * heightInMapUnits * 16;
+            if (bits.readBit()) {       // frame_cropping_flag
+                int left = bits.readUe();
+                int right = bits.readUe();
+                int top = bits.readUe();
+                int bottom = bits.readUe();
+                int cropUnitX = 1;
+                int cropUnitY = frameMbsOnly ? 1 : 2;
+                if (!separateColourPlane && chromaFormatIdc != 0) {
+                    cropUnitX = chromaFormatIdc == 3 ? 1 : 2;
+                    cropUnitY *= chromaFormatIdc == 1 ? 2 : 1;
+                }
+                width -= (left + right) * cropUnitX;
+                height -= (top + bottom) * cropUnitY;
+            }
+            return width > 0 && height > 0 ? new int[]{width, height} : null;
+        } catch (IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    private static void skipScalingList(BitReader bits, int size) {
+        int lastScale = 8;
+        int nextScale = 8;
+        for (int j = 0; j < size; j++) {
+            if (nextScale != 0) {
+                nextScale = (lastScale + bits.readSe() + 256) % 256;
+            }
+            lastScale = nextScale == 0 ? lastScale : nextScale;
+        }
+    }
+
+    //RBSP bit reader, drops the emulation prevention bytes (00 00 03)
+    private static final class BitReader {
+        private final byte[] mData;
+        private int mByte;
+        private int mBit;
+        private int mZeros;
+
+        BitReader(byte[] data, int offset) {
+            mData = data;
+            mByte = offset;
+        }
+
+        boolean readBit() {
+            return readBits(1) != 0;
+        }
+
+        int readBits(int count) {
+            int value = 0;
+            for (int i = 0; i < count; i++) {
+                if (mBit == 0) {
+                    if (mZeros >= 2 && mByte < mData.length && mData[mByte] == 3) {
+                        mByte++;
+                        mZeros = 0;
+                    }
+                    if (mByte >= mData.length) {
+                        throw new IndexOutOfBoundsException("End of SPS");
+                    }
+                    mZeros = mData[mByte] == 0 ? mZeros + 1 : 0;
+                }
+                value = (value << 1) | ((mData[mByte] >> (7 - mBit)) & 1);
+                if (++mBit == 8) {
+                    mBit = 0;
+                    mByte++;
+                }
+            }
+            return value;
+        }
+
+        void skipBits(int count) {
+            readBits(count);
+        }
+
+        int readUe() {
+            int leadingZeros = 0;
+            while (!readBit()) {
+                if (++leadingZeros > 31) {
+                    throw new IndexOutOfBoundsException("Bad Exp-Golomb code");
+                }
+            }
+            return leadingZeros == 0 ? 0 : (int) ((1L << leadingZeros) - 1 + readBits(leadingZeros));
+        }
+
+        int readSe() {
+            int value = readUe();
+            return (value & 1) != 0 ? (value + 1) / 2 : -(value / 2);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.ss.avframework.simpledecoder;
+
+import android.graphics.Bitmap;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A {@link FrameExporter.Format} compressing every frame to a PNG, JPEG or WebP file of its own in
+ * a directory, frame_000000.png on.  Every writer of the exporter keeps one Bitmap it copies the
+ * frames into, rather than creating one per frame; they are recycled on close().
+ */
+public final class BitmapFrameFormat implements FrameExporter.Format {
+    private static final class Canvas {
+        Bitmap bitmap;
+        int width;
+        int height;
+    }
+
+    private final File mDir;
+    private final Bitmap.CompressFormat mCompressFormat;
+    private final int mQuality;
+    private final String mSuffix;
+    private final ThreadLocal<Canvas> mCanvas = new ThreadLocal<Canvas>();
+    private final List<Bitmap> mBitmaps = new ArrayList<Bitmap>();      // guarded by itself
+
+    /**
+     * @param quality 0 - 100, see Bitmap.compress()
+     * @throws IllegalArgumentException if dir or compressFormat is null or quality out of range
+     */
+    public BitmapFrameFormat(File dir, Bitmap.CompressFormat compressFormat, int quality) {
+        if (dir == null || compressFormat == null) {
+            throw new IllegalArgumentException("null argument");
+        }
+        if (quality < 0 || quality > 100) {
+            throw new IllegalArgumentException("quality " + quality);
+        }
+        mDir = dir;
+        mCompressFormat = compressFormat;
+        mQuality = quality;
+        mSuffix = compressFormat == Bitmap.CompressFormat.JPEG ? ".jpg" : "." + compressFormat.name().toLowerCase(Locale.US);
+    }
+
+    @Override
+    public void write(ByteBuffer rgba, int width, int height, int index, long ptsUs) throws IOException {
+        Canvas canvas = mCanvas.get();
+        if (canvas == null) {
+            canvas = new Canvas();
+            mCanvas.set(canvas);
+        }
+        if (canvas.bitmap == null || canvas.width != width || canvas.height != height) {
+            canvas.bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            canvas.width = width;
+            canvas.height = height;
+            synchronized (mBitmaps) {
+                mBitmaps.add(canvas.bitmap);
+            }
+        }
+        //copyPixelsFromBuffer() takes the RGBA as is, no swapping to ARGB, see saveFrame()
+        canvas.bitmap.copyPixelsFromBuffer(rgba);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(
+                new File(mDir, String.format(Locale.US, "frame_%06d", index) + mSuffix)));
+        try {
+            if (!canvas.bitmap.compress(mCompressFormat, mQuality, out)) {
+                throw new IOException("Can't compress frame " + index + " as " + mCompressFormat);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (mBitmaps) {
+            for (Bitmap bitmap : mBitmaps) {
+                bitmap.recycle();
+            }
+            mBitmaps.clear();
+        }
+    }
+}
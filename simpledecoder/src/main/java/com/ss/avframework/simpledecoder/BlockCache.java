@@ -0,0 +1,193 @@
+package com.ss.avframework.simpledecoder;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Blocks of remote files cached on disk for {@link HttpDataSource}, a file each, the least
+ * recently used deleted once they take more than {@code maxBytes}.
+ * <p>
+ * A block is the {@code blockSize} bytes at {@code index * blockSize} of the file of a key,
+ * the last one of a file shorter.  Blocks are written to a temporary file and renamed, so
+ * a block on disk is always complete.  What is in the directory is picked up on creation,
+ * in the order the blocks were written, so the cache outlives the process.  The length of
+ * the file of a key is kept too, in a small file of its own that doesn't count.  One instance
+ * per directory; thread-safe.
+ */
+final class BlockCache {
+    private static final String SUFFIX = ".blk";
+    private static final String LENGTH_SUFFIX = ".len";
+
+    private final File mDir;
+    private final int mBlockSize;
+    private final long mMaxBytes;
+    //file name to size, least recently used first
+    private final LinkedHashMap<String, Long> mBlocks = new LinkedHashMap<String, Long>(64, 0.75f, true);
+    private long mBytes;
+
+    BlockCache(File dir, int blockSize, long maxBytes) {
+        if (blockSize <= 0 || maxBytes < blockSize) {
+            throw new IllegalArgumentException("blocks of " + blockSize + " bytes, at most " + maxBytes + " bytes");
+        }
+        mDir = dir;
+        mBlockSize = blockSize;
+        mMaxBytes = maxBytes;
+        dir.mkdirs();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    long diff = a.lastModified() - b.lastModified();
+                    return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+                }
+            });
+            for (File file : files) {
+                if (file.getName().endsWith(SUFFIX)) {
+                    mBlocks.put(file.getName(), file.length());
+                    mBytes += file.length();
+                } else if (file.getName().endsWith(".tmp")) { //a write that didn't finish
+                    file.delete();
+                }
+            }
+        }
+        Trim();
+    }
+
+    int blockSize() {
+        return mBlockSize;
+    }
+
+    synchronized long bytes() {
+        return mBytes;
+    }
+
+    synchronized boolean contains(String key, long index) {
+        return mBlocks.containsKey(Name(key, index));
+    }
+
+    /**
+     * Reads the block from offset on into buffer, up to its limit.
+     *
+     * @return the bytes read, -1 if the block isn't cached
+     */
+    int read(String key, long index, int offset, ByteBuffer buffer) throws IOException {
+        String name = Name(key, index);
+        synchronized (this) {
+            if (mBlocks.get(name) == null) {
+                return -1;
+            }
+        }
+        File file = new File(mDir, name);
+        FileInputStream in;
+        try {
+            in = new FileInputStream(file);
+        } catch (IOException e) { //deleted under us
+            Forget(name);
+            return -1;
+        }
+        try {
+            int read = 0;
+            int count;
+            while (buffer.hasRemaining() && (count = in.getChannel().read(buffer, offset + read)) > 0) {
+                read += count;
+            }
+            return read;
+        } finally {
+            in.close();
+        }
+    }
+
+    //stores the block, length bytes of data, a whole block unless it is the last
+    void write(String key, long index, byte[] data, int length) throws IOException {
+        String name = Name(key, index);
+        File temp = new File(mDir, name + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(data, 0, length);
+        } finally {
+            out.close();
+        }
+        File file = new File(mDir, name);
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Can't rename " + temp + " to " + file);
+        }
+        synchronized (this) {
+            Long old = mBlocks.put(name, (long) length);
+            mBytes += length - (old != null ? old : 0);
+            Trim();
+        }
+    }
+
+    //the length stored for the file of key, -1 if there is none
+    long length(String key) {
+        File file = new File(mDir, Hash(key) + LENGTH_SUFFIX);
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                return in.readLong();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    void setLength(String key, long length) throws IOException {
+        File file = new File(mDir, Hash(key) + LENGTH_SUFFIX);
+        File temp = new File(mDir, file.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+        try {
+            out.writeLong(length);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Can't rename " + temp + " to " + file);
+        }
+    }
+
+    private synchronized void Forget(String name) {
+        Long size = mBlocks.remove(name);
+        if (size != null) {
+            mBytes -= size;
+        }
+    }
+
+    private synchronized void Trim() {
+        Iterator<Map.Entry<String, Long>> blocks = mBlocks.entrySet().iterator();
+        while (mBytes > mMaxBytes && blocks.hasNext()) {
+            Map.Entry<String, Long> block = blocks.next();
+            new File(mDir, block.getKey()).delete();
+            mBytes -= block.getValue();
+            blocks.remove();
+        }
+    }
+
+    private static String Name(String key, long index) {
+        return Hash(key) + "-" + index + SUFFIX;
+    }
+
+    //64-bit FNV-1a of the key, as SampleIndexCache names its entries
+    private static String Hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return Long.toHexString(hash);
+    }
+}
@@ -0,0 +1,54 @@
+package com.ss.avframework.simpledecoder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link DataSource} reading bytes in memory, e.g. a short clip bundled or already
+ * downloaded.  The array isn't copied, so it must not change while it is played.
+ */
+public final class ByteArrayDataSource implements DataSource {
+    private final byte[] mData;
+    private final int mOffset;
+    private final int mLength;
+
+    public ByteArrayDataSource(byte[] data) {
+        this(data, 0, data.length);
+    }
+
+    public ByteArrayDataSource(byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IllegalArgumentException("offset " + offset + " length " + length + " of " + data.length + " bytes");
+        }
+        mData = data;
+        mOffset = offset;
+        mLength = length;
+    }
+
+    @Override
+    public int readAt(long position, ByteBuffer buffer) {
+        if (position >= mLength) {
+            return -1;
+        }
+        int size = (int) Math.min(buffer.remaining(), mLength - position);
+        buffer.put(mData, mOffset + (int) position, size);
+        return size;
+    }
+
+    @Override
+    public long size() {
+        return mLength;
+    }
+
+    @Override
+    public void readAhead(long position) {
+    }
+
+    @Override
+    public boolean isCached(long position, long size) {
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+}
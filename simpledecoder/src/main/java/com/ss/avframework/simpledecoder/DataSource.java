@@ -0,0 +1,38 @@
+package com.ss.avframework.simpledecoder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Where the pure-Java demuxer reads a file from when it isn't a local path, see
+ * {@link Mp4Decoder#start(DataSource, boolean, android.view.Surface)}: reads at any position,
+ * which may wait on the network, plus hints for a source that fetches ahead of the reads.
+ * <p>
+ * {@link FileDataSource} reads a local file, {@link ByteArrayDataSource} bytes in memory,
+ * and {@link HttpDataSource} a URL by range requests through a block cache on disk.  Read by
+ * one thread at a time, not always the same one.
+ */
+public interface DataSource extends Closeable {
+    long UNKNOWN_SIZE = -1;
+
+    /**
+     * Reads from {@code position} into buffer, from its position up to its limit, moving its
+     * position past what was read.  Waits for at least one byte unless the buffer is full.
+     *
+     * @return the bytes read, -1 at the end
+     */
+    int readAt(long position, ByteBuffer buffer) throws IOException;
+
+    //the length in bytes, UNKNOWN_SIZE if it can't be told
+    long size() throws IOException;
+
+    /**
+     * A hint that the bytes from position on are read next, in order, e.g. after a seek.  A
+     * source fetching ahead of the reads starts fetching there, the others ignore it.
+     */
+    void readAhead(long position);
+
+    //whether reading size bytes at position returns without waiting on the network or the like
+    boolean isCached(long position, long size);
+}
@@ -0,0 +1,148 @@
+package com.ss.avframework.simpledecoder;
+
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The decoder contract {@link Mp4Decoder} relies on: the MediaCodec buffer dance of
+ * queue input, release output, format changes and flush.
+ * <p>
+ * The constants and the meaning of every call are those of {@link android.media.MediaCodec},
+ * so {@link MediaCodecBackend} is a thin adapter, while the buffer info and the output
+ * format are plain Java so {@link FakeDecoderBackend} can stand in for the codec on a JVM.
+ * <p>
+ * A decoder created without a {@link Callback} is synchronous: buffers are dequeued, and
+ * one thread may feed input while another drains output, but a flush must not overlap
+ * either of them.  Created with a callback it is asynchronous like a MediaCodec given
+ * {@code setCallback()}: it offers the buffers through the callback, dequeue calls throw
+ * IllegalStateException, and after a {@link #flush()} it stays quiet until {@link #start()}.
+ */
+interface DecoderBackend {
+    int INFO_TRY_AGAIN_LATER = -1;              // MediaCodec.INFO_TRY_AGAIN_LATER
+    int INFO_OUTPUT_FORMAT_CHANGED = -2;        // MediaCodec.INFO_OUTPUT_FORMAT_CHANGED
+    int INFO_OUTPUT_BUFFERS_CHANGED = -3;       // MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED
+
+    int BUFFER_FLAG_KEY_FRAME = 1;              // MediaCodec.BUFFER_FLAG_KEY_FRAME
+    int BUFFER_FLAG_END_OF_STREAM = 4;          // MediaCodec.BUFFER_FLAG_END_OF_STREAM
+
+    /**
+     * Same fields as {@link android.media.MediaCodec.BufferInfo}.
+     */
+    final class BufferInfo {
+        public int offset;
+        public int size;
+        public long presentationTimeUs;
+        public int flags;
+
+        public void set(int newOffset, int newSize, long newTimeUs, int newFlags) {
+            offset = newOffset;
+            size = newSize;
+            presentationTimeUs = newTimeUs;
+            flags = newFlags;
+        }
+    }
+
+    /**
+     * What the decoder produces, the part of the output MediaFormat the pipeline uses.
+     * Video sizes are after cropping.
+     */
+    final class OutputFormat {
+        public final int width;
+        public final int height;
+        public final int colorFormat;       // android.media.MediaCodecInfo.CodecCapabilities.COLOR_FormatXXXXXX
+        public final int sampleRate;
+        public final int channelCount;
+
+        public OutputFormat(int width, int height, int colorFormat, int sampleRate, int channelCount) {
+            this.width = width;
+            this.height = height;
+            this.colorFormat = colorFormat;
+            this.sampleRate = sampleRate;
+            this.channelCount = channelCount;
+        }
+
+        public static OutputFormat video(int width, int height, int colorFormat) {
+            return new OutputFormat(width, height, colorFormat, 0, 0);
+        }
+
+        public static OutputFormat audio(int sampleRate, int channelCount) {
+            return new OutputFormat(0, 0, 0, sampleRate, channelCount);
+        }
+
+        @Override
+        public String toString() {
+            if (sampleRate > 0) {
+                return "{sample-rate=" + sampleRate + ", channel-count=" + channelCount + "}";
+            }
+            return "{width=" + width + ", height=" + height + ", color-format=" + colorFormat + "}";
+        }
+    }
+
+    /**
+     * The events of an asynchronous decoder, the same as {@link android.media.MediaCodec.Callback}.
+     * Called on one thread of the decoder's, never after the decoder is flushed for buffers
+     * from before the flush.  The info passed is only valid during the call.
+     */
+    interface Callback {
+        void onInputBufferAvailable(DecoderBackend decoder, int index);
+
+        void onOutputBufferAvailable(DecoderBackend decoder, int index, BufferInfo info);
+
+        void onOutputFormatChanged(DecoderBackend decoder, OutputFormat format);
+
+        void onError(DecoderBackend decoder, Exception e);
+    }
+
+    /**
+     * Creates started decoders for the tracks of a file.
+     */
+    interface Factory {
+        /**
+         * @param surface where the frames are rendered, null to get them in the output buffers
+         * @param callback makes the decoder asynchronous, null for a synchronous one
+         */
+        DecoderBackend createVideoDecoder(MediaFormat format, Surface surface, Callback callback) throws Exception;
+
+        DecoderBackend createAudioDecoder(MediaFormat format, Callback callback) throws Exception;
+    }
+
+    int dequeueInputBuffer(long timeoutUs);
+
+    ByteBuffer getInputBuffer(int index);
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    int dequeueOutputBuffer(BufferInfo info, long timeoutUs);
+
+    ByteBuffer getOutputBuffer(int index);
+
+    /**
+     * @return the format of the output buffers since the last INFO_OUTPUT_FORMAT_CHANGED
+     */
+    OutputFormat getOutputFormat();
+
+    void releaseOutputBuffer(int index, boolean render);
+
+    /**
+     * Drops all input and output, the buffers that were dequeued become invalid.  An
+     * asynchronous decoder then offers no buffers until {@link #start()}.
+     */
+    void flush();
+
+    /**
+     * Resumes an asynchronous decoder after a flush, offering all its input buffers again.
+     * Decoders are created started, a synchronous one resumes by itself.
+     */
+    void start();
+
+    /**
+     * Renders to {@code surface} from now on, video decoders configured with a surface only.
+     */
+    void setOutputSurface(Surface surface);
+
+    void stop();
+
+    void release();
+}
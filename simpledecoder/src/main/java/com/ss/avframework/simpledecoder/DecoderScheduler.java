@@ -0,0 +1,347 @@
+package com.ss.avframework.simpledecoder;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs the pipelines of any number of {@link Mp4Decoder}s on a fixed number of worker threads,
+ * see {@link Mp4Decoder#setScheduler(DecoderScheduler)}.  A feed of 16 players on a scheduler
+ * of 4 workers runs on 4 threads instead of 32.
+ * <p>
+ * A player is a couple of tasks that run a step at a time and then say when they want to run
+ * again: at the time a frame is due, or once something wakes them up, like a codec offering a
+ * buffer.  A task never runs on two workers at once, so its state needs no locking, but it may
+ * run on a different worker every step.
+ * <p>
+ * The workers run the ready tasks earliest deadline first.  A task due at a time has that time
+ * as its deadline, a task woken up has the time it was woken plus the slack, so a frame about
+ * to be due wins over decoding ahead, and a task woken up waits for no more than the slack
+ * behind others that keep being woken up.  A step that blocks holds up the tasks waiting for a
+ * worker, so steps only block briefly, e.g. for a frame to reach the display surface.
+ * <p>
+ * A task woken up by a step is left for after the step rather than waking an idle worker,
+ * which would take the CPU from the step: a frame being drawn isn't held up by the decoding
+ * it wakes up.  A worker taking a task while more are ready wakes up another one.
+ */
+public final class DecoderScheduler implements Executor {
+    public static final long DEFAULT_SLACK_US = 20000;
+    //a task starting later than this after its deadline counts as a missed deadline
+    public static final long MISSED_DEADLINE_US = 4000;
+
+    //what Task.run() returns besides a time to run again at
+    static final long IDLE = Long.MAX_VALUE;        // not until woken up
+    static final long SOON = Long.MIN_VALUE;        // as if woken up right away
+    static final long DONE = Long.MIN_VALUE + 1;    // never again
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_TIMED = 1;       // in mTimers
+    private static final int STATE_READY = 2;       // in mReady
+    private static final int STATE_RUNNING = 3;
+    private static final int STATE_DONE = 4;
+
+    /**
+     * A step at a time of some work, e.g. the core of a {@link PlayerCore}.
+     */
+    abstract static class Task {
+        private final DecoderScheduler mScheduler;
+        //the rest guarded by the scheduler
+        private int mState = STATE_IDLE;
+        private long mAtNs;
+        private long mDeadlineNs;
+        private long mSequence;
+        private boolean mWoken;         // while running
+        private long mWokenDeadlineNs;
+
+        Task(DecoderScheduler scheduler) {
+            if (scheduler == null) {
+                throw new IllegalArgumentException("scheduler is null");
+            }
+            mScheduler = scheduler;
+        }
+
+        //runs a step, on one of the workers. Returns the System.nanoTime() to run again at, IDLE, SOON or DONE
+        protected abstract long run();
+
+        //any thread: runs a step soon, or another one right after the one running now
+        final void wakeUp() {
+            mScheduler.WakeUp(this);
+        }
+    }
+
+    //a worker thread, so WakeUp() can tell a step calls it
+    private static final class Worker extends Thread {
+        DecoderScheduler mStepping;         // whose step it runs, null between steps; its own thread only
+
+        Worker(Runnable work, String name) {
+            super(work, name);
+            setDaemon(true);
+        }
+    }
+
+    private final Object mLock = new Object();
+    private final long mSlackNs;
+    private final Thread[] mWorkers;
+    //by the time they are due
+    private final PriorityQueue<Task> mTimers = new PriorityQueue<Task>(16, new Comparator<Task>() {
+        @Override
+        public int compare(Task a, Task b) {
+            return a.mAtNs < b.mAtNs ? -1 : a.mAtNs > b.mAtNs ? 1 : a.mSequence < b.mSequence ? -1 : 1;
+        }
+    });
+    //by deadline, then first come first served
+    private final PriorityQueue<Task> mReady = new PriorityQueue<Task>(16, new Comparator<Task>() {
+        @Override
+        public int compare(Task a, Task b) {
+            return a.mDeadlineNs < b.mDeadlineNs ? -1 : a.mDeadlineNs > b.mDeadlineNs ? 1 : a.mSequence < b.mSequence ? -1 : 1;
+        }
+    });
+    //the rest guarded by mLock
+    private long mSequence = 0;
+    private int mIdleWorkers = 0;
+    private boolean mTimerWaiter = false;       // an idle worker waits for the first timer, the others for work
+    private boolean mShutdown = false;
+    private final Histogram mLatenessUs = new Histogram();
+    private long mSteps = 0;
+    private long mMissedDeadlines = 0;
+    private long mWorkerWakeups = 0;
+
+    public DecoderScheduler(int workers) {
+        this(workers, DEFAULT_SLACK_US);
+    }
+
+    /**
+     * @param workers the threads to run on, 2 run one player without waiting
+     * @param slackUs how soon a task woken up must run, see the class comment
+     * @throws IllegalArgumentException if workers isn't positive or slackUs is negative
+     */
+    public DecoderScheduler(int workers, long slackUs) {
+        if (workers <= 0) {
+            throw new IllegalArgumentException("workers " + workers);
+        }
+        if (slackUs < 0) {
+            throw new IllegalArgumentException("slackUs " + slackUs);
+        }
+        mSlackNs = slackUs * 1000;
+        mWorkers = new Thread[workers];
+        for (int i = 0; i < workers; i++) {
+            mWorkers[i] = new Worker(new Runnable() {
+                @Override
+                public void run() {
+                    Work();
+                }
+            }, "Decoder Scheduler " + i);
+            mWorkers[i].start();
+        }
+    }
+
+    public int getWorkerCount() {
+        return mWorkers.length;
+    }
+
+    //runs the command once, as a task woken up now. For short work, like opening a file
+    @Override
+    public void execute(final Runnable command) {
+        new Task(this) {
+            @Override
+            protected long run() {
+                command.run();
+                return DONE;
+            }
+        }.wakeUp();
+    }
+
+    /**
+     * Stops the workers once they are done with the steps they are running.  Tasks not run
+     * by then never run.  Waits for the workers unless called on one of them.
+     */
+    public void shutdown() {
+        synchronized (mLock) {
+            mShutdown = true;
+            mLock.notifyAll();
+        }
+        for (Thread worker : mWorkers) {
+            if (worker == Thread.currentThread()) {
+                continue;
+            }
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    //steps run so far
+    public long getStepCount() {
+        synchronized (mLock) {
+            return mSteps;
+        }
+    }
+
+    //steps that started more than MISSED_DEADLINE_US after their deadline
+    public long getMissedDeadlineCount() {
+        synchronized (mLock) {
+            return mMissedDeadlines;
+        }
+    }
+
+    //how long after its deadline every step started, 0 if before
+    public DecoderStats.Distribution getLatenessUs() {
+        return mLatenessUs.snapshot();
+    }
+
+    //times a worker woke up from waiting for a task
+    public long getWorkerWakeupCount() {
+        synchronized (mLock) {
+            return mWorkerWakeups;
+        }
+    }
+
+    private void WakeUp(Task task) {
+        synchronized (mLock) {
+            long deadlineNs = System.nanoTime() + mSlackNs;
+            switch (task.mState) {
+                case STATE_IDLE:
+                    Ready(task, deadlineNs);
+                    WakeWorker();
+                    break;
+                case STATE_TIMED:
+                    mTimers.remove(task);
+                    Ready(task, Math.min(deadlineNs, task.mAtNs));
+                    WakeWorker();
+                    break;
+                case STATE_RUNNING:
+                    if (!task.mWoken) {
+                        task.mWoken = true;
+                        task.mWokenDeadlineNs = deadlineNs;
+                    }
+                    break;
+                default: //already ready keeps its deadline, done stays done
+                    break;
+            }
+        }
+    }
+
+    //mLock held
+    private void Ready(Task task, long deadlineNs) {
+        task.mState = STATE_READY;
+        task.mDeadlineNs = deadlineNs;
+        task.mSequence = mSequence++;
+        mReady.add(task);
+    }
+
+    //mLock held: has an idle worker take a ready task, unless a step made it ready and will be done soon
+    private void WakeWorker() {
+        Thread thread = Thread.currentThread();
+        if (thread instanceof Worker && ((Worker) thread).mStepping == this) {
+            return; //this worker takes it once the step is done, or another one it wakes up
+        }
+        if (mIdleWorkers > 0) {
+            mLock.notify();
+        }
+    }
+
+    //mLock held
+    private void Schedule(Task task, long atNs) {
+        task.mState = STATE_TIMED;
+        task.mAtNs = atNs;
+        task.mSequence = mSequence++;
+        mTimers.add(task);
+        if (mTimers.peek() == task && mIdleWorkers > 0) {
+            mLock.notifyAll(); //whoever waits for the first timer waits too long now
+        }
+    }
+
+    private void Work() {
+        Worker self = (Worker) Thread.currentThread();
+        while (true) {
+            Task task;
+            synchronized (mLock) {
+                task = NextTask();
+                if (task == null) {
+                    return;
+                }
+            }
+            long nextNs;
+            self.mStepping = this;
+            try {
+                nextNs = task.run();
+            } catch (RuntimeException e) { //the task's own bug, the other tasks carry on
+                e.printStackTrace();
+                nextNs = DONE;
+            } finally {
+                self.mStepping = null;
+            }
+            synchronized (mLock) {
+                if (nextNs == DONE) {
+                    task.mState = STATE_DONE;
+                } else if (task.mWoken || nextNs == SOON) {
+                    long deadlineNs = task.mWoken ? task.mWokenDeadlineNs : System.nanoTime() + mSlackNs;
+                    if (nextNs != IDLE && nextNs != SOON) {
+                        deadlineNs = Math.min(deadlineNs, nextNs);
+                    }
+                    task.mWoken = false;
+                    Ready(task, deadlineNs);
+                } else if (nextNs == IDLE) {
+                    task.mState = STATE_IDLE;
+                } else if (nextNs <= System.nanoTime()) {
+                    Ready(task, nextNs);
+                } else {
+                    Schedule(task, nextNs);
+                }
+            }
+        }
+    }
+
+    //mLock held: waits for the ready task with the earliest deadline, null once shut down
+    private Task NextTask() {
+        while (!mShutdown) {
+            long nowNs = System.nanoTime();
+            Task timer;
+            while ((timer = mTimers.peek()) != null && timer.mAtNs <= nowNs) {
+                mTimers.poll();
+                Ready(timer, timer.mAtNs);
+            }
+            Task task = mReady.poll();
+            if (task != null) {
+                if (!mReady.isEmpty()) {
+                    WakeWorker(); //for the next one
+                }
+                task.mState = STATE_RUNNING;
+                long lateUs = (nowNs - task.mDeadlineNs) / 1000;
+                mLatenessUs.record(lateUs); //under mLock, so one writer at a time
+                mSteps++;
+                if (lateUs > MISSED_DEADLINE_US) {
+                    mMissedDeadlines++;
+                }
+                return task;
+            }
+            boolean timed = timer != null && !mTimerWaiter;
+            mIdleWorkers++;
+            try {
+                if (timed) {
+                    mTimerWaiter = true;
+                    long waitNs = timer.mAtNs - nowNs;
+                    mLock.wait(waitNs / 1000000, (int) (waitNs % 1000000));
+                } else {
+                    mLock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } finally {
+                mIdleWorkers--;
+                if (timed) {
+                    mTimerWaiter = false;
+                    if (mIdleWorkers > 0) {
+                        mLock.notify(); //one of them waits for the timers instead, should this one get a task
+                    }
+                }
+            }
+            mWorkerWakeups++;
+        }
+        return null;
+    }
+}
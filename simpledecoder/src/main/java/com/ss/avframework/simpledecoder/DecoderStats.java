@@ -0,0 +1,188 @@
+package com.ss.avframework.simpledecoder;
+
+import java.util.Locale;
+
+/**
+ * What the pipeline of an {@link Mp4Decoder} did since it was started, see
+ * {@link Mp4Decoder#getStats()}.  Immutable, each call takes a new snapshot.
+ * <p>
+ * Per track: the demuxer reads samples into the packet queue, the input thread waits for a
+ * free codec input buffer, the codec decodes, the output thread sleeps until the frame is
+ * due (or finds it late) and renders or drops it.  Times are in microseconds.
+ */
+public final class DecoderStats {
+    public final long elapsedMs;            // since start(), until stop() once stopped
+    public final TrackStats video;          // null without a video track
+    public final TrackStats audio;          // null without an audio track
+
+    DecoderStats(long elapsedMs, TrackStats video, TrackStats audio) {
+        this.elapsedMs = elapsedMs;
+        this.video = video;
+        this.audio = audio;
+    }
+
+    public static final class TrackStats {
+        public final long samplesDemuxed;
+        public final long bytesDemuxed;
+        public final float demuxRate;               // samples per second
+        public final int queueDepth;                // packets waiting for the decoder right now
+        public final Distribution queueDepths;      // packets waiting, sampled whenever one is queued
+        public final Distribution inputWaitUs;      // for a free codec input buffer
+        public final Distribution decodeLatencyUs;  // from queueing a sample to its output buffer, matched by pts
+        public final Distribution sleepUs;          // until an output frame was due
+        public final Distribution lateUs;           // past due of output frames not slept for, 0 if on time
+        public final Distribution renderLatencyUs;  // from a frame being due to it being rendered and delivered
+        public final long framesRendered;
+        public final long framesDropped;            // too late for the clock
+        public final long framesSkipped;            // samples not decoded, skipping to a key frame to catch up
+        public final float fps;                     // frames rendered per second since start()
+        public final float recentFps;               // since the previous snapshot
+
+        TrackStats(long samplesDemuxed, long bytesDemuxed, float demuxRate, int queueDepth, Distribution queueDepths,
+                   Distribution inputWaitUs, Distribution decodeLatencyUs, Distribution sleepUs, Distribution lateUs,
+                   Distribution renderLatencyUs, long framesRendered, long framesDropped, long framesSkipped, float fps, float recentFps) {
+            this.samplesDemuxed = samplesDemuxed;
+            this.bytesDemuxed = bytesDemuxed;
+            this.demuxRate = demuxRate;
+            this.queueDepth = queueDepth;
+            this.queueDepths = queueDepths;
+            this.inputWaitUs = inputWaitUs;
+            this.decodeLatencyUs = decodeLatencyUs;
+            this.sleepUs = sleepUs;
+            this.lateUs = lateUs;
+            this.renderLatencyUs = renderLatencyUs;
+            this.framesRendered = framesRendered;
+            this.framesDropped = framesDropped;
+            this.framesSkipped = framesSkipped;
+            this.fps = fps;
+            this.recentFps = recentFps;
+        }
+
+        void appendJson(StringBuilder json) {
+            json.append("{\"samplesDemuxed\":").append(samplesDemuxed)
+                    .append(",\"bytesDemuxed\":").append(bytesDemuxed)
+                    .append(",\"demuxRate\":").append(format(demuxRate))
+                    .append(",\"queueDepth\":").append(queueDepth)
+                    .append(",\"queueDepths\":");
+            queueDepths.appendJson(json);
+            json.append(",\"inputWaitUs\":");
+            inputWaitUs.appendJson(json);
+            json.append(",\"decodeLatencyUs\":");
+            decodeLatencyUs.appendJson(json);
+            json.append(",\"sleepUs\":");
+            sleepUs.appendJson(json);
+            json.append(",\"lateUs\":");
+            lateUs.appendJson(json);
+            json.append(",\"renderLatencyUs\":");
+            renderLatencyUs.appendJson(json);
+            json.append(",\"framesRendered\":").append(framesRendered)
+                    .append(",\"framesDropped\":").append(framesDropped)
+                    .append(",\"framesSkipped\":").append(framesSkipped)
+                    .append(",\"fps\":").append(format(fps))
+                    .append(",\"recentFps\":").append(format(recentFps))
+                    .append('}');
+        }
+    }
+
+    /**
+     * A histogram of recorded values.  Percentiles are within about 3% of the true value.
+     */
+    public static final class Distribution {
+        public final long count;
+        public final long min;
+        public final long max;
+        private final long mSum;
+        private final long[] mCounts;       // per Histogram bucket
+
+        Distribution(long count, long min, long max, long sum, long[] counts) {
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            mSum = sum;
+            mCounts = counts;
+        }
+
+        public double mean() {
+            return count > 0 ? (double) mSum / count : 0;
+        }
+
+        //the value that percentile percent (0 - 100) of the recorded values are at or below, 0 if none
+        public long valueAtPercentile(double percentile) {
+            long total = 0;
+            for (long bucket : mCounts) {
+                total += bucket;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    //the bucket's highest value, but never beyond what was actually recorded
+                    return Math.max(min, Math.min(max, Histogram.bucketEnd(i)));
+                }
+            }
+            return max;
+        }
+
+        //how many of the recorded values are above value, exactly for the small ones, else to within its bucket
+        public long countAbove(long value) {
+            if (value < 0) {
+                return count;
+            }
+            long above = 0;
+            for (int i = Histogram.bucketIndex(Math.min(value, Histogram.MAX_VALUE)) + 1; i < mCounts.length; i++) {
+                above += mCounts[i];
+            }
+            return above;
+        }
+
+        void appendJson(StringBuilder json) {
+            json.append("{\"count\":").append(count)
+                    .append(",\"min\":").append(min)
+                    .append(",\"mean\":").append(format(mean()))
+                    .append(",\"p50\":").append(valueAtPercentile(50))
+                    .append(",\"p90\":").append(valueAtPercentile(90))
+                    .append(",\"p99\":").append(valueAtPercentile(99))
+                    .append(",\"p999\":").append(valueAtPercentile(99.9))
+                    .append(",\"max\":").append(max)
+                    .append('}');
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder json = new StringBuilder();
+            appendJson(json);
+            return json.toString();
+        }
+    }
+
+    //for telemetry, e.g. {"elapsedMs":10000,"video":{"samplesDemuxed":300,...,"decodeLatencyUs":{"count":300,"min":...}},"audio":null}
+    public String toJson() {
+        StringBuilder json = new StringBuilder(2048);
+        json.append("{\"elapsedMs\":").append(elapsedMs).append(",\"video\":");
+        if (video != null) {
+            video.appendJson(json);
+        } else {
+            json.append("null");
+        }
+        json.append(",\"audio\":");
+        if (audio != null) {
+            audio.appendJson(json);
+        } else {
+            json.append("null");
+        }
+        return json.append('}').toString();
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.US, "%.2f", value);
+    }
+}
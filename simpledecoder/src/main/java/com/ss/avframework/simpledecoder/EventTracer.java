@@ -0,0 +1,204 @@
+package com.ss.avframework.simpledecoder;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+
+/**
+ * Records what the pipeline threads do per sample, for looking at single frames on a
+ * timeline rather than at the aggregates of {@link PipelineStats}.
+ * <p>
+ * Every thread, or task of a {@link DecoderScheduler}, records into its own {@link Ring} of
+ * typed events, fixed-size so only the latest events are kept.  Recording doesn't allocate or lock, and while tracing is
+ * disabled it is a volatile read.  The rings are allocated the first time something is
+ * recorded, so a tracer that is never enabled costs no memory either.
+ * <p>
+ * {@link #writeChromeTrace} exports the events as Chrome trace JSON, which chrome://tracing
+ * and Perfetto open.  Events recorded while exporting may come out garbled, disable tracing
+ * (or stop decoding) first for an exact trace.
+ */
+final class EventTracer {
+    static final int DEMUX = 0;         //a sample was read, arg: size
+    static final int QUEUE = 1;         //a packet was put into the packet queue, arg: queue depth
+    static final int DECODE_IN = 2;     //a sample was queued to the codec, arg: microseconds waited for an input buffer
+    static final int DECODE_OUT = 3;    //the codec output a frame, arg: size
+    static final int RENDER = 4;        //a frame was rendered and delivered, arg: microseconds it took
+    static final int DROP = 5;          //a frame was dropped for being too late
+    static final int SLEEP = 6;         //sleeping until a frame is due, arg: microseconds
+    static final int SKIP = 7;          //a sample was left out to catch up rather than decoded
+    private static final String[] NAMES = {"demux", "queue", "decode-in", "decode-out", "render", "drop", "sleep", "skip"};
+
+    //the tracks events are recorded for
+    static final int TRACK_VIDEO = PipelineStats.TRACK_VIDEO;
+    static final int TRACK_AUDIO = PipelineStats.TRACK_AUDIO;
+    private static final String[] TRACKS = {"video", "audio"};
+
+    private final int mCapacity;
+    private final long mOriginNs = System.nanoTime();     //the trace starts at 0 here
+    private final ArrayList<Ring> mRings = new ArrayList<Ring>();
+    private volatile boolean mEnabled;
+
+    //capacity: events kept per thread, a power of two
+    EventTracer(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        mCapacity = capacity;
+    }
+
+    void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    boolean isEnabled() {
+        return mEnabled;
+    }
+
+    //the ring of the calling thread, by its name: threads of a later run with the same names
+    //continue the rings of the earlier one, which must have exited
+    Ring ring() {
+        return ring(Thread.currentThread().getName());
+    }
+
+    //the ring of a task that records from one thread at a time, e.g. one of a DecoderScheduler
+    synchronized Ring ring(String name) {
+        for (Ring ring : mRings) {
+            if (ring.mName.equals(name)) {
+                return ring;
+            }
+        }
+        Ring ring = new Ring(this, name, mRings.size() + 1);
+        mRings.add(ring);
+        return ring;
+    }
+
+    synchronized int eventCount() {
+        int count = 0;
+        for (Ring ring : mRings) {
+            count += (int) Math.min(ring.mCount, mCapacity);
+        }
+        return count;
+    }
+
+    /**
+     * Writes {"traceEvents": [...]}: a track of every thread, with the events of each
+     * sample carrying its pts, and the time every sample spent in the codec as an async span
+     * from decode-in to decode-out.
+     */
+    synchronized void writeChromeTrace(Writer writer) throws IOException {
+        StringBuilder json = new StringBuilder(256);
+        writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        boolean first = true;
+        for (Ring ring : mRings) {
+            json.setLength(0);
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":").append(ring.mTid)
+                    .append(",\"args\":{\"name\":\"").append(ring.mName.replace("\"", "'")).append("\"}}");
+            writer.write(json.toString());
+
+            long count = ring.mCount;
+            for (long i = Math.max(0, count - mCapacity); i < count; i++) {
+                json.setLength(0);
+                ring.appendEvent(json, (int) (i & (mCapacity - 1)));
+                writer.write(json.toString());
+            }
+        }
+        writer.write("]}");
+        writer.flush();
+    }
+
+    /**
+     * The events of one thread, which is the only one recording into it.
+     */
+    static final class Ring {
+        private final EventTracer mTracer;
+        private final String mName;
+        private final int mTid;
+        //allocated on the first event, published by the write of mCount after it
+        private long[] mTimesNs;
+        private long[] mPtsUs;
+        private long[] mArgs;
+        private byte[] mTypes;
+        private volatile long mCount;
+
+        private Ring(EventTracer tracer, String name, int tid) {
+            mTracer = tracer;
+            mName = name;
+            mTid = tid;
+        }
+
+        void record(int type, int track, long ptsUs, long arg) {
+            if (!mTracer.mEnabled) {
+                return;
+            }
+            if (mTimesNs == null) {
+                int capacity = mTracer.mCapacity;
+                mPtsUs = new long[capacity];
+                mArgs = new long[capacity];
+                mTypes = new byte[capacity];
+                mTimesNs = new long[capacity];
+            }
+            long count = mCount;
+            int i = (int) (count & (mTimesNs.length - 1));
+            mTimesNs[i] = System.nanoTime();
+            mPtsUs[i] = ptsUs;
+            mArgs[i] = arg;
+            mTypes[i] = (byte) (type | track << 4);
+            mCount = count + 1;
+        }
+
+        private void appendEvent(StringBuilder json, int i) {
+            int type = mTypes[i] & 0xf;
+            String track = TRACKS[mTypes[i] >> 4];
+            long timeNs = mTimesNs[i];
+            long ptsUs = mPtsUs[i];
+            long arg = mArgs[i];
+            //waits and renders are recorded when they end
+            long startNs = type == DECODE_IN || type == RENDER ? timeNs - arg * 1000 : timeNs;
+            json.append(",{\"name\":\"").append(NAMES[type]).append("\",\"cat\":\"").append(track)
+                    .append("\",\"pid\":1,\"tid\":").append(mTid).append(",\"ts\":");
+            AppendMicros(json, startNs - mTracer.mOriginNs);
+            if (type == SLEEP || type == DECODE_IN || type == RENDER) {
+                json.append(",\"ph\":\"X\",\"dur\":").append(arg);
+            } else {
+                json.append(",\"ph\":\"i\",\"s\":\"t\"");
+            }
+            json.append(",\"args\":{\"pts\":").append(ptsUs);
+            if (type == DEMUX || type == DECODE_OUT) {
+                json.append(",\"size\":").append(arg);
+            } else if (type == QUEUE) {
+                json.append(",\"depth\":").append(arg);
+            }
+            json.append("}}");
+            //the sample inside the codec, matched between queueing and output by pts
+            if (type == DECODE_IN || type == DECODE_OUT) {
+                json.append(",{\"name\":\"").append(track).append(" decode\",\"cat\":\"").append(track)
+                        .append("\",\"id\":").append(ptsUs)
+                        .append(",\"ph\":\"").append(type == DECODE_IN ? 'b' : 'e')
+                        .append("\",\"pid\":1,\"tid\":").append(mTid).append(",\"ts\":");
+                AppendMicros(json, timeNs - mTracer.mOriginNs);
+                json.append('}');
+            }
+        }
+    }
+
+    //a span may start before the origin, when it ended just after the tracer was created
+    private static void AppendMicros(StringBuilder json, long ns) {
+        if (ns < 0) {
+            json.append('-');
+            ns = -ns;
+        }
+        json.append(ns / 1000).append('.');
+        long fraction = ns % 1000;
+        if (fraction < 100) {
+            json.append('0');
+        }
+        if (fraction < 10) {
+            json.append('0');
+        }
+        json.append(fraction);
+    }
+}
@@ -0,0 +1,74 @@
+package com.ss.avframework.simpledecoder;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link MediaSource} backed by the platform {@link MediaExtractor}.
+ */
+final class ExtractorMediaSource implements MediaSource {
+    private final MediaExtractor mExtractor;
+
+    ExtractorMediaSource(String path) throws IOException {
+        mExtractor = new MediaExtractor();
+        try {
+            mExtractor.setDataSource(path);
+        } catch (IOException e) {
+            mExtractor.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public int getTrackCount() {
+        return mExtractor.getTrackCount();
+    }
+
+    @Override
+    public MediaFormat getTrackFormat(int index) {
+        return mExtractor.getTrackFormat(index);
+    }
+
+    @Override
+    public void selectTrack(int index) {
+        mExtractor.selectTrack(index);
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        return mExtractor.readSampleData(buffer, offset);
+    }
+
+    @Override
+    public int getSampleTrackIndex() {
+        return mExtractor.getSampleTrackIndex();
+    }
+
+    @Override
+    public long getSampleTime() {
+        return mExtractor.getSampleTime();
+    }
+
+    @Override
+    public int getSampleFlags() {
+        return mExtractor.getSampleFlags();
+    }
+
+    @Override
+    public boolean advance() {
+        return mExtractor.advance();
+    }
+
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        mExtractor.seekTo(timeUs, mode);
+    }
+
+    @Override
+    public void release() {
+        mExtractor.release();
+    }
+}
@@ -0,0 +1,58 @@
+package com.ss.avframework.simpledecoder;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * {@link MediaProber.Prober} for whatever the platform MediaExtractor can read.  Sample
+ * and key frame counts are not available this way and are reported as -1.
+ */
+final class ExtractorProber implements MediaProber.Prober {
+
+    @Override
+    public MediaInfo probe(File file) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(file.getPath());
+            ArrayList<MediaInfo.TrackInfo> tracks = new ArrayList<MediaInfo.TrackInfo>();
+            for (int i = 0; i < extractor.getTrackCount(); ++i) {
+                tracks.add(createTrackInfo(i, extractor.getTrackFormat(i)));
+            }
+            return new MediaInfo(file.getPath(), file.length(), file.lastModified(), tracks);
+        } finally {
+            extractor.release();
+        }
+    }
+
+    private static MediaInfo.TrackInfo createTrackInfo(int index, MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        long durationUs = format.containsKey(MediaFormat.KEY_DURATION) ? format.getLong(MediaFormat.KEY_DURATION) : 0;
+        int bitrate = format.containsKey(MediaFormat.KEY_BIT_RATE) ? format.getInteger(MediaFormat.KEY_BIT_RATE) : 0;
+        if (mime != null && mime.startsWith("video/")) {
+            int width = format.getInteger(MediaFormat.KEY_WIDTH);
+            if (format.containsKey("crop-left") && format.containsKey("crop-right")) {
+                width = format.getInteger("crop-right") + 1 - format.getInteger("crop-left");
+            }
+            int height = format.getInteger(MediaFormat.KEY_HEIGHT);
+            if (format.containsKey("crop-top") && format.containsKey("crop-bottom")) {
+                height = format.getInteger("crop-bottom") + 1 - format.getInteger("crop-top");
+            }
+            float frameRate = 0;
+            if (format.containsKey(MediaFormat.KEY_FRAME_RATE)) {
+                try {
+                    frameRate = format.getInteger(MediaFormat.KEY_FRAME_RATE);
+                } catch (ClassCastException e) { //some extractors store it as a float
+                    frameRate = format.getFloat(MediaFormat.KEY_FRAME_RATE);
+                }
+            }
+            return new MediaInfo.TrackInfo(index, mime, durationUs, bitrate, -1, -1, width, height, frameRate, 0, 0);
+        }
+        int sampleRate = format.containsKey(MediaFormat.KEY_SAMPLE_RATE) ? format.getInteger(MediaFormat.KEY_SAMPLE_RATE) : 0;
+        int channelCount = format.containsKey(MediaFormat.KEY_CHANNEL_COUNT) ? format.getInteger(MediaFormat.KEY_CHANNEL_COUNT) : 0;
+        return new MediaInfo.TrackInfo(index, mime, durationUs, bitrate, -1, -1, 0, 0, 0, sampleRate, channelCount);
+    }
+}
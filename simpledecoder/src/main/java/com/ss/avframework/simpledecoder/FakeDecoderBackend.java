@@ -0,0 +1,558 @@
+package com.ss.avframework.simpledecoder;
+
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * A {@link DecoderBackend} that decodes nothing but behaves like a hardware decoder
+ * towards the pipeline, so the threading, buffering and sync around the codec can be
+ * tested and benchmarked on a JVM.
+ * <p>
+ * Frames are decoded one after the other, each taking the configured latency after the
+ * previous one, and an input buffer is only free again once its frame is decoded.  They
+ * come out in presentation order, held back until {@code reorderDepth} later frames are
+ * decoded as a decoder holding B frames would, and a decoded frame waits while all output
+ * buffers are taken.  The output buffer of a frame starts with its pts as a long.  The
+ * first output is preceded by INFO_OUTPUT_FORMAT_CHANGED, and so is every frame a format
+ * change was added for.
+ * <p>
+ * Given a {@link DecoderBackend.Callback} it is asynchronous: one thread shared by all
+ * the fakes, standing in for the codec's looper, offers the free input buffers and the
+ * decoded frames as they come, and only then, so an idle fake costs no wakeups at all.
+ * The callbacks are made holding the fake's lock, so none is made for a buffer a flush
+ * dropped.
+ * <p>
+ * Misuse the real codec would reject, like queueing an input buffer that wasn't
+ * dequeued or releasing an output buffer twice or after a flush, throws
+ * IllegalStateException.
+ */
+final class FakeDecoderBackend implements DecoderBackend {
+
+    /**
+     * Creates fakes with the same settings for every start, and keeps them for inspection.
+     */
+    static final class Factory implements DecoderBackend.Factory {
+        long videoLatencyUs = 5000;
+        int reorderDepth = 0;
+        int videoOutputSize = 0;                // 0: as large as the input
+        long audioLatencyUs = 1000;
+        int audioOutputSize = 4096;             // 1024 stereo 16 bit samples per AAC frame
+        Exception videoError;                   // thrown by createVideoDecoder() instead, if not null
+        final Map<Long, Long> videoStallsUs = new HashMap<Long, Long>();   // input index to stall, see addStall()
+        final Map<Long, Long> audioStallsUs = new HashMap<Long, Long>();
+        final List<FakeDecoderBackend> created = new ArrayList<FakeDecoderBackend>();
+
+        @Override
+        public DecoderBackend createVideoDecoder(MediaFormat format, Surface surface, Callback callback) throws Exception {
+            if (videoError != null) {
+                throw videoError;
+            }
+            FakeDecoderBackend decoder = new FakeDecoderBackend(OutputFormat.video(1280, 720, 0x7f000789), 4, 1 << 20, 4);
+            decoder.setDecodeLatencyUs(videoLatencyUs);
+            decoder.setReorderDepth(reorderDepth);
+            decoder.setOutputSize(videoOutputSize);
+            AddStalls(decoder, videoStallsUs);
+            return add(decoder, callback);
+        }
+
+        @Override
+        public DecoderBackend createAudioDecoder(MediaFormat format, Callback callback) {
+            FakeDecoderBackend decoder = new FakeDecoderBackend(OutputFormat.audio(44100, 2), 4, 64 << 10, 4);
+            decoder.setDecodeLatencyUs(audioLatencyUs);
+            decoder.setOutputSize(audioOutputSize);
+            AddStalls(decoder, audioStallsUs);
+            return add(decoder, callback);
+        }
+
+        private static void AddStalls(FakeDecoderBackend decoder, Map<Long, Long> stallsUs) {
+            for (Map.Entry<Long, Long> stall : stallsUs.entrySet()) {
+                decoder.addStall(stall.getKey(), stall.getValue());
+            }
+        }
+
+        private synchronized FakeDecoderBackend add(FakeDecoderBackend decoder, Callback callback) {
+            if (callback != null) {
+                decoder.setCallback(callback);
+            }
+            created.add(decoder);
+            return decoder;
+        }
+    }
+
+    private static final class Frame {
+        final long sequence;
+        final int inputIndex;
+        final int size;
+        final long ptsUs;
+        final int flags;
+        final long readyAtNs;
+
+        Frame(long sequence, int inputIndex, int size, long ptsUs, int flags, long readyAtNs) {
+            this.sequence = sequence;
+            this.inputIndex = inputIndex;
+            this.size = size;
+            this.ptsUs = ptsUs;
+            this.flags = flags;
+            this.readyAtNs = readyAtNs;
+        }
+    }
+
+    private static final class Wakeup {
+        final long atNs;
+        final FakeDecoderBackend decoder;
+
+        Wakeup(long atNs, FakeDecoderBackend decoder) {
+            this.atNs = atNs;
+            this.decoder = decoder;
+        }
+    }
+
+    /**
+     * The callback thread of the asynchronous fakes, woken only when one of them has
+     * something to offer.
+     */
+    private static final class Dispatcher implements Runnable {
+        private final PriorityQueue<Wakeup> mWakeups = new PriorityQueue<Wakeup>(16, new Comparator<Wakeup>() {
+            @Override
+            public int compare(Wakeup a, Wakeup b) {
+                return a.atNs < b.atNs ? -1 : a.atNs == b.atNs ? 0 : 1;
+            }
+        });
+        private Thread mThread;
+
+        synchronized void post(FakeDecoderBackend decoder, long atNs) {
+            mWakeups.add(new Wakeup(atNs, decoder));
+            if (mThread == null) {
+                mThread = new Thread(this, "FakeDecoderBackend Callbacks");
+                mThread.setDaemon(true);
+                mThread.start();
+            }
+            notifyAll();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Wakeup wakeup;
+                synchronized (this) {
+                    wakeup = mWakeups.peek();
+                    long waitNs = wakeup != null ? wakeup.atNs - System.nanoTime() : Long.MAX_VALUE;
+                    if (waitNs > 0) {
+                        try {
+                            if (wakeup == null) {
+                                wait();
+                            } else {
+                                wait(waitNs / 1000000, (int) (waitNs % 1000000));
+                            }
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        continue;
+                    }
+                    mWakeups.poll();
+                }
+                wakeup.decoder.dispatch();
+            }
+        }
+    }
+
+    private static final Dispatcher DISPATCHER = new Dispatcher();
+
+    private static final Comparator<Frame> PRESENTATION_ORDER = new Comparator<Frame>() {
+        @Override
+        public int compare(Frame a, Frame b) {
+            if (a.ptsUs != b.ptsUs) {
+                return a.ptsUs < b.ptsUs ? -1 : 1;
+            }
+            return a.sequence < b.sequence ? -1 : a.sequence == b.sequence ? 0 : 1;
+        }
+    };
+
+    private final ByteBuffer[] mInputBuffers;
+    private final boolean[] mInputDequeued;
+    private final ArrayDeque<Integer> mFreeInputs = new ArrayDeque<Integer>();
+    private final ByteBuffer[] mOutputBuffers;
+    private final boolean[] mOutputDequeued;
+    private final ArrayDeque<Integer> mFreeOutputs = new ArrayDeque<Integer>();
+    private final ArrayDeque<Frame> mDecoding = new ArrayDeque<Frame>();
+    private final PriorityQueue<Frame> mReorder = new PriorityQueue<Frame>(16, PRESENTATION_ORDER);
+    private final ArrayDeque<Frame> mDecoded = new ArrayDeque<Frame>();
+    private final HashMap<Long, OutputFormat> mFormatChanges = new HashMap<Long, OutputFormat>();
+    private final HashMap<Long, Long> mStallsNs = new HashMap<Long, Long>();
+
+    private long mDecodeLatencyNs;
+    private int mReorderDepth;
+    private int mOutputSize;
+    private OutputFormat mOutputFormat;
+    private OutputFormat mPendingFormat;
+    private long mLastReadyAtNs;
+    private long mSequence;
+    private long mOutputFrames;     // frames dequeued, end of stream excluded, across flushes
+    private boolean mReleased;
+    private Callback mCallback;
+    private boolean mStarted = true;
+    private long mDispatchAtNs = Long.MAX_VALUE;       // of the earliest dispatch posted
+    private final BufferInfo mCallbackInfo = new BufferInfo();
+
+    private long mQueuedCount;
+    private long mRenderedCount;
+    private long mDroppedCount;
+    private int mFlushCount;
+
+    /**
+     * @param format the format reported before the first output
+     */
+    FakeDecoderBackend(OutputFormat format, int inputBufferCount, int inputBufferSize, int outputBufferCount) {
+        mPendingFormat = format;
+        mInputBuffers = new ByteBuffer[inputBufferCount];
+        mInputDequeued = new boolean[inputBufferCount];
+        for (int i = 0; i < inputBufferCount; i++) {
+            mInputBuffers[i] = ByteBuffer.allocateDirect(inputBufferSize);
+            mFreeInputs.add(i);
+        }
+        mOutputBuffers = new ByteBuffer[outputBufferCount];
+        mOutputDequeued = new boolean[outputBufferCount];
+        for (int i = 0; i < outputBufferCount; i++) {
+            mFreeOutputs.add(i);
+        }
+    }
+
+    /**
+     * Makes the fake asynchronous, offering its buffers to {@code callback} from now on.
+     * Like MediaCodec.setCallback(), before anything is queued.
+     */
+    synchronized void setCallback(Callback callback) {
+        mCallback = callback;
+        schedule(System.nanoTime());
+    }
+
+    synchronized void setDecodeLatencyUs(long latencyUs) {
+        mDecodeLatencyNs = latencyUs * 1000;
+    }
+
+    //how many frames after a frame in presentation order are decoded before it comes out
+    synchronized void setReorderDepth(int depth) {
+        mReorderDepth = depth;
+    }
+
+    //size of every decoded frame, 0 for the size of its input
+    synchronized void setOutputSize(int size) {
+        mOutputSize = size;
+    }
+
+    /**
+     * Reports {@code format} before the {@code frameIndex}th output frame, counted from 0
+     * over the whole stream.
+     */
+    synchronized void addFormatChange(long frameIndex, OutputFormat format) {
+        mFormatChanges.put(frameIndex, format);
+    }
+
+    /**
+     * Makes the {@code inputIndex}th input buffer queued, counted from 0 over the whole
+     * stream, take {@code stallUs} longer to decode, holding up the frames after it too.
+     */
+    synchronized void addStall(long inputIndex, long stallUs) {
+        mStallsNs.put(inputIndex, stallUs * 1000);
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        long deadlineNs = System.nanoTime() + timeoutUs * 1000;
+        synchronized (this) {
+            checkSynchronous();
+            while (true) {
+                checkNotReleased();
+                long now = System.nanoTime();
+                decodeUntil(now);
+                Integer index = mFreeInputs.poll();
+                if (index != null) {
+                    mInputDequeued[index] = true;
+                    mInputBuffers[index].clear();
+                    return index;
+                }
+                if (!waitUntil(deadlineNs, now)) {
+                    return INFO_TRY_AGAIN_LATER;
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized ByteBuffer getInputBuffer(int index) {
+        if (!mInputDequeued[index]) {
+            throw new IllegalStateException("input buffer " + index + " is not dequeued");
+        }
+        return mInputBuffers[index];
+    }
+
+    @Override
+    public synchronized void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        checkNotReleased();
+        if (!mInputDequeued[index]) {
+            throw new IllegalStateException("input buffer " + index + " is not dequeued");
+        }
+        mInputDequeued[index] = false;
+        long now = System.nanoTime();
+        boolean endOfStream = (flags & BUFFER_FLAG_END_OF_STREAM) != 0;
+        Long stallNs = mStallsNs.remove(mQueuedCount);
+        mLastReadyAtNs = Math.max(now, mLastReadyAtNs) + (endOfStream ? 0 : mDecodeLatencyNs) + (stallNs != null ? stallNs : 0);
+        mDecoding.add(new Frame(mSequence++, index, size, presentationTimeUs, flags, mLastReadyAtNs));
+        mQueuedCount++;
+        notifyAll();
+        schedule(mLastReadyAtNs);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(BufferInfo info, long timeoutUs) {
+        long deadlineNs = System.nanoTime() + timeoutUs * 1000;
+        synchronized (this) {
+            checkSynchronous();
+            while (true) {
+                checkNotReleased();
+                long now = System.nanoTime();
+                decodeUntil(now);
+                int index = nextOutput(info);
+                if (index != INFO_TRY_AGAIN_LATER) {
+                    return index;
+                }
+                if (!waitUntil(deadlineNs, now)) {
+                    return INFO_TRY_AGAIN_LATER;
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized ByteBuffer getOutputBuffer(int index) {
+        if (!mOutputDequeued[index]) {
+            throw new IllegalStateException("output buffer " + index + " is not dequeued");
+        }
+        return mOutputBuffers[index];
+    }
+
+    @Override
+    public synchronized OutputFormat getOutputFormat() {
+        return mOutputFormat;
+    }
+
+    @Override
+    public synchronized void releaseOutputBuffer(int index, boolean render) {
+        checkNotReleased();
+        if (!mOutputDequeued[index]) {
+            throw new IllegalStateException("output buffer " + index + " is not dequeued");
+        }
+        mOutputDequeued[index] = false;
+        mFreeOutputs.add(index);
+        if (render) {
+            mRenderedCount++;
+        } else {
+            mDroppedCount++;
+        }
+        notifyAll();
+        if (!mDecoding.isEmpty() || !mDecoded.isEmpty()) { //a frame may go into the buffer now
+            schedule(System.nanoTime());
+        }
+    }
+
+    @Override
+    public synchronized void flush() {
+        checkNotReleased();
+        mDecoding.clear();
+        mReorder.clear();
+        mDecoded.clear();
+        mFreeInputs.clear();
+        for (int i = 0; i < mInputBuffers.length; i++) {
+            mInputDequeued[i] = false;
+            mFreeInputs.add(i);
+        }
+        mFreeOutputs.clear();
+        for (int i = 0; i < mOutputBuffers.length; i++) {
+            mOutputDequeued[i] = false;
+            mFreeOutputs.add(i);
+        }
+        mLastReadyAtNs = 0;
+        mFlushCount++;
+        if (mCallback != null) { //quiet until started again
+            mStarted = false;
+        }
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void start() {
+        checkNotReleased();
+        mStarted = true;
+        schedule(System.nanoTime());
+    }
+
+    @Override
+    public void setOutputSurface(Surface surface) {
+    }
+
+    @Override
+    public synchronized void stop() {
+        flush();
+    }
+
+    @Override
+    public synchronized void release() {
+        mReleased = true;
+        notifyAll();
+    }
+
+    synchronized long getQueuedCount() {
+        return mQueuedCount;
+    }
+
+    //output buffers released with render == true
+    synchronized long getRenderedCount() {
+        return mRenderedCount;
+    }
+
+    synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    synchronized int getFlushCount() {
+        return mFlushCount;
+    }
+
+    //the callback thread: offers what there is to offer, and has itself woken when the next frame is decoded
+    private synchronized void dispatch() {
+        mDispatchAtNs = Long.MAX_VALUE;
+        if (mReleased || !mStarted || mCallback == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        decodeUntil(now);
+        Integer input;
+        while ((input = mFreeInputs.poll()) != null) {
+            mInputDequeued[input] = true;
+            mInputBuffers[input].clear();
+            mCallback.onInputBufferAvailable(this, input);
+        }
+        int index;
+        while ((index = nextOutput(mCallbackInfo)) != INFO_TRY_AGAIN_LATER) {
+            if (index == INFO_OUTPUT_FORMAT_CHANGED) {
+                mCallback.onOutputFormatChanged(this, mOutputFormat);
+            } else {
+                mCallback.onOutputBufferAvailable(this, index, mCallbackInfo);
+                decodeUntil(now);
+            }
+        }
+        Frame next = mDecoding.peek();
+        if (!mFreeInputs.isEmpty()) { //freed by the frames decoded meanwhile
+            schedule(now);
+        } else if (next != null && mDecoded.size() < mFreeOutputs.size()) {
+            schedule(next.readyAtNs);
+        }
+    }
+
+    //asynchronous only: has dispatch() called at atNs, unless it's called earlier anyway
+    private void schedule(long atNs) {
+        if (mCallback != null && mStarted && atNs < mDispatchAtNs) {
+            mDispatchAtNs = atNs;
+            DISPATCHER.post(this, atNs);
+        }
+    }
+
+    //INFO_OUTPUT_FORMAT_CHANGED, the index of the output buffer the next decoded frame was put in, or INFO_TRY_AGAIN_LATER
+    private int nextOutput(BufferInfo info) {
+        Frame frame = mDecoded.peek();
+        if (mPendingFormat == null && frame != null && (frame.flags & BUFFER_FLAG_END_OF_STREAM) == 0) {
+            mPendingFormat = mFormatChanges.remove(mOutputFrames);
+        }
+        if (mPendingFormat != null && frame != null) {
+            mOutputFormat = mPendingFormat;
+            mPendingFormat = null;
+            return INFO_OUTPUT_FORMAT_CHANGED;
+        }
+        if (frame != null && !mFreeOutputs.isEmpty()) {
+            mDecoded.poll();
+            int index = mFreeOutputs.poll();
+            mOutputDequeued[index] = true;
+            fill(index, frame, info);
+            notifyAll(); //room for the next decoded frame
+            return index;
+        }
+        return INFO_TRY_AGAIN_LATER;
+    }
+
+    //moves the frames whose decoding is done by now on to the output side, as far as there
+    //are output buffers the app doesn't hold to decode them into
+    private void decodeUntil(long now) {
+        while (!mDecoding.isEmpty() && mDecoding.peek().readyAtNs <= now
+                && mDecoded.size() < mFreeOutputs.size()) {
+            Frame frame = mDecoding.poll();
+            mFreeInputs.add(frame.inputIndex);
+            if ((frame.flags & BUFFER_FLAG_END_OF_STREAM) != 0) { //drain
+                while (!mReorder.isEmpty()) {
+                    mDecoded.add(mReorder.poll());
+                }
+                mDecoded.add(frame);
+                continue;
+            }
+            mReorder.add(frame);
+            if (mReorder.size() > mReorderDepth) {
+                mDecoded.add(mReorder.poll());
+            }
+        }
+    }
+
+    //false if the deadline has passed, otherwise waits until it, or until the next frame is decoded or notified
+    private boolean waitUntil(long deadlineNs, long now) {
+        long waitNs = deadlineNs - now;
+        if (waitNs <= 0) {
+            return false;
+        }
+        Frame next = mDecoding.peek();
+        if (next != null && mDecoded.size() < mFreeOutputs.size()) {
+            waitNs = Math.min(waitNs, Math.max(1, next.readyAtNs - now));
+        }
+        try {
+            wait(waitNs / 1000000, (int) (waitNs % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    private void fill(int index, Frame frame, BufferInfo info) {
+        boolean endOfStream = (frame.flags & BUFFER_FLAG_END_OF_STREAM) != 0;
+        int size = endOfStream ? 0 : mOutputSize > 0 ? mOutputSize : frame.size;
+        ByteBuffer buffer = mOutputBuffers[index];
+        if (buffer == null || buffer.capacity() < Math.max(size, 8)) {
+            buffer = mOutputBuffers[index] = ByteBuffer.allocateDirect(Math.max(size, 8));
+        }
+        buffer.clear();
+        buffer.putLong(0, frame.ptsUs);
+        buffer.limit(size);
+        info.set(0, size, frame.ptsUs, frame.flags & (BUFFER_FLAG_KEY_FRAME | BUFFER_FLAG_END_OF_STREAM));
+        if (!endOfStream) {
+            mOutputFrames++;
+        }
+    }
+
+    private void checkSynchronous() {
+        if (mCallback != null) {
+            throw new IllegalStateException("asynchronous mode, the buffers come through the callback");
+        }
+    }
+
+    private void checkNotReleased() {
+        if (mReleased) {
+            throw new IllegalStateException("released");
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.ss.avframework.simpledecoder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link DataSource} reading a local file by positional reads.  Playing a path maps the
+ * file instead, this is for where a DataSource is wanted, e.g. to play a local copy the way
+ * a remote one is played.
+ */
+public final class FileDataSource implements DataSource {
+    private final FileInputStream mStream;
+    private final FileChannel mChannel;
+
+    public FileDataSource(File file) throws IOException {
+        mStream = new FileInputStream(file);
+        mChannel = mStream.getChannel();
+    }
+
+    @Override
+    public int readAt(long position, ByteBuffer buffer) throws IOException {
+        if (!buffer.hasRemaining()) {
+            return 0;
+        }
+        return mChannel.read(buffer, position);
+    }
+
+    @Override
+    public long size() throws IOException {
+        return mChannel.size();
+    }
+
+    @Override
+    public void readAhead(long position) {
+    }
+
+    @Override
+    public boolean isCached(long position, long size) {
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mStream.close();
+    }
+}
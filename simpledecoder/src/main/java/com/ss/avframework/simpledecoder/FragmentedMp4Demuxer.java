@@ -0,0 +1,745 @@
+package com.ss.avframework.simpledecoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Pure-Java demuxer of fragmented MP4, an init segment ({@code moov} with {@code mvex})
+ * followed by {@code moof}/{@code mdat} pairs, fed the bytes as they arrive from a growing
+ * file or a stream.
+ * <p>
+ * {@link #append} takes the bytes in whatever pieces they come.  A {@code moof} is parsed
+ * once all of it is in, and each of its samples can be read as soon as its bytes in the
+ * {@code mdat} are, so a fragment plays while the rest of it is still coming.  Only what
+ * hasn't been read is kept, the samples of the {@code trun} boxes and their bytes, so the
+ * memory taken is bounded by the fragment size rather than by the duration.  With a latency
+ * target, the samples further behind the newest one than the target are dropped from a sync
+ * sample on, so a reader falling behind a live stream skips ahead rather than buffering.
+ * <p>
+ * The call pattern follows {@link Mp4Demuxer}, except that {@link #getSampleTrackIndex()}
+ * returns -1 while the next sample isn't in yet as well as at the end, which
+ * {@link #isEnded()} tells apart.  The samples of every track are kept until tracks are
+ * selected, then only those of the tracks selected before the next append.  Samples come
+ * out in decode order per track and interleaved across tracks by decode time.  Not thread
+ * safe.
+ */
+final class FragmentedMp4Demuxer {
+    static final int TYPE_mvex = Mp4Parser.fourcc("mvex");
+    static final int TYPE_trex = Mp4Parser.fourcc("trex");
+    static final int TYPE_moof = Mp4Parser.fourcc("moof");
+    static final int TYPE_traf = Mp4Parser.fourcc("traf");
+    static final int TYPE_tfhd = Mp4Parser.fourcc("tfhd");
+    static final int TYPE_tfdt = Mp4Parser.fourcc("tfdt");
+    static final int TYPE_trun = Mp4Parser.fourcc("trun");
+
+    private static final int MAX_BOX_SIZE = 64 << 20;   // of a moov or moof, which are parsed whole
+    private static final int INITIAL_CAPACITY = 64 << 10;
+
+    //tfhd flags
+    private static final int TFHD_BASE_DATA_OFFSET = 0x1;
+    private static final int TFHD_SAMPLE_DESCRIPTION_INDEX = 0x2;
+    private static final int TFHD_DEFAULT_DURATION = 0x8;
+    private static final int TFHD_DEFAULT_SIZE = 0x10;
+    private static final int TFHD_DEFAULT_FLAGS = 0x20;
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x20000;
+    //trun flags
+    private static final int TRUN_DATA_OFFSET = 0x1;
+    private static final int TRUN_FIRST_SAMPLE_FLAGS = 0x4;
+    private static final int TRUN_DURATION = 0x100;
+    private static final int TRUN_SIZE = 0x200;
+    private static final int TRUN_FLAGS = 0x400;
+    private static final int TRUN_CTS_OFFSET = 0x800;
+    //sample flags
+    private static final int SAMPLE_IS_NON_SYNC = 0x10000;
+
+    /**
+     * The samples of one track parsed and not read yet, from head to count, in decode order.
+     */
+    private static final class Samples {
+        final Mp4Track track;
+        boolean selected;
+        int defaultDuration;        // from the trex box
+        int defaultSize;
+        int defaultFlags;
+        long nextDts;               // just after the last sample, for a traf without tfdt
+        long[] offsets = new long[64];  // in the stream
+        int[] sizes = new int[64];
+        long[] dts = new long[64];
+        int[] ctsOffsets = new int[64];
+        boolean[] sync = new boolean[64];
+        int head;
+        int count;
+
+        Samples(Mp4Track track) {
+            this.track = track;
+        }
+
+        void add(long offset, int size, long dts, int ctsOffset, boolean sync) {
+            if (count == offsets.length) {
+                if (head > 0) { //move what is left to the front rather than grow
+                    int left = count - head;
+                    System.arraycopy(offsets, head, offsets, 0, left);
+                    System.arraycopy(sizes, head, sizes, 0, left);
+                    System.arraycopy(this.dts, head, this.dts, 0, left);
+                    System.arraycopy(ctsOffsets, head, ctsOffsets, 0, left);
+                    System.arraycopy(this.sync, head, this.sync, 0, left);
+                    head = 0;
+                    count = left;
+                } else {
+                    int capacity = offsets.length * 2;
+                    offsets = Arrays.copyOf(offsets, capacity);
+                    sizes = Arrays.copyOf(sizes, capacity);
+                    this.dts = Arrays.copyOf(this.dts, capacity);
+                    ctsOffsets = Arrays.copyOf(ctsOffsets, capacity);
+                    this.sync = Arrays.copyOf(this.sync, capacity);
+                }
+            }
+            offsets[count] = offset;
+            sizes[count] = size;
+            this.dts[count] = dts;
+            ctsOffsets[count] = ctsOffset;
+            this.sync[count] = sync;
+            count++;
+            track.maxSampleSize = Math.max(track.maxSampleSize, size);
+        }
+
+        boolean isEmpty() {
+            return head == count;
+        }
+
+        void clear() {
+            head = 0;
+            count = 0;
+            nextDts = 0;
+        }
+
+        long dtsUs(int i) {
+            return track.toUs(dts[i] - track.editMediaTime);
+        }
+
+        long ptsUs(int i) {
+            return track.toUs(dts[i] + ctsOffsets[i] - track.editMediaTime);
+        }
+    }
+
+    private Mp4Track[] mTracks;                 // null until the moov is in
+    private Samples[] mSamples;
+    private byte[] mBytes = new byte[INITIAL_CAPACITY];
+    private ByteBuffer mBoxView = ByteBuffer.wrap(mBytes);     // what the boxes are parsed from
+    private ByteBuffer mSampleView = ByteBuffer.wrap(mBytes);  // reused for getSampleData()
+    private long mBytesStart;                   // the stream position of mBytes[0]
+    private int mLength;                        // of mBytes, the bytes appended and kept
+    private long mBoxPosition;                  // of the next top level box to parse
+    private long mFirstFragment = -1;           // the stream position of the first moof
+    private boolean mEnded;
+    private long mLatencyTargetUs;
+    private long mSkipUntilUs = Long.MIN_VALUE; // of the seek under way, Long.MIN_VALUE if none
+    private int mSkipMode;
+    private boolean mAnySelected;
+    private Samples mCurrent;
+    private int mDropped;
+
+    /**
+     * Takes the bytes from {@code data}'s position to its limit, the next ones of the stream,
+     * parsing what they complete.
+     *
+     * @throws IOException if the stream is not fragmented MP4 or is malformed
+     */
+    void append(ByteBuffer data) throws IOException {
+        Compact();
+        int size = data.remaining();
+        if (mLength + size > mBytes.length) {
+            SetBytes(Arrays.copyOf(mBytes, Math.max(mBytes.length * 2, mLength + size)));
+        }
+        data.get(mBytes, mLength, size);
+        mLength += size;
+        try {
+            Parse();
+        } catch (RuntimeException e) { //IndexOutOfBoundsException etc on boxes that don't add up
+            throw new IOException("Malformed fragment at " + mBoxPosition, e);
+        }
+        Skip();
+        if (mLatencyTargetUs > 0) {
+            DropBehind();
+        }
+        pickNextSample();
+    }
+
+    //no more bytes are coming, what is parsed is all there is
+    void endOfStream() {
+        mEnded = true;
+        Skip();
+        pickNextSample();
+    }
+
+    /**
+     * Forgets the samples and bytes buffered and goes on from {@code position} in the stream,
+     * the next byte appended, e.g. {@link #getFirstFragmentPosition()} to read it again.  The
+     * tracks are kept.
+     */
+    void restart(long position) {
+        if (mSamples != null) {
+            for (Samples samples : mSamples) {
+                samples.clear();
+            }
+        }
+        mBytesStart = position;
+        mLength = 0;
+        mBoxPosition = position;
+        mEnded = false;
+        mSkipUntilUs = Long.MIN_VALUE;
+        pickNextSample();
+    }
+
+    /**
+     * Once the next sample is twice {@code latencyUs} behind the newest one, the samples up to
+     * the first sync sample within {@code latencyUs} of it are dropped as new ones come: what
+     * nobody reads doesn't pile up, while a reader falling behind less can catch up by a seek
+     * of its own.  0, the default, keeps everything.
+     */
+    void setLatencyTargetUs(long latencyUs) {
+        mLatencyTargetUs = latencyUs;
+    }
+
+    //whether the moov is in and the tracks known
+    boolean isInitialized() {
+        return mTracks != null;
+    }
+
+    int getTrackCount() {
+        return mTracks != null ? mTracks.length : 0;
+    }
+
+    /**
+     * The description of the track from the init segment; it has no sample tables, the
+     * samples come by fragment.  maxSampleSize is of the samples parsed so far.
+     */
+    Mp4Track getTrack(int index) {
+        return mTracks[index];
+    }
+
+    void selectTrack(int index) {
+        mAnySelected = true;
+        mSamples[index].selected = true;
+        pickNextSample();
+    }
+
+    /**
+     * @return the track of the current sample, -1 if there is none now, see {@link #isEnded()}
+     */
+    int getSampleTrackIndex() {
+        if (mCurrent == null) {
+            return -1;
+        }
+        for (int i = 0; i < mSamples.length; i++) {
+            if (mSamples[i] == mCurrent) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    //whether the stream ended and every sample of the selected tracks was read
+    boolean isEnded() {
+        if (!mEnded) {
+            return false;
+        }
+        if (mSamples != null) {
+            for (Samples samples : mSamples) {
+                if (samples.selected && !samples.isEmpty()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return presentation time of the current sample in microseconds, -1 if there is none
+     */
+    long getSampleTime() {
+        return mCurrent != null ? mCurrent.ptsUs(mCurrent.head) : -1;
+    }
+
+    int getSampleFlags() {
+        return mCurrent != null && mCurrent.sync[mCurrent.head] ? Mp4Demuxer.SAMPLE_FLAG_SYNC : 0;
+    }
+
+    /**
+     * @return size of the current sample in bytes, -1 if there is none
+     */
+    int getSampleSize() {
+        return mCurrent != null ? mCurrent.sizes[mCurrent.head] : -1;
+    }
+
+    /**
+     * Returns the current sample as a view of the bytes buffered, like
+     * {@link Mp4Demuxer#getSampleData()}.  The view is only valid until the next call to
+     * this or to {@link #append}.
+     *
+     * @return the view, or null if there is no sample
+     */
+    ByteBuffer getSampleData() {
+        if (mCurrent == null) {
+            return null;
+        }
+        int at = (int) (mCurrent.offsets[mCurrent.head] - mBytesStart);
+        mSampleView.clear();
+        mSampleView.limit(at + mCurrent.sizes[mCurrent.head]);
+        mSampleView.position(at);
+        return mSampleView;
+    }
+
+    /**
+     * Copies the current sample into {@code buffer} at {@code offset}, like
+     * {@link Mp4Demuxer#readSampleData}.
+     *
+     * @return size of the sample, -1 if there is none
+     * @throws IllegalArgumentException if the sample doesn't fit
+     */
+    int readSampleData(ByteBuffer buffer, int offset) {
+        ByteBuffer sample = getSampleData();
+        if (sample == null) {
+            return -1;
+        }
+        int size = sample.remaining();
+        if (buffer.capacity() - offset < size) {
+            throw new IllegalArgumentException("Sample of " + size + " bytes doesn't fit");
+        }
+        buffer.clear();
+        buffer.position(offset);
+        buffer.put(sample);
+        buffer.limit(offset + size);
+        buffer.position(offset);
+        return size;
+    }
+
+    /**
+     * Moves to the next sample.
+     *
+     * @return false if there is no next sample now
+     */
+    boolean advance() {
+        if (mCurrent == null) {
+            return false;
+        }
+        mCurrent.head++;
+        pickNextSample();
+        return mCurrent != null;
+    }
+
+    /**
+     * Positions the selected tracks at a sync sample near {@code timeUs}, dropping the samples
+     * before it.  Until the samples buffered or still to come tell which sync sample that is,
+     * none is read, and only those from the best one so far on are kept.  Samples already
+     * read are gone: a seek before the first sample buffered goes to the first sync sample,
+     * see {@link #restart} to read the stream again instead.
+     *
+     * @param mode one of the {@code Mp4Demuxer.SEEK_TO_*} constants
+     */
+    void seekTo(long timeUs, int mode) {
+        mSkipUntilUs = timeUs;
+        mSkipMode = mode;
+        Skip();
+        pickNextSample();
+    }
+
+    /**
+     * @return decode time of the newest sample of the selected tracks whose bytes are in,
+     * Long.MIN_VALUE if there is none
+     */
+    long getLiveEdgeUs() {
+        long edgeUs = Long.MIN_VALUE;
+        if (mSamples == null) {
+            return edgeUs;
+        }
+        long end = mBytesStart + mLength;
+        for (Samples samples : mSamples) {
+            if (!samples.selected) {
+                continue;
+            }
+            for (int i = samples.count - 1; i >= samples.head; i--) {
+                if (samples.offsets[i] + samples.sizes[i] <= end) {
+                    edgeUs = Math.max(edgeUs, samples.dtsUs(i));
+                    break;
+                }
+            }
+        }
+        return edgeUs;
+    }
+
+    /**
+     * @return decode time of the first sample buffered of the track seeks go by, the video one
+     * if it is selected, Long.MAX_VALUE if there is none
+     */
+    long getBufferedStartUs() {
+        Samples sync = SyncTrack();
+        return sync != null && !sync.isEmpty() ? sync.dtsUs(sync.head) : Long.MAX_VALUE;
+    }
+
+    //-1 until the first moof is parsed
+    long getFirstFragmentPosition() {
+        return mFirstFragment;
+    }
+
+    //the bytes held, what the buffer was grown to
+    int getBufferCapacity() {
+        return mBytes.length;
+    }
+
+    //samples dropped to meet the latency target or by seeks, which are never read
+    int getDroppedSamples() {
+        return mDropped;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////
+
+    //parses the top level boxes complete in the buffer, stepping over the mdat and the others
+    private void Parse() throws IOException {
+        mBoxView.limit(mLength);
+        while (true) {
+            long end = mBytesStart + mLength;
+            if (mBoxPosition + 8 > end) {
+                return;
+            }
+            int at = (int) (mBoxPosition - mBytesStart);
+            long size = mBoxView.getInt(at) & 0xffffffffL;
+            int type = mBoxView.getInt(at + 4);
+            if (size == 1) {
+                if (mBoxPosition + 16 > end) {
+                    return;
+                }
+                size = mBoxView.getLong(at + 8);
+            } else if (size == 0) { //to the end of the stream
+                size = Long.MAX_VALUE - mBoxPosition;
+            }
+            if (size < 8) {
+                throw new IOException("Box of " + size + " bytes at " + mBoxPosition);
+            }
+            if (type == Mp4Parser.TYPE_moov || type == TYPE_moof) {
+                if (size > MAX_BOX_SIZE) {
+                    throw new IOException(Mp4Parser.fourccToString(type) + " box of " + size + " bytes");
+                }
+                if (mBoxPosition + size > end) {
+                    return;
+                }
+                if (type == Mp4Parser.TYPE_moov) {
+                    if (mTracks == null) {
+                        ParseMoov(at);
+                    }
+                } else {
+                    if (mTracks == null) {
+                        throw new IOException("moof before moov at " + mBoxPosition);
+                    }
+                    if (mFirstFragment < 0) {
+                        mFirstFragment = mBoxPosition;
+                    }
+                    ParseMoof(at, mBoxPosition);
+                }
+            }
+            mBoxPosition += size;
+        }
+    }
+
+    private void ParseMoov(int moov) throws IOException {
+        long mvex = Mp4Parser.child(mBoxView, moov, TYPE_mvex);
+        if (mvex < 0) {
+            throw new IOException("Not fragmented, no mvex in moov");
+        }
+        Mp4Track[] tracks = Mp4Parser.parseMoov(mBoxView, moov);
+        Samples[] samples = new Samples[tracks.length];
+        for (int i = 0; i < tracks.length; i++) {
+            samples[i] = new Samples(tracks[i]);
+        }
+        long end = Mp4Parser.boxEnd(mBoxView, mvex);
+        for (long trex = Mp4Parser.child(mBoxView, mvex, TYPE_trex); trex >= 0;
+             trex = Mp4Parser.findBox(mBoxView, Mp4Parser.boxEnd(mBoxView, trex), end, TYPE_trex)) {
+            int at = (int) trex;
+            Samples track = Find(samples, mBoxView.getInt(at + 12));
+            if (track != null) {
+                track.defaultDuration = mBoxView.getInt(at + 20);
+                track.defaultSize = mBoxView.getInt(at + 24);
+                track.defaultFlags = mBoxView.getInt(at + 28);
+            }
+        }
+        mTracks = tracks;
+        mSamples = samples;
+    }
+
+    private void ParseMoof(int moof, long position) throws IOException {
+        long end = Mp4Parser.boxEnd(mBoxView, moof);
+        long dataEnd = position; //where the data of the previous traf ends, the first one's base
+        for (long traf = Mp4Parser.child(mBoxView, moof, TYPE_traf); traf >= 0;
+             traf = Mp4Parser.findBox(mBoxView, Mp4Parser.boxEnd(mBoxView, traf), end, TYPE_traf)) {
+            dataEnd = ParseTraf((int) traf, position, dataEnd);
+        }
+    }
+
+    //adds the samples of the traf, returns the stream position just past their data
+    private long ParseTraf(int traf, long moofPosition, long previousDataEnd) throws IOException {
+        long tfhd = Mp4Parser.child(mBoxView, traf, TYPE_tfhd);
+        if (tfhd < 0) {
+            throw new IOException("traf without tfhd at " + (mBytesStart + traf));
+        }
+        int at = (int) tfhd;
+        int flags = mBoxView.getInt(at + 8) & 0xffffff;
+        Samples samples = Find(mSamples, mBoxView.getInt(at + 12));
+        if (samples == null) { //a track the moov doesn't have
+            return previousDataEnd;
+        }
+        at += 16;
+        long base = previousDataEnd;
+        if ((flags & TFHD_BASE_DATA_OFFSET) != 0) {
+            base = mBoxView.getLong(at);
+            at += 8;
+        } else if ((flags & TFHD_DEFAULT_BASE_IS_MOOF) != 0) {
+            base = moofPosition;
+        }
+        if ((flags & TFHD_SAMPLE_DESCRIPTION_INDEX) != 0) {
+            at += 4;
+        }
+        int defaultDuration = samples.defaultDuration;
+        if ((flags & TFHD_DEFAULT_DURATION) != 0) {
+            defaultDuration = mBoxView.getInt(at);
+            at += 4;
+        }
+        int defaultSize = samples.defaultSize;
+        if ((flags & TFHD_DEFAULT_SIZE) != 0) {
+            defaultSize = mBoxView.getInt(at);
+            at += 4;
+        }
+        int defaultFlags = samples.defaultFlags;
+        if ((flags & TFHD_DEFAULT_FLAGS) != 0) {
+            defaultFlags = mBoxView.getInt(at);
+        }
+
+        long dts = samples.nextDts;
+        long tfdt = Mp4Parser.child(mBoxView, traf, TYPE_tfdt);
+        if (tfdt >= 0) {
+            int version = mBoxView.get((int) tfdt + 8);
+            dts = version == 1 ? mBoxView.getLong((int) tfdt + 12) : mBoxView.getInt((int) tfdt + 12) & 0xffffffffL;
+        }
+
+        long offset = base;
+        long end = Mp4Parser.boxEnd(mBoxView, traf);
+        for (long trun = Mp4Parser.child(mBoxView, traf, TYPE_trun); trun >= 0;
+             trun = Mp4Parser.findBox(mBoxView, Mp4Parser.boxEnd(mBoxView, trun), end, TYPE_trun)) {
+            at = (int) trun;
+            int trunFlags = mBoxView.getInt(at + 8) & 0xffffff;
+            long count = mBoxView.getInt(at + 12) & 0xffffffffL;
+            at += 16;
+            if ((trunFlags & TRUN_DATA_OFFSET) != 0) {
+                offset = base + mBoxView.getInt(at);
+                at += 4;
+            }
+            int firstFlags = defaultFlags;
+            if ((trunFlags & TRUN_FIRST_SAMPLE_FLAGS) != 0) {
+                firstFlags = mBoxView.getInt(at);
+                at += 4;
+            }
+            int entrySize = 4 * Integer.bitCount(trunFlags & (TRUN_DURATION | TRUN_SIZE | TRUN_FLAGS | TRUN_CTS_OFFSET));
+            if (at + count * entrySize > Mp4Parser.boxEnd(mBoxView, trun)) {
+                throw new IOException("trun of " + count + " samples overruns its box at " + (mBytesStart + trun));
+            }
+            for (long i = 0; i < count; i++) {
+                int duration = defaultDuration;
+                if ((trunFlags & TRUN_DURATION) != 0) {
+                    duration = mBoxView.getInt(at);
+                    at += 4;
+                }
+                int size = defaultSize;
+                if ((trunFlags & TRUN_SIZE) != 0) {
+                    size = mBoxView.getInt(at);
+                    at += 4;
+                }
+                int sampleFlags = i == 0 ? firstFlags : defaultFlags;
+                if ((trunFlags & TRUN_FLAGS) != 0) {
+                    sampleFlags = mBoxView.getInt(at);
+                    at += 4;
+                }
+                int ctsOffset = 0;
+                if ((trunFlags & TRUN_CTS_OFFSET) != 0) {
+                    ctsOffset = mBoxView.getInt(at);
+                    at += 4;
+                }
+                if (size < 0 || offset < mBytesStart) { //the bytes before the moof are gone
+                    throw new IOException("Sample of " + (size & 0xffffffffL) + " bytes at " + offset + " in track " + samples.track.trackId);
+                }
+                if (Keeps(samples)) {
+                    samples.add(offset, size, dts, ctsOffset, (sampleFlags & SAMPLE_IS_NON_SYNC) == 0);
+                }
+                offset += size;
+                dts += duration & 0xffffffffL;
+            }
+        }
+        samples.nextDts = dts;
+        return offset;
+    }
+
+    //drops the bytes no sample still to be read or box still to be parsed is in, and the
+    //samples kept of the tracks not selected
+    private void Compact() {
+        long keep = Math.min(mBoxPosition, mBytesStart + mLength);
+        if (mSamples != null) {
+            for (Samples samples : mSamples) {
+                if (!Keeps(samples)) {
+                    samples.head = samples.count;
+                } else if (!samples.isEmpty()) {
+                    keep = Math.min(keep, samples.offsets[samples.head]);
+                }
+            }
+        }
+        int discard = (int) (keep - mBytesStart);
+        if (discard <= 0) {
+            return;
+        }
+        System.arraycopy(mBytes, discard, mBytes, 0, mLength - discard);
+        mLength -= discard;
+        mBytesStart = keep;
+    }
+
+    private void SetBytes(byte[] bytes) {
+        mBytes = bytes;
+        mBoxView = ByteBuffer.wrap(bytes);
+        mSampleView = ByteBuffer.wrap(bytes);
+    }
+
+    //the seek under way: drops the samples before the sync sample it goes to, and is done once
+    //the samples tell which one that is
+    private void Skip() {
+        if (mSkipUntilUs == Long.MIN_VALUE) {
+            return;
+        }
+        Samples sync = SyncTrack();
+        if (sync == null) {
+            mSkipUntilUs = Long.MIN_VALUE;
+            return;
+        }
+        long timeUs = mSkipUntilUs;
+        int previous = -1;
+        int next = -1;
+        for (int i = sync.head; i < sync.count; i++) {
+            if (!sync.sync[i]) {
+                continue;
+            }
+            if (sync.dtsUs(i) <= timeUs) {
+                previous = i;
+            } else {
+                next = i;
+                break;
+            }
+        }
+        int sample;
+        if (mSkipMode == Mp4Demuxer.SEEK_TO_NEXT_SYNC) {
+            sample = previous >= 0 && sync.dtsUs(previous) == timeUs ? previous : next;
+        } else if (mSkipMode == Mp4Demuxer.SEEK_TO_CLOSEST_SYNC && next >= 0
+                && (previous < 0 || sync.dtsUs(next) - timeUs < timeUs - sync.dtsUs(previous))) {
+            sample = next;
+        } else {
+            sample = previous >= 0 ? previous : next;
+        }
+        //whether a sync sample still to come can't be a better one
+        boolean known;
+        if (mSkipMode == Mp4Demuxer.SEEK_TO_NEXT_SYNC) {
+            known = sample >= 0 || mEnded;
+        } else if (mSkipMode == Mp4Demuxer.SEEK_TO_CLOSEST_SYNC) {
+            known = next >= 0 || mEnded;
+        } else {
+            known = mEnded || (!sync.isEmpty() && sync.dtsUs(sync.count - 1) > timeUs);
+        }
+        if (sample >= 0) {
+            DropBefore(sync.dtsUs(sample));
+        } else {
+            DropBefore(Long.MAX_VALUE);
+        }
+        if (known) {
+            mSkipUntilUs = Long.MIN_VALUE;
+        }
+    }
+
+    //drops up to the first sync sample of the newest latency target, if the reader is behind it
+    private void DropBehind() {
+        Samples sync = SyncTrack();
+        long edgeUs = getLiveEdgeUs();
+        if (sync == null || sync.isEmpty() || edgeUs == Long.MIN_VALUE) {
+            return;
+        }
+        if (sync.dtsUs(sync.head) >= edgeUs - 2 * mLatencyTargetUs) {
+            return;
+        }
+        long fromUs = edgeUs - mLatencyTargetUs;
+        for (int i = sync.head + 1; i < sync.count; i++) {
+            if (sync.sync[i] && sync.dtsUs(i) >= fromUs) {
+                DropBefore(sync.dtsUs(i));
+                return;
+            }
+        }
+    }
+
+    //drops the samples of every selected track decoded before timeUs
+    private void DropBefore(long timeUs) {
+        for (Samples samples : mSamples) {
+            while (samples.selected && !samples.isEmpty() && samples.dtsUs(samples.head) < timeUs) {
+                samples.head++;
+                mDropped++;
+            }
+        }
+    }
+
+    private boolean Keeps(Samples samples) {
+        return samples.selected || !mAnySelected;
+    }
+
+    //the selected track seeks and the latency target go by: the video one, else the first one
+    private Samples SyncTrack() {
+        if (mSamples == null) {
+            return null;
+        }
+        Samples first = null;
+        for (Samples samples : mSamples) {
+            if (!samples.selected) {
+                continue;
+            }
+            if (samples.track.isVideo()) {
+                return samples;
+            }
+            if (first == null) {
+                first = samples;
+            }
+        }
+        return first;
+    }
+
+    //the selected track whose next sample decodes first, if the bytes of that sample are in
+    private void pickNextSample() {
+        mCurrent = null;
+        if (mSamples == null || mSkipUntilUs != Long.MIN_VALUE) {
+            return;
+        }
+        Samples best = null;
+        long bestDtsUs = Long.MAX_VALUE;
+        for (Samples samples : mSamples) {
+            if (!samples.selected || samples.isEmpty()) {
+                continue;
+            }
+            long dtsUs = samples.dtsUs(samples.head);
+            if (best == null || dtsUs < bestDtsUs) {
+                best = samples;
+                bestDtsUs = dtsUs;
+            }
+        }
+        if (best != null && best.offsets[best.head] + best.sizes[best.head] <= mBytesStart + mLength) {
+            mCurrent = best;
+        }
+    }
+
+    private static Samples Find(Samples[] samples, int trackId) {
+        for (Samples track : samples) {
+            if (track.track.trackId == trackId) {
+                return track;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,163 @@
+package com.ss.avframework.simpledecoder;
+
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link MediaSource} over a fragmented MP4 file read from a {@link DataSource} by
+ * {@link FragmentedMp4Demuxer}, in order, only as far as the next sample needs.
+ * <p>
+ * Live, with a latency target, the end of the source is where more is still to come, e.g. a
+ * file still being written: {@link #readSampleData} returns {@link #SAMPLE_PENDING} until it
+ * does, and reads everything new every call so the demuxer drops what is further behind than
+ * the target; the {@link PlayerCore} then skips ahead to it, see {@link PlayerCore.LiveSource}.
+ * Otherwise it plays to the end of the source.  Seeks are within what is buffered and
+ * forwards past it; backwards, a file not played live is read from the first fragment again.
+ */
+final class FragmentedMp4MediaSource implements MediaSource, PlayerCore.LiveSource {
+    private static final int READ_SIZE = 64 << 10;
+    private static final int MAX_LIVE_READS = 16;   // per sample, so catching up doesn't hold up a step for long
+
+    private final DataSource mSource;
+    private final FragmentedMp4Demuxer mDemuxer = new FragmentedMp4Demuxer();
+    private final long mLatencyTargetUs;
+    private final ByteBuffer mChunk = ByteBuffer.allocate(READ_SIZE);
+    private long mPosition;                 // in the source, of the next byte to read
+
+    /**
+     * Reads up to the end of the init segment.  Releasing the source closes the data source.
+     *
+     * @param latencyTargetUs 0 to play to the end of the source, else how far behind the newest
+     *                        sample to play it live
+     * @throws IOException if the source can't be read or is not fragmented MP4
+     */
+    FragmentedMp4MediaSource(DataSource source, long latencyTargetUs) throws IOException {
+        mSource = source;
+        mLatencyTargetUs = latencyTargetUs;
+        mDemuxer.setLatencyTargetUs(latencyTargetUs);
+        try {
+            while (!mDemuxer.isInitialized()) {
+                if (!Read()) {
+                    throw new IOException("No moov box");
+                }
+            }
+        } catch (IOException e) {
+            release();
+            throw e;
+        }
+    }
+
+    FragmentedMp4Demuxer getDemuxer() {
+        return mDemuxer;
+    }
+
+    @Override
+    public long liveEdgeUs() {
+        return mDemuxer.getLiveEdgeUs();
+    }
+
+    @Override
+    public long latencyTargetUs() {
+        return mLatencyTargetUs;
+    }
+
+    @Override
+    public int getTrackCount() {
+        return mDemuxer.getTrackCount();
+    }
+
+    @Override
+    public MediaFormat getTrackFormat(int index) {
+        return Mp4MediaSource.CreateMediaFormat(mDemuxer.getTrack(index));
+    }
+
+    @Override
+    public void selectTrack(int index) {
+        mDemuxer.selectTrack(index);
+    }
+
+    /**
+     * @throws IllegalStateException if the data source fails to read or the fragments are malformed
+     */
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        try {
+            if (mLatencyTargetUs > 0) {
+                for (int i = 0; i < MAX_LIVE_READS && Read(); i++) {
+                }
+            } else {
+                while (mDemuxer.getSampleTrackIndex() < 0 && !mDemuxer.isEnded()) {
+                    if (!Read()) {
+                        mDemuxer.endOfStream();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't read the fragment at " + mPosition, e);
+        }
+        int trackIndex = mDemuxer.getSampleTrackIndex();
+        if (trackIndex < 0) {
+            return mDemuxer.isEnded() ? -1 : SAMPLE_PENDING;
+        }
+        int nalLengthSize = mDemuxer.getTrack(trackIndex).nalLengthSize;
+        if (nalLengthSize == 0) {
+            return mDemuxer.readSampleData(buffer, offset);
+        }
+        return Mp4MediaSource.CopyAsAnnexB(mDemuxer.getSampleData(), nalLengthSize, buffer, offset);
+    }
+
+    @Override
+    public int getSampleTrackIndex() {
+        return mDemuxer.getSampleTrackIndex();
+    }
+
+    @Override
+    public long getSampleTime() {
+        return mDemuxer.getSampleTime();
+    }
+
+    @Override
+    public int getSampleFlags() {
+        return mDemuxer.getSampleFlags();
+    }
+
+    @Override
+    public boolean advance() {
+        return mDemuxer.advance();
+    }
+
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        long firstFragment = mDemuxer.getFirstFragmentPosition();
+        if (mLatencyTargetUs <= 0 && firstFragment >= 0 && timeUs < mDemuxer.getBufferedStartUs()) {
+            mPosition = firstFragment;
+            mDemuxer.restart(firstFragment);
+            mSource.readAhead(firstFragment);
+        }
+        mDemuxer.seekTo(timeUs, mode);
+    }
+
+    @Override
+    public void release() {
+        try {
+            mSource.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //appends the next bytes of the source to the demuxer, false if there are none now
+    private boolean Read() throws IOException {
+        mChunk.clear();
+        int read = mSource.readAt(mPosition, mChunk);
+        if (read <= 0) {
+            return false;
+        }
+        mPosition += read;
+        mChunk.flip();
+        mDemuxer.append(mChunk);
+        return true;
+    }
+}
@@ -0,0 +1,424 @@
+package com.ss.avframework.simpledecoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Writes RGBA frames out on background threads, e.g. the frames of {@link Mp4Decoder#extractFrames}
+ * with this as the listener, so the thread decoding them never waits for a PNG encoder or the disk.
+ * <p>
+ * A frame exported is copied into one of a fixed pool of direct buffers, all allocated up front, and
+ * queued to the writer threads, which hand it to the {@link Format} and put the buffer back into
+ * the pool.  Nothing is allocated per frame.  Once every buffer is queued or being written,
+ * {@link #export} blocks until a writer is done with one, so a producer faster than the writers is
+ * held back rather than piling frames up: the memory used is the pool, however many frames there are.
+ * <p>
+ * The writers write concurrently, so the frames may be written in any order.  The formats here
+ * write every frame to a file of its own or at the position of its index in a stream.
+ */
+public final class FrameExporter implements Mp4Decoder.IFrameExtractListener {
+    public static final int DEFAULT_POOL_SIZE = 4;
+    public static final int DEFAULT_WRITERS = 2;
+
+    /**
+     * How the frames are written, by any of the writers, concurrently with the other frames.
+     */
+    public interface Format {
+        //rgba: width * height * 4 bytes, top row first, only valid during the call. index: of the
+        //frame in the export
+        void write(ByteBuffer rgba, int width, int height, int index, long ptsUs) throws IOException;
+
+        //once every frame is written
+        void close() throws IOException;
+    }
+
+    private static final class Frame {
+        final ByteBuffer data;
+        int index;
+        long ptsUs;
+
+        Frame(ByteBuffer data) {
+            this.data = data;
+        }
+    }
+
+    private static final Frame END = new Frame(null);   // one per writer, stops it
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFrameSize;
+    private final Format mFormat;
+    private final ArrayBlockingQueue<Frame> mFree;
+    private final ArrayBlockingQueue<Frame> mQueued;
+    private final Thread[] mWriters;
+    private volatile IOException mError;                // the first, the frames after it aren't written
+    private boolean mFinished;                          // producer only
+    //the rest guarded by this
+    private long mExported;
+    private long mStalls;
+    private long mStallNs;
+    private int mMostInFlight;
+
+    public FrameExporter(int width, int height, Format format) {
+        this(width, height, format, DEFAULT_POOL_SIZE, DEFAULT_WRITERS);
+    }
+
+    /**
+     * @param poolSize the frames that may be queued or being written, each width * height * 4 bytes
+     * @param writers the threads writing, at most poolSize are busy
+     * @throws IllegalArgumentException if format is null or a number isn't positive
+     */
+    public FrameExporter(int width, int height, Format format, int poolSize, int writers) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("size " + width + "x" + height);
+        }
+        if (format == null) {
+            throw new IllegalArgumentException("format is null");
+        }
+        if (poolSize <= 0 || writers <= 0) {
+            throw new IllegalArgumentException("pool size " + poolSize + ", writers " + writers);
+        }
+        mWidth = width;
+        mHeight = height;
+        mFrameSize = width * height * 4;
+        mFormat = format;
+        mFree = new ArrayBlockingQueue<Frame>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            mFree.add(new Frame(ByteBuffer.allocateDirect(mFrameSize)));
+        }
+        mQueued = new ArrayBlockingQueue<Frame>(poolSize + writers);
+        mWriters = new Thread[writers];
+        for (int i = 0; i < writers; i++) {
+            mWriters[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Write();
+                }
+            }, "Frame Exporter " + i);
+            mWriters[i].setDaemon(true);
+            mWriters[i].start();
+        }
+    }
+
+    /**
+     * Queues the frame to be written, waiting for a buffer of the pool if all are taken.  The
+     * frame is copied, rgba can be reused once this returns.  One producer at a time.
+     *
+     * @param rgba width * height * 4 bytes from its position on
+     * @throws IllegalArgumentException if the size isn't the exporter's
+     * @throws IOException if writing a frame before failed
+     */
+    public void export(ByteBuffer rgba, int width, int height, int index, long ptsUs) throws IOException, InterruptedException {
+        if (mFinished) {
+            throw new IllegalStateException("finished");
+        }
+        if (width != mWidth || height != mHeight || rgba.remaining() < mFrameSize) {
+            throw new IllegalArgumentException(width + "x" + height + " frame of " + rgba.remaining()
+                    + " bytes, exporting " + mWidth + "x" + mHeight);
+        }
+        IOException error = mError;
+        if (error != null) {
+            throw error;
+        }
+        Frame frame = mFree.poll();
+        if (frame == null) { //the writers are behind, wait for them
+            long startNs = System.nanoTime();
+            frame = mFree.take();
+            synchronized (this) {
+                mStalls++;
+                mStallNs += System.nanoTime() - startNs;
+            }
+        }
+        ByteBuffer pixels = rgba.duplicate();
+        pixels.limit(pixels.position() + mFrameSize);
+        frame.data.clear();
+        frame.data.put(pixels);
+        frame.data.flip();
+        frame.index = index;
+        frame.ptsUs = ptsUs;
+        synchronized (this) {
+            mMostInFlight = Math.max(mMostInFlight, mFree.remainingCapacity());
+        }
+        mQueued.put(frame);
+    }
+
+    //exports the frame extracted. A failure comes out of finish()
+    @Override
+    public void onFrameExtracted(int index, long requestedUs, long ptsUs, ByteBuffer rgba, int width, int height) {
+        try {
+            export(rgba, width, height, index, ptsUs);
+        } catch (IOException e) { //already mError
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Fail(new InterruptedIOException("export interrupted"));
+        }
+    }
+
+    /**
+     * Waits for the frames queued to be written, stops the writers and closes the format.
+     *
+     * @throws IOException the first failure to write a frame or to close
+     */
+    public void finish() throws IOException, InterruptedException {
+        if (!mFinished) {
+            mFinished = true;
+            for (int i = 0; i < mWriters.length; i++) {
+                mQueued.put(END);
+            }
+            for (Thread writer : mWriters) {
+                writer.join();
+            }
+            try {
+                mFormat.close();
+            } catch (IOException e) {
+                Fail(e);
+            }
+        }
+        IOException error = mError;
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    //frames written so far
+    public synchronized long getExportedCount() {
+        return mExported;
+    }
+
+    //times export() waited for a buffer, and for how long in all
+    public synchronized long getStallCount() {
+        return mStalls;
+    }
+
+    public synchronized long getStallUs() {
+        return mStallNs / 1000;
+    }
+
+    //the most buffers of the pool that were queued or being written at once
+    public synchronized int getMostInFlight() {
+        return mMostInFlight;
+    }
+
+    //the memory of the pool
+    public long getPoolBytes() {
+        return (long) mFrameSize * (mFree.size() + mFree.remainingCapacity());
+    }
+
+    private void Write() {
+        while (true) {
+            Frame frame;
+            try {
+                frame = mQueued.take();
+            } catch (InterruptedException e) {
+                Fail(new InterruptedIOException("writer interrupted"));
+                return;
+            }
+            if (frame == END) {
+                return;
+            }
+            if (mError == null) { //keep the buffers going round so the producer gets to see the error
+                try {
+                    mFormat.write(frame.data, mWidth, mHeight, frame.index, frame.ptsUs);
+                    synchronized (this) {
+                        mExported++;
+                    }
+                } catch (IOException e) {
+                    Fail(e);
+                } catch (RuntimeException e) {
+                    Fail(new IOException(e));
+                }
+            }
+            frame.data.clear();
+            mFree.add(frame);
+        }
+    }
+
+    private synchronized void Fail(IOException e) {
+        if (mError == null) {
+            mError = e;
+        }
+    }
+
+    /**
+     * Every frame as raw RGBA to a file of its own in dir, frame_000000.rgba on.  Written from
+     * the pool's direct buffer, the pixels aren't copied on the way to the file.
+     */
+    public static Format rgbaFiles(final File dir) {
+        return new Format() {
+            @Override
+            public void write(ByteBuffer rgba, int width, int height, int index, long ptsUs) throws IOException {
+                RandomAccessFile file = new RandomAccessFile(new File(dir, String.format(Locale.US, "frame_%06d.rgba", index)), "rw");
+                try {
+                    file.setLength(0);
+                    WriteFully(file.getChannel(), rgba, 0);
+                } finally {
+                    file.close();
+                }
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * The frames as raw RGBA one after the other in one file, the frame of index i at
+     * i * width * height * 4.  Frames not exported leave a hole of zeros.  Written from the pool's
+     * direct buffer, the pixels aren't copied on the way to the file.
+     */
+    public static Format rgbaStream(File file) throws IOException {
+        return new StreamFormat(file, 0, 0) {
+            @Override
+            int frameSize(int width, int height) {
+                return width * height * 4;
+            }
+
+            @Override
+            ByteBuffer encode(ByteBuffer rgba, int width, int height) {
+                return rgba;
+            }
+        };
+    }
+
+    /**
+     * The frames as a YUV4MPEG2 stream, 4:2:0 full range BT.601 at fpsNum / fpsDen frames a
+     * second, as played by ffplay and mpv, the frame of index i the i-th of the stream.  Each
+     * writer converts into a buffer of its own, written from there without another copy.
+     */
+    public static Format y4m(File file, int fpsNum, int fpsDen) throws IOException {
+        if (fpsNum <= 0 || fpsDen <= 0) {
+            throw new IllegalArgumentException("fps " + fpsNum + "/" + fpsDen);
+        }
+        return new StreamFormat(file, fpsNum, fpsDen) {
+            private final ThreadLocal<ByteBuffer> mConverted = new ThreadLocal<ByteBuffer>();
+
+            @Override
+            int frameSize(int width, int height) {
+                return Y4M_FRAME.length + width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+            }
+
+            @Override
+            ByteBuffer encode(ByteBuffer rgba, int width, int height) {
+                ByteBuffer out = mConverted.get();
+                int size = frameSize(width, height);
+                if (out == null || out.capacity() != size) {
+                    out = ByteBuffer.allocateDirect(size);
+                    mConverted.set(out);
+                }
+                out.clear();
+                out.put(Y4M_FRAME);
+                RgbaToI420(rgba, width, height, out);
+                out.flip();
+                return out;
+            }
+        };
+    }
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    private static final byte[] Y4M_FRAME = "FRAME\n".getBytes(US_ASCII);
+
+    //frames of one size at fixed positions in one file, after the header of a y4m stream if fpsNum
+    private abstract static class StreamFormat implements Format {
+        private final RandomAccessFile mFile;
+        private final FileChannel mChannel;
+        private final int mFpsNum;
+        private final int mFpsDen;
+        private int mHeaderSize = -1;           // guarded by this, -1 before the first frame
+
+        StreamFormat(File file, int fpsNum, int fpsDen) throws IOException {
+            mFile = new RandomAccessFile(file, "rw");
+            mFile.setLength(0);
+            mChannel = mFile.getChannel();
+            mFpsNum = fpsNum;
+            mFpsDen = fpsDen;
+        }
+
+        abstract int frameSize(int width, int height);
+
+        //the bytes of the frame, from the position to the limit
+        abstract ByteBuffer encode(ByteBuffer rgba, int width, int height);
+
+        @Override
+        public void write(ByteBuffer rgba, int width, int height, int index, long ptsUs) throws IOException {
+            long position = Header(width, height) + (long) index * frameSize(width, height);
+            WriteFully(mChannel, encode(rgba, width, height), position);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mFile.close();
+        }
+
+        private synchronized int Header(int width, int height) throws IOException {
+            if (mHeaderSize < 0) {
+                if (mFpsNum == 0) {
+                    mHeaderSize = 0;
+                } else {
+                    byte[] header = String.format(Locale.US, "YUV4MPEG2 W%d H%d F%d:%d Ip A1:1 C420jpeg\n",
+                            width, height, mFpsNum, mFpsDen).getBytes(US_ASCII);
+                    WriteFully(mChannel, ByteBuffer.wrap(header), 0);
+                    mHeaderSize = header.length;
+                }
+            }
+            return mHeaderSize;
+        }
+    }
+
+    //the channel may write less than asked at once
+    private static void WriteFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    //full range BT.601, the chroma averaged over 2x2 pixels
+    static void RgbaToI420(ByteBuffer rgba, int width, int height, ByteBuffer out) {
+        int base = rgba.position();
+        int y = out.position();
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        int u = y + width * height;
+        int v = u + chromaWidth * chromaHeight;
+        for (int row = 0; row < height; row++) {
+            int in = base + row * width * 4;
+            for (int col = 0; col < width; col++, in += 4) {
+                int r = rgba.get(in) & 0xff;
+                int g = rgba.get(in + 1) & 0xff;
+                int b = rgba.get(in + 2) & 0xff;
+                out.put(y++, (byte) ((77 * r + 150 * g + 29 * b + 128) >> 8));
+            }
+        }
+        for (int row = 0; row < chromaHeight; row++) {
+            int top = row * 2;
+            int bottom = Math.min(top + 1, height - 1);
+            for (int col = 0; col < chromaWidth; col++) {
+                int left = col * 2;
+                int right = Math.min(left + 1, width - 1);
+                int r = 0;
+                int g = 0;
+                int b = 0;
+                for (int i = 0; i < 4; i++) {
+                    int in = base + (((i < 2 ? top : bottom) * width) + ((i & 1) == 0 ? left : right)) * 4;
+                    r += rgba.get(in) & 0xff;
+                    g += rgba.get(in + 1) & 0xff;
+                    b += rgba.get(in + 2) & 0xff;
+                }
+                out.put(u++, (byte) Clamp(((-43 * r - 85 * g + 128 * b + 512) >> 10) + 128));
+                out.put(v++, (byte) Clamp(((128 * r - 107 * g - 21 * b + 512) >> 10) + 128));
+            }
+        }
+        out.position(v);
+    }
+
+    private static int Clamp(int value) {
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
+}
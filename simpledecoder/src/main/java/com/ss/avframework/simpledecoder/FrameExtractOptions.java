@@ -0,0 +1,56 @@
+package com.ss.avframework.simpledecoder;
+
+/**
+ * How {@link Mp4Decoder#extractFrames} picks and scales the frames.  Immutable.
+ * <p>
+ * The sync modes decode the key frame a time maps to and nothing else, which is what makes
+ * pulling a strip of thumbnails fast.  {@link Mp4Decoder.SeekMode#EXACT} decodes on from the
+ * key frame before the time to the frame at it, up to a key frame interval per time.
+ */
+public final class FrameExtractOptions {
+    //the key frame at or before every time, at the size of the video
+    public static final FrameExtractOptions DEFAULT = new FrameExtractOptions(Mp4Decoder.SeekMode.PREVIOUS_SYNC, 0, 0,
+            Mp4Decoder.DEMUXER_MEDIA_EXTRACTOR);
+
+    public final Mp4Decoder.SeekMode mode;
+    //the size of the frames delivered. 0 for both is the size of the video, 0 for one keeps its aspect ratio
+    public final int width;
+    public final int height;
+    //Mp4Decoder.DEMUXER_MEDIA_EXTRACTOR or DEMUXER_JAVA_MP4
+    public final int demuxerType;
+
+    /**
+     * @throws IllegalArgumentException if mode is null or a size is negative
+     */
+    public FrameExtractOptions(Mp4Decoder.SeekMode mode, int width, int height, int demuxerType) {
+        if (mode == null) {
+            throw new IllegalArgumentException("mode is null");
+        }
+        if (width < 0 || height < 0) {
+            throw new IllegalArgumentException("size " + width + "x" + height);
+        }
+        this.mode = mode;
+        this.width = width;
+        this.height = height;
+        this.demuxerType = demuxerType;
+    }
+
+    //the size of the frames of a videoWidth x videoHeight video
+    int[] frameSize(int videoWidth, int videoHeight) {
+        if (width == 0 && height == 0) {
+            return new int[]{videoWidth, videoHeight};
+        }
+        if (width == 0) {
+            return new int[]{Math.max(1, (int) ((long) videoWidth * height / videoHeight)), height};
+        }
+        if (height == 0) {
+            return new int[]{width, Math.max(1, (int) ((long) videoHeight * width / videoWidth))};
+        }
+        return new int[]{width, height};
+    }
+
+    @Override
+    public String toString() {
+        return "FrameExtractOptions{" + mode + ", " + width + "x" + height + ", demuxer " + demuxerType + "}";
+    }
+}
@@ -0,0 +1,260 @@
+package com.ss.avframework.simpledecoder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Pulls the video frames at given times out of a file without playing it, see
+ * {@link Mp4Decoder#extractFrames}.  Kept apart from the platform so it can be tested on a
+ * plain JVM with {@link FakeDecoderBackend}.
+ * <p>
+ * Every requested time is first mapped to the sync sample it decodes from.  In the sync
+ * modes the frame delivered is that sync sample, so only the sync samples are decoded, one
+ * per distinct sync sample however many times map to it, back to back without flushing the
+ * codec in between.  In {@link Mp4Decoder.SeekMode#EXACT} mode the samples from the sync
+ * sample up to the first frame at or after the time are decoded, and the codec is flushed
+ * before moving on to the next sync sample.  The times are handled in file order whatever
+ * order they are requested in, and a frame is delivered as soon as it is decoded.
+ * <p>
+ * Runs on the calling thread with the codec in synchronous mode.
+ */
+final class FrameExtractor {
+    private static final long TIMEOUT_US = 10000;
+    private static final int MAX_DECODE_AHEAD = 8;      // samples queued to the codec before waiting for a frame
+
+    /**
+     * Where the frames go.
+     */
+    interface Output {
+        DecoderBackend createDecoder() throws Exception;
+
+        //renders the output buffer at index and reads its pixels back, valid until the next
+        //call. Releases the buffer to the codec
+        ByteBuffer read(DecoderBackend decoder, int index, DecoderBackend.BufferInfo info) throws Exception;
+
+        int width();
+
+        int height();
+
+        void release(DecoderBackend decoder);
+    }
+
+    /**
+     * Called on the extracting thread as every frame is decoded.
+     */
+    interface Listener {
+        //the frame at ptsUs for the request at index, which asked for requestedUs. The pixels are
+        //only valid during the call
+        void onFrame(int index, long requestedUs, long ptsUs, ByteBuffer pixels, int width, int height);
+    }
+
+    private static final class Request {
+        final int index;
+        final long timeUs;
+        long syncUs;            // of the sync sample it decodes from
+        long targetUs;          // the frame delivered is the first at or after it
+
+        Request(int index, long timeUs) {
+            this.index = index;
+            this.timeUs = timeUs;
+        }
+    }
+
+    private final MediaSource mSource;
+    private final int mTrack;
+    private final Mp4Decoder.SeekMode mMode;
+    private final DecoderBackend.BufferInfo mInfo = new DecoderBackend.BufferInfo();
+    //what the codec did, for the tests and the logs
+    private int mSamplesDecoded;
+    private int mFlushes;
+    private int mFramesDelivered;
+
+    /**
+     * @param source with only the video track selected
+     */
+    FrameExtractor(MediaSource source, int track, Mp4Decoder.SeekMode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("mode is null");
+        }
+        mSource = source;
+        mTrack = track;
+        mMode = mode;
+    }
+
+    int samplesDecoded() {
+        return mSamplesDecoded;
+    }
+
+    int flushes() {
+        return mFlushes;
+    }
+
+    /**
+     * Extracts the frames at timestampsUs, delivering each to the listener as it is decoded.
+     * A time past the last frame gets no frame in exact mode.
+     *
+     * @return how many frames were delivered
+     */
+    int extract(long[] timestampsUs, Output output, Listener listener) throws Exception {
+        Request[] requests = Plan(timestampsUs);
+        DecoderBackend decoder = output.createDecoder();
+        try {
+            return mMode == Mp4Decoder.SeekMode.EXACT
+                    ? DecodeExact(requests, decoder, output, listener)
+                    : DecodeSyncSamples(requests, decoder, output, listener);
+        } finally {
+            output.release(decoder);
+        }
+    }
+
+    //the requests in the order they are decoded in, with their sync samples
+    private Request[] Plan(long[] timestampsUs) {
+        int seekMode = mMode == Mp4Decoder.SeekMode.NEXT_SYNC ? Mp4Demuxer.SEEK_TO_NEXT_SYNC
+                : mMode == Mp4Decoder.SeekMode.CLOSEST_SYNC ? Mp4Demuxer.SEEK_TO_CLOSEST_SYNC
+                : Mp4Demuxer.SEEK_TO_PREVIOUS_SYNC;
+        ArrayList<Request> requests = new ArrayList<Request>(timestampsUs.length);
+        for (int i = 0; i < timestampsUs.length; i++) {
+            Request request = new Request(i, timestampsUs[i]);
+            mSource.seekTo(request.timeUs, seekMode);
+            if (mSource.getSampleTrackIndex() != mTrack) { //no sync sample there, e.g. the next one past the last
+                continue;
+            }
+            request.syncUs = mSource.getSampleTime();
+            //a demuxer seeking by decode time may land on a sync sample shown after the time, the frame at
+            //the time then decodes from one before, further back than the reordering delay
+            long backUs = request.syncUs - request.timeUs;
+            while (seekMode == Mp4Demuxer.SEEK_TO_PREVIOUS_SYNC && request.syncUs > request.timeUs && request.timeUs - backUs >= 0) {
+                mSource.seekTo(request.timeUs - backUs, seekMode);
+                if (mSource.getSampleTrackIndex() == mTrack && mSource.getSampleTime() < request.syncUs) {
+                    request.syncUs = mSource.getSampleTime();
+                }
+                backUs *= 2;
+            }
+            request.targetUs = mMode == Mp4Decoder.SeekMode.EXACT ? Math.max(request.timeUs, request.syncUs) : request.syncUs;
+            requests.add(request);
+        }
+        Request[] sorted = requests.toArray(new Request[requests.size()]);
+        Arrays.sort(sorted, new Comparator<Request>() {
+            @Override
+            public int compare(Request a, Request b) {
+                if (a.syncUs != b.syncUs) {
+                    return a.syncUs < b.syncUs ? -1 : 1;
+                }
+                return a.targetUs < b.targetUs ? -1 : a.targetUs > b.targetUs ? 1 : 0;
+            }
+        });
+        return sorted;
+    }
+
+    //queues every distinct sync sample, then the end of stream, and delivers each as it comes out
+    private int DecodeSyncSamples(Request[] requests, DecoderBackend decoder, Output output, Listener listener) throws Exception {
+        int queued = 0;         // requests whose sync sample is queued
+        int done = 0;           // requests whose frame was delivered, or that have none
+        boolean endQueued = false;
+        while (done < requests.length) {
+            if (!endQueued && queued - done < MAX_DECODE_AHEAD) {
+                int index = decoder.dequeueInputBuffer(queued < requests.length ? 0 : TIMEOUT_US);
+                if (index >= 0) {
+                    if (queued < requests.length) {
+                        long syncUs = requests[queued].syncUs;
+                        mSource.seekTo(syncUs, Mp4Demuxer.SEEK_TO_PREVIOUS_SYNC);
+                        Queue(decoder, index);
+                        while (queued < requests.length && requests[queued].syncUs == syncUs) {
+                            queued++;
+                        }
+                    } else {
+                        decoder.queueInputBuffer(index, 0, 0, 0, DecoderBackend.BUFFER_FLAG_END_OF_STREAM);
+                        endQueued = true;
+                    }
+                    continue;
+                }
+            }
+            int index = decoder.dequeueOutputBuffer(mInfo, queued > done ? TIMEOUT_US : 0);
+            if (index < 0) {
+                continue;
+            }
+            if ((mInfo.flags & DecoderBackend.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                decoder.releaseOutputBuffer(index, false);
+                break;
+            }
+            done = Deliver(requests, done, decoder, index, output, listener);
+        }
+        return mFramesDelivered;
+    }
+
+    //decodes from each sync sample up to the last frame wanted from it, flushing in between
+    private int DecodeExact(Request[] requests, DecoderBackend decoder, Output output, Listener listener) throws Exception {
+        int done = 0;           // requests whose frame was delivered, or that have none
+        while (done < requests.length) {
+            long syncUs = requests[done].syncUs;
+            if (mSamplesDecoded > 0) {
+                decoder.flush();
+                decoder.start();
+                mFlushes++;
+            }
+            mSource.seekTo(syncUs, Mp4Demuxer.SEEK_TO_PREVIOUS_SYNC);
+            boolean endQueued = false;
+            while (done < requests.length && requests[done].syncUs == syncUs) {
+                if (!endQueued) {
+                    int index = decoder.dequeueInputBuffer(0);
+                    if (index >= 0) {
+                        if (mSource.getSampleTrackIndex() != mTrack) {
+                            decoder.queueInputBuffer(index, 0, 0, 0, DecoderBackend.BUFFER_FLAG_END_OF_STREAM);
+                            endQueued = true;
+                        } else {
+                            Queue(decoder, index);
+                        }
+                        continue;
+                    }
+                }
+                int index = decoder.dequeueOutputBuffer(mInfo, TIMEOUT_US);
+                if (index < 0) {
+                    continue;
+                }
+                if ((mInfo.flags & DecoderBackend.BUFFER_FLAG_END_OF_STREAM) != 0) { //the rest is past the last frame
+                    decoder.releaseOutputBuffer(index, false);
+                    while (done < requests.length && requests[done].syncUs == syncUs) {
+                        done++;
+                    }
+                    break;
+                }
+                if (mInfo.presentationTimeUs < requests[done].targetUs) { //only decoded to get to the target
+                    decoder.releaseOutputBuffer(index, false);
+                    continue;
+                }
+                done = Deliver(requests, done, decoder, index, output, listener);
+            }
+        }
+        return mFramesDelivered;
+    }
+
+    //reads the sample at the source's position straight into the input buffer, and moves on
+    private void Queue(DecoderBackend decoder, int index) {
+        int size = mSource.readSampleData(decoder.getInputBuffer(index), 0);
+        decoder.queueInputBuffer(index, 0, size, mSource.getSampleTime(), 0);
+        mSamplesDecoded++;
+        mSource.advance();
+    }
+
+    //hands the frame in the output buffer to every request from done on that it is the frame of,
+    //returns how many requests are done then
+    private int Deliver(Request[] requests, int done, DecoderBackend decoder, int index,
+                        Output output, Listener listener) throws Exception {
+        long ptsUs = mInfo.presentationTimeUs;
+        if (done >= requests.length || ptsUs < requests[done].targetUs) { //not asked for, e.g. a reordered frame
+            decoder.releaseOutputBuffer(index, false);
+            return done;
+        }
+        ByteBuffer pixels = output.read(decoder, index, mInfo);
+        long syncUs = requests[done].syncUs;
+        while (done < requests.length && requests[done].syncUs == syncUs && requests[done].targetUs <= ptsUs) {
+            Request request = requests[done++];
+            mFramesDelivered++;
+            pixels.rewind();
+            listener.onFrame(request.index, request.timeUs, ptsUs, pixels, output.width(), output.height());
+        }
+        return done;
+    }
+}
@@ -0,0 +1,123 @@
+package com.ss.avframework.simpledecoder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoded video frames on their way from the core task of a {@link PlayerCore}, which takes
+ * them from the codec, to its render task, which presents them when they are due.
+ * <p>
+ * A {@link Frame} only describes a codec output buffer, the buffer itself stays with the
+ * codec until the render task releases it.  So the frames are a fixed set of
+ * {@code depth} entries going round: the core task {@link #acquire}s a free one for every
+ * buffer the codec outputs and {@link #put}s it, the render task {@link #take}s it and, once the
+ * buffer is rendered or dropped, {@link #release}s it.  That bounds how far decoding runs
+ * ahead of rendering to {@code depth} frames, whatever the render task is held up by.
+ * <p>
+ * One producer and one consumer at a time, both directions are {@link SpscQueue}s.
+ */
+final class FrameQueue {
+
+    static final class Frame {
+        int index;          // of the codec output buffer
+        long ptsUs;
+        int size;
+        int flags;
+        DecoderBackend.OutputFormat format;     // the codec's when the buffer was dequeued
+        int generation;     // SeekController generation when the buffer was dequeued
+        long decodedNs;     // when it was dequeued
+
+        void set(int index, DecoderBackend.BufferInfo info, DecoderBackend.OutputFormat format, int generation, long decodedNs) {
+            this.index = index;
+            this.ptsUs = info.presentationTimeUs;
+            this.size = info.size;
+            this.flags = info.flags;
+            this.format = format;
+            this.generation = generation;
+            this.decodedNs = decodedNs;
+        }
+    }
+
+    private final int mDepth;
+    private final SpscQueue<Frame> mReady;
+    private final SpscQueue<Frame> mFree;
+
+    //depth: frames dequeued from the codec and not released yet, at most
+    FrameQueue(int depth) {
+        mDepth = depth;
+        mReady = new SpscQueue<Frame>(depth);
+        mFree = new SpscQueue<Frame>(depth);
+        for (int i = 0; i < depth; i++) {
+            mFree.offer(new Frame());
+        }
+    }
+
+    int depth() {
+        return mDepth;
+    }
+
+    //frames waiting to be rendered
+    int size() {
+        return mReady.size();
+    }
+
+    //frames holding a codec output buffer, waiting or being rendered. Approximate from other threads
+    int inFlight() {
+        return mDepth - mFree.size();
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////
+    // core task
+
+    /**
+     * Waits up to {@code timeout} until fewer than {@code depth} frames are in flight.
+     *
+     * @return a free frame to fill, or null on timeout or cancellation
+     */
+    Frame acquire(long timeout, TimeUnit unit) throws InterruptedException {
+        return mFree.poll(timeout, unit);
+    }
+
+    /**
+     * Hands an acquired frame to the render task.  Never waits, there is room for every frame.
+     *
+     * @return false if the queue was cancelled
+     */
+    boolean put(Frame frame) {
+        return mReady.offer(frame);
+    }
+
+    //no frame follows the ones put so far
+    void endOfStream() {
+        mReady.endOfStream();
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////
+    // render task
+
+    /**
+     * Waits up to {@code timeout} for a frame.
+     *
+     * @return the oldest frame, or null on timeout, end of stream or cancellation
+     */
+    Frame take(long timeout, TimeUnit unit) throws InterruptedException {
+        return mReady.poll(timeout, unit);
+    }
+
+    //true once the end of stream was put and every frame before it taken
+    boolean isEndOfStream() {
+        return mReady.isEndOfStream();
+    }
+
+    //the codec has the buffer of a taken frame back, so the core task may hand over another
+    void release(Frame frame) {
+        mFree.offer(frame);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////
+
+    //wakes up both sides for good, e.g. when decoding is stopped
+    void cancel() {
+        mReady.cancel();
+        mFree.cancel();
+    }
+}
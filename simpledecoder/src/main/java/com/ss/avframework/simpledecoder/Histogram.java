@@ -0,0 +1,79 @@
+package com.ss.avframework.simpledecoder;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A log-linear histogram of non-negative values, HdrHistogram style: values below 64 are
+ * counted exactly, larger ones in buckets 1/32 of their power of two wide, so every
+ * percentile is within about 3% of the true value.  Values above 2^40 count as 2^40.
+ * <p>
+ * {@link #record} doesn't allocate or lock, but there must only be one thread recording.
+ * Any thread may take a {@link #snapshot()} meanwhile, which may miss the values being
+ * recorded right then.
+ */
+final class Histogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;       // exact below this
+    private static final int HALF = SUB_BUCKETS / 2;
+    static final long MAX_VALUE = 1L << 40;
+    static final int BUCKET_COUNT = SUB_BUCKETS + (40 - SUB_BUCKET_BITS) * HALF + 1;  // the last one only holds MAX_VALUE
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMin = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong mMax = new AtomicLong();
+
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        } else if (value > MAX_VALUE) {
+            value = MAX_VALUE;
+        }
+        int index = bucketIndex(value);
+        //single writer: plain read-modify-write, lazySet only publishes it
+        mCounts.lazySet(index, mCounts.get(index) + 1);
+        mSum.lazySet(mSum.get() + value);
+        if (value < mMin.get()) {
+            mMin.lazySet(value);
+        }
+        if (value > mMax.get()) {
+            mMax.lazySet(value);
+        }
+        mCount.lazySet(mCount.get() + 1);
+    }
+
+    DecoderStats.Distribution snapshot() {
+        long count = mCount.get();
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mCounts.get(i);
+        }
+        return new DecoderStats.Distribution(count, count > 0 ? mMin.get() : 0, mMax.get(), mSum.get(), counts);
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);       // >= SUB_BUCKET_BITS
+        int shift = exponent - SUB_BUCKET_BITS + 1;                   // value >>> shift is in [HALF, SUB_BUCKETS)
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    //the smallest value counted in the bucket
+    static long bucketStart(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = (index - SUB_BUCKETS) / HALF + SUB_BUCKET_BITS;
+        int shift = exponent - SUB_BUCKET_BITS + 1;
+        return (long) ((index - SUB_BUCKETS) % HALF + HALF) << shift;
+    }
+
+    //the largest value counted in the bucket
+    static long bucketEnd(int index) {
+        return index + 1 < BUCKET_COUNT ? bucketStart(index + 1) - 1 : MAX_VALUE;
+    }
+}
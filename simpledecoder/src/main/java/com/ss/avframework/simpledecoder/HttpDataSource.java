@@ -0,0 +1,309 @@
+package com.ss.avframework.simpledecoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+
+/**
+ * A {@link DataSource} reading a URL by HTTP range requests, a block at a time, through a
+ * {@link BlockCache} on disk.  A thread of its own fetches the blocks after the one last
+ * read, {@code readAheadBlocks} of them, so playing in order rarely waits on the network;
+ * a read elsewhere, a seek, fetches its block right away and moves the read-ahead there.
+ * <p>
+ * So playback starts as soon as the {@code moov} box and the first GOP are in rather than
+ * once the whole file is, and a file played before plays from the cache without a request.
+ * The blocks are kept by URL, so what is behind a URL must not change.  A server ignoring
+ * the range is read from the start to the block.
+ */
+public final class HttpDataSource implements DataSource {
+    public static final int DEFAULT_BLOCK_SIZE = 256 << 10;
+    public static final int DEFAULT_READ_AHEAD_BLOCKS = 8;
+    private static final int TIMEOUT_MS = 15000;
+
+    private final URL mUrl;
+    private final String mKey;
+    private final BlockCache mCache;
+    private final int mBlockSize;
+    private final int mReadAheadBlocks;
+    private long mSize = UNKNOWN_SIZE;          // from the cache, else from the first response
+    //the blocks being fetched, by the reader or the read-ahead thread
+    private final HashSet<Long> mFetching = new HashSet<Long>();
+    private long mReadBlock;                    // the read-ahead fetches after it
+    private Thread mReadAheadThread;
+    private boolean mClosed;
+    private long mFetchedBytes;
+    private int mRequests;
+
+    /**
+     * @param cacheDir where the blocks are kept, one directory for every source
+     * @param maxCacheBytes what the blocks of every URL may take together
+     */
+    public HttpDataSource(URL url, File cacheDir, long maxCacheBytes) {
+        this(url, new BlockCache(cacheDir, DEFAULT_BLOCK_SIZE, maxCacheBytes), DEFAULT_READ_AHEAD_BLOCKS);
+    }
+
+    HttpDataSource(URL url, BlockCache cache, int readAheadBlocks) {
+        if (readAheadBlocks < 0) {
+            throw new IllegalArgumentException("read ahead " + readAheadBlocks + " blocks");
+        }
+        mUrl = url;
+        mKey = url.toString();
+        mCache = cache;
+        mBlockSize = cache.blockSize();
+        mReadAheadBlocks = readAheadBlocks;
+    }
+
+    @Override
+    public int readAt(long position, ByteBuffer buffer) throws IOException {
+        if (!buffer.hasRemaining()) {
+            return 0;
+        }
+        long size = size();
+        if (position >= size) {
+            return -1;
+        }
+        long index = position / mBlockSize;
+        int offset = (int) (position - index * mBlockSize);
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + (int) Math.min(buffer.remaining(), size - position));
+        try {
+            int read;
+            while ((read = mCache.read(mKey, index, offset, buffer)) < 0) {
+                Fetch(index);
+            }
+            synchronized (this) {
+                mReadBlock = (position + read) / mBlockSize;
+                notifyAll();
+            }
+            StartReadAhead();
+            return read;
+        } finally {
+            buffer.limit(limit);
+        }
+    }
+
+    @Override
+    public synchronized long size() throws IOException {
+        if (mSize == UNKNOWN_SIZE) {
+            mSize = mCache.length(mKey);
+        }
+        if (mSize == UNKNOWN_SIZE) {
+            //the smallest request that tells, the first byte
+            HttpURLConnection connection = Open(0, 0);
+            connection.disconnect();
+        }
+        return mSize;
+    }
+
+    @Override
+    public synchronized void readAhead(long position) {
+        mReadBlock = Math.max(0, position / mBlockSize - 1);
+        notifyAll();
+    }
+
+    @Override
+    public boolean isCached(long position, long size) {
+        for (long index = position / mBlockSize; index <= (position + size - 1) / mBlockSize; index++) {
+            if (!mCache.contains(mKey, index)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            mClosed = true;
+            thread = mReadAheadThread;
+            notifyAll();
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    //bytes fetched from the server, rather than read from the cache
+    public synchronized long getFetchedBytes() {
+        return mFetchedBytes;
+    }
+
+    public synchronized int getRequestCount() {
+        return mRequests;
+    }
+
+    //fetches the block into the cache unless it is, or waits for the thread fetching it
+    private void Fetch(long index) throws IOException {
+        synchronized (this) {
+            if (mClosed) {
+                throw new IOException("Closed: " + mUrl);
+            }
+            while (mFetching.contains(index)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted reading " + mUrl);
+                }
+            }
+            if (mCache.contains(mKey, index)) {
+                return;
+            }
+            mFetching.add(index);
+        }
+        try {
+            FetchBlock(index);
+        } finally {
+            synchronized (this) {
+                mFetching.remove(index);
+                notifyAll();
+            }
+        }
+    }
+
+    private void FetchBlock(long index) throws IOException {
+        long start = index * mBlockSize;
+        long end = Math.min(start + mBlockSize, size()) - 1;
+        HttpURLConnection connection = Open(start, end);
+        try {
+            InputStream in = connection.getInputStream();
+            if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) { //the whole file, skip to the block
+                long skipped = 0;
+                while (skipped < start) {
+                    long count = in.skip(start - skipped);
+                    if (count <= 0) {
+                        throw new IOException("Short response from " + mUrl);
+                    }
+                    skipped += count;
+                }
+            }
+            int length = (int) (end - start + 1);
+            byte[] block = new byte[length];
+            int read = 0;
+            while (read < length) {
+                int count = in.read(block, read, length - read);
+                if (count < 0) {
+                    throw new IOException("Short response from " + mUrl + ": " + read + " of " + length + " bytes at " + start);
+                }
+                read += count;
+            }
+            in.close();
+            mCache.write(mKey, index, block, length);
+            synchronized (this) {
+                mFetchedBytes += length;
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    //a request for the bytes from start to end, both included, which learns the size
+    private HttpURLConnection Open(long start, long end) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) mUrl.openConnection();
+        connection.setConnectTimeout(TIMEOUT_MS);
+        connection.setReadTimeout(TIMEOUT_MS);
+        connection.setRequestProperty("Range", "bytes=" + start + "-" + end);
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        int code = connection.getResponseCode();
+        long size;
+        if (code == HttpURLConnection.HTTP_PARTIAL) { //Content-Range: bytes start-end/size
+            String range = connection.getHeaderField("Content-Range");
+            int slash = range != null ? range.lastIndexOf('/') : -1;
+            size = slash >= 0 && !range.endsWith("*") ? Long.parseLong(range.substring(slash + 1).trim()) : UNKNOWN_SIZE;
+        } else if (code == HttpURLConnection.HTTP_OK) {
+            size = connection.getContentLength() >= 0 ? connection.getContentLength() : UNKNOWN_SIZE;
+        } else if (code == 416) { //Range Not Satisfiable, an empty file
+            size = 0;
+        } else {
+            connection.disconnect();
+            throw new IOException("HTTP " + code + " for " + mUrl);
+        }
+        if (size == UNKNOWN_SIZE) {
+            connection.disconnect();
+            throw new IOException("No length for " + mUrl);
+        }
+        boolean changed;
+        synchronized (this) {
+            changed = size != mSize;
+            mSize = size;
+            mRequests++;
+        }
+        if (changed) {
+            mCache.setLength(mKey, size);
+        }
+        return connection;
+    }
+
+    private synchronized void StartReadAhead() {
+        if (mReadAheadThread != null || mReadAheadBlocks == 0 || mClosed) {
+            return;
+        }
+        mReadAheadThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ReadAhead();
+            }
+        }, "HttpDataSource ReadAhead");
+        mReadAheadThread.setDaemon(true);
+        mReadAheadThread.start();
+    }
+
+    //the read-ahead thread: fetches the first block missing after the one last read, in order
+    private void ReadAhead() {
+        while (true) {
+            long index = -1;
+            synchronized (this) {
+                while (!mClosed && (index = NextMissing()) < 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mClosed) {
+                    return;
+                }
+                mFetching.add(index);
+            }
+            try {
+                FetchBlock(index);
+            } catch (IOException e) {
+                //the reader fetches it again when it gets there, and fails then
+                synchronized (this) {
+                    mFetching.remove(index);
+                    notifyAll();
+                    try {
+                        wait(1000);
+                    } catch (InterruptedException e1) {
+                        return;
+                    }
+                }
+                continue;
+            }
+            synchronized (this) {
+                mFetching.remove(index);
+                notifyAll();
+            }
+        }
+    }
+
+    //the first block within the read-ahead not cached or being fetched, -1 if there is none
+    private long NextMissing() {
+        long blocks = (mSize + mBlockSize - 1) / mBlockSize;
+        for (long index = mReadBlock + 1; index <= mReadBlock + mReadAheadBlocks && index < blocks; index++) {
+            if (!mFetching.contains(index) && !mCache.contains(mKey, index)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,105 @@
+package com.ss.avframework.simpledecoder;
+
+/**
+ * Applies a {@link LatenessPolicy} to the video of one {@link Mp4Decoder}, kept apart from
+ * the codecs so it can be tested on a plain JVM.
+ * <p>
+ * The render task tells it how late each frame is with {@link #onFrame} and renders or
+ * drops the frame as it answers; that is also where catching up starts and ends, and where
+ * a skip to the next key frame is asked for.  The core task asks {@link #shouldSkip} for
+ * every packet and leaves out the ones before the key frame.  Frames decoded before the key
+ * frame the last skip resumed at don't ask for another skip, they were queued before it.
+ * <p>
+ * Thread-safe, the core task resets it on a seek.
+ */
+final class LatenessController {
+    static final int RENDER = 0;
+    static final int DROP = 1;
+
+    static final int MAX_CONSECUTIVE_DROPS = 8;    //then one frame is rendered however late
+
+    private LatenessPolicy mPolicy;
+    private boolean mCatchingUp = false;
+    private int mConsecutiveDrops = 0;
+    private volatile boolean mSkipRequested = false;
+    private long mResumePtsUs = Long.MIN_VALUE;
+    private int mCatchUps = 0;
+
+    LatenessController(LatenessPolicy policy) {
+        mPolicy = policy;
+    }
+
+    synchronized void setPolicy(LatenessPolicy policy) {
+        mPolicy = policy;
+    }
+
+    synchronized LatenessPolicy getPolicy() {
+        return mPolicy;
+    }
+
+    //forgets about the frames so far, e.g. on a seek
+    synchronized void reset() {
+        mCatchingUp = false;
+        mConsecutiveDrops = 0;
+        mSkipRequested = false;
+        mResumePtsUs = Long.MIN_VALUE;
+    }
+
+    /**
+     * Render task: the frame at {@code ptsUs} is {@code latenessUs} late, negative if early.
+     *
+     * @return RENDER or DROP
+     */
+    synchronized int onFrame(long ptsUs, long latenessUs) {
+        LatenessPolicy policy = mPolicy;
+        if (latenessUs > policy.skipToKeyFrameLateUs && ptsUs >= mResumePtsUs) {
+            mSkipRequested = true;
+        }
+        if (mCatchingUp) {
+            mCatchingUp = latenessUs >= policy.catchUpExitUs;
+        } else if (latenessUs > policy.catchUpEnterUs) {
+            mCatchingUp = true;
+            mCatchUps++;
+        }
+        boolean drop = mCatchingUp || latenessUs > policy.dropLateUs;
+        if (drop && mConsecutiveDrops >= MAX_CONSECUTIVE_DROPS) {
+            drop = false; //keep the picture moving
+        }
+        mConsecutiveDrops = drop ? mConsecutiveDrops + 1 : 0;
+        return drop ? DROP : RENDER;
+    }
+
+    /**
+     * Core task: true if the packet at {@code ptsUs} is to be left out rather than decoded,
+     * as a skip to the next key frame is pending.  A key frame ends the skip.
+     */
+    boolean shouldSkip(boolean keyFrame, long ptsUs) {
+        if (!mSkipRequested) {
+            return false;
+        }
+        synchronized (this) {
+            if (!mSkipRequested) {
+                return false;
+            }
+            if (!keyFrame) {
+                return true;
+            }
+            mSkipRequested = false;
+            mResumePtsUs = ptsUs;
+            return false;
+        }
+    }
+
+    synchronized boolean isCatchingUp() {
+        return mCatchingUp;
+    }
+
+    boolean isSkipping() {
+        return mSkipRequested;
+    }
+
+    //times catching up started
+    synchronized int getCatchUpCount() {
+        return mCatchUps;
+    }
+}
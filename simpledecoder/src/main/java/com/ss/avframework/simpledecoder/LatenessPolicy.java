@@ -0,0 +1,49 @@
+package com.ss.avframework.simpledecoder;
+
+/**
+ * What the video output does with frames that come out of the decoder after they were due,
+ * see {@link Mp4Decoder#setLatenessPolicy(LatenessPolicy)}.  Immutable.
+ * <p>
+ * A frame later than {@link #dropLateUs} is dropped rather than rendered.  Once a frame is
+ * later than {@link #catchUpEnterUs} the video is catching up: it drops every frame later
+ * than {@link #catchUpExitUs}, only showing one now and then so the picture doesn't freeze,
+ * until a frame is back within that.  The gap between the two keeps it from going in and
+ * out of catching up on every frame.  A frame later than {@link #skipToKeyFrameLateUs}
+ * makes the video stop decoding until the next key frame, as everything decoded before it
+ * would be dropped anyway.
+ */
+public final class LatenessPolicy {
+    //drops frames more than 40ms late, catches up from 100ms to 20ms and skips to the next key frame from 500ms
+    public static final LatenessPolicy DEFAULT = new LatenessPolicy(40000, 500000, 100000, 20000);
+    //renders every frame however late, so the video stays behind after a stall
+    public static final LatenessPolicy NEVER_DROP = new LatenessPolicy(Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+
+    public final long dropLateUs;
+    public final long skipToKeyFrameLateUs;
+    public final long catchUpEnterUs;
+    public final long catchUpExitUs;
+
+    /**
+     * All in microseconds of lateness, Long.MAX_VALUE for never.
+     *
+     * @throws IllegalArgumentException if a threshold is negative or catchUpExitUs is above catchUpEnterUs
+     */
+    public LatenessPolicy(long dropLateUs, long skipToKeyFrameLateUs, long catchUpEnterUs, long catchUpExitUs) {
+        if (dropLateUs < 0 || skipToKeyFrameLateUs < 0 || catchUpEnterUs < 0 || catchUpExitUs < 0) {
+            throw new IllegalArgumentException("negative threshold");
+        }
+        if (catchUpExitUs > catchUpEnterUs) {
+            throw new IllegalArgumentException("catch up exit " + catchUpExitUs + "us above enter " + catchUpEnterUs + "us");
+        }
+        this.dropLateUs = dropLateUs;
+        this.skipToKeyFrameLateUs = skipToKeyFrameLateUs;
+        this.catchUpEnterUs = catchUpEnterUs;
+        this.catchUpExitUs = catchUpExitUs;
+    }
+
+    @Override
+    public String toString() {
+        return "LatenessPolicy{drop " + dropLateUs + "us, skip " + skipToKeyFrameLateUs + "us, catch up "
+                + catchUpEnterUs + "us-" + catchUpExitUs + "us}";
+    }
+}
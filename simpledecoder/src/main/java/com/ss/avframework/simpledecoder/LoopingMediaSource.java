@@ -0,0 +1,162 @@
+package com.ss.avframework.simpledecoder;
+
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Plays another {@link MediaSource} over and over without it ever ending: at the end it
+ * goes back to the start and carries on, with the sample times of every pass offset by the
+ * loop period so they keep increasing.  The decoders downstream just see one long stream,
+ * so nothing has to be flushed or recreated at the loop point.
+ * <p>
+ * The loop period is the duration of the longest track, so every track keeps its place
+ * relative to the others on every pass; a shorter track has a gap at the loop point as
+ * long as it is shorter.  If the duration isn't known it is taken from the samples of
+ * the first pass.
+ */
+final class LoopingMediaSource implements MediaSource, PlayerCore.MappedSource {
+    private final MediaSource mSource;
+    private final PlayerCore.MappedSource mMappedSource;    // mSource if it keeps its samples, else null
+    private final long mDurationUs;
+    private long mOffsetUs;
+    private int mLoopCount;
+    //what the samples of the first pass tell about the duration, for when it isn't known
+    private final long[] mLastTimeUs;
+    private final long[] mFrameDurationUs;
+    private long mEndUs;
+
+    /**
+     * @param durationUs the loop period, 0 if not known
+     */
+    LoopingMediaSource(MediaSource source, long durationUs) {
+        mSource = source;
+        mMappedSource = source instanceof PlayerCore.MappedSource ? (PlayerCore.MappedSource) source : null;
+        mDurationUs = durationUs;
+        mLastTimeUs = new long[source.getTrackCount()];
+        mFrameDurationUs = new long[mLastTimeUs.length];
+        Arrays.fill(mLastTimeUs, Long.MIN_VALUE);
+    }
+
+    /**
+     * @return the longest {@link MediaFormat#KEY_DURATION} of the selected tracks, 0 if
+     * none of them has one
+     */
+    static long getDurationUs(MediaFormat... formats) {
+        long durationUs = 0;
+        for (MediaFormat format : formats) {
+            if (format != null && format.containsKey(MediaFormat.KEY_DURATION)) {
+                durationUs = Math.max(durationUs, format.getLong(MediaFormat.KEY_DURATION));
+            }
+        }
+        return durationUs;
+    }
+
+    //how many times playback went back to the start
+    int getLoopCount() {
+        return mLoopCount;
+    }
+
+    long getLoopPeriodUs() {
+        return mDurationUs > 0 ? mDurationUs : mEndUs;
+    }
+
+    @Override
+    public int getTrackCount() {
+        return mSource.getTrackCount();
+    }
+
+    @Override
+    public MediaFormat getTrackFormat(int index) {
+        return mSource.getTrackFormat(index);
+    }
+
+    @Override
+    public void selectTrack(int index) {
+        mSource.selectTrack(index);
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        int size = mSource.readSampleData(buffer, offset);
+        if (size < 0 && size != SAMPLE_PENDING && getLoopPeriodUs() > 0) { //the end, go round again
+            mSource.seekTo(0, Mp4Demuxer.SEEK_TO_PREVIOUS_SYNC);
+            mOffsetUs += getLoopPeriodUs();
+            mLoopCount++;
+            size = mSource.readSampleData(buffer, offset);
+        }
+        return size;
+    }
+
+    //a sample of an earlier pass is where it was. Kept only if the source keeps its samples
+    @Override
+    public long getSampleOffset() {
+        return mMappedSource != null ? mMappedSource.getSampleOffset() : -1;
+    }
+
+    @Override
+    public int getSampleSize() {
+        return mMappedSource != null ? mMappedSource.getSampleSize() : -1;
+    }
+
+    @Override
+    public int readSampleAt(int trackIndex, long sampleOffset, int sampleSize, ByteBuffer buffer, int offset) {
+        if (mMappedSource == null) {
+            throw new IllegalArgumentException("sampleOffset " + sampleOffset + " of a source that keeps no samples");
+        }
+        return mMappedSource.readSampleAt(trackIndex, sampleOffset, sampleSize, buffer, offset);
+    }
+
+    @Override
+    public int getSampleTrackIndex() {
+        return mSource.getSampleTrackIndex();
+    }
+
+    @Override
+    public long getSampleTime() {
+        long timeUs = mSource.getSampleTime();
+        return timeUs < 0 ? timeUs : timeUs + mOffsetUs;
+    }
+
+    @Override
+    public int getSampleFlags() {
+        return mSource.getSampleFlags();
+    }
+
+    @Override
+    public boolean advance() {
+        if (mDurationUs <= 0 && mLoopCount == 0) {
+            MeasureSample(mSource.getSampleTrackIndex(), mSource.getSampleTime());
+        }
+        //there is always a next sample, unless the source is empty
+        return mSource.advance() || getLoopPeriodUs() > 0;
+    }
+
+    /**
+     * Seeks within the file, {@code timeUs} doesn't include the offset of the current pass.
+     * Sample times start over from the file's own times.
+     */
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        mSource.seekTo(timeUs, mode);
+        mOffsetUs = 0;
+    }
+
+    @Override
+    public void release() {
+        mSource.release();
+    }
+
+    //a sample lasts until the next one of its track, and the last one as long as the one before
+    private void MeasureSample(int track, long timeUs) {
+        if (track < 0 || track >= mLastTimeUs.length || timeUs < 0) {
+            return;
+        }
+        if (mLastTimeUs[track] != Long.MIN_VALUE && timeUs > mLastTimeUs[track]) {
+            mFrameDurationUs[track] = timeUs - mLastTimeUs[track];
+        }
+        mLastTimeUs[track] = timeUs;
+        mEndUs = Math.max(mEndUs, timeUs + mFrameDurationUs[track]);
+    }
+}
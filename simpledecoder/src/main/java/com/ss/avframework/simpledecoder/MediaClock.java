@@ -0,0 +1,161 @@
+package com.ss.avframework.simpledecoder;
+
+/**
+ * The playback clock: which media time is playing now, and so how long until a frame is
+ * due.  It is anchored to a monotonic {@link TimeSource}, System.nanoTime() unless replaced
+ * for tests, so it doesn't jump when the wall clock is adjusted.
+ * <p>
+ * The clock runs from an anchor, media time {@code ptsUs} playing at {@code nanoTime}, at
+ * the playback rate.  Pausing freezes it, changing the rate rebases the anchor to the current
+ * position so time already played isn't rescaled.  The master track (the audio if there is
+ * one) anchors it and keeps it in step through {@link #sync(long)}; the other tracks only
+ * ask it when their frames are due.
+ * <p>
+ * Thread-safe, the core and render tasks and the app pausing share one.
+ */
+final class MediaClock {
+
+    interface TimeSource {
+        long nanoTime();
+    }
+
+    static final TimeSource SYSTEM_TIME = new TimeSource() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    static final long DRIFT_TOLERANCE_US = 2000;   //the master this close is in sync
+    static final long SNAP_THRESHOLD_US = 200000;  //this far off it re-anchors, closer it slews
+    static final int SLEW_DIVISOR = 8;             //each sync() corrects 1/8 of the drift
+
+    private final TimeSource mTimeSource;
+    private boolean mAnchored = false;
+    private long mAnchorPtsUs;
+    private long mAnchorNs;
+    private boolean mPaused = false;
+    private double mRate = 1.0;
+
+    MediaClock() {
+        this(SYSTEM_TIME);
+    }
+
+    MediaClock(TimeSource timeSource) {
+        mTimeSource = timeSource;
+    }
+
+    synchronized boolean isAnchored() {
+        return mAnchored;
+    }
+
+    //ptsUs is playing now
+    synchronized void anchor(long ptsUs) {
+        mAnchorPtsUs = ptsUs;
+        mAnchorNs = mTimeSource.nanoTime();
+        mAnchored = true;
+    }
+
+    //anchors at ptsUs unless the clock already runs, true if it did
+    synchronized boolean tryAnchor(long ptsUs) {
+        if (mAnchored) {
+            return false;
+        }
+        anchor(ptsUs);
+        return true;
+    }
+
+    //stops the clock until it is anchored again, e.g. on a seek. Keeps pause and rate
+    synchronized void reset() {
+        mAnchored = false;
+    }
+
+    //the media time playing now, frozen while paused. Long.MIN_VALUE until anchored
+    synchronized long positionUs() {
+        return mAnchored ? PositionAt(mTimeSource.nanoTime()) : Long.MIN_VALUE;
+    }
+
+    synchronized void pause() {
+        if (!mPaused) {
+            Rebase(mTimeSource.nanoTime());
+            mPaused = true;
+        }
+    }
+
+    synchronized void resume() {
+        if (mPaused) {
+            mAnchorNs = mTimeSource.nanoTime();
+            mPaused = false;
+        }
+    }
+
+    synchronized boolean isPaused() {
+        return mPaused;
+    }
+
+    //rate: media seconds per real second, 1.0 is normal speed
+    synchronized void setRate(double rate) {
+        if (!(rate > 0)) {
+            throw new IllegalArgumentException("rate must be positive: " + rate);
+        }
+        Rebase(mTimeSource.nanoTime());
+        mRate = rate;
+    }
+
+    synchronized double getRate() {
+        return mRate;
+    }
+
+    //real time until the frame at ptsUs is due, negative if it's late. Long.MAX_VALUE while
+    //not anchored, or paused before the frame
+    synchronized long timeUntilUs(long ptsUs) {
+        if (!mAnchored) {
+            return Long.MAX_VALUE;
+        }
+        long positionUs = PositionAt(mTimeSource.nanoTime());
+        if (mPaused && ptsUs > positionUs) {
+            return Long.MAX_VALUE;
+        }
+        return (long) ((ptsUs - positionUs) / mRate);
+    }
+
+    /**
+     * Drift correction: the master is playing {@code masterPtsUs} now.  Drift within the
+     * tolerance is left alone, larger drift is slewed out a fraction per call so the other
+     * tracks speed up or slow down rather than skip, and a stall or jump past the snap
+     * threshold re-anchors.  Anchors the clock if it doesn't run yet.
+     *
+     * @return the drift corrected, master minus clock
+     */
+    synchronized long sync(long masterPtsUs) {
+        if (!mAnchored) {
+            anchor(masterPtsUs);
+            return 0;
+        }
+        long nowNs = mTimeSource.nanoTime();
+        long driftUs = masterPtsUs - PositionAt(nowNs);
+        if (Math.abs(driftUs) >= SNAP_THRESHOLD_US) {
+            mAnchorPtsUs = masterPtsUs;
+            mAnchorNs = nowNs;
+        } else if (Math.abs(driftUs) > DRIFT_TOLERANCE_US) {
+            Rebase(nowNs);
+            mAnchorPtsUs += driftUs / SLEW_DIVISOR;
+        }
+        return driftUs;
+    }
+
+    private long PositionAt(long nowNs) {
+        if (mPaused) {
+            return mAnchorPtsUs;
+        }
+        return mAnchorPtsUs + (long) ((nowNs - mAnchorNs) / 1000.0 * mRate);
+    }
+
+    //moves the anchor to now, so what changes from here on doesn't apply to the time already played
+    private void Rebase(long nowNs) {
+        if (mAnchored && !mPaused) {
+            mAnchorPtsUs = PositionAt(nowNs);
+            mAnchorNs = nowNs;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package com.ss.avframework.simpledecoder;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link DecoderBackend} on the platform {@link MediaCodec}.
+ * <p>
+ * Asynchronous codecs call back on one looper thread shared by all of them, the main
+ * looper before Android M where the handler can't be chosen.  A flush can't take back
+ * the callbacks the codec already posted there, so they are ignored until the restart
+ * that {@link #start()} posts behind them has run.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+final class MediaCodecBackend implements DecoderBackend {
+
+    static final Factory FACTORY = new Factory() {
+        @Override
+        public DecoderBackend createVideoDecoder(MediaFormat format, Surface surface, Callback callback) throws Exception {
+            MediaCodec codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            MediaCodecBackend backend = new MediaCodecBackend(codec, true);
+            try {
+                backend.setCallback(callback);
+                codec.configure(format, surface, null, 0);
+                codec.setVideoScalingMode(MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT_WITH_CROPPING);
+                codec.start();
+            } catch (RuntimeException e) {
+                codec.release();
+                throw e;
+            }
+            return backend;
+        }
+
+        @Override
+        public DecoderBackend createAudioDecoder(MediaFormat format, Callback callback) throws Exception {
+            MediaCodec codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            MediaCodecBackend backend = new MediaCodecBackend(codec, false);
+            try {
+                backend.setCallback(callback);
+                codec.configure(format, null, null, 0);
+                codec.start();
+            } catch (RuntimeException e) {
+                codec.release();
+                throw e;
+            }
+            return backend;
+        }
+    };
+
+    private static Handler sCallbackHandler;
+
+    //where the asynchronous codecs call back
+    private static synchronized Handler CallbackHandler() {
+        if (sCallbackHandler == null) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                HandlerThread thread = new HandlerThread("MediaCodec Callbacks");
+                thread.start();
+                sCallbackHandler = new Handler(thread.getLooper());
+            } else {
+                sCallbackHandler = new Handler(Looper.getMainLooper());
+            }
+        }
+        return sCallbackHandler;
+    }
+
+    private final MediaCodec mCodec;
+    private final boolean mVideo;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private volatile OutputFormat mOutputFormat;
+    //asynchronous mode: held while calling back, and by a flush so it can't overlap a callback
+    private final Object mCallbackLock = new Object();
+    private Callback mCallback;
+    private Handler mHandler;
+    private int mPendingFlushes;        // callbacks are from before a flush until its restart ran
+    private boolean mStopped;
+    private final BufferInfo mCallbackInfo = new BufferInfo();
+
+    MediaCodecBackend(MediaCodec codec, boolean video) {
+        mCodec = codec;
+        mVideo = video;
+    }
+
+    //before configure(), as MediaCodec.setCallback(). null keeps the codec synchronous
+    @TargetApi(Build.VERSION_CODES.M)
+    private void setCallback(Callback callback) {
+        if (callback == null) {
+            return;
+        }
+        mCallback = callback;
+        mHandler = CallbackHandler();
+        MediaCodec.Callback codecCallback = new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                synchronized (mCallbackLock) {
+                    if (mPendingFlushes == 0) {
+                        mCallback.onInputBufferAvailable(MediaCodecBackend.this, index);
+                    }
+                }
+            }
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+                synchronized (mCallbackLock) {
+                    if (mPendingFlushes == 0) {
+                        mCallbackInfo.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+                        mCallback.onOutputBufferAvailable(MediaCodecBackend.this, index, mCallbackInfo);
+                    }
+                }
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                synchronized (mCallbackLock) {
+                    if (mPendingFlushes == 0) {
+                        OnFormatChanged();
+                        mCallback.onOutputFormatChanged(MediaCodecBackend.this, getOutputFormat());
+                    }
+                }
+            }
+
+            @Override
+            public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                synchronized (mCallbackLock) {
+                    mCallback.onError(MediaCodecBackend.this, e);
+                }
+            }
+        };
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            mCodec.setCallback(codecCallback, mHandler);
+        } else {
+            mCodec.setCallback(codecCallback);
+        }
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        return mCodec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return mCodec.getInputBuffer(index);
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(BufferInfo info, long timeoutUs) {
+        int index = mCodec.dequeueOutputBuffer(mInfo, timeoutUs);
+        info.set(mInfo.offset, mInfo.size, mInfo.presentationTimeUs, mInfo.flags);
+        if (index == INFO_OUTPUT_FORMAT_CHANGED) {
+            OnFormatChanged();
+        }
+        return index;
+    }
+
+    private void OnFormatChanged() {
+        mOutputFormat = null;
+        if (mVideo) { //keep the cropping when the size changes
+            mCodec.setVideoScalingMode(MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT_WITH_CROPPING);
+        }
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return mCodec.getOutputBuffer(index);
+    }
+
+    @Override
+    public OutputFormat getOutputFormat() {
+        OutputFormat format = mOutputFormat;
+        if (format == null) {
+            format = CreateOutputFormat(mCodec.getOutputFormat());
+            mOutputFormat = format;
+        }
+        return format;
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        mCodec.releaseOutputBuffer(index, render);
+    }
+
+    @Override
+    public void flush() {
+        if (mCallback == null) {
+            mCodec.flush();
+            return;
+        }
+        synchronized (mCallbackLock) {
+            mPendingFlushes++;
+            mCodec.flush();
+        }
+    }
+
+    @Override
+    public void start() {
+        if (mCallback == null) {
+            return;
+        }
+        //behind the callbacks posted before the flush, which are dropped until this has run
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mCallbackLock) {
+                    if (--mPendingFlushes > 0 || mStopped) {
+                        return; //flushed again and that flush's start() follows, or stopped meanwhile
+                    }
+                    mCodec.start();
+                }
+            }
+        });
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    @Override
+    public void setOutputSurface(Surface surface) {
+        mCodec.setOutputSurface(surface);
+    }
+
+    @Override
+    public void stop() {
+        synchronized (mCallbackLock) {
+            mStopped = true;
+        }
+        mCodec.stop();
+    }
+
+    @Override
+    public void release() {
+        synchronized (mCallbackLock) {
+            mStopped = true;
+        }
+        mCodec.release();
+    }
+
+    static OutputFormat CreateOutputFormat(MediaFormat format) {
+        if (format.containsKey(MediaFormat.KEY_SAMPLE_RATE)) {
+            return OutputFormat.audio(format.getInteger(MediaFormat.KEY_SAMPLE_RATE), format.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+        }
+        int width = format.getInteger(MediaFormat.KEY_WIDTH);
+        if (format.containsKey("crop-left") && format.containsKey("crop-right")) {
+            width = format.getInteger("crop-right") + 1 - format.getInteger("crop-left");
+        }
+        int height = format.getInteger(MediaFormat.KEY_HEIGHT);
+        if (format.containsKey("crop-top") && format.containsKey("crop-bottom")) {
+            height = format.getInteger("crop-bottom") + 1 - format.getInteger("crop-top");
+        }
+        int colorFormat = format.containsKey(MediaFormat.KEY_COLOR_FORMAT) ? format.getInteger(MediaFormat.KEY_COLOR_FORMAT) : 0;
+        return OutputFormat.video(width, height, colorFormat);
+    }
+}
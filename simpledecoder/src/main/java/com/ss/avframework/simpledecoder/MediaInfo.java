@@ -0,0 +1,105 @@
+package com.ss.avframework.simpledecoder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What {@link Mp4Decoder#probe(String)} found out about a media file.  Immutable, so the
+ * same instance can be handed to every caller that probes the file.
+ */
+public final class MediaInfo {
+    public final String path;
+    public final long fileSize;
+    public final long lastModified;
+    public final long durationUs;           // longest track
+    public final int bitrate;               // bits per second over the whole file, 0 if unknown
+    public final List<TrackInfo> tracks;
+
+    MediaInfo(String path, long fileSize, long lastModified, List<TrackInfo> tracks) {
+        this.path = path;
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
+        this.tracks = Collections.unmodifiableList(new ArrayList<TrackInfo>(tracks));
+        long duration = 0;
+        for (TrackInfo track : tracks) {
+            duration = Math.max(duration, track.durationUs);
+        }
+        this.durationUs = duration;
+        this.bitrate = duration > 0 ? (int) Math.min(Integer.MAX_VALUE, fileSize * 8 * 1000000L / duration) : 0;
+    }
+
+    //first video track with the given mime type, any video track if mime is null
+    public TrackInfo getVideoTrack(String mime) {
+        for (TrackInfo track : tracks) {
+            if (track.isVideo() && (mime == null || mime.equals(track.mime))) {
+                return track;
+            }
+        }
+        return null;
+    }
+
+    //first audio track with the given mime type, any audio track if mime is null
+    public TrackInfo getAudioTrack(String mime) {
+        for (TrackInfo track : tracks) {
+            if (track.isAudio() && (mime == null || mime.equals(track.mime))) {
+                return track;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "MediaInfo{" + path + ", " + durationUs + "us, " + bitrate + "bps, " + tracks + "}";
+    }
+
+    public static final class TrackInfo {
+        public final int index;             // track index as MediaExtractor numbers them
+        public final String mime;           // e.g. "video/avc", "audio/mp4a-latm"
+        public final long durationUs;
+        public final int bitrate;           // bits per second, 0 if unknown
+        public final int sampleCount;       // -1 if unknown
+        public final int keyFrameCount;     // -1 if unknown
+
+        //video, 0 for audio tracks
+        public final int width;             // after cropping
+        public final int height;
+        public final float frameRate;       // 0 if unknown
+
+        //audio, 0 for video tracks
+        public final int sampleRate;
+        public final int channelCount;
+
+        TrackInfo(int index, String mime, long durationUs, int bitrate, int sampleCount, int keyFrameCount,
+                  int width, int height, float frameRate, int sampleRate, int channelCount) {
+            this.index = index;
+            this.mime = mime;
+            this.durationUs = durationUs;
+            this.bitrate = bitrate;
+            this.sampleCount = sampleCount;
+            this.keyFrameCount = keyFrameCount;
+            this.width = width;
+            this.height = height;
+            this.frameRate = frameRate;
+            this.sampleRate = sampleRate;
+            this.channelCount = channelCount;
+        }
+
+        public boolean isVideo() {
+            return mime != null && mime.startsWith("video/");
+        }
+
+        public boolean isAudio() {
+            return mime != null && mime.startsWith("audio/");
+        }
+
+        @Override
+        public String toString() {
+            if (isVideo()) {
+                return mime + " " + width + "x" + height + "@" + frameRate + " " + keyFrameCount + " key frames";
+            }
+            return mime + " " + sampleRate + "Hz " + channelCount + "ch";
+        }
+    }
+}
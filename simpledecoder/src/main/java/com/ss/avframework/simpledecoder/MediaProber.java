@@ -0,0 +1,154 @@
+package com.ss.avframework.simpledecoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Probes media files into {@link MediaInfo} and remembers the results in a bounded LRU
+ * cache keyed by path, checked against the file's size and modification time, so a file
+ * is only opened again once it changes.  Failures are cached too, so a gallery full of
+ * files we can't play doesn't get re-probed on every scroll.
+ * <p>
+ * Each file is handed to the {@link Prober}s in order until one can read it.  Thread safe;
+ * probing happens outside the lock.
+ */
+final class MediaProber {
+
+    interface Prober {
+        /**
+         * @throws IOException if this prober can't read the file
+         */
+        MediaInfo probe(File file) throws IOException;
+    }
+
+    /**
+     * Reads MP4/MOV files with {@link Mp4Parser}, which also gives sample and key frame
+     * counts.  Doesn't need Android.
+     */
+    static final Prober MP4 = new Prober() {
+        @Override
+        public MediaInfo probe(File file) throws IOException {
+            Mp4Demuxer demuxer = new Mp4Demuxer(file.getPath());
+            try {
+                ArrayList<MediaInfo.TrackInfo> tracks = new ArrayList<MediaInfo.TrackInfo>();
+                for (int i = 0; i < demuxer.getTrackCount(); i++) {
+                    tracks.add(createTrackInfo(i, demuxer.getTrack(i)));
+                }
+                return new MediaInfo(file.getPath(), file.length(), file.lastModified(), tracks);
+            } finally {
+                demuxer.release();
+            }
+        }
+    };
+
+    private final Prober[] mProbers;
+    private final LinkedHashMap<String, CacheEntry> mCache;
+    private int mHits;
+    private int mMisses;
+
+    MediaProber(final int maxEntries, Prober... probers) {
+        mProbers = probers;
+        mCache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return what the first prober that could read {@code path} found, null if the file
+     * doesn't exist or none of them could read it
+     */
+    MediaInfo probe(String path) {
+        File file = new File(path);
+        long size = file.length();
+        long lastModified = file.lastModified();
+        if (lastModified == 0) { //doesn't exist or can't be accessed, nothing worth caching
+            return null;
+        }
+        synchronized (this) {
+            CacheEntry entry = mCache.get(path);
+            if (entry != null && entry.size == size && entry.lastModified == lastModified) {
+                mHits++;
+                return entry.info;
+            }
+            mMisses++;
+        }
+        MediaInfo info = null;
+        for (Prober prober : mProbers) {
+            try {
+                info = prober.probe(file);
+                break;
+            } catch (IOException e) {
+                info = null;
+            } catch (RuntimeException e) { //MediaExtractor throws IllegalArgumentException etc
+                info = null;
+            }
+        }
+        synchronized (this) {
+            mCache.put(path, new CacheEntry(size, lastModified, info));
+        }
+        return info;
+    }
+
+    synchronized void invalidate(String path) {
+        mCache.remove(path);
+    }
+
+    synchronized void clear() {
+        mCache.clear();
+    }
+
+    synchronized int size() {
+        return mCache.size();
+    }
+
+    synchronized int hits() {
+        return mHits;
+    }
+
+    synchronized int misses() {
+        return mMisses;
+    }
+
+    static MediaInfo.TrackInfo createTrackInfo(int index, Mp4Track track) {
+        long totalSize = 0;
+        for (int i = 0; i < track.sampleCount; i++) {
+            totalSize += track.getSize(i);
+        }
+        long durationUs = track.durationUs;
+        int bitrate = durationUs > 0 ? (int) Math.min(Integer.MAX_VALUE, totalSize * 8 * 1000000L / durationUs) : 0;
+        if (track.isVideo()) {
+            int width = track.width;
+            int height = track.height;
+            if (Mp4Track.MIME_AVC.equals(track.mime) && track.csd.length > 0) {
+                int[] size = AvcUtils.parseSpsSize(track.csd[0]);
+                if (size != null) {
+                    width = size[0];
+                    height = size[1];
+                }
+            }
+            float frameRate = durationUs > 0 ? track.sampleCount * 1000000f / durationUs : 0;
+            return new MediaInfo.TrackInfo(index, track.mime, durationUs, bitrate, track.sampleCount,
+                    track.syncSampleCount(), width, height, frameRate, 0, 0);
+        }
+        return new MediaInfo.TrackInfo(index, track.mime, durationUs, bitrate, track.sampleCount,
+                track.syncSampleCount(), 0, 0, 0, track.sampleRate, track.channelCount);
+    }
+
+    private static final class CacheEntry {
+        final long size;
+        final long lastModified;
+        final MediaInfo info;       // null if no prober could read the file
+
+        CacheEntry(long size, long lastModified, MediaInfo info) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.info = info;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.ss.avframework.simpledecoder;
+
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Where DemuxMp4() gets its samples from.  The methods mirror
+ * {@link android.media.MediaExtractor} so either the platform extractor or the pure-Java
+ * {@link Mp4Demuxer} can sit behind it.
+ */
+interface MediaSource {
+    //what readSampleData() returns while the next sample of a live source isn't in yet
+    int SAMPLE_PENDING = -2;
+
+    int getTrackCount();
+
+    MediaFormat getTrackFormat(int index);
+
+    void selectTrack(int index);
+
+    //the size of the sample, -1 at the end, or SAMPLE_PENDING
+    int readSampleData(ByteBuffer buffer, int offset);
+
+    int getSampleTrackIndex();
+
+    long getSampleTime();
+
+    int getSampleFlags();
+
+    boolean advance();
+
+    void seekTo(long timeUs, int mode);
+
+    void release();
+
+    /**
+     * Opens the source of the given Mp4Decoder.DEMUXER_XXX type.
+     */
+    final class Factory {
+        private Factory() {
+        }
+
+        static MediaSource open(String path, int demuxerType) throws IOException {
+            return open(path, demuxerType, null);
+        }
+
+        /**
+         * @param indexCache sample tables cache for DEMUXER_JAVA_MP4, may be null
+         */
+        static MediaSource open(String path, int demuxerType, SampleIndexCache indexCache) throws IOException {
+            if (demuxerType == Mp4Decoder.DEMUXER_JAVA_MP4) {
+                return new Mp4MediaSource(new Mp4Demuxer(path, indexCache));
+            }
+            return new ExtractorMediaSource(path);
+        }
+
+        static MediaSource open(DataSource source) throws IOException {
+            return open(source, 0);
+        }
+
+        /**
+         * The pure-Java demuxer over source, whatever the demuxer type, the fragmented one if
+         * the moov has an mvex box.  Releasing it closes the source.
+         *
+         * @param liveLatencyTargetUs for fragmented MP4, 0 to play it to its end, else how far
+         *                            behind the newest fragment to play it live, see
+         *                            {@link FragmentedMp4MediaSource}
+         */
+        static MediaSource open(DataSource source, long liveLatencyTargetUs) throws IOException {
+            boolean fragmented;
+            try {
+                fragmented = Mp4Parser.child(Mp4Demuxer.readMoov(source), 0, FragmentedMp4Demuxer.TYPE_mvex) >= 0;
+            } catch (IOException e) {
+                source.close();
+                throw e;
+            }
+            if (fragmented) {
+                return new FragmentedMp4MediaSource(source, liveLatencyTargetUs);
+            }
+            return new Mp4MediaSource(new Mp4Demuxer(source));
+        }
+    }
+}
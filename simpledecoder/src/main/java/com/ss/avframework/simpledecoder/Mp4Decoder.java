@@ -1,28 +1,25 @@
 package com.ss.avframework.simpledecoder;
 
-import android.annotation.TargetApi;
 import android.graphics.Bitmap;
 import android.graphics.SurfaceTexture;
 import android.media.AudioFormat;
 import android.media.AudioTrack;
-import android.media.MediaCodec;
-import android.media.MediaCodec.BufferInfo;
-import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
 import android.opengl.Matrix;
-import android.os.Build;
 import android.util.Log;
 import android.view.Surface;
 
 import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.Writer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
 
 import javax.microedition.khronos.egl.EGL10;
 import javax.microedition.khronos.egl.EGLConfig;
@@ -36,32 +33,63 @@ public class Mp4Decoder {
 
     public final String TAG = "Mp4Decoder";
 
+    //where the samples are read from, see setDemuxerType()
+    public static final int DEMUXER_MEDIA_EXTRACTOR = 0; //android.media.MediaExtractor
+    public static final int DEMUXER_JAVA_MP4 = 1; //the pure-Java memory-mapped MP4 demuxer, MP4/MOV files only
+
+    public static final int MAX_DECODE_AHEAD_DEPTH = 8; //see setDecodeAheadDepth()
+    public static final int MAX_PCM_CHUNK_MS = 1000; //see setPcmChunkDurationMs()
+    //PCM chunks that may wait for the audio listener before the PCM after them is dropped
+    private static final int PCM_RING_CHUNKS = 32;
+
     private String mMp4FilePath;
+    private DataSource mDataSource;             // played instead of mMp4FilePath if set
     private Surface mDisplaySurface;
-    private MediaExtractor mExtractor;
+    private MediaSource mExtractor;
+    private int mDemuxerType = DEMUXER_MEDIA_EXTRACTOR;
+    private SampleIndexCache mSampleIndexCache;
+    private final SeekController mSeekController = new SeekController();
+    private volatile PipelineStats mStats = new PipelineStats(false, false);
+    private final EventTracer mTracer = new EventTracer(4096);
     private MediaFormat mVideoMediaFormat = null;
     private MediaFormat mAudioMediaFormat = null;
-    private MediaCodec mVideoDecoder = null;
-    private MediaCodec mAudioDecoder = null;
+    private DecoderBackend.Factory mDecoderFactory = MediaCodecBackend.FACTORY;
     private boolean mCircularly = false;
-    private boolean stopped = true;
+    private volatile boolean stopped = true;
     private boolean paused = false;
-    private SyncClock primaryClock;
-    private SyncClock videoClock;
-    private SyncClock audioClock;
-    private ArrayList<PacketBuffer> videoBufferList;
-    private ArrayList<PacketBuffer> audioBufferList;
-    private final int maxVideoBufferCount = 20;
-    private final int maxAudioBufferCount = 30;
-    private volatile Object videoBufferSync;
-    private volatile Object audioBufferSync;
+    //when frames are due. The audio anchors it and keeps it in sync if there is audio, the video otherwise
+    private final MediaClock mClock = new MediaClock();
+    private volatile float mPlaybackRate = 1.0f;
+    //which late video frames are dropped, and when decoding skips to the next key frame
+    private final LatenessController mLateness = new LatenessController(LatenessPolicy.DEFAULT);
+    //the audio at other rates than 1, core task only
+    private TimeStretcher mTimeStretcher;
+    private ByteBuffer mStretchedPcm;
+    private int mStretchGeneration;
+    //the audio at the listener's sample rate and channel count, 0 for the codec's
+    private int mOutputSampleRate = 0;
+    private int mOutputChannelCount = 0;
+    //plays the audio and drives the clock, null to only hand it to the audio listener
+    private AudioSink mAudioSink;
+    private long mLiveLatencyTargetUs = 0;      // fragmented MP4 from a DataSource is played live if > 0
+    //converting to them, core task only
+    private AudioResampler mResampler;
+    private ByteBuffer mResampledPcm;
+    private int mResampleGeneration;
+    //decoded video frames that may wait between the core task and the render task
+    private int mDecodeAheadDepth = 3;
     private IVideoFrameListener mVideoFrameListener;
     private IAudioSampleListener mAudioSampleListener;
-    private Thread mDemuxThread;
-    private Thread mVideoInputThread;
-    private Thread mAudioInputThread;
-    private Thread mVideoOutputThread;
-    private Thread mAudioOutputThread;
+    //demuxes and decodes in its core task, and renders the video in its render task
+    private volatile PlayerCore mCore;
+    //where the tasks run: the one set, or one of this decoder's own with a worker per task
+    private DecoderScheduler mScheduler;
+    private DecoderScheduler mOwnScheduler;
+    //counted down once the file is closed again
+    private CountDownLatch mPlayDone;
+    //counted down once the audio listener has had the last of the PCM
+    private volatile CountDownLatch mPcmDone;
+    private int mPcmChunkMs = 0;
 
     CodecOutputSurface mOutputSurface;
 
@@ -70,24 +98,25 @@ public class Mp4Decoder {
         mAudioSampleListener = audioSampleListener;
     }
 
+    private static final MediaProber sMediaProber = new MediaProber(256, MediaProber.MP4, new ExtractorProber());
+
+    //tracks, sizes, frame rate, duration etc of a media file, null if it can't be read.
+    //results are cached until the file changes, so probing the same file again is cheap
+    public static MediaInfo probe(String mediaFilePath) {
+        return sMediaProber.probe(mediaFilePath);
+    }
+
     //return: 0 file doesn't exist or not a media file, 1 aac audio only, 2 H.264 video only, 3 aac audio and H.264 video
     public static int CheckMediaFile(String mp4FilePath) {
+        MediaInfo info = probe(mp4FilePath);
         int ret = 0;
-        try {
-            MediaExtractor extractor = new MediaExtractor();
-            extractor.setDataSource(mp4FilePath);
-            for (int i = 0; i < extractor.getTrackCount(); ++i) {
-                MediaFormat format = extractor.getTrackFormat(i);
-                String mime = format.getString(MediaFormat.KEY_MIME);
-                if (mime.compareTo(MediaFormat.MIMETYPE_VIDEO_AVC) == 0) {
-                    ret |= 2;
-                } else if (mime.compareTo(MediaFormat.MIMETYPE_AUDIO_AAC) == 0) {
-                    ret |= 1;
-                }
+        if (info != null) {
+            if (info.getVideoTrack(MediaFormat.MIMETYPE_VIDEO_AVC) != null) {
+                ret |= 2;
+            }
+            if (info.getAudioTrack(MediaFormat.MIMETYPE_AUDIO_AAC) != null) {
+                ret |= 1;
             }
-            extractor.release();
-        } catch (Exception e) {
-            ret = 0;
         }
         return ret;
     }
@@ -97,30 +126,15 @@ public class Mp4Decoder {
         if (info.length < 3) {
             return false;
         }
-        try {
-            MediaExtractor extractor = new MediaExtractor();
-            extractor.setDataSource(videoFilePath);
-            for (int i = 0; i < extractor.getTrackCount(); ++i) {
-                MediaFormat format = extractor.getTrackFormat(i);
-                String mime = format.getString(MediaFormat.KEY_MIME);
-                if (mime.compareTo(MediaFormat.MIMETYPE_VIDEO_AVC) == 0) {
-                    info[0] = format.getInteger(MediaFormat.KEY_WIDTH);
-                    if (format.containsKey("crop-left") && format.containsKey("crop-right")) {
-                        info[0] = format.getInteger("crop-right") + 1 - format.getInteger("crop-left");
-                    }
-                    info[1] = format.getInteger(MediaFormat.KEY_HEIGHT);
-                    if (format.containsKey("crop-top") && format.containsKey("crop-bottom")) {
-                        info[1] = format.getInteger("crop-bottom") + 1 - format.getInteger("crop-top");
-                    }
-                    info[2] = format.getInteger(MediaFormat.KEY_FRAME_RATE);
-                    return true;
-                }
-            }
-            extractor.release();
-        } catch (Exception e) {
-            e.printStackTrace();
+        MediaInfo mediaInfo = probe(videoFilePath);
+        MediaInfo.TrackInfo track = mediaInfo != null ? mediaInfo.getVideoTrack(MediaFormat.MIMETYPE_VIDEO_AVC) : null;
+        if (track == null) {
+            return false;
         }
-        return false;
+        info[0] = track.width;
+        info[1] = track.height;
+        info[2] = Math.round(track.frameRate);
+        return true;
     }
 
     //info[0]: sample rate, info[1]: channel count
@@ -128,23 +142,120 @@ public class Mp4Decoder {
         if (info.length < 2) {
             return false;
         }
+        MediaInfo mediaInfo = probe(videoFilePath);
+        MediaInfo.TrackInfo track = mediaInfo != null ? mediaInfo.getAudioTrack(MediaFormat.MIMETYPE_AUDIO_AAC) : null;
+        if (track == null) {
+            return false;
+        }
+        info[0] = track.sampleRate;
+        info[1] = track.channelCount;
+        return true;
+    }
+
+    /**
+     * Pulls the video frames at timestampsUs out of the file without playing it, e.g. for a
+     * strip of thumbnails.  Every time is mapped to the key frame options.mode says, and only
+     * the key frames are decoded, each once however many times map to it, or in EXACT mode
+     * the frames from the key frame up to the time.  The frames are delivered to the listener
+     * as they are decoded, in file order, as RGBA read back into the same buffer every time.
+     * A {@link FrameExporter} as the listener writes them to files in the background.
+     * <p>
+     * Blocks until done.  Call it on a thread without a Looper, which the frames are decoded
+     * and read back on.
+     *
+     * @return how many frames were delivered, fewer than asked for if times are past the end
+     * @throws IllegalArgumentException if an argument is null
+     * @throws Exception if the file has no H.264 video or can't be decoded
+     */
+    public static int extractFrames(String path, long[] timestampsUs, FrameExtractOptions options,
+                                    final IFrameExtractListener listener) throws Exception {
+        if (path == null || timestampsUs == null || options == null || listener == null) {
+            throw new IllegalArgumentException("null argument");
+        }
+        MediaSource source = MediaSource.Factory.open(path, options.demuxerType, null);
         try {
-            MediaExtractor extractor = new MediaExtractor();
-            extractor.setDataSource(videoFilePath);
-            for (int i = 0; i < extractor.getTrackCount(); ++i) {
-                MediaFormat format = extractor.getTrackFormat(i);
-                String mime = format.getString(MediaFormat.KEY_MIME);
-                if (mime.compareTo(MediaFormat.MIMETYPE_AUDIO_AAC) == 0) {
-                    info[0] = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
-                    info[1] = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
-                    return true;
+            int videoTrackId = -1;
+            MediaFormat format = null;
+            for (int i = 0; i < source.getTrackCount() && videoTrackId < 0; ++i) {
+                MediaFormat trackFormat = source.getTrackFormat(i);
+                if (MediaFormat.MIMETYPE_VIDEO_AVC.equals(trackFormat.getString(MediaFormat.KEY_MIME))) {
+                    videoTrackId = i;
+                    format = trackFormat;
                 }
             }
-            extractor.release();
-        } catch (Exception e) {
-            e.printStackTrace();
+            if (format == null) {
+                throw new Exception("No H.264 video track.");
+            }
+            source.selectTrack(videoTrackId);
+            int videoWidth = format.getInteger(MediaFormat.KEY_WIDTH);
+            int videoHeight = format.getInteger(MediaFormat.KEY_HEIGHT);
+            int[] size = options.frameSize(videoWidth, videoHeight);
+            FrameExtractor extractor = new FrameExtractor(source, videoTrackId, options.mode);
+            long startNs = System.nanoTime();
+            int delivered = extractor.extract(timestampsUs, new SurfaceFrameOutput(format, size[0], size[1]),
+                    new FrameExtractor.Listener() {
+                        @Override
+                        public void onFrame(int index, long requestedUs, long ptsUs, ByteBuffer pixels, int width, int height) {
+                            listener.onFrameExtracted(index, requestedUs, ptsUs, pixels, width, height);
+                        }
+                    });
+            Log.i("Mp4Decoder", "Extracted " + delivered + " of " + timestampsUs.length + " frames decoding "
+                    + extractor.samplesDecoded() + " samples in " + (System.nanoTime() - startNs) / 1000000 + "ms");
+            return delivered;
+        } finally {
+            source.release();
+        }
+    }
+
+    //decodes to a pbuffer of the frame size and reads every frame back into the pixel buffer of
+    //the surface, on the thread extracting
+    private static final class SurfaceFrameOutput implements FrameExtractor.Output {
+        private final MediaFormat mFormat;
+        private final int mWidth;
+        private final int mHeight;
+        private CodecOutputSurface mSurface;
+
+        SurfaceFrameOutput(MediaFormat format, int width, int height) {
+            mFormat = format;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        @Override
+        public DecoderBackend createDecoder() throws Exception {
+            mSurface = new CodecOutputSurface(mWidth, mHeight, null);
+            return MediaCodecBackend.FACTORY.createVideoDecoder(mFormat, mSurface.getSurface(), null);
+        }
+
+        @Override
+        public ByteBuffer read(DecoderBackend decoder, int index, DecoderBackend.BufferInfo info) {
+            decoder.releaseOutputBuffer(index, true);
+            mSurface.awaitNewImage();
+            mSurface.drawImage(true);
+            return mSurface.readPixels();
+        }
+
+        @Override
+        public int width() {
+            return mWidth;
+        }
+
+        @Override
+        public int height() {
+            return mHeight;
+        }
+
+        @Override
+        public void release(DecoderBackend decoder) {
+            if (decoder != null) {
+                decoder.stop();
+                decoder.release();
+            }
+            if (mSurface != null) {
+                mSurface.release();
+                mSurface = null;
+            }
         }
-        return false;
     }
 
     public void start(String mp4FilePath, boolean circularly, Surface surface) {
@@ -153,28 +264,63 @@ public class Mp4Decoder {
             return;
         }
         mMp4FilePath = mp4FilePath;
+        mDataSource = null;
+        Start(circularly, surface);
+    }
+
+    //plays an MP4 file read from source rather than a local path, e.g. an HttpDataSource playing
+    //while it downloads. Always demuxed by DEMUXER_JAVA_MP4. The decoder closes source once done
+    //with it, so every start() takes a new one
+    public void start(DataSource source, boolean circularly, Surface surface) {
+        if (!stopped) {
+            Log.w(TAG, "Decoding already started.");
+            return;
+        }
+        if (source == null) {
+            throw new IllegalArgumentException("source is null");
+        }
+        mMp4FilePath = null;
+        mDataSource = source;
+        Start(circularly, surface);
+    }
+
+    private void Start(boolean circularly, Surface surface) {
         mCircularly = circularly;
         mDisplaySurface = surface;
 
         SharedEGLContext.GetCurrentEGLContext();
 
+        mSeekController.reset();
+        mStats = new PipelineStats(false, false); //the tracks are known once the file is open
+        mClock.reset();
+        mClock.resume();
+        mLateness.reset();
         stopped = false;
         paused = false;
-        mDemuxThread = new Thread(new Runnable() {
+        final DecoderScheduler scheduler = mScheduler != null ? mScheduler : (mOwnScheduler = new DecoderScheduler(2));
+        final CountDownLatch done = new CountDownLatch(1);
+        mPlayDone = done;
+        scheduler.execute(new Runnable() {
             @Override
             public void run() {
                 try {
-                    DemuxMp4();
+                    Play(scheduler, done);
                 } catch (Exception e) {
                     e.printStackTrace();
                     if (mExtractor != null) {
                         mExtractor.release();
                         mExtractor = null;
+                    } else if (mDataSource != null) { //it didn't get as far as the demuxer owning it
+                        try {
+                            mDataSource.close();
+                        } catch (IOException closeError) {
+                            closeError.printStackTrace();
+                        }
                     }
+                    done.countDown();
                 }
             }
-        }, "Demux");
-        mDemuxThread.start();
+        });
     }
 
     public void stop() {
@@ -184,20 +330,33 @@ public class Mp4Decoder {
         }
         paused = false;
         stopped = true;
+        PlayerCore core = mCore;
+        if (core != null) {
+            core.stop();
+        }
         try {
-            if (mDemuxThread != null) {
-                mDemuxThread.join();
-                mDemuxThread = null;
+            if (mPlayDone != null) {
+                mPlayDone.await();
+                mPlayDone = null;
+            }
+            CountDownLatch pcmDone = mPcmDone;
+            if (pcmDone != null) {
+                pcmDone.await();
+                mPcmDone = null;
             }
         } catch (java.lang.InterruptedException e) {
             e.printStackTrace();
         }
-        videoBufferList = null;
-        audioBufferList = null;
-        videoBufferSync = null;
-        audioBufferSync = null;
+        mCore = null;
+        if (mOwnScheduler != null) {
+            mOwnScheduler.shutdown();
+            mOwnScheduler = null;
+        }
+
+        mStats.stop();
 
         mMp4FilePath = null;
+        mDataSource = null;
         mCircularly = false;
         mDisplaySurface = null;
     }
@@ -209,12 +368,16 @@ public class Mp4Decoder {
     public void pause() {
         if (!stopped) {
             paused = true;
+            mClock.pause();
+            OnPlaybackChanged();
         }
     }
 
     public void resume() {
         if (!stopped) {
             paused = false;
+            mClock.resume();
+            OnPlaybackChanged();
         }
     }
 
@@ -222,17 +385,207 @@ public class Mp4Decoder {
         return paused;
     }
 
+    //rate: 0.25 - 4, 1 is normal speed. The audio keeps its pitch, the video frames come at the
+    //new pace, dropping the ones decoding can't keep up with as the lateness policy says
+    public void setPlaybackRate(float rate) {
+        if (!(rate >= TimeStretcher.MIN_RATE && rate <= TimeStretcher.MAX_RATE)) {
+            throw new IllegalArgumentException("Playback rate out of range: " + rate);
+        }
+        mPlaybackRate = rate;
+        mClock.setRate(rate);
+        OnPlaybackChanged();
+    }
+
+    public float getPlaybackRate() {
+        return mPlaybackRate;
+    }
+
+    //what happens to video frames that are late, e.g. after a decoder stall. LatenessPolicy.DEFAULT
+    //unless set, LatenessPolicy.NEVER_DROP renders every frame. Dropped and skipped frames are
+    //counted in getStats()
+    public void setLatenessPolicy(LatenessPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("policy is null");
+        }
+        mLateness.setPolicy(policy);
+    }
+
+    public LatenessPolicy getLatenessPolicy() {
+        return mLateness.getPolicy();
+    }
+
     public void resetSurface(Surface surface) {
         mDisplaySurface = surface;
     }
 
-    private void DemuxMp4() throws Exception {
+    //demuxerType: DEMUXER_MEDIA_EXTRACTOR or DEMUXER_JAVA_MP4, takes effect on the next start()
+    public void setDemuxerType(int demuxerType) {
+        mDemuxerType = demuxerType;
+    }
+
+    public int getDemuxerType() {
+        return mDemuxerType;
+    }
+
+    //how many decoded video frames may wait for their turn to be rendered, 1 - MAX_DECODE_AHEAD_DEPTH.
+    //Deeper rides out longer render or decode hiccups but holds more codec output buffers. Takes
+    //effect on the next start()
+    public void setDecodeAheadDepth(int frames) {
+        if (frames < 1 || frames > MAX_DECODE_AHEAD_DEPTH) {
+            throw new IllegalArgumentException("Decode-ahead depth out of range: " + frames);
+        }
+        mDecodeAheadDepth = frames;
+    }
+
+    public int getDecodeAheadDepth() {
+        return mDecodeAheadDepth;
+    }
+
+    //the audio listener gets the PCM in chunks of ms milliseconds, e.g. 10 for a mixer working in
+    //10ms frames, rather than a call per codec buffer with 0. Takes effect on the next start()
+    public void setPcmChunkDurationMs(int ms) {
+        if (ms < 0 || ms > MAX_PCM_CHUNK_MS) {
+            throw new IllegalArgumentException("PCM chunk duration out of range: " + ms);
+        }
+        mPcmChunkMs = ms;
+    }
+
+    public int getPcmChunkDurationMs() {
+        return mPcmChunkMs;
+    }
+
+    //the audio listener gets the PCM resampled to sampleRate (8000 - 192000) and remixed to
+    //channelCount (1 - 8), e.g. 48000 and 2 for a mixer running at 48kHz stereo, whatever the file
+    //decodes to. 0 keeps what the codec outputs. Takes effect on the next start()
+    public void setAudioOutputFormat(int sampleRate, int channelCount) {
+        if (sampleRate != 0 && (sampleRate < 8000 || sampleRate > 192000)) {
+            throw new IllegalArgumentException("Audio output sample rate out of range: " + sampleRate);
+        }
+        if (channelCount < 0 || channelCount > 8) {
+            throw new IllegalArgumentException("Audio output channel count out of range: " + channelCount);
+        }
+        mOutputSampleRate = sampleRate;
+        mOutputChannelCount = channelCount;
+    }
+
+    public int getAudioOutputSampleRate() {
+        return mOutputSampleRate;
+    }
+
+    public int getAudioOutputChannelCount() {
+        return mOutputChannelCount;
+    }
+
+    //plays the audio through sink, in the format set by setAudioOutputFormat(), e.g. an
+    //AudioTrackSink. The video then follows what the sink has played rather than when the PCM was
+    //decoded, so it stays in sync however the device's clock drifts. The audio listener still gets
+    //the PCM. null for no sink. Takes effect on the next start()
+    public void setAudioSink(AudioSink sink) {
+        mAudioSink = sink;
+    }
+
+    public AudioSink getAudioSink() {
+        return mAudioSink;
+    }
+
+    //plays a fragmented MP4 DataSource live, latencyMs behind its newest fragment: at the end of
+    //the source it waits for more, e.g. of a file still being written, and once playback falls
+    //half as far again behind it skips ahead to a key frame. Give it at least two fragments.
+    //0, the default, plays it to its end. Takes effect on the next start()
+    public void setLiveLatencyTargetMs(int latencyMs) {
+        mLiveLatencyTargetUs = latencyMs * 1000L;
+    }
+
+    //keep the sample tables of played files in dir (e.g. context.getCacheDir()) so they open
+    //without parsing next time, DEMUXER_JAVA_MP4 only. null disables the cache
+    public void setSampleIndexCacheDir(File dir) {
+        mSampleIndexCache = dir != null ? new SampleIndexCache(dir) : null;
+    }
+
+    //runs the decoding of the next start() on the scheduler's workers, shared with the other
+    //decoders set to it, rather than on two threads of this decoder's own. Opening the file
+    //runs there too. null for threads of its own again
+    public void setScheduler(DecoderScheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    public DecoderScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    //the decoders of the next start(), MediaCodec unless replaced for tests
+    void setDecoderBackendFactory(DecoderBackend.Factory factory) {
+        mDecoderFactory = factory != null ? factory : MediaCodecBackend.FACTORY;
+    }
+
+    public enum SeekMode {
+        EXACT,          //decode from the previous key frame and show the frame at the requested time
+        PREVIOUS_SYNC,  //show the key frame at or before the requested time
+        NEXT_SYNC,      //show the key frame at or after the requested time
+        CLOSEST_SYNC    //show the key frame nearest to the requested time
+    }
+
+    //moves playback to ptsUs without restarting the decoders. Seeks are executed by the core
+    //task, a burst of them only executes the latest. While paused the frame at the new
+    //position is still shown. Not possible once the end of a non-circular file is reached
+    public void seekTo(long ptsUs, SeekMode mode) {
+        if (stopped) {
+            Log.w(TAG, "Can't seek, decoding is stopped.");
+            return;
+        }
+        mSeekController.request(ptsUs, mode);
+        OnPlaybackChanged();
+    }
+
+    //time from seekTo() to the first frame at the new position of the last completed seek, -1 if none
+    public long getLastSeekLatencyUs() {
+        return mSeekController.lastLatencyUs();
+    }
+
+    //seekTo() calls, and how many of them were actually executed rather than superseded
+    public int getSeekRequestCount() {
+        return mSeekController.requestedCount();
+    }
+
+    public int getSeekExecutedCount() {
+        return mSeekController.executedCount();
+    }
+
+    //what the demuxer, the decoders and the rendering did since start(), a new snapshot every call
+    public DecoderStats getStats() {
+        PlayerCore core = mCore;
+        return mStats.snapshot(core != null ? core.queueDepth(PlayerCore.TRACK_VIDEO) : 0,
+                core != null ? core.queueDepth(PlayerCore.TRACK_AUDIO) : 0);
+    }
+
+    //records what happens to every sample, the last 4096 events per thread, see writeTrace(). Off by default
+    public void setTracingEnabled(boolean enabled) {
+        mTracer.setEnabled(enabled);
+    }
+
+    //the traced events as Chrome trace JSON, to open in chrome://tracing or Perfetto.
+    //For an exact trace disable tracing or stop decoding first
+    public void writeTrace(Writer writer) throws IOException {
+        mTracer.writeChromeTrace(writer);
+    }
+
+    //the core and render tasks look at the clock and the seeks again
+    private void OnPlaybackChanged() {
+        PlayerCore core = mCore;
+        if (core != null) {
+            core.onPlaybackChanged();
+        }
+    }
+
+    //on a worker: opens the file and starts the pipeline, which plays until stopped or the end of
+    //the file and then closes it and counts down done
+    private void Play(DecoderScheduler scheduler, final CountDownLatch done) throws Exception {
         int videoTrackId = -1;
         int audioTrackId = -1;
         int bufferSize = 0;
 
-        mExtractor = new MediaExtractor();
-        mExtractor.setDataSource(mMp4FilePath);
+        mExtractor = mDataSource != null ? MediaSource.Factory.open(mDataSource, mLiveLatencyTargetUs)
+                : MediaSource.Factory.open(mMp4FilePath, mDemuxerType, mSampleIndexCache);
 
         for (int i = 0; i < mExtractor.getTrackCount(); ++i) {
             MediaFormat format = mExtractor.getTrackFormat(i);
@@ -253,473 +606,337 @@ public class Mp4Decoder {
         if (mAudioMediaFormat == null && mVideoMediaFormat == null) {
             throw new Exception("No supported track.");
         }
-
-        if (mVideoMediaFormat != null) {
-            videoBufferList = new ArrayList<PacketBuffer>();
-            videoBufferSync = new Object();
-
-            int wxh = mVideoMediaFormat.getInteger(MediaFormat.KEY_WIDTH) * mVideoMediaFormat.getInteger(MediaFormat.KEY_HEIGHT);
-            if (bufferSize < wxh * 2)
-                bufferSize = wxh * 2;
-
-            CreateVideoIOThreads();
-        }
-        if (mAudioMediaFormat != null) {
-            audioBufferList = new ArrayList<PacketBuffer>();
-            audioBufferSync = new Object();
-
-            int sampleRate = mAudioMediaFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
-            int channelCount = mAudioMediaFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
-            int channelConfig = (channelCount == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO);
-            int minBufferSize = AudioTrack.getMinBufferSize(sampleRate, channelConfig, AudioFormat.ENCODING_PCM_16BIT);
-            if (bufferSize < minBufferSize * 3)
-                bufferSize = minBufferSize * 3;
-
-            CreateAudioIOThreads();
-        }
-
-        ByteBuffer readBuffer = ByteBuffer.allocate(bufferSize);
-        int sampleSize = 0;
-        boolean noSample = true;
-        while (!stopped) {
-            sampleSize = mExtractor.readSampleData(readBuffer, 0);
-            noSample = noSample ? (sampleSize < 0) : noSample;
-            if (sampleSize < 0) { //reach the file end
-                if (noSample) {
-                    break;
-                }
-                if (ShouldRecycle())
-                    continue;
-                else
-                    break;
-            }
-            int trackIndex = mExtractor.getSampleTrackIndex();
-            long ptsUs = mExtractor.getSampleTime();
-            if (trackIndex == videoTrackId) {
-                Log.d(TAG, "Video sample: size " + sampleSize + " bytes, pts " + (ptsUs / 1000) + "ms");
-                while (videoBufferList.size() >= maxVideoBufferCount && !stopped) {
-                    Thread.sleep(10);
-                }
-                if (stopped) {
-                    break;
-                }
-                synchronized (videoBufferSync) {
-                    PacketBuffer packet = new PacketBuffer();
-                    packet.data = new byte[sampleSize];
-                    readBuffer.get(packet.data, 0, sampleSize);
-                    packet.ptsUs = ptsUs;
-                    videoBufferList.add(packet);
-                }
-            } else if (trackIndex == audioTrackId) {
-                Log.d(TAG, "Audio sample: size " + sampleSize + " bytes, pts " + (ptsUs / 1000) + "ms");
-                while (audioBufferList.size() >= maxAudioBufferCount && !stopped) {
-                    Thread.sleep(10);
-                }
-                if (stopped) {
-                    break;
-                }
-                synchronized (audioBufferSync) {
-                    PacketBuffer packet = new PacketBuffer();
-                    packet.data = new byte[sampleSize];
-                    readBuffer.get(packet.data, 0, sampleSize);
-                    packet.ptsUs = ptsUs;
-                    audioBufferList.add(packet);
-                }
-            } else {
-                Log.w(TAG, "Unknown track id: " + trackIndex);
-            }
-            mExtractor.advance();
+        final PipelineStats stats = new PipelineStats(videoTrackId >= 0, audioTrackId >= 0);
+        mStats = stats;
+        if (mCircularly) { //never reaches the end, the decoders keep running across the loop point
+            mExtractor = new LoopingMediaSource(mExtractor, LoopingMediaSource.getDurationUs(mVideoMediaFormat, mAudioMediaFormat));
         }
 
-        mExtractor.release();
-        mExtractor = null;
-
-        JoinVideoIOThreads();
-        JoinAudioIOThreads();
-
-        Log.i(TAG, "Demux thread exit");
-    }
-
-    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
-    private boolean ShouldRecycle() {
-        //在videoBufferList和audioBufferList中分别添加一个结束包
-        PacketBuffer packet = new PacketBuffer();
-        packet.data = null;
-        packet.ptsUs = Long.MIN_VALUE;
-        if (videoBufferList != null && videoBufferSync != null) {
-            synchronized (videoBufferSync) {
-                videoBufferList.add(packet);
+        if (mVideoMediaFormat != null) {
+            int maxSampleSize = GetMaxSampleSize(mVideoMediaFormat);
+            if (maxSampleSize <= 0) { //the container doesn't tell, guess from the resolution
+                maxSampleSize = mVideoMediaFormat.getInteger(MediaFormat.KEY_WIDTH) * mVideoMediaFormat.getInteger(MediaFormat.KEY_HEIGHT) * 3 / 2;
             }
+            if (bufferSize < maxSampleSize)
+                bufferSize = maxSampleSize;
         }
-        if (audioBufferList != null && audioBufferSync != null) {
-            synchronized (audioBufferSync) {
-                audioBufferList.add(packet);
+        if (mAudioMediaFormat != null) {
+            int maxSampleSize = GetMaxSampleSize(mAudioMediaFormat);
+            if (maxSampleSize <= 0) {
+                int sampleRate = mAudioMediaFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                int channelCount = mAudioMediaFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                int channelConfig = (channelCount == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO);
+                maxSampleSize = AudioTrack.getMinBufferSize(sampleRate, channelConfig, AudioFormat.ENCODING_PCM_16BIT);
             }
+            if (bufferSize < maxSampleSize)
+                bufferSize = maxSampleSize;
         }
 
-        //wait for the threads exit
-        JoinVideoIOThreads();
-        JoinAudioIOThreads();
-
-        if (!mCircularly) {
-            return false; //exit immediately
-        } else {
-            //reset the decoders and restart the threads
-            if (mVideoMediaFormat != null) {
-                CreateVideoIOThreads();
-            }
-            if (mAudioMediaFormat != null) {
-                CreateAudioIOThreads();
-            }
-            //seek to the head of the file and continue reading
-            mExtractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
-            return true;
+        final PlayerCore core = new PlayerCore(mExtractor, videoTrackId, audioTrackId, bufferSize, mDecodeAheadDepth,
+                stats, mSeekController, mClock, mLateness, mTracer);
+        mCore = core;
+        if (stopped) { //stop() came before there was a core to stop
+            core.stop();
         }
-    }
-
-    private void CreateVideoIOThreads() {
-        mVideoOutputThread = new Thread(new Runnable() {
+        AudioListenerOutput audioOutput = mAudioSink != null ? new AudioSinkOutput(scheduler, mAudioSink) : new AudioListenerOutput(scheduler);
+        core.start(scheduler, new VideoSurfaceOutput(), audioOutput, new Runnable() {
             @Override
             public void run() {
-                try {
-                    VideoDecoderOutput();
-                } catch (Exception e) {
-                    e.printStackTrace();
+                if (core.error() != null) {
+                    core.error().printStackTrace();
                 }
+                mExtractor.release();
+                mExtractor = null;
+                stats.stop();
+                Log.i(TAG, "Player exit");
+                done.countDown();
             }
-        }, "Video Output");
-        mVideoOutputThread.start();
+        });
     }
 
-    private void CreateAudioIOThreads() {
-        mAudioOutputThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    AudioDecoderOutput();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
-        }, "Audio Output");
-        mAudioOutputThread.start();
+    //the largest sample of the track as reported by the container, 0 if unknown
+    private static int GetMaxSampleSize(MediaFormat format) {
+        if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+            return format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE);
+        }
+        return 0;
     }
 
-    private void JoinVideoIOThreads() {
-        try {
-            if (mVideoOutputThread != null) {
-                mVideoOutputThread.join();
-                mVideoOutputThread = null;
-            }
-        } catch (java.lang.InterruptedException e) {
-            e.printStackTrace();
+    //renders the video frames through the GL surface, from the render task. The EGL context is
+    //only current during a call, the next one may come on another worker
+    private final class VideoSurfaceOutput implements PlayerCore.VideoOutput {
+        @Override
+        public DecoderBackend createDecoder(DecoderBackend.Callback callback) throws Exception {
+            mOutputSurface = new CodecOutputSurface(mVideoMediaFormat.getInteger(MediaFormat.KEY_WIDTH), mVideoMediaFormat.getInteger(MediaFormat.KEY_HEIGHT), mDisplaySurface);
+            mOutputSurface.releaseCurrent();
+
+            Log.i(TAG, "Video MediaFormat: " + mVideoMediaFormat.toString());
+            return mDecoderFactory.createVideoDecoder(mVideoMediaFormat, mOutputSurface.getSurface(), callback);
         }
-    }
 
-    private void JoinAudioIOThreads(){
-        try {
-            if (mAudioOutputThread != null) {
-                mAudioOutputThread.join();
-                mAudioOutputThread = null;
+        @Override
+        public void prepare(DecoderBackend decoder) {
+            if (mOutputSurface.getDisplaySurface() != mDisplaySurface) {
+                mOutputSurface.makeCurrent();
+                mOutputSurface.release();
+                mOutputSurface = null;
+                mOutputSurface = new CodecOutputSurface(mVideoMediaFormat.getInteger(MediaFormat.KEY_WIDTH), mVideoMediaFormat.getInteger(MediaFormat.KEY_HEIGHT), mDisplaySurface);
+                mOutputSurface.releaseCurrent();
+                decoder.setOutputSurface(mOutputSurface.getSurface());
             }
-        } catch (java.lang.InterruptedException e) {
-            e.printStackTrace();
         }
-    }
 
-    private void VideoDecoderInput() throws Exception {
-        while (!stopped) {
-            if (videoBufferList.size() <= 0) {
-                Thread.sleep(10);
-                continue;
-            }
-            int inputBufferIndex = mVideoDecoder.dequeueInputBuffer(10000); //infinitely wait if no available input buffer
-            if (inputBufferIndex >= 0) {
-                ByteBuffer inputBuffer = mVideoDecoder.getInputBuffer(inputBufferIndex);
-                synchronized (videoBufferSync) {
-                    PacketBuffer packet = videoBufferList.remove(0);
-                    if (packet.data == null && packet.ptsUs == Long.MIN_VALUE) { //end of stream
-                        mVideoDecoder.queueInputBuffer(inputBufferIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                        break;
-                    }
+        @Override
+        public void present(DecoderBackend.OutputFormat videoOutputFmt, long ptsUs) {
+            mOutputSurface.makeCurrent();
+            try {
+                mOutputSurface.awaitNewImage();
+                mOutputSurface.drawImage(false);
 
-                    inputBuffer.put(packet.data, 0, packet.data.length);
-                    mVideoDecoder.queueInputBuffer(inputBufferIndex, 0, packet.data.length, packet.ptsUs, 0);
-                    Log.d(TAG, "Video input: buffer index " + inputBufferIndex + ", buffer size " + packet.data.length + ", pts " + (packet.ptsUs / 1000) + "ms");
+                if (mVideoFrameListener != null) {
+                    mVideoFrameListener.onVideoFrameDecoded(mOutputSurface.getTextureId(), videoOutputFmt.width, videoOutputFmt.height, videoOutputFmt.colorFormat, System.currentTimeMillis());
                 }
+            } finally {
+                mOutputSurface.releaseCurrent();
             }
         }
-        Log.i(TAG, "VideoDecoderInput thread exit");
-    }
 
-    private void AudioDecoderInput() throws Exception {
-        while (!stopped) {
-            if (mAudioDecoder == null || audioBufferList.size() <= 0) {
-                Thread.sleep(10);
-                continue;
-            }
-            int inputBufferIndex = mAudioDecoder.dequeueInputBuffer(10000); //infinitely wait if no available input buffer
-            if (inputBufferIndex >= 0) {
-                ByteBuffer inputBuffer = mAudioDecoder.getInputBuffer(inputBufferIndex);
-                synchronized (audioBufferSync) {
-                    PacketBuffer packet = audioBufferList.remove(0);
-                    if (packet.data == null && packet.ptsUs == Long.MIN_VALUE) { //end of stream
-                        mAudioDecoder.queueInputBuffer(inputBufferIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                        break;
-                    }
+        @Override
+        public void release(DecoderBackend decoder) {
+            decoder.stop();
+            decoder.release();
 
-                    inputBuffer.put(packet.data, 0, packet.data.length);
-                    mAudioDecoder.queueInputBuffer(inputBufferIndex, 0, packet.data.length, packet.ptsUs, 0);
-                    Log.d(TAG, "Audio input: buffer index " + inputBufferIndex + ", buffer size " + packet.data.length + ", pts " + (packet.ptsUs / 1000) + "ms");
-                }
-            }
+            mOutputSurface.makeCurrent();
+            mOutputSurface.release();
+
+            Log.i(TAG, "Video render exit");
         }
-        Log.i(TAG, "AudioDecoderInput thread exit");
     }
 
-    @TargetApi(Build.VERSION_CODES.M)
-    private void VideoDecoderOutput() throws Exception {
-        mOutputSurface = new CodecOutputSurface(mVideoMediaFormat.getInteger(MediaFormat.KEY_WIDTH), mVideoMediaFormat.getInteger(MediaFormat.KEY_HEIGHT), mDisplaySurface);
+    //copies the PCM at the playback rate, in the output format if one is set, into the PCM ring
+    //from the core task, and hands the chunks to the audio listener from a task of its own, so the
+    //codec gets its buffers back however long the listener takes
+    private class AudioListenerOutput implements PlayerCore.AudioOutput {
+        private final DecoderScheduler mScheduler;
+        private PcmRing mRing;
+        private DecoderScheduler.Task mListenerTask;
+        final int[] mOutputFormat;             // setAudioOutputFormat() as of start()
+        AudioSinkWriter mWriter;                // of an AudioSinkOutput
+
+        AudioListenerOutput(DecoderScheduler scheduler) {
+            mScheduler = scheduler;
+            mOutputFormat = new int[]{mOutputSampleRate, mOutputChannelCount};
+        }
 
-        String mime = mVideoMediaFormat.getString(MediaFormat.KEY_MIME);
-        mVideoDecoder = MediaCodec.createDecoderByType(mime);
-        Log.i(TAG, "Video MediaFormat: " + mVideoMediaFormat.toString());
-        mVideoDecoder.configure(mVideoMediaFormat, mOutputSurface.getSurface(), null, 0);
-        mVideoDecoder.setVideoScalingMode(MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT_WITH_CROPPING);
-        mVideoDecoder.start();
+        @Override
+        public DecoderBackend createDecoder(DecoderBackend.Callback callback) throws Exception {
+            Log.i(TAG, "Audio MediaFormat: " + mAudioMediaFormat.toString());
+            DecoderBackend decoder = mDecoderFactory.createAudioDecoder(mAudioMediaFormat, callback);
+            if (mAudioSampleListener != null) {
+                final PcmRing ring = new PcmRing(mPcmChunkMs, PCM_RING_CHUNKS);
+                final IAudioSampleListener listener = mAudioSampleListener;
+                final CountDownLatch done = new CountDownLatch(1);
+                mRing = ring;
+                mPcmDone = done;
+                mListenerTask = ring.consumerTask(mScheduler, new PcmRing.Consumer() {
+                    @Override
+                    public void onChunk(PcmRing.Chunk chunk) {
+                        //nothing from before a seek, and nothing once stopped
+                        if (!stopped && chunk.generation == mSeekController.generation()) {
+                            DeliverPcm(listener, chunk);
+                        }
+                    }
 
-        videoClock = new SyncClock();
-        if (mAudioMediaFormat == null) {
-            primaryClock = videoClock;
+                    @Override
+                    public void onEndOfStream() {
+                        done.countDown();
+                    }
+                });
+            }
+            return decoder;
         }
 
-        mVideoInputThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    VideoDecoderInput();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+        @Override
+        public void deliver(ByteBuffer outputBuffer, DecoderBackend.BufferInfo info, DecoderBackend.OutputFormat audioOutputFmt, int generation) throws IOException {
+            PcmRing ring = mRing;
+            if (ring == null && mWriter == null) {
+                return;
             }
-        }, "Video Input");
-        mVideoInputThread.start();
-
-//        int interval = 100;
-//        int saveLimit = 10;
-
-        while (!stopped) {
-            if (mOutputSurface.getDisplaySurface() != mDisplaySurface) {
-                mOutputSurface.release();
-                mOutputSurface = null;
-                mOutputSurface = new CodecOutputSurface(mVideoMediaFormat.getInteger(MediaFormat.KEY_WIDTH), mVideoMediaFormat.getInteger(MediaFormat.KEY_HEIGHT), mDisplaySurface);
-                mVideoDecoder.setOutputSurface(mOutputSurface.getSurface());
+            ByteBuffer stretched = StretchPcm(outputBuffer, info, audioOutputFmt, generation);
+            ByteBuffer pcm = stretched;
+            if (pcm == null) {
+                pcm = outputBuffer;
+                pcm.limit(info.offset + info.size);
+                pcm.position(info.offset);
             }
-            if (paused) {
-                Thread.sleep(10);
-                videoClock.sysTimeMs = System.currentTimeMillis();
-                continue;
+            //the time stretching lags a little, its PCM starts about at the pts of the buffer
+            float rate = stretched != null ? mPlaybackRate : 1.0f;
+            long ptsUs = info.presentationTimeUs;
+            int sampleRate = audioOutputFmt.sampleRate;
+            int channelCount = audioOutputFmt.channelCount;
+            ByteBuffer resampled = ResamplePcm(pcm, sampleRate, channelCount, mOutputFormat, generation);
+            if (resampled != null) {
+                ptsUs += (long) (mResampler.lastOutputOffset() * rate * 1000000.0 / sampleRate);
+                pcm = resampled;
+                sampleRate = mResampler.getOutputRate();
+                channelCount = mResampler.getOutputChannels();
             }
-            BufferInfo info = new BufferInfo();
-            int outputBufferIndex = mVideoDecoder.dequeueOutputBuffer(info, 0);
-            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                break;
+            if (ring != null && ring.write(pcm, sampleRate, channelCount, ptsUs, rate, generation)) {
+                mListenerTask.wakeUp();
             }
-            if (outputBufferIndex >= 0) {
-                boolean shouldDrop = CompareClockAndSleep(info.presentationTimeUs, videoClock, primaryClock);
-                if (shouldDrop) {
-                    mVideoDecoder.releaseOutputBuffer(outputBufferIndex, false);
-                    continue;
-                }
-                ByteBuffer outputBuffer = mVideoDecoder.getOutputBuffer(outputBufferIndex);
-                final MediaFormat videoOutputFmt = mVideoDecoder.getOutputFormat(outputBufferIndex);
-                Log.d(TAG, "Video output: size " + info.size + ", pts " + (info.presentationTimeUs / 1000) + "ms, buffer size " + outputBuffer.remaining());
-                outputBuffer.position(0);
-                outputBuffer.clear();
-                mVideoDecoder.releaseOutputBuffer(outputBufferIndex, true);
-                boolean doRender = info.size > 0;
-                if (doRender) {
-                    mOutputSurface.awaitNewImage();
-                    mOutputSurface.drawImage(false);
-
-//                    if (saveLimit > 0) {
-//                        if (interval <= 0) {
-//                            DateFormat df = new SimpleDateFormat("HH-mm-ss");
-//                            String time = df.format(new Date());
-//                            File outputFile = new File("/sdcard/frame-" + time + ".png");
-//                            outputFile.createNewFile();
-//                            mOutputSurface.saveFrame(outputFile.toString());
-//                            interval = 100;
-//                            saveLimit--;
-//                        }
-//                        interval--;
-//                    }
-
-                    if (mVideoFrameListener != null) {
-                        int width = videoOutputFmt.getInteger(MediaFormat.KEY_WIDTH);
-                        if (videoOutputFmt.containsKey("crop-left") && videoOutputFmt.containsKey("crop-right")) {
-                            width = videoOutputFmt.getInteger("crop-right") + 1 - videoOutputFmt.getInteger("crop-left");
-                        }
-                        int height = videoOutputFmt.getInteger(MediaFormat.KEY_HEIGHT);
-                        if (videoOutputFmt.containsKey("crop-top") && videoOutputFmt.containsKey("crop-bottom")) {
-                            height = videoOutputFmt.getInteger("crop-bottom") + 1 - videoOutputFmt.getInteger("crop-top");
-                        }
-                        int colorFormat = videoOutputFmt.getInteger(MediaFormat.KEY_COLOR_FORMAT); //android.media.MediaCodecInfo.CodecCapabilities.COLOR_FormatXXXXXX
-                        mVideoFrameListener.onVideoFrameDecoded(mOutputSurface.getTextureId(), width, height, colorFormat, System.currentTimeMillis());
-                    }
-                }
-            } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                MediaFormat newOutputFormat = mVideoDecoder.getOutputFormat();
-                Log.i(TAG, "Video output format changed to: " + newOutputFormat.toString());
-                mVideoDecoder.setVideoScalingMode(MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT_WITH_CROPPING);
-            } else if (outputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                Thread.sleep(5);
+            if (mWriter != null) {
+                mWriter.write(pcm, sampleRate, channelCount, ptsUs, rate, generation);
             }
         }
 
-        mVideoInputThread.join();
-        mVideoInputThread = null;
-
-        videoClock.Reset();
-        if (videoClock == primaryClock) {
-            primaryClock = null;
+        @Override
+        public void release(DecoderBackend decoder) {
+            try {
+                decoder.stop();
+                decoder.release();
+            } finally {
+                if (mRing != null) {
+                    mRing.flush();
+                    mRing.endOfStream();
+                    mListenerTask.wakeUp();
+                }
+                if (mWriter != null) {
+                    mWriter.release();
+                }
+            }
         }
-        videoClock = null;
-
-        mVideoDecoder.stop();
-        mVideoDecoder.release();
-        mVideoDecoder = null;
-
-        mOutputSurface.release();
-
-        Log.i(TAG, "VideoDecoderOutput thread exit");
     }
 
-    private void AudioDecoderOutput() throws Exception {
-        String mime = mAudioMediaFormat.getString(MediaFormat.KEY_MIME);
-        mAudioDecoder = MediaCodec.createDecoderByType(mime);
-        Log.i(TAG, "Audio MediaFormat: " + mAudioMediaFormat.toString());
-        mAudioDecoder.configure(mAudioMediaFormat, null, null, 0);
-        mAudioDecoder.start();
-
-        audioClock = new SyncClock();
-        primaryClock = audioClock;
+    //plays the PCM through the audio sink as well, as fast as it has room, for the clock to
+    //follow what the sink has played
+    private final class AudioSinkOutput extends AudioListenerOutput implements PlayerCore.PlayingAudioOutput {
+        AudioSinkOutput(DecoderScheduler scheduler, AudioSink sink) {
+            super(scheduler);
+            mWriter = new AudioSinkWriter(sink);
+        }
 
-        mAudioInputThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    AudioDecoderInput();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
-        }, "Audio Input");
-        mAudioInputThread.start();
-
-        while (!stopped) {
-            if (paused) {
-                Thread.sleep(10);
-                audioClock.sysTimeMs = System.currentTimeMillis();
-                continue;
-            }
-            BufferInfo info = new BufferInfo();
-            int outputBufferIndex = mAudioDecoder.dequeueOutputBuffer(info, 0);
-            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                break;
-            }
-            if (outputBufferIndex >= 0) {
-                boolean shouldDrop = CompareClockAndSleep(info.presentationTimeUs, audioClock, primaryClock);
-                if (shouldDrop) {
-                    mAudioDecoder.releaseOutputBuffer(outputBufferIndex, false);
-                    continue;
-                }
-                ByteBuffer outputBuffer = mAudioDecoder.getOutputBuffer(outputBufferIndex);
-                final MediaFormat audioOutputFmt = mAudioDecoder.getOutputFormat(outputBufferIndex);
-                Log.d(TAG, "Audio output: size " + info.size + ", pts " + (info.presentationTimeUs / 1000) + "ms, buffer size " + outputBuffer.remaining());
-                if (mAudioSampleListener != null) {
-                    int channelCount = audioOutputFmt.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
-                    int sampleCount = info.size / (16 / 8);
-                    mAudioSampleListener.onAudioSampleDecoded(outputBuffer,
-                            audioOutputFmt.getInteger(MediaFormat.KEY_SAMPLE_RATE),
-                            channelCount,
-                            16, //AudioFormat.ENCODING_PCM_XXX
-                            sampleCount,
-                            audioClock.sysTimeMs
-                            );
-                }
-                outputBuffer.clear();
-                mAudioDecoder.releaseOutputBuffer(outputBufferIndex, true);
-            } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                MediaFormat newOutputFormat = mAudioDecoder.getOutputFormat();
-                Log.i(TAG, "Audio output format changed to: " + newOutputFormat.toString());
-            } else if (outputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                Thread.sleep(5);
-            }
+        @Override
+        public long roomInUs(int size, DecoderBackend.OutputFormat format) throws IOException {
+            //the frames the buffer comes to at the playback rate in the output format, give or take
+            //what the time stretching holds back
+            int outputRate = mOutputFormat[0] != 0 ? mOutputFormat[0] : format.sampleRate;
+            long frames = (long) (size / 2 / format.channelCount / mPlaybackRate) * outputRate / format.sampleRate;
+            return mWriter.roomInUs((int) frames);
         }
 
-        mAudioInputThread.join();
-        mAudioInputThread = null;
+        @Override
+        public long playingPtsUs(int generation) {
+            return mWriter.playingPtsUs(generation);
+        }
 
-        audioClock.Reset();
-        audioClock = null;
-        primaryClock = null;
+        @Override
+        public long unplayedUs() throws IOException {
+            return mWriter.unplayedUs();
+        }
 
-        mAudioDecoder.stop();
-        mAudioDecoder.release();
-        mAudioDecoder = null;
+        @Override
+        public void setPaused(boolean paused) {
+            mWriter.setPaused(paused);
+        }
 
-        Log.i(TAG, "AudioDecoderOutput thread exit");
+        @Override
+        public void flush() {
+            mWriter.flush();
+        }
     }
 
-    private class PacketBuffer {
-        public byte[] data;
-        public long ptsUs;
+    //on the listener task
+    private static void DeliverPcm(IAudioSampleListener listener, PcmRing.Chunk chunk) {
+        if (listener instanceof IAudioChunkListener) {
+            ((IAudioChunkListener) listener).onAudioChunkDecoded(chunk.data, chunk.sampleRate, chunk.channelCount,
+                    chunk.frames, chunk.ptsUs);
+        } else {
+            listener.onAudioSampleDecoded(chunk.data,
+                    chunk.sampleRate,
+                    chunk.channelCount,
+                    16, //AudioFormat.ENCODING_PCM_XXX
+                    chunk.frames,
+                    System.currentTimeMillis()
+                    );
+        }
     }
 
-    private class SyncClock {
-        public long ptsUs = Long.MIN_VALUE;
-        public long sysTimeMs = Long.MIN_VALUE;
-
-        public boolean Uninitialized() {
-            return (ptsUs == Long.MIN_VALUE && sysTimeMs == Long.MIN_VALUE);
+    //the PCM of the output buffer at the playback rate, null at normal speed when it's the
+    //output buffer as is. The time stretching lags the decoder a little, so it may be empty
+    private ByteBuffer StretchPcm(ByteBuffer outputBuffer, DecoderBackend.BufferInfo info, DecoderBackend.OutputFormat format, int generation) {
+        float rate = mPlaybackRate;
+        TimeStretcher stretcher = mTimeStretcher;
+        if (rate == 1.0f && (stretcher == null || !stretcher.isStretching())) {
+            return null;
         }
-
-        public void Reset() {
-            ptsUs = Long.MIN_VALUE;
-            sysTimeMs = Long.MIN_VALUE;
+        if (stretcher == null || stretcher.getSampleRate() != format.sampleRate || stretcher.getChannelCount() != format.channelCount) {
+            stretcher = new TimeStretcher(format.sampleRate, format.channelCount);
+            mTimeStretcher = stretcher;
+        } else if (generation != mStretchGeneration) { //what is left is from before a seek
+            stretcher.clear();
         }
+        mStretchGeneration = generation;
+        stretcher.setRate(rate);
+        stretcher.write(outputBuffer, info.offset, info.size);
+        int size = stretcher.availableFrames() * format.channelCount * 2;
+        if (mStretchedPcm == null || mStretchedPcm.capacity() < size) {
+            mStretchedPcm = ByteBuffer.allocateDirect(PacketPool.alignUp(size * 2)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        mStretchedPcm.clear();
+        stretcher.read(mStretchedPcm);
+        mStretchedPcm.flip();
+        return mStretchedPcm;
     }
 
-    private boolean CompareClockAndSleep(long ptsUs, SyncClock currentClock, SyncClock primaryClock) throws Exception {
-        long sysTimeMs = System.currentTimeMillis();
-        if (currentClock == null || primaryClock == null || primaryClock.Uninitialized()) {
-            if (currentClock == primaryClock && primaryClock != null) {
-                primaryClock.ptsUs = ptsUs;
-                primaryClock.sysTimeMs = sysTimeMs;
-                return false;
-            } else {
-                return true; //should drop this frame
-            }
+    //the PCM from pcm's position to its limit in the format set by setAudioOutputFormat(), null if
+    //that is the format it is in
+    private ByteBuffer ResamplePcm(ByteBuffer pcm, int sampleRate, int channelCount, int[] outputFormat, int generation) {
+        int outputRate = outputFormat[0] != 0 ? outputFormat[0] : sampleRate;
+        int outputChannels = outputFormat[1] != 0 ? outputFormat[1] : channelCount;
+        if (outputRate == sampleRate && outputChannels == channelCount) {
+            return null;
+        }
+        AudioResampler resampler = mResampler;
+        if (resampler == null || resampler.getInputRate() != sampleRate || resampler.getInputChannels() != channelCount
+                || resampler.getOutputRate() != outputRate || resampler.getOutputChannels() != outputChannels) {
+            resampler = new AudioResampler(sampleRate, channelCount, outputRate, outputChannels);
+            mResampler = resampler;
+        } else if (generation != mResampleGeneration) { //what the filter holds is from before a seek
+            resampler.clear();
+        }
+        mResampleGeneration = generation;
+        int frames = (pcm.limit() - pcm.position()) / 2 / channelCount;
+        int size = resampler.maxOutputFrames(frames) * outputChannels * 2;
+        if (mResampledPcm == null || mResampledPcm.capacity() < size) {
+            mResampledPcm = ByteBuffer.allocateDirect(PacketPool.alignUp(size * 2)).order(ByteOrder.LITTLE_ENDIAN);
         }
-        long sleepMs = (ptsUs - primaryClock.ptsUs) / 1000 - (sysTimeMs - primaryClock.sysTimeMs);
-        if (sleepMs > 0) { //It's not time for rendering this frame, sleep for a while
-            Log.d(TAG, "sleepMs " + sleepMs);
-            Thread.sleep(sleepMs);
-        } //else { // render this frame immediately }
-        currentClock.sysTimeMs = primaryClock.sysTimeMs + (ptsUs - primaryClock.ptsUs) / 1000;
-        currentClock.ptsUs = ptsUs;
-        return false;
+        mResampledPcm.clear();
+        resampler.process(pcm, pcm.position(), pcm.limit() - pcm.position(), mResampledPcm);
+        mResampledPcm.flip();
+        return mResampledPcm;
     }
 
     public interface IVideoFrameListener {
         void onVideoFrameDecoded(int textureId, int width, int height, int colorFormat, long timestampMs);
     }
 
+    //called on a task of its own, see setPcmChunkDurationMs(). data: the 16 bit PCM, only valid during the
+    //call. sampleCount: the frames of it, per channel
     public interface IAudioSampleListener {
         void onAudioSampleDecoded(ByteBuffer data, int sampleRate, int channelCount, int bitsPerSample, int sampleCount, long timestampMs);
     }
 
+    //an audio listener implementing this gets every chunk here instead, with the pts of its first frame
+    public interface IAudioChunkListener extends IAudioSampleListener {
+        void onAudioChunkDecoded(ByteBuffer data, int sampleRate, int channelCount, int frameCount, long ptsUs);
+    }
+
+    //index: of the time in the timestampsUs passed to extractFrames(), rgba: width * height * 4
+    //bytes, top row first, only valid during the call
+    public interface IFrameExtractListener {
+        void onFrameExtracted(int index, long requestedUs, long ptsUs, ByteBuffer rgba, int width, int height);
+    }
+
     ////////////////////////////////////////////////////////////////////////////////////////////////
     public static class SharedEGLContext {
         private static EGLContext mSharedEGLContext;
@@ -763,7 +980,7 @@ public class Mp4Decoder {
         private Object mFrameSyncObject = new Object();     // guards mFrameAvailable
         private boolean mFrameAvailable;
 
-        private ByteBuffer mPixelBuf;                       // used by saveFrame()
+        private ByteBuffer mPixelBuf;                       // used by readPixels()
 
         /**
          * Creates a CodecOutputSurface backed by a pbuffer with the specified dimensions.  The
@@ -919,6 +1136,15 @@ public class Mp4Decoder {
             }
         }
 
+        /**
+         * Makes no EGL context current on this thread, so another thread may make ours current.
+         */
+        public void releaseCurrent() {
+            if (!mEgl.eglMakeCurrent(mEGLDisplay, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT)) {
+                throw new RuntimeException("eglMakeCurrent failed");
+            }
+        }
+
         /**
          * Returns the Surface.
          */
@@ -1000,7 +1226,6 @@ public class Mp4Decoder {
         // SurfaceTexture callback
         @Override
         public void onFrameAvailable(SurfaceTexture st) {
-            Log.d(TAG, "new frame available");
             synchronized (mFrameSyncObject) {
                 if (mFrameAvailable) {
                     throw new RuntimeException("mFrameAvailable already set, frame could be dropped");
@@ -1010,6 +1235,18 @@ public class Mp4Decoder {
             }
         }
 
+        /**
+         * Reads the current frame back as RGBA into the pixel buffer, which is allocated once
+         * and returned rewound.  Valid until the next call.
+         */
+        public ByteBuffer readPixels() {
+            mPixelBuf.rewind();
+            GLES20.glReadPixels(0, 0, mWidth, mHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
+                    mPixelBuf);
+            mPixelBuf.rewind();
+            return mPixelBuf;
+        }
+
         /**
          * Saves the current frame to disk as a PNG image.
          */
@@ -1046,9 +1283,7 @@ public class Mp4Decoder {
             // allocated ahead of time if possible.  We still get some allocations from the
             // Bitmap / PNG creation.
 
-            mPixelBuf.rewind();
-            GLES20.glReadPixels(0, 0, mWidth, mHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
-                    mPixelBuf);
+            readPixels();
 
             BufferedOutputStream bos = null;
             try {
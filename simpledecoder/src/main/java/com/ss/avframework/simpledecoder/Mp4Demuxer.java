@@ -0,0 +1,378 @@
+package com.ss.avframework.simpledecoder;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Pure-Java MP4 demuxer over a memory-mapped file, or a {@link DataSource}.
+ * <p>
+ * The call pattern follows {@link android.media.MediaExtractor} (select tracks, then
+ * {@link #readSampleData}/{@link #advance()} until {@link #getSampleTrackIndex()} returns
+ * -1), but nothing here depends on Android, so it can be run and benchmarked on a plain
+ * JVM.  Samples of the selected tracks come out in decode order per track and interleaved
+ * across tracks by file offset, which keeps reads sequential.
+ * <p>
+ * {@link #getSampleData()} returns the current sample as a slice of the mapping, without
+ * copying.  From a data source only the top level box headers and {@code moov} are read to
+ * open it, and then every sample as it is asked for, so a remote file plays while the rest
+ * of it is still coming.  Not thread safe.
+ */
+final class Mp4Demuxer {
+    static final int SAMPLE_FLAG_SYNC = 1;          // MediaExtractor.SAMPLE_FLAG_SYNC
+
+    static final int SEEK_TO_PREVIOUS_SYNC = 0;     // MediaExtractor.SEEK_TO_PREVIOUS_SYNC
+    static final int SEEK_TO_NEXT_SYNC = 1;         // MediaExtractor.SEEK_TO_NEXT_SYNC
+    static final int SEEK_TO_CLOSEST_SYNC = 2;      // MediaExtractor.SEEK_TO_CLOSEST_SYNC
+
+    private RandomAccessFile mFile;
+    private MappedByteBuffer mMap;
+    private DataSource mSource;                     // instead of the file
+    private final ByteBuffer mView;                 // reused for getSampleData(), of the map or read from the source
+    private final Mp4Track[] mTracks;
+    private final boolean[] mSelected;
+    private final int[] mNextSample;                // per track, the next sample to hand out
+    private int mCurrentTrack = -1;
+
+    /**
+     * Maps and parses {@code path}.
+     *
+     * @throws IOException if the file can't be read or is not an MP4 file
+     */
+    Mp4Demuxer(String path) throws IOException {
+        this(path, null);
+    }
+
+    /**
+     * Maps {@code path} and takes its sample tables from {@code cache} when there is an
+     * entry for it, parsing the file and storing the entry otherwise.
+     *
+     * @param cache may be null
+     * @throws IOException if the file can't be read or is not an MP4 file
+     */
+    Mp4Demuxer(String path, SampleIndexCache cache) throws IOException {
+        File file = new File(path);
+        if (file.length() > Integer.MAX_VALUE) {
+            throw new IOException("Files over 2 GB are not supported: " + path);
+        }
+        mFile = new RandomAccessFile(file, "r");
+        try {
+            mMap = mFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, mFile.length());
+            Mp4Track[] tracks = cache != null ? cache.load(file) : null;
+            if (tracks == null) {
+                tracks = Mp4Parser.parse(mMap);
+                if (cache != null) {
+                    cache.store(file, tracks);
+                }
+            }
+            mTracks = tracks;
+        } catch (IOException e) {
+            release();
+            throw e;
+        } catch (RuntimeException e) { //IndexOutOfBoundsException etc on truncated boxes
+            release();
+            throw new IOException("Malformed MP4 file: " + path, e);
+        }
+        mView = mMap.duplicate();
+        mSelected = new boolean[mTracks.length];
+        mNextSample = new int[mTracks.length];
+    }
+
+    /**
+     * Parses the {@code moov} box of source, which it then reads the samples from.  Releasing
+     * the demuxer closes the source.
+     *
+     * @throws IOException if the source can't be read or is not an MP4 file
+     */
+    Mp4Demuxer(DataSource source) throws IOException {
+        mSource = source;
+        try {
+            mTracks = Mp4Parser.parseMoov(readMoov(source), 0);
+        } catch (IOException e) {
+            release();
+            throw e;
+        } catch (RuntimeException e) {
+            release();
+            throw new IOException("Malformed MP4 file", e);
+        }
+        int maxSampleSize = 0;
+        for (Mp4Track track : mTracks) {
+            maxSampleSize = Math.max(maxSampleSize, track.maxSampleSize);
+        }
+        mView = ByteBuffer.allocateDirect(PacketPool.alignUp(Math.max(maxSampleSize, 1)));
+        mSelected = new boolean[mTracks.length];
+        mNextSample = new int[mTracks.length];
+    }
+
+    int getTrackCount() {
+        return mTracks.length;
+    }
+
+    Mp4Track getTrack(int index) {
+        return mTracks[index];
+    }
+
+    void selectTrack(int index) {
+        mSelected[index] = true;
+        pickNextSample();
+    }
+
+    void unselectTrack(int index) {
+        mSelected[index] = false;
+        pickNextSample();
+    }
+
+    /**
+     * @return the track of the current sample, -1 once every selected track is exhausted
+     */
+    int getSampleTrackIndex() {
+        return mCurrentTrack;
+    }
+
+    /**
+     * @return presentation time of the current sample in microseconds, -1 at the end
+     */
+    long getSampleTime() {
+        if (mCurrentTrack < 0) {
+            return -1;
+        }
+        return mTracks[mCurrentTrack].getPtsUs(mNextSample[mCurrentTrack]);
+    }
+
+    int getSampleFlags() {
+        if (mCurrentTrack < 0) {
+            return 0;
+        }
+        return mTracks[mCurrentTrack].isSyncSample(mNextSample[mCurrentTrack]) ? SAMPLE_FLAG_SYNC : 0;
+    }
+
+    /**
+     * @return size of the current sample in bytes, -1 at the end
+     */
+    int getSampleSize() {
+        if (mCurrentTrack < 0) {
+            return -1;
+        }
+        return mTracks[mCurrentTrack].getSize(mNextSample[mCurrentTrack]);
+    }
+
+    /**
+     * @return offset of the current sample in the mapped file, for {@link #getMappedData}
+     * later on, -1 at the end or from a data source
+     */
+    long getSampleOffset() {
+        if (mCurrentTrack < 0 || mMap == null) {
+            return -1;
+        }
+        return mTracks[mCurrentTrack].getOffset(mNextSample[mCurrentTrack]);
+    }
+
+    /**
+     * @return index of the current sample within its track, -1 at the end
+     */
+    int getSampleIndex() {
+        if (mCurrentTrack < 0) {
+            return -1;
+        }
+        return mNextSample[mCurrentTrack];
+    }
+
+    /**
+     * Returns the current sample as a read-only view of the mapped file, or as read from the
+     * data source: position is the first byte of the sample, limit is just past its last
+     * byte.  The same buffer object is reused by every call, so the view is only valid until
+     * the next call.
+     *
+     * @return the view, or null at the end
+     * @throws IllegalStateException if the data source fails to read it
+     */
+    ByteBuffer getSampleData() {
+        if (mCurrentTrack < 0) {
+            return null;
+        }
+        Mp4Track track = mTracks[mCurrentTrack];
+        int sample = mNextSample[mCurrentTrack];
+        if (mSource != null) {
+            long offset = track.getOffset(sample);
+            try {
+                mView.clear();
+                mView.limit(track.getSize(sample));
+                ReadFully(mSource, offset, mView);
+            } catch (IOException e) {
+                throw new IllegalStateException("Can't read sample " + sample + " at " + offset, e);
+            }
+            mView.flip();
+            return mView;
+        }
+        int offset = (int) track.getOffset(sample);
+        mView.limit(offset + track.getSize(sample));
+        mView.position(offset);
+        return mView;
+    }
+
+    /**
+     * Returns {@code size} bytes of the mapped file at {@code offset}, a sample
+     * {@link #getSampleOffset()} was of, as a view like {@link #getSampleData()} does: reused,
+     * valid until the next call.
+     */
+    ByteBuffer getMappedData(long offset, int size) {
+        mView.limit((int) offset + size);
+        mView.position((int) offset);
+        return mView;
+    }
+
+    /**
+     * Copies the current sample into {@code buffer} at {@code offset}, leaving position at
+     * {@code offset} and limit just past the sample, like MediaExtractor does.
+     *
+     * @return size of the sample, -1 at the end
+     * @throws IllegalArgumentException if the sample doesn't fit
+     */
+    int readSampleData(ByteBuffer buffer, int offset) {
+        ByteBuffer sample = getSampleData();
+        if (sample == null) {
+            return -1;
+        }
+        return copySample(sample, buffer, offset);
+    }
+
+    //copies the sample view into buffer at offset like readSampleData()
+    static int copySample(ByteBuffer sample, ByteBuffer buffer, int offset) {
+        int size = sample.remaining();
+        if (buffer.capacity() - offset < size) {
+            throw new IllegalArgumentException("Sample of " + size + " bytes doesn't fit");
+        }
+        buffer.clear();
+        buffer.position(offset);
+        buffer.put(sample);
+        buffer.limit(offset + size);
+        buffer.position(offset);
+        return size;
+    }
+
+    /**
+     * Moves to the next sample.
+     *
+     * @return false if there are no more samples
+     */
+    boolean advance() {
+        if (mCurrentTrack < 0) {
+            return false;
+        }
+        mNextSample[mCurrentTrack]++;
+        pickNextSample();
+        return mCurrentTrack >= 0;
+    }
+
+    /**
+     * Positions every selected track at a sync sample near {@code timeUs}.
+     *
+     * @param mode one of the {@code SEEK_TO_*} constants
+     */
+    void seekTo(long timeUs, int mode) {
+        for (int i = 0; i < mTracks.length; i++) {
+            Mp4Track track = mTracks[i];
+            if (track.sampleCount == 0) {
+                continue;
+            }
+            int sample = track.sampleAtOrBefore(timeUs);
+            int previous = track.previousSyncSample(sample);
+            int next = track.nextSyncSample(sample);
+            if (mode == SEEK_TO_NEXT_SYNC) {
+                sample = next;
+            } else if (mode == SEEK_TO_CLOSEST_SYNC && next < track.sampleCount
+                    && track.getDtsUs(next) - timeUs < timeUs - track.getDtsUs(previous)) {
+                sample = next;
+            } else {
+                sample = previous;
+            }
+            mNextSample[i] = sample;
+        }
+        pickNextSample();
+        if (mSource != null && mCurrentTrack >= 0) { //a remote source fetches from here on now
+            mSource.readAhead(mTracks[mCurrentTrack].getOffset(mNextSample[mCurrentTrack]));
+        }
+    }
+
+    void release() {
+        mMap = null;
+        if (mSource != null) {
+            try {
+                mSource.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mSource = null;
+        }
+        if (mFile != null) {
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mFile = null;
+        }
+    }
+
+    //the moov box of source, found by hopping from box header to box header from the start
+    static ByteBuffer readMoov(DataSource source) throws IOException {
+        long size = source.size();
+        ByteBuffer header = ByteBuffer.allocate(16);
+        long box = 0;
+        while (size == DataSource.UNKNOWN_SIZE || box + 8 <= size) {
+            header.clear();
+            header.limit(size == DataSource.UNKNOWN_SIZE ? 16 : (int) Math.min(16, size - box));
+            ReadFully(source, box, header);
+            long boxSize = header.getInt(0) & 0xffffffffL;
+            if (boxSize == 1) {
+                boxSize = header.getLong(8);
+            } else if (boxSize == 0) { //to the end of the file
+                boxSize = size - box;
+            }
+            if (boxSize < 8) {
+                break;
+            }
+            if (header.getInt(4) == Mp4Parser.TYPE_moov) {
+                if (boxSize > Integer.MAX_VALUE) {
+                    throw new IOException("moov box of " + boxSize + " bytes");
+                }
+                ByteBuffer moov = ByteBuffer.allocate((int) boxSize);
+                ReadFully(source, box, moov);
+                return moov;
+            }
+            box += boxSize;
+        }
+        throw new IOException("No moov box");
+    }
+
+    //reads from position until buffer is full, EOFException if the source ends first
+    private static void ReadFully(DataSource source, long position, ByteBuffer buffer) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            int read = source.readAt(start + buffer.position(), buffer);
+            if (read < 0) {
+                throw new EOFException("End of source at " + (start + buffer.position()));
+            }
+        }
+    }
+
+    //the selected track whose next sample comes first in the file
+    private void pickNextSample() {
+        mCurrentTrack = -1;
+        long bestOffset = Long.MAX_VALUE;
+        for (int i = 0; i < mTracks.length; i++) {
+            if (!mSelected[i] || mNextSample[i] >= mTracks[i].sampleCount) {
+                continue;
+            }
+            long offset = mTracks[i].getOffset(mNextSample[i]);
+            if (offset < bestOffset) {
+                bestOffset = offset;
+                mCurrentTrack = i;
+            }
+        }
+    }
+}
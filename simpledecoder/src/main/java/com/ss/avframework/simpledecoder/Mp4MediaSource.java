@@ -0,0 +1,149 @@
+package com.ss.avframework.simpledecoder;
+
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link MediaSource} backed by the pure-Java {@link Mp4Demuxer}.
+ * <p>
+ * Builds the MediaFormat MediaCodec needs from the parsed sample entries, and rewrites
+ * length-prefixed AVC/HEVC samples to Annex B on the way out, as MediaExtractor does.  The
+ * samples of a mapped file are kept: read later by {@link #readSampleAt}, they are copied
+ * once, from the mapping into the codec.
+ */
+final class Mp4MediaSource implements MediaSource, PlayerCore.MappedSource {
+    private final Mp4Demuxer mDemuxer;
+
+    Mp4MediaSource(Mp4Demuxer demuxer) {
+        mDemuxer = demuxer;
+    }
+
+    Mp4Demuxer getDemuxer() {
+        return mDemuxer;
+    }
+
+    @Override
+    public int getTrackCount() {
+        return mDemuxer.getTrackCount();
+    }
+
+    @Override
+    public MediaFormat getTrackFormat(int index) {
+        return CreateMediaFormat(mDemuxer.getTrack(index));
+    }
+
+    @Override
+    public void selectTrack(int index) {
+        mDemuxer.selectTrack(index);
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        int trackIndex = mDemuxer.getSampleTrackIndex();
+        if (trackIndex < 0) {
+            return -1;
+        }
+        int nalLengthSize = mDemuxer.getTrack(trackIndex).nalLengthSize;
+        if (nalLengthSize == 0) {
+            return mDemuxer.readSampleData(buffer, offset);
+        }
+        return CopyAsAnnexB(mDemuxer.getSampleData(), nalLengthSize, buffer, offset);
+    }
+
+    @Override
+    public long getSampleOffset() {
+        return mDemuxer.getSampleOffset();
+    }
+
+    @Override
+    public int getSampleSize() {
+        return mDemuxer.getSampleSize();
+    }
+
+    @Override
+    public int readSampleAt(int trackIndex, long sampleOffset, int sampleSize, ByteBuffer buffer, int offset) {
+        if (sampleOffset < 0) {
+            throw new IllegalArgumentException("sampleOffset " + sampleOffset);
+        }
+        ByteBuffer sample = mDemuxer.getMappedData(sampleOffset, sampleSize);
+        int nalLengthSize = mDemuxer.getTrack(trackIndex).nalLengthSize;
+        if (nalLengthSize == 0) {
+            return Mp4Demuxer.copySample(sample, buffer, offset);
+        }
+        return CopyAsAnnexB(sample, nalLengthSize, buffer, offset);
+    }
+
+    @Override
+    public int getSampleTrackIndex() {
+        return mDemuxer.getSampleTrackIndex();
+    }
+
+    @Override
+    public long getSampleTime() {
+        return mDemuxer.getSampleTime();
+    }
+
+    @Override
+    public int getSampleFlags() {
+        return mDemuxer.getSampleFlags();
+    }
+
+    @Override
+    public boolean advance() {
+        return mDemuxer.advance();
+    }
+
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        mDemuxer.seekTo(timeUs, mode);
+    }
+
+    @Override
+    public void release() {
+        mDemuxer.release();
+    }
+
+    /**
+     * Copies the length-prefixed sample into {@code buffer} at {@code offset} as Annex B,
+     * leaving position and limit around it like readSampleData().
+     *
+     * @throws IllegalArgumentException if it may not fit
+     */
+    static int CopyAsAnnexB(ByteBuffer sample, int nalLengthSize, ByteBuffer buffer, int offset) {
+        if (buffer.capacity() - offset < AvcUtils.maxAnnexBSize(sample.remaining(), nalLengthSize)) {
+            throw new IllegalArgumentException("Sample of " + sample.remaining() + " bytes doesn't fit");
+        }
+        buffer.clear();
+        buffer.position(offset);
+        int size = AvcUtils.copyAsAnnexB(sample, buffer, nalLengthSize);
+        buffer.limit(offset + size);
+        buffer.position(offset);
+        return size;
+    }
+
+    static MediaFormat CreateMediaFormat(Mp4Track track) {
+        MediaFormat format;
+        String mime = track.mime != null ? track.mime : "application/octet-stream";
+        if (track.isVideo()) {
+            format = MediaFormat.createVideoFormat(mime, track.width, track.height);
+            if (track.durationUs > 0 && track.sampleCount > 1) {
+                format.setInteger(MediaFormat.KEY_FRAME_RATE, (int) ((track.sampleCount * 1000000L + track.durationUs / 2) / track.durationUs));
+            }
+        } else if (track.isAudio()) {
+            format = MediaFormat.createAudioFormat(mime, track.sampleRate, track.channelCount);
+        } else {
+            format = new MediaFormat();
+            format.setString(MediaFormat.KEY_MIME, mime);
+        }
+        format.setLong(MediaFormat.KEY_DURATION, track.durationUs);
+        if (track.maxSampleSize > 0) { //unknown for fragmented MP4 until the samples come
+            int maxInputSize = track.nalLengthSize > 0 ? AvcUtils.maxAnnexBSize(track.maxSampleSize, track.nalLengthSize) : track.maxSampleSize;
+            format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, maxInputSize);
+        }
+        for (int i = 0; i < track.csd.length; i++) {
+            format.setByteBuffer("csd-" + i, ByteBuffer.wrap(track.csd[i]));
+        }
+        return format;
+    }
+}
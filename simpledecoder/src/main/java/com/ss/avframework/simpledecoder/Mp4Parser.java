@@ -0,0 +1,476 @@
+package com.ss.avframework.simpledecoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+
+/**
+ * Parses the {@code moov} box of an ISO-BMFF (MP4) file into {@link Mp4Track}s.
+ * <p>
+ * Only what playback needs is read: {@code tkhd}, {@code mdhd}, {@code hdlr},
+ * {@code elst} and the sample table boxes {@code stsd}, {@code stts}, {@code ctts},
+ * {@code stss}, {@code stsz}/{@code stz2}, {@code stsc} and {@code stco}/{@code co64}.
+ * All reads are absolute, so the buffer's position and limit are never touched and a
+ * memory-mapped file can be parsed in place.
+ */
+final class Mp4Parser {
+    static final int TYPE_moov = fourcc("moov");
+    static final int TYPE_trak = fourcc("trak");
+    static final int TYPE_tkhd = fourcc("tkhd");
+    static final int TYPE_edts = fourcc("edts");
+    static final int TYPE_elst = fourcc("elst");
+    static final int TYPE_mdia = fourcc("mdia");
+    static final int TYPE_mdhd = fourcc("mdhd");
+    static final int TYPE_hdlr = fourcc("hdlr");
+    static final int TYPE_minf = fourcc("minf");
+    static final int TYPE_stbl = fourcc("stbl");
+    static final int TYPE_stsd = fourcc("stsd");
+    static final int TYPE_stts = fourcc("stts");
+    static final int TYPE_ctts = fourcc("ctts");
+    static final int TYPE_stss = fourcc("stss");
+    static final int TYPE_stsz = fourcc("stsz");
+    static final int TYPE_stz2 = fourcc("stz2");
+    static final int TYPE_stsc = fourcc("stsc");
+    static final int TYPE_stco = fourcc("stco");
+    static final int TYPE_co64 = fourcc("co64");
+    static final int TYPE_avc1 = fourcc("avc1");
+    static final int TYPE_avc3 = fourcc("avc3");
+    static final int TYPE_avcC = fourcc("avcC");
+    static final int TYPE_hvc1 = fourcc("hvc1");
+    static final int TYPE_hev1 = fourcc("hev1");
+    static final int TYPE_hvcC = fourcc("hvcC");
+    static final int TYPE_mp4a = fourcc("mp4a");
+    static final int TYPE_esds = fourcc("esds");
+    static final int TYPE_vide = fourcc("vide");
+    static final int TYPE_soun = fourcc("soun");
+
+    private static final int HEADER_SIZE = 8;
+
+    private Mp4Parser() {
+    }
+
+    /**
+     * Finds {@code moov} among the top level boxes of {@code file} and parses its tracks.
+     *
+     * @throws IOException if there is no {@code moov} or it is malformed
+     */
+    static Mp4Track[] parse(ByteBuffer file) throws IOException {
+        long moov = findBox(file, 0, file.limit(), TYPE_moov);
+        if (moov < 0) {
+            throw new IOException("No moov box");
+        }
+        return parseMoov(file, moov);
+    }
+
+    /**
+     * Parses the tracks of the {@code moov} box starting at {@code moov}.
+     */
+    static Mp4Track[] parseMoov(ByteBuffer file, long moov) throws IOException {
+        ArrayList<Mp4Track> tracks = new ArrayList<Mp4Track>();
+        long end = boxEnd(file, moov);
+        for (long box = moov + HEADER_SIZE; box < end; box = boxEnd(file, box)) {
+            if (boxType(file, box) == TYPE_trak) {
+                tracks.add(parseTrak(file, box));
+            }
+        }
+        return tracks.toArray(new Mp4Track[tracks.size()]);
+    }
+
+    private static Mp4Track parseTrak(ByteBuffer file, long trak) throws IOException {
+        Mp4Track track = new Mp4Track();
+        long tkhd = child(file, trak, TYPE_tkhd);
+        if (tkhd >= 0) {
+            int version = file.get(offset(tkhd, HEADER_SIZE));
+            track.trackId = file.getInt(offset(tkhd, HEADER_SIZE + (version == 1 ? 20 : 12)));
+        }
+        long mdia = requireChild(file, trak, TYPE_mdia);
+        long mdhd = requireChild(file, mdia, TYPE_mdhd);
+        int version = file.get(offset(mdhd, HEADER_SIZE));
+        long duration;
+        if (version == 1) {
+            track.timescale = uint32(file, mdhd, HEADER_SIZE + 20);
+            duration = file.getLong(offset(mdhd, HEADER_SIZE + 24));
+        } else {
+            track.timescale = uint32(file, mdhd, HEADER_SIZE + 12);
+            duration = uint32(file, mdhd, HEADER_SIZE + 16);
+        }
+        if (track.timescale <= 0) {
+            throw new IOException("Bad timescale in track " + track.trackId);
+        }
+        long hdlr = child(file, mdia, TYPE_hdlr);
+        if (hdlr >= 0) {
+            int handler = file.getInt(offset(hdlr, HEADER_SIZE + 8));
+            track.type = handler == TYPE_vide ? Mp4Track.TYPE_VIDEO
+                    : handler == TYPE_soun ? Mp4Track.TYPE_AUDIO : Mp4Track.TYPE_UNKNOWN;
+        }
+
+        long edts = child(file, trak, TYPE_edts);
+        if (edts >= 0) {
+            parseElst(file, edts, track);
+        }
+
+        long stbl = requireChild(file, requireChild(file, mdia, TYPE_minf), TYPE_stbl);
+        parseStsd(file, requireChild(file, stbl, TYPE_stsd), track);
+        parseSampleTables(file, stbl, track);
+        track.durationUs = duration > 0 ? track.toUs(duration) : track.sampleCount > 0
+                ? track.getDtsUs(track.sampleCount - 1) : 0;
+        return track;
+    }
+
+    //only the common case is honored: an optional empty edit followed by one media edit
+    private static void parseElst(ByteBuffer file, long edts, Mp4Track track) {
+        long elst = child(file, edts, TYPE_elst);
+        if (elst < 0) {
+            return;
+        }
+        int version = file.get(offset(elst, HEADER_SIZE));
+        long count = uint32(file, elst, HEADER_SIZE + 4);
+        int entrySize = version == 1 ? 20 : 12;
+        for (int i = 0; i < count; i++) {
+            int entry = HEADER_SIZE + 8 + i * entrySize;
+            long mediaTime = version == 1 ? file.getLong(offset(elst, entry + 8))
+                    : file.getInt(offset(elst, entry + 4));
+            if (mediaTime >= 0) {
+                track.editMediaTime = mediaTime;
+                return;
+            }
+        }
+    }
+
+    private static void parseStsd(ByteBuffer file, long stsd, Mp4Track track) throws IOException {
+        if (uint32(file, stsd, HEADER_SIZE + 4) < 1) {
+            throw new IOException("Empty stsd in track " + track.trackId);
+        }
+        long entry = stsd + HEADER_SIZE + 8;
+        int type = boxType(file, entry);
+        track.codec = fourccToString(type);
+        long end = boxEnd(file, entry);
+        if (type == TYPE_avc1 || type == TYPE_avc3 || type == TYPE_hvc1 || type == TYPE_hev1) {
+            //VisualSampleEntry: 8 bytes SampleEntry, 16 reserved, width, height, ... 78 bytes in total
+            track.width = file.getShort(offset(entry, HEADER_SIZE + 24)) & 0xffff;
+            track.height = file.getShort(offset(entry, HEADER_SIZE + 26)) & 0xffff;
+            for (long box = entry + HEADER_SIZE + 78; box + HEADER_SIZE <= end; box = boxEnd(file, box)) {
+                int boxType = boxType(file, box);
+                if (boxType == TYPE_avcC) {
+                    parseAvcC(file, box, track);
+                    track.mime = Mp4Track.MIME_AVC;
+                } else if (boxType == TYPE_hvcC) {
+                    parseHvcC(file, box, track);
+                    track.mime = Mp4Track.MIME_HEVC;
+                }
+            }
+        } else if (type == TYPE_mp4a) {
+            //AudioSampleEntry: 8 bytes SampleEntry, version, 6 reserved, channels, sample size, 4 reserved, rate 16.16
+            int version = file.getShort(offset(entry, HEADER_SIZE + 8));
+            track.channelCount = file.getShort(offset(entry, HEADER_SIZE + 16)) & 0xffff;
+            track.sampleRate = (int) (uint32(file, entry, HEADER_SIZE + 24) >>> 16);
+            int children = HEADER_SIZE + 28 + (version == 1 ? 16 : version == 2 ? 36 : 0);
+            for (long box = entry + children; box + HEADER_SIZE <= end; box = boxEnd(file, box)) {
+                if (boxType(file, box) == TYPE_esds) {
+                    parseEsds(file, box, track);
+                    track.mime = Mp4Track.MIME_AAC;
+                }
+            }
+        }
+    }
+
+    private static void parseAvcC(ByteBuffer file, long avcC, Mp4Track track) {
+        int pos = offset(avcC, HEADER_SIZE);
+        track.nalLengthSize = (file.get(pos + 4) & 0x3) + 1;
+        ArrayList<byte[]> sps = new ArrayList<byte[]>();
+        ArrayList<byte[]> pps = new ArrayList<byte[]>();
+        int count = file.get(pos + 5) & 0x1f;
+        pos += 6;
+        for (int i = 0; i < count; i++) {
+            int size = file.getShort(pos) & 0xffff;
+            sps.add(copy(file, pos + 2, size));
+            pos += 2 + size;
+        }
+        count = file.get(pos) & 0xff;
+        pos += 1;
+        for (int i = 0; i < count; i++) {
+            int size = file.getShort(pos) & 0xffff;
+            pps.add(copy(file, pos + 2, size));
+            pos += 2 + size;
+        }
+        track.csd = new byte[][]{toAnnexB(sps), toAnnexB(pps)};
+    }
+
+    //all parameter set arrays (VPS, SPS, PPS) go to csd-0 as MediaCodec expects for HEVC
+    private static void parseHvcC(ByteBuffer file, long hvcC, Mp4Track track) {
+        int pos = offset(hvcC, HEADER_SIZE);
+        track.nalLengthSize = (file.get(pos + 21) & 0x3) + 1;
+        int arrays = file.get(pos + 22) & 0xff;
+        pos += 23;
+        ArrayList<byte[]> nals = new ArrayList<byte[]>();
+        for (int i = 0; i < arrays; i++) {
+            int count = file.getShort(pos + 1) & 0xffff;
+            pos += 3;
+            for (int j = 0; j < count; j++) {
+                int size = file.getShort(pos) & 0xffff;
+                nals.add(copy(file, pos + 2, size));
+                pos += 2 + size;
+            }
+        }
+        track.csd = new byte[][]{toAnnexB(nals)};
+    }
+
+    //ES_Descriptor -> DecoderConfigDescriptor -> DecoderSpecificInfo (the AudioSpecificConfig)
+    private static void parseEsds(ByteBuffer file, long esds, Mp4Track track) throws IOException {
+        int pos = offset(esds, HEADER_SIZE + 4);
+        int end = (int) boxEnd(file, esds);
+        while (pos < end) {
+            int tag = file.get(pos++) & 0xff;
+            int size = 0;
+            for (int i = 0; i < 4; i++) {
+                int b = file.get(pos++) & 0xff;
+                size = (size << 7) | (b & 0x7f);
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            if (tag == 0x03) {          // ES_Descriptor
+                int flags = file.get(pos + 2) & 0xff;
+                pos += 3;
+                if ((flags & 0x80) != 0) {
+                    pos += 2;
+                }
+                if ((flags & 0x40) != 0) {
+                    pos += 1 + (file.get(pos) & 0xff);
+                }
+                if ((flags & 0x20) != 0) {
+                    pos += 2;
+                }
+            } else if (tag == 0x04) {   // DecoderConfigDescriptor
+                pos += 13;
+            } else if (tag == 0x05) {   // DecoderSpecificInfo
+                track.csd = new byte[][]{copy(file, pos, size)};
+                return;
+            } else {
+                pos += size;
+            }
+        }
+    }
+
+    private static void parseSampleTables(ByteBuffer file, long stbl, Mp4Track track) throws IOException {
+        //sizes
+        long stsz = child(file, stbl, TYPE_stsz);
+        int count;
+        int[] sizes;
+        if (stsz >= 0) {
+            int fixedSize = file.getInt(offset(stsz, HEADER_SIZE + 4));
+            count = checkedCount(uint32(file, stsz, HEADER_SIZE + 8));
+            sizes = new int[count];
+            int pos = offset(stsz, HEADER_SIZE + 12);
+            for (int i = 0; i < count; i++) {
+                sizes[i] = fixedSize != 0 ? fixedSize : file.getInt(pos + 4 * i);
+            }
+        } else {
+            long stz2 = requireChild(file, stbl, TYPE_stz2);
+            int fieldSize = file.get(offset(stz2, HEADER_SIZE + 7)) & 0xff;
+            count = checkedCount(uint32(file, stz2, HEADER_SIZE + 8));
+            sizes = new int[count];
+            int pos = offset(stz2, HEADER_SIZE + 12);
+            for (int i = 0; i < count; i++) {
+                if (fieldSize == 4) {
+                    int b = file.get(pos + i / 2) & 0xff;
+                    sizes[i] = (i & 1) == 0 ? b >>> 4 : b & 0xf;
+                } else if (fieldSize == 8) {
+                    sizes[i] = file.get(pos + i) & 0xff;
+                } else {
+                    sizes[i] = file.getShort(pos + 2 * i) & 0xffff;
+                }
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            track.maxSampleSize = Math.max(track.maxSampleSize, sizes[i]);
+        }
+
+        //decode times
+        long[] dts = new long[count];
+        long stts = requireChild(file, stbl, TYPE_stts);
+        long entries = uint32(file, stts, HEADER_SIZE + 4);
+        int pos = offset(stts, HEADER_SIZE + 8);
+        int sample = 0;
+        long time = 0;
+        for (long i = 0; i < entries && sample < count; i++, pos += 8) {
+            long run = file.getInt(pos) & 0xffffffffL;
+            long delta = file.getInt(pos + 4) & 0xffffffffL;
+            for (long j = 0; j < run && sample < count; j++) {
+                dts[sample++] = time;
+                time += delta;
+            }
+        }
+        while (sample < count) { //tolerate a short stts, repeat the last time
+            dts[sample++] = time;
+        }
+
+        //composition offsets
+        int[] ctsOffsets = null;
+        long ctts = child(file, stbl, TYPE_ctts);
+        if (ctts >= 0) {
+            ctsOffsets = new int[count];
+            entries = uint32(file, ctts, HEADER_SIZE + 4);
+            pos = offset(ctts, HEADER_SIZE + 8);
+            sample = 0;
+            for (long i = 0; i < entries && sample < count; i++, pos += 8) {
+                long run = file.getInt(pos) & 0xffffffffL;
+                int ctsOffset = file.getInt(pos + 4);
+                for (long j = 0; j < run && sample < count; j++) {
+                    ctsOffsets[sample++] = ctsOffset;
+                }
+            }
+        }
+
+        //sync samples, no stss means every sample is a sync sample
+        long[] syncBits = null;
+        long stss = child(file, stbl, TYPE_stss);
+        if (stss >= 0) {
+            syncBits = new long[(count + 63) >>> 6];
+            entries = uint32(file, stss, HEADER_SIZE + 4);
+            pos = offset(stss, HEADER_SIZE + 8);
+            for (long i = 0; i < entries; i++, pos += 4) {
+                long number = (file.getInt(pos) & 0xffffffffL) - 1;
+                if (number >= 0 && number < count) {
+                    syncBits[(int) (number >>> 6)] |= 1L << number;
+                }
+            }
+        }
+
+        //chunk offsets
+        long[] chunkOffsets;
+        long stco = child(file, stbl, TYPE_stco);
+        if (stco >= 0) {
+            chunkOffsets = new long[checkedCount(uint32(file, stco, HEADER_SIZE + 4))];
+            pos = offset(stco, HEADER_SIZE + 8);
+            for (int i = 0; i < chunkOffsets.length; i++) {
+                chunkOffsets[i] = file.getInt(pos + 4 * i) & 0xffffffffL;
+            }
+        } else {
+            long co64 = requireChild(file, stbl, TYPE_co64);
+            chunkOffsets = new long[checkedCount(uint32(file, co64, HEADER_SIZE + 4))];
+            pos = offset(co64, HEADER_SIZE + 8);
+            for (int i = 0; i < chunkOffsets.length; i++) {
+                chunkOffsets[i] = file.getLong(pos + 8 * i);
+            }
+        }
+
+        //sample to chunk: runs of chunks sharing a samples-per-chunk count
+        long[] offsets = new long[count];
+        long stsc = requireChild(file, stbl, TYPE_stsc);
+        entries = uint32(file, stsc, HEADER_SIZE + 4);
+        pos = offset(stsc, HEADER_SIZE + 8);
+        sample = 0;
+        for (long i = 0; i < entries && sample < count; i++, pos += 12) {
+            long firstChunk = (file.getInt(pos) & 0xffffffffL) - 1;
+            long samplesPerChunk = file.getInt(pos + 4) & 0xffffffffL;
+            long lastChunk = i + 1 < entries ? (file.getInt(pos + 12) & 0xffffffffL) - 1 : chunkOffsets.length;
+            for (long chunk = firstChunk; chunk < lastChunk && chunk < chunkOffsets.length && sample < count; chunk++) {
+                long offset = chunkOffsets[(int) chunk];
+                for (long j = 0; j < samplesPerChunk && sample < count; j++) {
+                    offsets[sample] = offset;
+                    offset += sizes[sample];
+                    sample++;
+                }
+            }
+        }
+        if (sample < count) {
+            throw new IOException("stsc/stco describe " + sample + " of " + count + " samples in track " + track.trackId);
+        }
+        track.setSampleTables(count, LongBuffer.wrap(offsets), IntBuffer.wrap(sizes), LongBuffer.wrap(dts),
+                ctsOffsets != null ? IntBuffer.wrap(ctsOffsets) : null, syncBits != null ? LongBuffer.wrap(syncBits) : null);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////
+    // box helpers, positions are absolute offsets into the buffer
+
+    static int fourcc(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+
+    static String fourccToString(int type) {
+        return new String(new char[]{(char) (type >>> 24), (char) ((type >>> 16) & 0xff),
+                (char) ((type >>> 8) & 0xff), (char) (type & 0xff)});
+    }
+
+    static int boxType(ByteBuffer file, long box) {
+        return file.getInt(offset(box, 4));
+    }
+
+    /**
+     * @return the offset just past the box at {@code box}, clamped to the buffer
+     */
+    static long boxEnd(ByteBuffer file, long box) {
+        long size = file.getInt(offset(box, 0)) & 0xffffffffL;
+        if (size == 1) {
+            size = file.getLong(offset(box, HEADER_SIZE));
+        } else if (size == 0) {
+            return file.limit();
+        }
+        if (size < HEADER_SIZE) { //corrupt, step over the header to make progress
+            size = HEADER_SIZE;
+        }
+        return Math.min(box + size, file.limit());
+    }
+
+    /**
+     * @return offset of the first box of {@code type} in [start, end), -1 if there is none
+     */
+    static long findBox(ByteBuffer file, long start, long end, int type) {
+        for (long box = start; box + HEADER_SIZE <= end; box = boxEnd(file, box)) {
+            if (boxType(file, box) == type) {
+                return box;
+            }
+        }
+        return -1;
+    }
+
+    static long child(ByteBuffer file, long parent, int type) {
+        return findBox(file, parent + HEADER_SIZE, boxEnd(file, parent), type);
+    }
+
+    private static long requireChild(ByteBuffer file, long parent, int type) throws IOException {
+        long box = child(file, parent, type);
+        if (box < 0) {
+            throw new IOException("Missing " + fourccToString(type) + " in " + fourccToString(boxType(file, parent)));
+        }
+        return box;
+    }
+
+    private static int offset(long box, int delta) {
+        return (int) (box + delta);
+    }
+
+    private static long uint32(ByteBuffer file, long box, int delta) {
+        return file.getInt(offset(box, delta)) & 0xffffffffL;
+    }
+
+    private static int checkedCount(long count) throws IOException {
+        if (count > Integer.MAX_VALUE / 8) {
+            throw new IOException("Unsupported sample count " + count);
+        }
+        return (int) count;
+    }
+
+    private static byte[] copy(ByteBuffer file, int pos, int size) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = file.get(pos + i);
+        }
+        return bytes;
+    }
+
+    private static byte[] toAnnexB(ArrayList<byte[]> nals) {
+        int size = 0;
+        for (byte[] nal : nals) {
+            size += 4 + nal.length;
+        }
+        ByteBuffer out = ByteBuffer.allocate(size);
+        for (byte[] nal : nals) {
+            out.putInt(1).put(nal);
+        }
+        return out.array();
+    }
+}
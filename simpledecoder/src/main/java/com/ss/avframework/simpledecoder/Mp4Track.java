@@ -0,0 +1,158 @@
+package com.ss.avframework.simpledecoder;
+
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * Description and sample tables of one track of an MP4 file, as produced by
+ * {@link Mp4Parser} or loaded from a {@link SampleIndexCache}.
+ * <p>
+ * The tables are primitive buffers indexed by sample number in decode order, so every
+ * per-sample lookup is O(1) and nothing is allocated while demuxing.  Parsed tracks wrap
+ * heap arrays; cached tracks are views straight into the mapped index file.  Times are
+ * kept in the track's own timescale; use {@link #getPtsUs(int)} and
+ * {@link #getDtsUs(int)} for microseconds.
+ */
+final class Mp4Track {
+    static final int TYPE_UNKNOWN = 0;
+    static final int TYPE_VIDEO = 1;
+    static final int TYPE_AUDIO = 2;
+
+    static final String MIME_AVC = "video/avc";             // MediaFormat.MIMETYPE_VIDEO_AVC
+    static final String MIME_HEVC = "video/hevc";           // MediaFormat.MIMETYPE_VIDEO_HEVC
+    static final String MIME_AAC = "audio/mp4a-latm";       // MediaFormat.MIMETYPE_AUDIO_AAC
+
+    int trackId;
+    int type = TYPE_UNKNOWN;
+    String codec;               // sample entry fourcc, e.g. "avc1", "mp4a"
+    String mime;                // null if the codec is not supported
+    long timescale;
+    long durationUs;
+
+    //video
+    int width;
+    int height;
+    int nalLengthSize;          // bytes of the NAL unit length prefix, 0 if not AVC/HEVC
+
+    //audio
+    int sampleRate;
+    int channelCount;
+
+    //codec specific data in MediaFormat order: csd-0 (SPS or AudioSpecificConfig), csd-1 (PPS)
+    byte[][] csd = new byte[0][];
+
+    //sample tables, decode order, see setSampleTables()
+    int sampleCount;
+    LongBuffer offsets;         // absolute file offset
+    IntBuffer sizes;
+    LongBuffer dts;             // decode time in timescale units
+    IntBuffer ctsOffsets;       // composition offsets in timescale units, null if pts == dts
+    long editMediaTime;         // media time mapped to presentation time 0 by the edit list
+    LongBuffer syncBits;        // bit i set if sample i is a sync sample, null if all are
+    int maxSampleSize;
+
+    void setSampleTables(int count, LongBuffer offsets, IntBuffer sizes, LongBuffer dts,
+                         IntBuffer ctsOffsets, LongBuffer syncBits) {
+        this.sampleCount = count;
+        this.offsets = offsets;
+        this.sizes = sizes;
+        this.dts = dts;
+        this.ctsOffsets = ctsOffsets;
+        this.syncBits = syncBits;
+    }
+
+    long getOffset(int sample) {
+        return offsets.get(sample);
+    }
+
+    int getSize(int sample) {
+        return sizes.get(sample);
+    }
+
+    long getDts(int sample) {
+        return dts.get(sample);
+    }
+
+    int getCtsOffset(int sample) {
+        return ctsOffsets != null ? ctsOffsets.get(sample) : 0;
+    }
+
+    boolean isVideo() {
+        return type == TYPE_VIDEO;
+    }
+
+    boolean isAudio() {
+        return type == TYPE_AUDIO;
+    }
+
+    long getDtsUs(int sample) {
+        return toUs(dts.get(sample) - editMediaTime);
+    }
+
+    long getPtsUs(int sample) {
+        return toUs(dts.get(sample) + getCtsOffset(sample) - editMediaTime);
+    }
+
+    boolean isSyncSample(int sample) {
+        return syncBits == null || (syncBits.get(sample >>> 6) & (1L << sample)) != 0;
+    }
+
+    int syncSampleCount() {
+        if (syncBits == null) {
+            return sampleCount;
+        }
+        int count = 0;
+        for (int i = 0; i < syncBits.limit(); i++) {
+            count += Long.bitCount(syncBits.get(i));
+        }
+        return count;
+    }
+
+    /**
+     * @return the last sync sample at or before {@code sample}, or the first sync sample
+     * if there is none before it
+     */
+    int previousSyncSample(int sample) {
+        for (int i = Math.min(sample, sampleCount - 1); i >= 0; i--) {
+            if (isSyncSample(i)) {
+                return i;
+            }
+        }
+        return nextSyncSample(0);
+    }
+
+    /**
+     * @return the first sync sample at or after {@code sample}, or {@code sampleCount} if
+     * there is none
+     */
+    int nextSyncSample(int sample) {
+        for (int i = Math.max(sample, 0); i < sampleCount; i++) {
+            if (isSyncSample(i)) {
+                return i;
+            }
+        }
+        return sampleCount;
+    }
+
+    /**
+     * @return the last sample whose decode time is at or before {@code timeUs}, 0 if the
+     * time is before the first sample
+     */
+    int sampleAtOrBefore(long timeUs) {
+        int low = 0;
+        int high = sampleCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (getDtsUs(mid) <= timeUs) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    long toUs(long time) {
+        return time / timescale * 1000000L + time % timescale * 1000000L / timescale;
+    }
+}
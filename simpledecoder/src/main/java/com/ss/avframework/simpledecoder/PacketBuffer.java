@@ -0,0 +1,59 @@
+package com.ss.avframework.simpledecoder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One demuxed sample waiting for a decoder input buffer.
+ * <p>
+ * Instances are owned by a {@link PacketPool}.  The payload lives in a reusable direct
+ * buffer whose capacity only ever grows, so once every pooled packet has seen the largest
+ * sample of the stream no more memory is allocated.  Hand the packet back with
+ * {@link PacketPool#release(PacketBuffer)} as soon as its payload has been queued into
+ * the codec.
+ * <p>
+ * A sample the source keeps mapped isn't copied in at all: the packet only says where it
+ * is, see {@link PlayerCore.MappedSource}.
+ */
+final class PacketBuffer {
+    ByteBuffer data;    // direct, capacity >= size, valid bytes are [0, size)
+    int size;
+    long offset = -1;   // of the sample kept by the source, which data then doesn't hold
+    long ptsUs;
+    boolean keyFrame;   // decoding can start from it
+
+    /**
+     * Copies {@code size} bytes from the current position of {@code src} into this packet.
+     * The position of {@code src} is advanced by {@code size}.
+     */
+    void fill(ByteBuffer src, int size, long ptsUs) {
+        int oldLimit = src.limit();
+        src.limit(src.position() + size);
+        data.clear();
+        data.put(src);
+        data.flip();
+        src.limit(oldLimit);
+        this.size = size;
+        this.ptsUs = ptsUs;
+        this.offset = -1;
+    }
+
+    /**
+     * Points this packet at the sample of {@code size} bytes the source keeps at
+     * {@code offset}, without copying it.
+     */
+    void refer(long offset, int size, long ptsUs) {
+        this.offset = offset;
+        this.size = size;
+        this.ptsUs = ptsUs;
+    }
+
+    /**
+     * Copies the payload into {@code dst} (typically a codec input buffer) without
+     * disturbing the packet itself.
+     */
+    void copyTo(ByteBuffer dst) {
+        data.limit(size);
+        data.position(0);
+        dst.put(data);
+    }
+}
@@ -0,0 +1,123 @@
+package com.ss.avframework.simpledecoder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Recycles {@link PacketBuffer}s between the demuxer and the decoder input.
+ * <p>
+ * A packet taken with {@link #acquire(int)} gets a direct buffer large enough for the
+ * requested sample.  The free packet that fits most tightly is reused, so keyframe-sized
+ * buffers stay available for keyframes; if none fits, the largest free one is grown.
+ * Buffers are rounded up to {@link #ALIGNMENT} and are never shrunk, so once the pool has
+ * seen the largest samples of a stream acquire/release does not allocate at all.
+ * <p>
+ * Packets that only refer to a sample the source keeps, from {@link #acquireReference()},
+ * need no buffer: the smallest free one, if any, comes with them.
+ * <p>
+ * The pool keeps at most {@code maxPooled} packets; anything released beyond that is left
+ * to the GC, which only happens if more packets are in flight than the queue was sized for.
+ */
+final class PacketPool {
+    static final int ALIGNMENT = 4096;
+
+    private final PacketBuffer[] mFree;             // guarded by this, a stack
+    private int mFreeCount;                         // guarded by this
+    private final int mInitialCapacity;
+    private long mAllocations;                      // guarded by this
+    private long mAllocatedBytes;                   // guarded by this
+
+    /**
+     * @param maxPooled       packets kept for reuse, normally the queue depth plus the
+     *                        packets held by the producer and the consumer
+     * @param initialCapacity payload capacity of freshly created packets, 0 to size them
+     *                        by the first sample they carry
+     */
+    PacketPool(int maxPooled, int initialCapacity) {
+        mInitialCapacity = initialCapacity;
+        mFree = new PacketBuffer[maxPooled];
+    }
+
+    /**
+     * Returns a packet whose buffer can hold at least {@code size} bytes.  The packet is
+     * cleared; its {@code size} and {@code ptsUs} are left for the caller to set.
+     */
+    synchronized PacketBuffer acquire(int size) {
+        PacketBuffer packet = takeFree(size);
+        if (packet.data == null || packet.data.capacity() < size) {
+            int capacity = alignUp(Math.max(size, mInitialCapacity));
+            packet.data = ByteBuffer.allocateDirect(capacity);
+            mAllocations++;
+            mAllocatedBytes += capacity;
+        }
+        packet.data.clear();
+        packet.size = 0;
+        packet.ptsUs = 0;
+        packet.offset = -1;
+        return packet;
+    }
+
+    /**
+     * Returns a packet for {@link PacketBuffer#refer}, which allocates nothing.
+     */
+    synchronized PacketBuffer acquireReference() {
+        PacketBuffer packet = takeFree(0);
+        packet.size = 0;
+        packet.ptsUs = 0;
+        packet.offset = -1;
+        return packet;
+    }
+
+    synchronized void release(PacketBuffer packet) {
+        if (packet == null) {
+            return;
+        }
+        if (mFreeCount < mFree.length) {
+            mFree[mFreeCount++] = packet;
+        }
+    }
+
+    //the smallest free packet that fits, else the largest one
+    private PacketBuffer takeFree(int size) {
+        if (mFreeCount == 0) {
+            return new PacketBuffer();
+        }
+        int bestFit = -1;
+        int largest = 0;
+        for (int i = 0; i < mFreeCount; i++) {
+            int capacity = capacityOf(mFree[i]);
+            if (capacity >= size && (bestFit < 0 || capacity < capacityOf(mFree[bestFit]))) {
+                bestFit = i;
+            }
+            if (capacity > capacityOf(mFree[largest])) {
+                largest = i;
+            }
+        }
+        int index = bestFit >= 0 ? bestFit : largest;
+        PacketBuffer packet = mFree[index];
+        mFree[index] = mFree[mFreeCount - 1];
+        mFree[--mFreeCount] = null;
+        return packet;
+    }
+
+    private static int capacityOf(PacketBuffer packet) {
+        return packet.data != null ? packet.data.capacity() : 0;
+    }
+
+    /**
+     * Number of direct buffers allocated so far.  Stays constant in steady state.
+     */
+    synchronized long allocations() {
+        return mAllocations;
+    }
+
+    synchronized long allocatedBytes() {
+        return mAllocatedBytes;
+    }
+
+    static int alignUp(int size) {
+        if (size <= 0) {
+            return ALIGNMENT;
+        }
+        return (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+}
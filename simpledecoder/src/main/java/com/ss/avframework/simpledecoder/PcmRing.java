@@ -0,0 +1,246 @@
+package com.ss.avframework.simpledecoder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Hands decoded 16 bit PCM from the task draining the audio codec to whoever consumes it, in
+ * chunks of a fixed duration, so the codec's output buffer goes back to it as soon as the PCM
+ * is copied out, however long the consumer takes.
+ * <p>
+ * The chunks are direct buffers of a pool, going round between two {@link SpscQueue}s: the
+ * producer fills the free ones and queues them, the consumer takes them and gives them back, and
+ * neither side takes a lock.  The PCM is copied once, from the codec's buffer into the chunk,
+ * and the consumer reads it from there.  A chunk holds {@code chunkMs} of frames, or with
+ * chunkMs 0 whatever one write brings, and knows its own frame count, format and pts, the pts of
+ * its first frame.  A format change or {@link #flush()} queues the chunk being filled as it is.
+ * <p>
+ * The producer never waits: with no free chunk, because the consumer is that far behind, the
+ * rest of a write is dropped and counted in {@link #overrunFrames()}.  The chunks are allocated
+ * as they are first needed and grow if a format needs larger ones, so once the pool has gone
+ * round nothing is allocated.
+ */
+final class PcmRing {
+    /**
+     * PCM of one format, the consumer's from {@link #poll()} until {@link #release(Chunk)}.
+     */
+    static final class Chunk {
+        ByteBuffer data;            // native order, the frames from position 0 to the limit
+        int frames;                 // per channel
+        int sampleRate;
+        int channelCount;
+        long ptsUs;                 // of the first frame
+        int generation;             // of the seek it is from, see SeekController
+        int capacityFrames;         // producer only
+    }
+
+    /**
+     * What the consumer task does with the chunks.
+     */
+    interface Consumer {
+        //the chunk is released right after
+        void onChunk(Chunk chunk);
+
+        //every chunk was had
+        void onEndOfStream();
+    }
+
+    private final int mChunkMs;
+    private final SpscQueue<Chunk> mFilled;
+    private final SpscQueue<Chunk> mFree;
+    //producer only
+    private Chunk mFilling;
+    //written by one side each, exact from it, approximate from anywhere else
+    private volatile long mCopiedBytes;
+    private volatile long mOverrunFrames;
+    private volatile long mAllocations;
+    private volatile long mReleasedBytes;
+
+    /**
+     * @param chunkMs the duration of a chunk, 0 for a chunk per write
+     * @param chunks the chunks of the pool, how far behind the consumer may fall
+     */
+    PcmRing(int chunkMs, int chunks) {
+        if (chunkMs < 0 || chunks <= 0) {
+            throw new IllegalArgumentException("chunk " + chunkMs + "ms, " + chunks + " chunks");
+        }
+        mChunkMs = chunkMs;
+        mFilled = new SpscQueue<Chunk>(chunks);
+        mFree = new SpscQueue<Chunk>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            mFree.offer(new Chunk());
+        }
+    }
+
+    int chunkMs() {
+        return mChunkMs;
+    }
+
+    //frames of a chunk at sampleRate, 0 for as many as a write brings
+    int chunkFrames(int sampleRate) {
+        return (int) ((long) sampleRate * mChunkMs / 1000);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////
+    // producer side
+
+    /**
+     * Copies the PCM from pcm's position to its limit into the chunks, leaving pcm as it was.
+     * What is left in the chunk being filled from before a seek is dropped.
+     *
+     * @param ptsUs of the first frame
+     * @param rate the media time a frame of output stands for, in frames, e.g. 2 for audio
+     *             played at twice the speed
+     * @param generation of the seek the PCM is from
+     * @return whether a chunk was queued, for the consumer to be woken up
+     */
+    boolean write(ByteBuffer pcm, int sampleRate, int channelCount, long ptsUs, float rate, int generation) {
+        int frameBytes = channelCount * 2;
+        Chunk chunk = mFilling;
+        boolean queued = false;
+        if (chunk != null && chunk.generation != generation) {
+            chunk.data.clear();
+            chunk.frames = 0;
+            chunk.generation = generation;
+            chunk.ptsUs = ptsUs;
+        } else if (chunk != null && (chunk.sampleRate != sampleRate || chunk.channelCount != channelCount)) {
+            queued = Queue();
+        }
+        int position = pcm.position();
+        int limit = pcm.limit();
+        int frames = (limit - position) / frameBytes;
+        int done = 0;
+        try {
+            while (done < frames) {
+                if (mFilling == null) {
+                    chunk = mFree.poll();
+                    if (chunk == null) { //the consumer is a whole ring behind
+                        mOverrunFrames += frames - done;
+                        break;
+                    }
+                    int chunkFrames = mChunkMs > 0 ? chunkFrames(sampleRate) : frames - done;
+                    Begin(chunk, Math.max(chunkFrames, 1), sampleRate, channelCount,
+                            ptsUs + (long) (done * rate * 1000000.0 / sampleRate), generation);
+                    mFilling = chunk;
+                }
+                chunk = mFilling;
+                int count = Math.min(frames - done, chunk.capacityFrames - chunk.frames);
+                pcm.limit(position + (done + count) * frameBytes);
+                pcm.position(position + done * frameBytes);
+                chunk.data.put(pcm);
+                chunk.frames += count;
+                done += count;
+                mCopiedBytes += count * frameBytes;
+                if (chunk.frames == chunk.capacityFrames) {
+                    queued |= Queue();
+                }
+            }
+        } finally {
+            pcm.limit(limit);
+            pcm.position(position);
+        }
+        return queued;
+    }
+
+    /**
+     * Queues the chunk being filled as it is, e.g. at the end of the stream.
+     *
+     * @return whether there was one
+     */
+    boolean flush() {
+        return mFilling != null && mFilling.frames > 0 && Queue();
+    }
+
+    //once the last chunk is queued
+    void endOfStream() {
+        mFilled.endOfStream();
+    }
+
+    //frames dropped as the consumer was behind
+    long overrunFrames() {
+        return mOverrunFrames;
+    }
+
+    //PCM copied into the chunks
+    long copiedBytes() {
+        return mCopiedBytes;
+    }
+
+    //chunks allocated or grown
+    long allocations() {
+        return mAllocations;
+    }
+
+    private void Begin(Chunk chunk, int frames, int sampleRate, int channelCount, long ptsUs, int generation) {
+        int size = frames * channelCount * 2;
+        if (chunk.data == null || chunk.data.capacity() < size) {
+            chunk.data = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+            mAllocations++;
+        }
+        chunk.data.clear();
+        chunk.capacityFrames = frames;
+        chunk.frames = 0;
+        chunk.sampleRate = sampleRate;
+        chunk.channelCount = channelCount;
+        chunk.ptsUs = ptsUs;
+        chunk.generation = generation;
+    }
+
+    private boolean Queue() {
+        Chunk chunk = mFilling;
+        mFilling = null;
+        chunk.data.flip();
+        return mFilled.offer(chunk); //never full, there are only as many chunks as it holds
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////
+    // consumer side
+
+    //the oldest chunk queued, null if none
+    Chunk poll() {
+        return mFilled.poll();
+    }
+
+    //the chunk is the producer's again
+    void release(Chunk chunk) {
+        mReleasedBytes += chunk.data.limit();
+        chunk.data.clear();
+        mFree.offer(chunk);
+    }
+
+    //the producer is done and every chunk was taken
+    boolean isEndOfStream() {
+        return mFilled.isEndOfStream();
+    }
+
+    //PCM in the chunks released
+    long releasedBytes() {
+        return mReleasedBytes;
+    }
+
+    /**
+     * The consumer side as a task of the scheduler, handing every chunk queued to consumer.  To
+     * be woken up whenever {@link #write} or {@link #flush()} queued a chunk, and after
+     * {@link #endOfStream()}.
+     */
+    DecoderScheduler.Task consumerTask(DecoderScheduler scheduler, final Consumer consumer) {
+        return new DecoderScheduler.Task(scheduler) {
+            @Override
+            protected long run() {
+                Chunk chunk;
+                while ((chunk = poll()) != null) {
+                    try {
+                        consumer.onChunk(chunk);
+                    } finally {
+                        release(chunk);
+                    }
+                }
+                if (isEndOfStream()) {
+                    consumer.onEndOfStream();
+                    return DecoderScheduler.DONE;
+                }
+                return DecoderScheduler.IDLE;
+            }
+        };
+    }
+}
@@ -0,0 +1,195 @@
+package com.ss.avframework.simpledecoder;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Where {@link Mp4Decoder} records what its pipeline does, one instance per start().
+ * <p>
+ * Recording is allocation and lock free so it stays on in production.  Each stage of a
+ * {@link Track} is recorded by one thread, or one {@link DecoderScheduler} task, at a time (the
+ * core task, or the render task for the video output, see the methods), which is what lets the counters and histograms get away without atomic increments.
+ * {@link #snapshot} may be called from any thread.
+ */
+final class PipelineStats {
+    static final int TRACK_VIDEO = 0;
+    static final int TRACK_AUDIO = 1;
+
+    private final long mStartNs;
+    private volatile long mStopNs = -1;
+    private final Track[] mTracks = new Track[2];
+    //of the previous snapshot, for the recent fps
+    private long mLastSnapshotNs;
+    private final long[] mLastRendered = new long[2];
+
+    PipelineStats(boolean video, boolean audio) {
+        this(video, audio, System.nanoTime());
+    }
+
+    PipelineStats(boolean video, boolean audio, long startNs) {
+        mStartNs = startNs;
+        mLastSnapshotNs = startNs;
+        mTracks[TRACK_VIDEO] = video ? new Track() : null;
+        mTracks[TRACK_AUDIO] = audio ? new Track() : null;
+    }
+
+    //null if the file has no such track
+    Track track(int track) {
+        return mTracks[track];
+    }
+
+    //the elapsed time stops counting here
+    void stop() {
+        if (mStopNs < 0) {
+            mStopNs = System.nanoTime();
+        }
+    }
+
+    DecoderStats snapshot(int videoQueueDepth, int audioQueueDepth) {
+        return snapshot(videoQueueDepth, audioQueueDepth, System.nanoTime());
+    }
+
+    synchronized DecoderStats snapshot(int videoQueueDepth, int audioQueueDepth, long nowNs) {
+        long stopNs = mStopNs;
+        if (stopNs >= 0) {
+            nowNs = stopNs;
+        }
+        long elapsedNs = nowNs - mStartNs;
+        long sinceLastNs = nowNs - mLastSnapshotNs;
+        mLastSnapshotNs = nowNs;
+        return new DecoderStats(elapsedNs / 1000000,
+                TrackSnapshot(TRACK_VIDEO, videoQueueDepth, elapsedNs, sinceLastNs),
+                TrackSnapshot(TRACK_AUDIO, audioQueueDepth, elapsedNs, sinceLastNs));
+    }
+
+    private DecoderStats.TrackStats TrackSnapshot(int index, int queueDepth, long elapsedNs, long sinceLastNs) {
+        Track track = mTracks[index];
+        if (track == null) {
+            return null;
+        }
+        long samples = track.mSamples;
+        long rendered = track.mRendered;
+        long recent = rendered - mLastRendered[index];
+        mLastRendered[index] = rendered;
+        return new DecoderStats.TrackStats(samples, track.mBytes, PerSecond(samples, elapsedNs), queueDepth,
+                track.mQueueDepths.snapshot(), track.mInputWaitUs.snapshot(), track.mDecodeLatencyUs.snapshot(),
+                track.mSleepUs.snapshot(), track.mLateUs.snapshot(), track.mRenderLatencyUs.snapshot(),
+                rendered, track.mDropped, track.mSkipped, PerSecond(rendered, elapsedNs), PerSecond(recent, sinceLastNs));
+    }
+
+    private static float PerSecond(long count, long ns) {
+        return ns > 0 ? (float) (count * 1e9 / ns) : 0;
+    }
+
+    static final class Track {
+        //core task
+        private volatile long mSamples;
+        private volatile long mBytes;
+        private final Histogram mQueueDepths = new Histogram();
+        //core task
+        private final Histogram mInputWaitUs = new Histogram();
+        private final PtsTimes mQueuedNs = new PtsTimes(256);
+        private volatile long mSkipped;
+        //core task
+        private final Histogram mDecodeLatencyUs = new Histogram();
+        //core task, the render task for the video
+        private final Histogram mSleepUs = new Histogram();
+        private final Histogram mLateUs = new Histogram();
+        private final Histogram mRenderLatencyUs = new Histogram();
+        private volatile long mRendered;
+        private volatile long mDropped;
+
+        //core task: a sample was put into the packet queue, which now holds queueDepth packets
+        void onDemuxed(int size, int queueDepth) {
+            mSamples = mSamples + 1;
+            mBytes = mBytes + size;
+            mQueueDepths.record(queueDepth);
+        }
+
+        //core task: a sample was queued to the codec after waiting waitNs for an input buffer
+        void onQueued(long ptsUs, long waitNs, long nowNs) {
+            mInputWaitUs.record(waitNs / 1000);
+            mQueuedNs.put(ptsUs, nowNs);
+        }
+
+        //core task: a sample was left out rather than decoded
+        void onSkipped() {
+            mSkipped = mSkipped + 1;
+        }
+
+        //core task: the codec output the frame with ptsUs
+        void onDecoded(long ptsUs, long nowNs) {
+            long queuedNs = mQueuedNs.take(ptsUs);
+            if (queuedNs >= 0) {
+                mDecodeLatencyUs.record((nowNs - queuedNs) / 1000);
+            }
+        }
+
+        //output task, the render task for the video: the frame is due in sleepUs, or is -sleepUs late
+        void onScheduled(long sleepUs) {
+            if (sleepUs > 0) {
+                mSleepUs.record(sleepUs);
+            } else {
+                mLateUs.record(-sleepUs);
+            }
+        }
+
+        //output task: the frame that was due at dueNs was rendered and delivered
+        void onRendered(long dueNs, long nowNs) {
+            mRenderLatencyUs.record((nowNs - dueNs) / 1000);
+            mRendered = mRendered + 1;
+        }
+
+        //output task
+        void onDropped() {
+            mDropped = mDropped + 1;
+        }
+    }
+
+    /**
+     * When the samples in the codec were queued, by pts.  Direct-mapped: a sample whose slot
+     * is taken over by a later one before it is decoded goes unmeasured, which with far
+     * more slots than the codec holds samples is rare.  One thread puts, another takes.
+     */
+    static final class PtsTimes {
+        private static final long EMPTY = Long.MIN_VALUE;
+
+        private final AtomicLongArray mPts;
+        private final AtomicLongArray mTimes;
+        private final int mMask;
+
+        //slots: a power of two
+        PtsTimes(int slots) {
+            mPts = new AtomicLongArray(slots);
+            mTimes = new AtomicLongArray(slots);
+            mMask = slots - 1;
+            for (int i = 0; i < slots; i++) {
+                mPts.set(i, EMPTY);
+            }
+        }
+
+        void put(long ptsUs, long timeNs) {
+            int slot = Slot(ptsUs);
+            //a take() reading the slot meanwhile sees EMPTY or a changed pts and gives up
+            mPts.set(slot, EMPTY);
+            mTimes.set(slot, timeNs);
+            mPts.set(slot, ptsUs);
+        }
+
+        //the time ptsUs was put, -1 if unknown
+        long take(long ptsUs) {
+            int slot = Slot(ptsUs);
+            if (ptsUs == EMPTY || mPts.get(slot) != ptsUs) {
+                return -1;
+            }
+            long timeNs = mTimes.get(slot);
+            if (!mPts.compareAndSet(slot, ptsUs, EMPTY)) {
+                return -1;
+            }
+            return timeNs;
+        }
+
+        private int Slot(long ptsUs) {
+            return (int) ((ptsUs * 0x9E3779B97F4A7C15L) >>> 40) & mMask;
+        }
+    }
+}
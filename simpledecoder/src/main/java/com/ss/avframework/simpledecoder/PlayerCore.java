@@ -0,0 +1,984 @@
+package com.ss.avframework.simpledecoder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The playback pipeline of one {@link Mp4Decoder} as two tasks of a {@link DecoderScheduler},
+ * kept apart from the platform so it can be tested on a plain JVM with {@link FakeDecoderBackend}.
+ * <p>
+ * The core task runs steps of an event loop: it reads samples while the packet queues have
+ * room, copies them into the input buffers the asynchronous codecs offer, hands the decoded
+ * video frames to the render task through a {@link FrameQueue} and delivers the audio when
+ * the {@link MediaClock} says it's due.  When none of that can make progress it waits until
+ * a codec callback, a frame the render task is done with, a call like
+ * {@link #onPlaybackChanged()} or the next audio deadline wakes it up.  The render task owns
+ * the video output and waits for the frames and their deadlines the same way.  Nothing
+ * polls, so a paused or stalled player doesn't run at all.
+ * <p>
+ * The codec buffers are offered on the codec's callback thread into {@link SpscQueue}s
+ * the core task drains, a step at a time but maybe on another worker every step.  A seek
+ * flushes the codecs holding the video lock the render task releases its frames under, so
+ * a frame dequeued before the flush is never released into the flushed codec.
+ */
+final class PlayerCore {
+    static final int TRACK_VIDEO = PipelineStats.TRACK_VIDEO;
+    static final int TRACK_AUDIO = PipelineStats.TRACK_AUDIO;
+
+    static final int VIDEO_QUEUE_CAPACITY = 20;     // demuxed packets waiting for an input buffer
+    static final int AUDIO_QUEUE_CAPACITY = 30;
+    static final int MAX_CODEC_BUFFERS = 64;        // input or output buffers of a codec, at most
+    private static final int DEMUX_BATCH = 8;       // samples read in a row before feeding the codecs again
+    //a live source with no new sample is read again this much later: a growing file can't say when it grows
+    private static final long SOURCE_RETRY_US = 20000;
+    //a video frame waits at most this long for the audio to start the clock, then starts it itself:
+    //the audio may be held up behind the video, e.g. in a file with the audio far behind it
+    private static final long MASTER_WAIT_US = 200000;
+
+    /**
+     * Where the video goes, called by the render task only: one call at a time, but maybe on
+     * another thread every time.  So an output drawing with GL makes its context current in
+     * every call and lets go of it before returning.
+     */
+    interface VideoOutput {
+        //creates the video decoder, rendering to where present() shows the frames from
+        DecoderBackend createDecoder(DecoderBackend.Callback callback) throws Exception;
+
+        //before a frame's buffer is released, e.g. to follow a new display surface
+        void prepare(DecoderBackend decoder) throws Exception;
+
+        //the buffer of the frame at ptsUs was just released to be rendered
+        void present(DecoderBackend.OutputFormat format, long ptsUs) throws Exception;
+
+        //the core is done with the decoder
+        void release(DecoderBackend decoder);
+    }
+
+    /**
+     * Where the audio goes, called by the core task only, likewise.
+     */
+    interface AudioOutput {
+        DecoderBackend createDecoder(DecoderBackend.Callback callback) throws Exception;
+
+        //the PCM in buffer is due. The buffer goes back to the codec right after
+        void deliver(ByteBuffer buffer, DecoderBackend.BufferInfo info, DecoderBackend.OutputFormat format, int generation) throws Exception;
+
+        void release(DecoderBackend decoder);
+    }
+
+    /**
+     * An audio output that plays the audio itself, into a buffer a device consumes.  The PCM
+     * is delivered as soon as there is room for it rather than when the clock says it's due,
+     * and the clock follows what the device plays instead: the audio is the master not by when
+     * it was delivered but by what is heard.  Core task only, likewise.
+     */
+    interface PlayingAudioOutput extends AudioOutput {
+        //how long until there is room for size bytes of PCM in format, 0 if there is now
+        long roomInUs(int size, DecoderBackend.OutputFormat format) throws Exception;
+
+        //the media time playing now, Long.MIN_VALUE while none of the PCM of generation plays
+        long playingPtsUs(int generation);
+
+        //real time until all the PCM delivered has played
+        long unplayedUs() throws Exception;
+
+        void setPaused(boolean paused);
+
+        //drops the PCM delivered and not played yet
+        void flush();
+    }
+
+    /**
+     * A source played live, whose end is where more samples are still to come: readSampleData()
+     * returns {@link MediaSource#SAMPLE_PENDING} until they do.  Once playback is more than half
+     * the latency target again behind its newest sample, the core seeks to the target behind it,
+     * which flushes what is queued and starts the clock over from there.
+     */
+    interface LiveSource {
+        //decode time of the newest sample in, Long.MIN_VALUE if none is
+        long liveEdgeUs();
+
+        long latencyTargetUs();
+    }
+
+    /**
+     * A source that keeps its samples in memory for as long as it is open, a mapped file, so a
+     * sample can wait in a packet queue as just where it is and be copied once, by
+     * {@link #readSampleAt}, straight into a codec input buffer.  Other sources are copied from
+     * into the packets, and the packets into the codec.
+     */
+    interface MappedSource {
+        //where the current sample is kept, -1 if it isn't or at the end: readSampleData() copies it out then
+        long getSampleOffset();
+
+        //the size of the current sample as kept, before readSampleAt() rewrites it, if getSampleOffset() isn't -1
+        int getSampleSize();
+
+        /**
+         * Reads a sample of trackIndex into buffer like {@link MediaSource#readSampleData}, the
+         * sample being where {@link #getSampleOffset} and {@link #getSampleSize} said, whatever
+         * the current one is now.
+         *
+         * @return the size of the sample in buffer
+         * @throws IllegalArgumentException if sampleOffset isn't of a kept sample
+         */
+        int readSampleAt(int trackIndex, long sampleOffset, int sampleSize, ByteBuffer buffer, int offset);
+    }
+
+    /**
+     * One track: its packets, and the buffers its codec offers.  The callbacks come on the
+     * codec's thread, everything else is the core task's unless noted.
+     */
+    private final class Track implements DecoderBackend.Callback {
+        final int index;
+        final int sourceTrack;
+        final int capacity;
+        final ArrayDeque<PacketBuffer> packets;
+        final PacketPool pool;
+        final PipelineStats.Track stats;
+        volatile DecoderBackend decoder;
+        final SpscQueue<Integer> inputs = new SpscQueue<Integer>(MAX_CODEC_BUFFERS);
+        //buffer indices, and INFO_OUTPUT_FORMAT_CHANGED where a format of formats applies from
+        final SpscQueue<Integer> outputs = new SpscQueue<Integer>(MAX_CODEC_BUFFERS);
+        final SpscQueue<DecoderBackend.OutputFormat> formats = new SpscQueue<DecoderBackend.OutputFormat>(MAX_CODEC_BUFFERS);
+        //of the output buffers offered, by index. Grown by the callback thread
+        volatile DecoderBackend.BufferInfo[] infos = new DecoderBackend.BufferInfo[0];
+        volatile Exception error;
+        DecoderBackend.OutputFormat format;
+        volatile int queueDepth;
+        boolean endQueued;              // the end of stream flag went into the codec
+        long inputWaitSinceNs = -1;     // since when the next packet waits for an input buffer
+        volatile boolean ended;         // every frame came out, the video one set by the render task
+
+        Track(int index, int sourceTrack, int capacity, PipelineStats.Track stats) {
+            this.index = index;
+            this.sourceTrack = sourceTrack;
+            this.capacity = capacity;
+            this.packets = new ArrayDeque<PacketBuffer>(capacity);
+            //the packets in the queue, plus the one being filled
+            this.pool = new PacketPool(capacity + 1, 0);
+            this.stats = stats;
+        }
+
+        @Override
+        public void onInputBufferAvailable(DecoderBackend decoder, int index) {
+            Offer(inputs, index);
+        }
+
+        @Override
+        public void onOutputBufferAvailable(DecoderBackend decoder, int index, DecoderBackend.BufferInfo info) {
+            DecoderBackend.BufferInfo[] infos = this.infos;
+            if (index >= infos.length) {
+                int length = infos.length;
+                infos = Arrays.copyOf(infos, Math.max(index + 1, length * 2));
+                for (int i = length; i < infos.length; i++) {
+                    infos[i] = new DecoderBackend.BufferInfo();
+                }
+                this.infos = infos;
+            }
+            infos[index].set(info.offset, info.size, info.presentationTimeUs, info.flags);
+            Offer(outputs, index);
+        }
+
+        @Override
+        public void onOutputFormatChanged(DecoderBackend decoder, DecoderBackend.OutputFormat format) {
+            if (formats.offer(format)) {
+                Offer(outputs, DecoderBackend.INFO_OUTPUT_FORMAT_CHANGED);
+            }
+        }
+
+        @Override
+        public void onError(DecoderBackend decoder, Exception e) {
+            error = e;
+            wakeUp();
+        }
+
+        private void Offer(SpscQueue<Integer> queue, int index) {
+            if (!queue.offer(index)) {
+                error = new IllegalStateException("More than " + MAX_CODEC_BUFFERS + " codec buffers");
+            }
+            wakeUp();
+        }
+
+        //the core task: forgets the packets and the buffers offered before a flush
+        void clear() {
+            PacketBuffer packet;
+            while ((packet = packets.poll()) != null) {
+                pool.release(packet);
+            }
+            queueDepth = 0;
+            while (inputs.poll() != null) {
+            }
+            while (outputs.poll() != null) {
+            }
+            DecoderBackend.OutputFormat latest;
+            while ((latest = formats.poll()) != null) {
+                format = latest;
+            }
+            endQueued = false;
+            inputWaitSinceNs = -1;
+        }
+    }
+
+    private final MediaSource mSource;
+    private final MappedSource mMappedSource;   // mSource if it keeps its samples, else null
+    private final Track mVideo;
+    private final Track mAudio;
+    private final SeekController mSeeks;
+    private final MediaClock mClock;
+    private final LatenessController mLateness;
+    private final EventTracer mTracer;
+    private final boolean mAudioMaster;
+    private final FrameQueue mFrames;
+    //held by the render task releasing a frame, and by a seek flushing the codecs
+    private final Object mVideoLock = new Object();
+
+    private volatile boolean mStopped = false;
+    private DecoderScheduler.Task mCoreTask;
+    private DecoderScheduler.Task mRenderTask;
+    private VideoOutput mVideoOutput;
+    private AudioOutput mAudioOutput;
+    private Runnable mOnFinished;
+    private volatile Exception mError;
+    private volatile long mWakeups = 0;
+    private volatile long mRenderWakeups = 0;
+    private volatile int mLiveCatchUps = 0;
+    private volatile long mCopiedBytes = 0;
+    //the core is done with the decoders, the render task releases the video one
+    private volatile boolean mFinished = false;
+    //the tasks not done yet, guarded by mDone
+    private final Object mDone = new Object();
+    private int mRunningTasks = 0;
+
+    //core task only
+    private boolean mCoreStarted = false;
+    private ByteBuffer mReadBuffer;
+    private Track mReadTrack;           // of the sample read but not queued yet, null if none
+    private int mReadSize;
+    private long mReadOffset;           // of the sample kept by the source, -1 if it is in mReadBuffer
+    private boolean mSourceEnded = false;
+    private boolean mSourcePending = false;     // the live source had no sample the last time
+    private FrameQueue.Frame mFreeFrame;
+    private int mAudioIndex = -1;       // of the output buffer waiting to be due
+    private boolean mAudioScheduled;
+    private EventTracer.Ring mTrace;
+
+    //render task only
+    private DecoderBackend mRenderDecoder;
+    private FrameQueue.Frame mRenderFrame;          // taken, not released yet
+    private boolean mRenderScheduled;               // the lateness of mRenderFrame was looked at
+    private long mMasterWaitSinceNs;                // since when mRenderFrame waits for the audio to start the clock
+    private boolean mRenderEnded = false;
+    private EventTracer.Ring mRenderTrace;
+
+    /**
+     * @param videoTrack the source track to play as video, -1 for none, likewise audioTrack
+     * @param maxSampleSize the sample size to start reading with, the read buffer grows if needed
+     * @param decodeAheadDepth decoded video frames that may wait to be rendered, see {@link FrameQueue}
+     */
+    PlayerCore(MediaSource source, int videoTrack, int audioTrack, int maxSampleSize, int decodeAheadDepth,
+               PipelineStats stats, SeekController seeks, MediaClock clock, LatenessController lateness, EventTracer tracer) {
+        mSource = source;
+        mMappedSource = source instanceof MappedSource ? (MappedSource) source : null;
+        mVideo = videoTrack >= 0 ? new Track(TRACK_VIDEO, videoTrack, VIDEO_QUEUE_CAPACITY, stats.track(TRACK_VIDEO)) : null;
+        mAudio = audioTrack >= 0 ? new Track(TRACK_AUDIO, audioTrack, AUDIO_QUEUE_CAPACITY, stats.track(TRACK_AUDIO)) : null;
+        mSeeks = seeks;
+        mClock = clock;
+        mLateness = lateness;
+        mTracer = tracer;
+        mAudioMaster = mAudio != null;
+        mFrames = new FrameQueue(decodeAheadDepth);
+        mReadBuffer = ByteBuffer.allocateDirect(PacketPool.alignUp(Math.max(maxSampleSize, 1)));
+    }
+
+    /**
+     * Plays until {@link #stop()} or the end of every track, on the scheduler.  The core task
+     * creates the audio decoder and the render task the video one, and once both are released
+     * onFinished runs, on a worker, before {@link #await()} returns.
+     *
+     * @param onFinished null if nothing
+     */
+    void start(DecoderScheduler scheduler, VideoOutput videoOutput, AudioOutput audioOutput, Runnable onFinished) {
+        mVideoOutput = videoOutput;
+        mAudioOutput = audioOutput;
+        mOnFinished = onFinished;
+        mTrace = mTracer.ring("Player Core");
+        mCoreTask = new DecoderScheduler.Task(scheduler) {
+            @Override
+            protected long run() {
+                return CoreStep();
+            }
+        };
+        if (mVideo != null) {
+            mRenderTrace = mTracer.ring("Video Render");
+            mRenderTask = new DecoderScheduler.Task(scheduler) {
+                @Override
+                protected long run() {
+                    return RenderStep();
+                }
+            };
+        }
+        synchronized (mDone) {
+            mRunningTasks = mRenderTask != null ? 2 : 1;
+        }
+        mCoreTask.wakeUp();
+        if (mRenderTask != null) {
+            mRenderTask.wakeUp();
+        }
+    }
+
+    //until both decoders are released. Throws what stopped the core, if anything did
+    void await() throws Exception {
+        synchronized (mDone) {
+            while (mRunningTasks > 0) {
+                mDone.wait();
+            }
+        }
+        if (mError != null) {
+            throw mError;
+        }
+    }
+
+    //what stopped the core, null if it played to the end or was stopped
+    Exception error() {
+        return mError;
+    }
+
+    //any thread: ends playback soon
+    void stop() {
+        mStopped = true;
+        mFrames.cancel();
+        wakeUp();
+        SignalRenderer();
+    }
+
+    //any thread, after a pause, resume, seek request or rate change: both tasks look at the clock and the seeks again
+    void onPlaybackChanged() {
+        wakeUp();
+        SignalRenderer();
+    }
+
+    //packets waiting for an input buffer, approximate
+    int queueDepth(int track) {
+        Track t = track == TRACK_VIDEO ? mVideo : mAudio;
+        return t != null ? t.queueDepth : 0;
+    }
+
+    //steps the core task ran
+    long wakeups() {
+        return mWakeups;
+    }
+
+    //steps the render task ran
+    long renderWakeups() {
+        return mRenderWakeups;
+    }
+
+    //seeks ahead to keep within the latency target of a live source
+    int liveCatchUps() {
+        return mLiveCatchUps;
+    }
+
+    //bytes of the samples copied on their way from the source into the codecs, every copy counted
+    long copiedBytes() {
+        return mCopiedBytes;
+    }
+
+    //any thread: the core has something to do
+    private void wakeUp() {
+        DecoderScheduler.Task task = mCoreTask;
+        if (task != null) {
+            task.wakeUp();
+        }
+    }
+
+    //a task is done, the last one to be runs onFinished
+    private void OnTaskDone() {
+        synchronized (mDone) {
+            if (mRunningTasks > 1) {
+                mRunningTasks--;
+                return;
+            }
+        }
+        try {
+            if (mOnFinished != null) {
+                mOnFinished.run();
+            }
+        } finally {
+            synchronized (mDone) {
+                mRunningTasks = 0;
+                mDone.notifyAll();
+            }
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////
+    // core task
+
+    //as much as there is to do without waiting, then when to be run again
+    private long CoreStep() {
+        mWakeups++;
+        try {
+            if (!mCoreStarted) {
+                mCoreStarted = true;
+                if (mAudio != null && !mStopped) {
+                    mAudio.decoder = mAudioOutput.createDecoder(mAudio);
+                }
+            }
+            if (mStopped) {
+                return FinishCore();
+            }
+            CheckError(mVideo);
+            CheckError(mAudio);
+            SeekController.Request seek = mSeeks.take();
+            if (seek != null) {
+                ExecuteSeek(seek);
+            }
+            boolean busy = Demux();
+            busy |= CatchUpLive();
+            long waitUs = mSourcePending ? SOURCE_RETRY_US : Long.MAX_VALUE;
+            if (mVideo != null) {
+                busy |= Feed(mVideo);
+                busy |= DrainVideo();
+            }
+            if (mAudio != null) {
+                busy |= Feed(mAudio);
+                waitUs = Math.min(waitUs, DrainAudio(mAudioOutput));
+            }
+            if ((mVideo == null || mVideo.ended) && (mAudio == null || mAudio.ended)) {
+                long unplayedUs = UnplayedUs();
+                if (unplayedUs <= 0) {
+                    return FinishCore();
+                }
+                waitUs = Math.min(waitUs, unplayedUs);
+            }
+            if (busy) { //there may be more, after the other tasks had their turn
+                return DecoderScheduler.SOON;
+            }
+            return waitUs >= Long.MAX_VALUE / 1000 ? DecoderScheduler.IDLE : System.nanoTime() + waitUs * 1000;
+        } catch (Exception e) {
+            if (mError == null) {
+                mError = e;
+            }
+            return FinishCore();
+        }
+    }
+
+    //real time until the audio output has played what it was given, 0 if it doesn't play it
+    //itself. Long.MAX_VALUE while it is paused
+    private long UnplayedUs() throws Exception {
+        if (mAudio == null || !(mAudioOutput instanceof PlayingAudioOutput)) {
+            return 0;
+        }
+        long unplayedUs = ((PlayingAudioOutput) mAudioOutput).unplayedUs();
+        return unplayedUs > 0 && mClock.isPaused() ? Long.MAX_VALUE : unplayedUs;
+    }
+
+    //the core is done with the decoders: releases the audio one and has the render task release the video one
+    private long FinishCore() {
+        mFinished = true;
+        mFrames.cancel();
+        SignalRenderer();
+        try {
+            if (mAudio != null && mAudio.decoder != null) {
+                mAudioOutput.release(mAudio.decoder);
+            }
+        } finally {
+            OnTaskDone();
+        }
+        return DecoderScheduler.DONE;
+    }
+
+    private static void CheckError(Track track) throws Exception {
+        if (track != null && track.error != null) {
+            throw track.error;
+        }
+    }
+
+    //reads samples into the packet queues while they have room, just where they are if the source
+    //keeps them. true if it read any
+    private boolean Demux() {
+        mSourcePending = false;
+        if (mSourceEnded) {
+            return false;
+        }
+        for (int i = 0; i < DEMUX_BATCH; i++) {
+            if (mReadTrack == null) {
+                int size;
+                long offset = mMappedSource != null ? mMappedSource.getSampleOffset() : -1;
+                if (offset >= 0) {
+                    size = mMappedSource.getSampleSize();
+                } else {
+                    try {
+                        mReadBuffer.clear();
+                        size = mSource.readSampleData(mReadBuffer, 0);
+                    } catch (IllegalArgumentException e) { //the sample doesn't fit, grow the buffer and read it again
+                        mReadBuffer = ByteBuffer.allocateDirect(PacketPool.alignUp(mReadBuffer.capacity() * 2));
+                        return true;
+                    }
+                }
+                if (size == MediaSource.SAMPLE_PENDING) { //a live source, read again later
+                    mSourcePending = true;
+                    return i > 0;
+                }
+                if (size < 0) { //the end of the file
+                    mSourceEnded = true;
+                    return true;
+                }
+                int sourceTrack = mSource.getSampleTrackIndex();
+                Track track = mVideo != null && sourceTrack == mVideo.sourceTrack ? mVideo
+                        : mAudio != null && sourceTrack == mAudio.sourceTrack ? mAudio : null;
+                if (track == null) {
+                    mSource.advance();
+                    continue;
+                }
+                if (offset < 0) {
+                    mCopiedBytes += size;
+                }
+                mReadTrack = track;
+                mReadSize = size;
+                mReadOffset = offset;
+                mTrace.record(EventTracer.DEMUX, track.index, mSource.getSampleTime(), size);
+            }
+            Track track = mReadTrack;
+            if (track.packets.size() >= track.capacity) {
+                return i > 0;
+            }
+            long ptsUs = mSource.getSampleTime();
+            PacketBuffer packet;
+            if (mReadOffset >= 0) {
+                packet = track.pool.acquireReference();
+                packet.refer(mReadOffset, mReadSize, ptsUs);
+            } else {
+                packet = track.pool.acquire(mReadSize);
+                packet.fill(mReadBuffer, mReadSize, ptsUs);
+                mCopiedBytes += mReadSize;
+            }
+            packet.keyFrame = (mSource.getSampleFlags() & Mp4Demuxer.SAMPLE_FLAG_SYNC) != 0;
+            track.packets.add(packet);
+            int depth = track.packets.size();
+            track.queueDepth = depth;
+            track.stats.onDemuxed(mReadSize, depth);
+            mTrace.record(EventTracer.QUEUE, track.index, ptsUs, depth);
+            mReadTrack = null;
+            mSource.advance();
+        }
+        return true;
+    }
+
+    //requests a seek to the latency target behind the newest sample of a live source once playback
+    //is too far behind it, unless a seek is still under way. true if it did
+    private boolean CatchUpLive() {
+        if (!(mSource instanceof LiveSource) || !mClock.isAnchored() || mClock.isPaused() || mSeeks.hasPending()
+                || mSeeks.isDeliveryPending(SeekController.TRACK_VIDEO) || mSeeks.isDeliveryPending(SeekController.TRACK_AUDIO)) {
+            return false;
+        }
+        LiveSource live = (LiveSource) mSource;
+        long targetUs = live.latencyTargetUs();
+        long edgeUs = live.liveEdgeUs();
+        if (targetUs <= 0 || edgeUs == Long.MIN_VALUE || edgeUs - mClock.positionUs() <= targetUs + targetUs / 2) {
+            return false;
+        }
+        mSeeks.request(edgeUs - targetUs, Mp4Decoder.SeekMode.NEXT_SYNC);
+        mLiveCatchUps++;
+        return true;
+    }
+
+    //copies the packets into the input buffers offered, the samples the source keeps straight from
+    //it, then the end of stream flag once the source ended. Video packets are left out while the
+    //video skips to a key frame
+    private boolean Feed(Track track) {
+        DecoderBackend decoder = track.decoder;
+        if (decoder == null) {
+            return false;
+        }
+        boolean fed = false;
+        while (true) {
+            PacketBuffer packet = track.packets.peek();
+            if (packet == null && (!mSourceEnded || track.endQueued)) {
+                break;
+            }
+            if (packet != null && track.index == TRACK_VIDEO && mLateness.shouldSkip(packet.keyFrame, packet.ptsUs)) {
+                track.packets.poll();
+                track.queueDepth = track.packets.size();
+                track.stats.onSkipped();
+                mTrace.record(EventTracer.SKIP, track.index, packet.ptsUs, 0);
+                track.pool.release(packet);
+                fed = true;
+                continue;
+            }
+            Integer index = track.inputs.poll();
+            if (index == null) {
+                if (track.inputWaitSinceNs < 0) {
+                    track.inputWaitSinceNs = System.nanoTime();
+                }
+                break;
+            }
+            fed = true;
+            if (packet == null) {
+                decoder.queueInputBuffer(index, 0, 0, 0, DecoderBackend.BUFFER_FLAG_END_OF_STREAM);
+                track.endQueued = true;
+                break;
+            }
+            track.packets.poll();
+            track.queueDepth = track.packets.size();
+            ByteBuffer input = decoder.getInputBuffer(index);
+            int size;
+            if (packet.offset >= 0) {
+                size = mMappedSource.readSampleAt(track.sourceTrack, packet.offset, packet.size, input, 0);
+            } else {
+                packet.copyTo(input);
+                size = packet.size;
+            }
+            mCopiedBytes += size;
+            long nowNs = System.nanoTime();
+            long waitNs = track.inputWaitSinceNs >= 0 ? nowNs - track.inputWaitSinceNs : 0;
+            track.inputWaitSinceNs = -1;
+            track.stats.onQueued(packet.ptsUs, waitNs, nowNs); //before the codec can output it
+            decoder.queueInputBuffer(index, 0, size, packet.ptsUs, 0);
+            mTrace.record(EventTracer.DECODE_IN, track.index, packet.ptsUs, waitNs / 1000);
+            track.pool.release(packet);
+        }
+        return fed;
+    }
+
+    //hands the decoded video frames to the render task, up to the decode-ahead depth.
+    //Frames before an exact seek target never get there
+    private boolean DrainVideo() throws InterruptedException {
+        Track track = mVideo;
+        DecoderBackend decoder = track.decoder;
+        if (decoder == null) {
+            return false;
+        }
+        boolean drained = false;
+        while (true) {
+            if (mFreeFrame == null && (mFreeFrame = mFrames.acquire(0, TimeUnit.NANOSECONDS)) == null) {
+                return drained; //decoded as far ahead as allowed
+            }
+            Integer index = track.outputs.poll();
+            if (index == null) {
+                return drained;
+            }
+            drained = true;
+            if (index == DecoderBackend.INFO_OUTPUT_FORMAT_CHANGED) {
+                track.format = track.formats.poll();
+                continue;
+            }
+            DecoderBackend.BufferInfo info = track.infos[index];
+            if ((info.flags & DecoderBackend.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                decoder.releaseOutputBuffer(index, false);
+                mFrames.endOfStream();
+                SignalRenderer();
+                continue;
+            }
+            long decodedNs = System.nanoTime();
+            track.stats.onDecoded(info.presentationTimeUs, decodedNs);
+            mTrace.record(EventTracer.DECODE_OUT, TRACK_VIDEO, info.presentationTimeUs, info.size);
+            if (mSeeks.shouldDiscard(SeekController.TRACK_VIDEO, info.presentationTimeUs)) {
+                //decoded from the key frame before the seek target, only there to get to the target
+                decoder.releaseOutputBuffer(index, false);
+                continue;
+            }
+            DecoderBackend.OutputFormat format = track.format != null ? track.format : decoder.getOutputFormat();
+            mFreeFrame.set(index, info, format, mSeeks.generation(), decodedNs);
+            if (!mFrames.put(mFreeFrame)) { //stopped
+                return drained;
+            }
+            mFreeFrame = null;
+            SignalRenderer();
+        }
+    }
+
+    //delivers the audio that is due, or to an output playing it itself all there is room for.
+    //Returns how long until the next frame is, or there is room for it, Long.MAX_VALUE if there
+    //is none yet or the clock is paused
+    private long DrainAudio(AudioOutput output) throws Exception {
+        Track track = mAudio;
+        DecoderBackend decoder = track.decoder;
+        if (decoder == null) {
+            return Long.MAX_VALUE;
+        }
+        PlayingAudioOutput playing = output instanceof PlayingAudioOutput ? (PlayingAudioOutput) output : null;
+        if (playing != null) { //the clock follows what is heard
+            playing.setPaused(mClock.isPaused());
+            long playingPtsUs = playing.playingPtsUs(mSeeks.generation());
+            if (!mClock.isPaused() && playingPtsUs != Long.MIN_VALUE) {
+                mClock.sync(playingPtsUs);
+            }
+        }
+        while (!mClock.isPaused()) {
+            if (mAudioIndex < 0) {
+                Integer index = track.outputs.poll();
+                if (index == null) {
+                    return Long.MAX_VALUE;
+                }
+                if (index == DecoderBackend.INFO_OUTPUT_FORMAT_CHANGED) {
+                    track.format = track.formats.poll();
+                    continue;
+                }
+                DecoderBackend.BufferInfo info = track.infos[index];
+                if ((info.flags & DecoderBackend.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    decoder.releaseOutputBuffer(index, false);
+                    track.ended = true;
+                    return Long.MAX_VALUE;
+                }
+                track.stats.onDecoded(info.presentationTimeUs, System.nanoTime());
+                mTrace.record(EventTracer.DECODE_OUT, TRACK_AUDIO, info.presentationTimeUs, info.size);
+                if (mSeeks.shouldDiscard(SeekController.TRACK_AUDIO, info.presentationTimeUs)) {
+                    decoder.releaseOutputBuffer(index, false);
+                    continue;
+                }
+                mAudioIndex = index;
+                mAudioScheduled = false;
+            }
+            DecoderBackend.BufferInfo info = track.infos[mAudioIndex];
+            long ptsUs = info.presentationTimeUs;
+            if (playing != null) {
+                //starts the clock as it starts playing, the device's latency is then synced out
+                if (mClock.tryAnchor(ptsUs)) {
+                    SignalRenderer(); //a video frame may wait for it
+                }
+                long untilUs = playing.roomInUs(info.size, track.format != null ? track.format : decoder.getOutputFormat());
+                if (!mAudioScheduled) {
+                    mAudioScheduled = true;
+                    track.stats.onScheduled(untilUs);
+                }
+                if (untilUs > 0) {
+                    return untilUs;
+                }
+            } else if (!mClock.tryAnchor(ptsUs)) { //the audio is the master, it starts the clock
+                long untilUs = mClock.timeUntilUs(ptsUs);
+                if (!mAudioScheduled) {
+                    mAudioScheduled = true;
+                    track.stats.onScheduled(untilUs);
+                    if (untilUs > 0) {
+                        mTrace.record(EventTracer.SLEEP, TRACK_AUDIO, ptsUs, untilUs);
+                    }
+                }
+                if (untilUs > 0) {
+                    return untilUs;
+                }
+            } else {
+                SignalRenderer(); //a video frame may wait for it
+            }
+            long dueNs = System.nanoTime();
+            if (playing == null) {
+                mClock.sync(ptsUs); //the audio plays now, whether it's on time or late
+            }
+            ByteBuffer buffer = decoder.getOutputBuffer(mAudioIndex);
+            DecoderBackend.OutputFormat format = track.format != null ? track.format : decoder.getOutputFormat();
+            output.deliver(buffer, info, format, mSeeks.generation());
+            buffer.clear();
+            decoder.releaseOutputBuffer(mAudioIndex, true);
+            mAudioIndex = -1;
+            mSeeks.onDelivered(SeekController.TRACK_AUDIO);
+            long renderedNs = System.nanoTime();
+            track.stats.onRendered(dueNs, renderedNs);
+            mTrace.record(EventTracer.RENDER, TRACK_AUDIO, ptsUs, (renderedNs - dueNs) / 1000);
+        }
+        return Long.MAX_VALUE;
+    }
+
+    //flushes the decoders in place, drops everything queued and moves the source to the key frame the target decodes from
+    private void ExecuteSeek(SeekController.Request seek) {
+        DecoderBackend video = mVideo != null ? mVideo.decoder : null;
+        DecoderBackend audio = mAudio != null ? mAudio.decoder : null;
+        synchronized (mVideoLock) {
+            mSeeks.begin(seek, mVideo != null, mAudio != null);
+            if (video != null) {
+                video.flush();
+            }
+            if (audio != null) {
+                audio.flush();
+            }
+            if (mAudio != null && mAudioOutput instanceof PlayingAudioOutput) {
+                ((PlayingAudioOutput) mAudioOutput).flush();
+            }
+            mClock.reset();
+            mLateness.reset();
+        }
+        //nothing is offered between the flush and the restart, so what was offered before is all there is to forget
+        if (mVideo != null) {
+            mVideo.clear();
+        }
+        if (mAudio != null) {
+            mAudio.clear();
+            mAudio.ended = false;
+        }
+        if (video != null) {
+            video.start();
+        }
+        if (audio != null) {
+            audio.start();
+        }
+        mAudioIndex = -1;
+        mReadTrack = null;
+        mSourceEnded = false;
+        int mode = Mp4Demuxer.SEEK_TO_PREVIOUS_SYNC;
+        if (seek.mode == Mp4Decoder.SeekMode.NEXT_SYNC) {
+            mode = Mp4Demuxer.SEEK_TO_NEXT_SYNC;
+        } else if (seek.mode == Mp4Decoder.SeekMode.CLOSEST_SYNC) {
+            mode = Mp4Demuxer.SEEK_TO_CLOSEST_SYNC;
+        }
+        mSource.seekTo(seek.ptsUs, mode);
+        SignalRenderer(); //the frames it has are from before the seek
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////
+    // render task
+
+    //renders what is due, then when to be run again
+    private long RenderStep() {
+        mRenderWakeups++;
+        if (mFinished) { //the core is done with the video decoder too
+            try {
+                if (mRenderDecoder != null) {
+                    mVideoOutput.release(mRenderDecoder);
+                }
+            } finally {
+                OnTaskDone();
+            }
+            return DecoderScheduler.DONE;
+        }
+        if (mRenderEnded) {
+            return DecoderScheduler.IDLE;
+        }
+        try {
+            if (mRenderDecoder == null) {
+                mRenderDecoder = mVideoOutput.createDecoder(mVideo);
+                mVideo.decoder = mRenderDecoder;
+                wakeUp();
+            }
+            long nextNs = RenderFrames(mVideoOutput, mRenderDecoder);
+            if (nextNs != DecoderScheduler.DONE) {
+                return nextNs;
+            }
+        } catch (Exception e) { //like the core's, it stops playback
+            if (mError == null) {
+                mError = e;
+            }
+            stop();
+        }
+        //the end of the stream, stopped or failed: waits for the core to finish
+        mRenderEnded = true;
+        mVideo.ended = true;
+        wakeUp();
+        return DecoderScheduler.IDLE;
+    }
+
+    //renders the frames that are due. Returns when the next one is, IDLE to wait for a frame
+    //or a signal, DONE at the end of the stream or once stopped
+    private long RenderFrames(VideoOutput output, DecoderBackend decoder) throws Exception {
+        PipelineStats.Track stats = mVideo.stats;
+        EventTracer.Ring trace = mRenderTrace;
+        while (!mStopped) {
+            FrameQueue.Frame frame = mRenderFrame;
+            if (frame == null) {
+                frame = mFrames.take(0, TimeUnit.NANOSECONDS);
+                if (frame == null) {
+                    return mFrames.isEndOfStream() ? DecoderScheduler.DONE : DecoderScheduler.IDLE;
+                }
+                mRenderFrame = frame;
+                mRenderScheduled = false;
+                mMasterWaitSinceNs = System.nanoTime();
+            }
+            if (frame.generation != mSeeks.generation()) { //dequeued before a seek flushed its buffer
+                mFrames.release(frame);
+                mRenderFrame = null;
+                wakeUp();
+                continue;
+            }
+            //while paused, still show the frame a seek moved to
+            if (mClock.isPaused() && !mSeeks.isDeliveryPending(SeekController.TRACK_VIDEO)) {
+                return DecoderScheduler.IDLE;
+            }
+            long ptsUs = frame.ptsUs;
+            long untilUs = UntilDue(frame, stats, trace);
+            if (untilUs > 0) {
+                return untilUs >= Long.MAX_VALUE / 1000 ? DecoderScheduler.IDLE : System.nanoTime() + untilUs * 1000;
+            }
+            boolean drop = untilUs < 0;
+            //when it was due by the clock: waiting for a worker or the CPU counts as late
+            long dueNs = System.nanoTime() + Math.min(0, mClock.timeUntilUs(ptsUs)) * 1000;
+            DecoderBackend.OutputFormat format = frame.format;
+            boolean doRender = frame.size > 0;
+            output.prepare(decoder);
+            //not held while waiting for the frame, so check the buffer wasn't flushed by a seek meanwhile
+            synchronized (mVideoLock) {
+                if (frame.generation != mSeeks.generation()) {
+                    continue;
+                }
+                decoder.releaseOutputBuffer(frame.index, !drop);
+            }
+            mFrames.release(frame); //the codec has the buffer back, the core may hand over the next
+            mRenderFrame = null;
+            wakeUp();
+            if (drop) {
+                stats.onDropped();
+                trace.record(EventTracer.DROP, TRACK_VIDEO, ptsUs, 0);
+                continue;
+            }
+            if (doRender) {
+                output.present(format, ptsUs);
+                mSeeks.onDelivered(SeekController.TRACK_VIDEO);
+                long renderedNs = System.nanoTime();
+                stats.onRendered(dueNs, renderedNs);
+                trace.record(EventTracer.RENDER, TRACK_VIDEO, ptsUs, (renderedNs - dueNs) / 1000);
+            }
+        }
+        return DecoderScheduler.DONE;
+    }
+
+    //how long until the frame is due in us, 0 if it is, -1 if it should be dropped: the lateness
+    //policy drops it, or decoding is stopped or a seek requested while waiting. Until the audio
+    //starts the clock, how long to wait for it. The first time for a frame its lateness counts
+    private long UntilDue(FrameQueue.Frame frame, PipelineStats.Track stats, EventTracer.Ring trace) {
+        long ptsUs = frame.ptsUs;
+        if (!mRenderScheduled) {
+            //the first frame after a seek may start the clock rather than wait for the audio
+            boolean master = !mAudioMaster || mSeeks.isDeliveryPending(SeekController.TRACK_VIDEO);
+            if (!master && !mClock.isAnchored()) { //the audio wakes it up once it starts the clock
+                if (mStopped || mSeeks.hasPending()) {
+                    return -1;
+                }
+                long waitUs = MASTER_WAIT_US - (System.nanoTime() - mMasterWaitSinceNs) / 1000;
+                if (waitUs > 0) {
+                    return waitUs;
+                }
+                master = true;
+            }
+            mRenderScheduled = true;
+            if (master && mClock.tryAnchor(ptsUs)) {
+                return 0; //started the clock, so it's due right now
+            }
+            long untilUs = mClock.timeUntilUs(ptsUs);
+            if (untilUs != Long.MAX_VALUE) {
+                stats.onScheduled(untilUs);
+            }
+            if (mLateness.onFrame(ptsUs, -untilUs) == LatenessController.DROP) {
+                return -1;
+            }
+            if (untilUs > 0) {
+                trace.record(EventTracer.SLEEP, TRACK_VIDEO, ptsUs, untilUs);
+            }
+        }
+        //asking the clock again every step: a pause or a rate change moves the frame
+        long untilUs = mClock.timeUntilUs(ptsUs);
+        if (untilUs <= 0) {
+            return 0;
+        }
+        if (mStopped || mSeeks.hasPending() || frame.generation != mSeeks.generation()) {
+            return -1;
+        }
+        return untilUs;
+    }
+
+    private void SignalRenderer() {
+        DecoderScheduler.Task task = mRenderTask;
+        if (task != null) {
+            task.wakeUp();
+        }
+    }
+}
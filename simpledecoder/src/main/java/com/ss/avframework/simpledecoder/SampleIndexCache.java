@@ -0,0 +1,367 @@
+package com.ss.avframework.simpledecoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * On-disk cache of parsed MP4 sample tables, so reopening a file that was played before
+ * skips container parsing.
+ * <p>
+ * Every file gets one entry in the cache directory, keyed by path, size and modification
+ * time, which are checked again on load.  An entry is a header followed by the tables of
+ * each track as plain native-order arrays (offsets, dts, the sync sample bitmap, sizes and
+ * pts - dts composition offsets).  Loading maps the entry read-only and hands the tracks
+ * views of those arrays, so it costs a few small reads regardless of the length of the
+ * file, and the pages are only touched as samples are demuxed.  Entries are
+ * written to a temporary file and renamed, so concurrent players sharing a directory only
+ * ever see complete entries.  The least recently used entries are deleted once there are
+ * more than {@code maxEntries}.
+ */
+final class SampleIndexCache {
+    private static final int MAGIC = 0x53494458;    // "SIDX"
+    private static final int VERSION = 1;
+    private static final int BYTE_ORDER_MARK = 0x01020304;  // reads differently if written with the other order
+    private static final String SUFFIX = ".sidx";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int FLAG_CTS_OFFSETS = 1;
+    private static final int FLAG_SYNC_BITS = 2;
+
+    private final File mDir;
+    private final int mMaxEntries;
+    private int mHits;
+    private int mMisses;
+
+    SampleIndexCache(File dir) {
+        this(dir, 256);
+    }
+
+    SampleIndexCache(File dir, int maxEntries) {
+        mDir = dir;
+        mMaxEntries = maxEntries;
+    }
+
+    File getDir() {
+        return mDir;
+    }
+
+    synchronized int hits() {
+        return mHits;
+    }
+
+    synchronized int misses() {
+        return mMisses;
+    }
+
+    /**
+     * @return the cached tracks of {@code file}, or null if there is no valid entry for
+     * the file as it is now
+     */
+    Mp4Track[] load(File file) {
+        File entry = entryFile(file);
+        Mp4Track[] tracks = null;
+        if (entry.isFile()) {
+            try {
+                tracks = read(entry, file);
+            } catch (IOException e) {
+                tracks = null;
+            } catch (RuntimeException e) { //truncated or corrupt entry
+                tracks = null;
+            }
+            if (tracks == null) {
+                entry.delete();
+            } else {
+                entry.setLastModified(System.currentTimeMillis());
+            }
+        }
+        synchronized (this) {
+            if (tracks != null) {
+                mHits++;
+            } else {
+                mMisses++;
+            }
+        }
+        return tracks;
+    }
+
+    /**
+     * Writes the entry for {@code file}.  Failures are not fatal, the file is just parsed
+     * again next time.
+     */
+    void store(File file, Mp4Track[] tracks) {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            return;
+        }
+        File entry = entryFile(file);
+        File temp = new File(mDir, entry.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            byte[] path = file.getAbsolutePath().getBytes(UTF_8);
+            ByteBuffer buffer = ByteBuffer.allocate(entrySize(path, tracks)).order(ByteOrder.nativeOrder());
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(BYTE_ORDER_MARK);
+            buffer.putLong(file.length());
+            buffer.putLong(file.lastModified());
+            putBytes(buffer, path);
+            buffer.putInt(tracks.length);
+            for (Mp4Track track : tracks) {
+                putTrack(buffer, track);
+            }
+            buffer.flip();
+            RandomAccessFile out = new RandomAccessFile(temp, "rw");
+            try {
+                out.setLength(0);
+                FileChannel channel = out.getChannel();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(entry)) {
+                temp.delete();
+                return;
+            }
+        } catch (IOException e) {
+            temp.delete();
+            return;
+        }
+        trim();
+    }
+
+    void clear() {
+        File[] entries = mDir.listFiles();
+        if (entries != null) {
+            for (File entry : entries) {
+                if (entry.getName().endsWith(SUFFIX)) {
+                    entry.delete();
+                }
+            }
+        }
+    }
+
+    File entryFile(File file) {
+        //64-bit FNV-1a of the path; a collision is caught by the path check in read()
+        long hash = 0xcbf29ce484222325L;
+        String path = file.getAbsolutePath();
+        for (int i = 0; i < path.length(); i++) {
+            hash ^= path.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return new File(mDir, Long.toHexString(hash) + SUFFIX);
+    }
+
+    private Mp4Track[] read(File entry, File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(entry, "r");
+        MappedByteBuffer map;
+        try {
+            map = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+            map.order(ByteOrder.nativeOrder());
+        } finally {
+            in.close(); //the mapping stays valid
+        }
+        if (map.getInt() != MAGIC || map.getInt() != VERSION || map.getInt() != BYTE_ORDER_MARK
+                || map.getLong() != file.length() || map.getLong() != file.lastModified()
+                || !file.getAbsolutePath().equals(new String(getBytes(map), UTF_8))) {
+            return null;
+        }
+        Mp4Track[] tracks = new Mp4Track[map.getInt()];
+        for (int i = 0; i < tracks.length; i++) {
+            tracks[i] = getTrack(map);
+        }
+        return tracks;
+    }
+
+    private static int entrySize(byte[] path, Mp4Track[] tracks) {
+        int size = 4 + 4 + 4 + 8 + 8 + 4 + path.length + 4;
+        for (Mp4Track track : tracks) {
+            size += 4 * 4 + 4 + utf8Length(track.codec) + 4 + utf8Length(track.mime) + 8 + 8 + 5 * 4;
+            size += 4;
+            for (byte[] csd : track.csd) {
+                size += 4 + csd.length;
+            }
+            size += 8 + 4;
+            size = align(size);
+            size += track.sampleCount * (8 + 8 + 4);
+            if (track.syncBits != null) {
+                size += track.syncBits.limit() * 8;
+            }
+            if (track.ctsOffsets != null) {
+                size += track.sampleCount * 4;
+            }
+            size = align(size);
+        }
+        return size;
+    }
+
+    /*
+     * The tables go after the description of the track, 8-byte aligned, longs first:
+     * offsets, dts, sync bits (if any), then ints: sizes, composition offsets (if any).
+     */
+    private static void putTrack(ByteBuffer buffer, Mp4Track track) {
+        buffer.putInt(track.trackId);
+        buffer.putInt(track.type);
+        buffer.putInt(track.sampleCount);
+        int flags = (track.ctsOffsets != null ? FLAG_CTS_OFFSETS : 0) | (track.syncBits != null ? FLAG_SYNC_BITS : 0);
+        buffer.putInt(flags);
+        putString(buffer, track.codec);
+        putString(buffer, track.mime);
+        buffer.putLong(track.timescale);
+        buffer.putLong(track.durationUs);
+        buffer.putInt(track.width);
+        buffer.putInt(track.height);
+        buffer.putInt(track.nalLengthSize);
+        buffer.putInt(track.sampleRate);
+        buffer.putInt(track.channelCount);
+        buffer.putInt(track.csd.length);
+        for (byte[] csd : track.csd) {
+            putBytes(buffer, csd);
+        }
+        buffer.putLong(track.editMediaTime);
+        buffer.putInt(track.maxSampleSize);
+        buffer.position(align(buffer.position()));
+        int count = track.sampleCount;
+        for (int i = 0; i < count; i++) {
+            buffer.putLong(track.getOffset(i));
+        }
+        for (int i = 0; i < count; i++) {
+            buffer.putLong(track.getDts(i));
+        }
+        if (track.syncBits != null) {
+            for (int i = 0; i < track.syncBits.limit(); i++) {
+                buffer.putLong(track.syncBits.get(i));
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            buffer.putInt(track.getSize(i));
+        }
+        if (track.ctsOffsets != null) {
+            for (int i = 0; i < count; i++) {
+                buffer.putInt(track.getCtsOffset(i));
+            }
+        }
+        buffer.position(align(buffer.position()));
+    }
+
+    //the tables are not copied, the track keeps views of the mapping
+    private static Mp4Track getTrack(ByteBuffer buffer) {
+        Mp4Track track = new Mp4Track();
+        track.trackId = buffer.getInt();
+        track.type = buffer.getInt();
+        int count = buffer.getInt();
+        int flags = buffer.getInt();
+        track.codec = getString(buffer);
+        track.mime = getString(buffer);
+        track.timescale = buffer.getLong();
+        track.durationUs = buffer.getLong();
+        track.width = buffer.getInt();
+        track.height = buffer.getInt();
+        track.nalLengthSize = buffer.getInt();
+        track.sampleRate = buffer.getInt();
+        track.channelCount = buffer.getInt();
+        track.csd = new byte[buffer.getInt()][];
+        for (int i = 0; i < track.csd.length; i++) {
+            track.csd[i] = getBytes(buffer);
+        }
+        track.editMediaTime = buffer.getLong();
+        track.maxSampleSize = buffer.getInt();
+        buffer.position(align(buffer.position()));
+        LongBuffer offsets = slice(buffer, count * 8).asLongBuffer();
+        LongBuffer dts = slice(buffer, count * 8).asLongBuffer();
+        LongBuffer syncBits = null;
+        if ((flags & FLAG_SYNC_BITS) != 0) {
+            syncBits = slice(buffer, ((count + 63) >>> 6) * 8).asLongBuffer();
+        }
+        IntBuffer sizes = slice(buffer, count * 4).asIntBuffer();
+        IntBuffer ctsOffsets = null;
+        if ((flags & FLAG_CTS_OFFSETS) != 0) {
+            ctsOffsets = slice(buffer, count * 4).asIntBuffer();
+        }
+        buffer.position(align(buffer.position()));
+        track.setSampleTables(count, offsets, sizes, dts, ctsOffsets, syncBits);
+        return track;
+    }
+
+    //the next size bytes of buffer, which is moved past them
+    private static ByteBuffer slice(ByteBuffer buffer, int size) {
+        if (size < 0 || size > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        ByteBuffer slice = buffer.slice();
+        slice.limit(size);
+        slice.order(buffer.order()); //slice() resets the order to big-endian
+        buffer.position(buffer.position() + size);
+        return slice;
+    }
+
+    private static int align(int position) {
+        return (position + 7) & ~7;
+    }
+
+    private static int utf8Length(String text) {
+        return text == null ? 0 : text.getBytes(UTF_8).length;
+    }
+
+    //null is stored as length -1
+    private static void putString(ByteBuffer buffer, String text) {
+        if (text == null) {
+            buffer.putInt(-1);
+        } else {
+            putBytes(buffer, text.getBytes(UTF_8));
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        if (buffer.getInt(buffer.position()) < 0) {
+            buffer.getInt();
+            return null;
+        }
+        return new String(getBytes(buffer), UTF_8);
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private void trim() {
+        File[] entries = mDir.listFiles();
+        if (entries == null || entries.length <= mMaxEntries) {
+            return;
+        }
+        Arrays.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+            }
+        });
+        int excess = entries.length - mMaxEntries;
+        for (int i = 0; i < entries.length && excess > 0; i++) {
+            if (entries[i].getName().endsWith(SUFFIX) && entries[i].delete()) {
+                excess--;
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.ss.avframework.simpledecoder;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Seek bookkeeping of one {@link Mp4Decoder}, kept apart from the codecs so it can be
+ * tested on a plain JVM.
+ * <p>
+ * {@link #request} may be called from any thread and only stores the request: a burst of
+ * seeks collapses into the latest one, which the core task picks up with
+ * {@link #take()}.  Executing a seek bumps the generation, which tags every packet read
+ * afterwards so packets read before the seek can be recognised and dropped, and sets
+ * the target the decoded frames are discarded up to.  The time from the request to
+ * the first frame delivered at the target is the seek latency.
+ */
+final class SeekController {
+    static final int TRACK_VIDEO = 0;
+    static final int TRACK_AUDIO = 1;
+
+    static final class Request {
+        final long ptsUs;
+        final Mp4Decoder.SeekMode mode;
+        final long requestTimeNs;
+
+        Request(long ptsUs, Mp4Decoder.SeekMode mode, long requestTimeNs) {
+            this.ptsUs = ptsUs;
+            this.mode = mode;
+            this.requestTimeNs = requestTimeNs;
+        }
+    }
+
+    private final AtomicReference<Request> mPending = new AtomicReference<Request>();
+    private volatile int mGeneration;
+    private final long[] mDiscardUntilUs = {Long.MIN_VALUE, Long.MIN_VALUE};
+    private final boolean[] mDeliveryPending = new boolean[2];
+    private int mLatencyTrack = -1;     // the track whose first frame ends the seek
+    private Request mCurrent;
+    private long mLastLatencyUs = -1;
+    private int mRequested;
+    private int mExecuted;
+
+    /**
+     * Stores a seek request, replacing any request that hasn't been picked up yet.
+     */
+    void request(long ptsUs, Mp4Decoder.SeekMode mode) {
+        Request request = new Request(Math.max(0, ptsUs), mode, System.nanoTime());
+        synchronized (this) {
+            mRequested++;
+        }
+        mPending.set(request);
+    }
+
+    boolean hasPending() {
+        return mPending.get() != null;
+    }
+
+    /**
+     * @return the latest request, or null if there is none, which is then no longer pending
+     */
+    Request take() {
+        return mPending.getAndSet(null);
+    }
+
+    /**
+     * Starts executing {@code request}: from now on packets must carry the returned
+     * generation, and frames before the target are to be discarded.  Call it while the
+     * decoders are being flushed.
+     */
+    synchronized int begin(Request request, boolean hasVideo, boolean hasAudio) {
+        long target = request.mode == Mp4Decoder.SeekMode.EXACT ? request.ptsUs : Long.MIN_VALUE;
+        mDiscardUntilUs[TRACK_VIDEO] = hasVideo ? target : Long.MIN_VALUE;
+        mDiscardUntilUs[TRACK_AUDIO] = hasAudio ? target : Long.MIN_VALUE;
+        mDeliveryPending[TRACK_VIDEO] = hasVideo;
+        mDeliveryPending[TRACK_AUDIO] = hasAudio;
+        mLatencyTrack = hasVideo ? TRACK_VIDEO : hasAudio ? TRACK_AUDIO : -1;
+        mCurrent = request;
+        mExecuted++;
+        return ++mGeneration;
+    }
+
+    int generation() {
+        return mGeneration;
+    }
+
+    /**
+     * @return true if a decoded frame of {@code track} at {@code ptsUs} is before the target
+     * of the last exact seek and must not be shown
+     */
+    synchronized boolean shouldDiscard(int track, long ptsUs) {
+        return mDeliveryPending[track] && ptsUs < mDiscardUntilUs[track];
+    }
+
+    /**
+     * @return true until the first frame of {@code track} after the last seek is delivered
+     */
+    synchronized boolean isDeliveryPending(int track) {
+        return mDeliveryPending[track];
+    }
+
+    /**
+     * Call for every frame handed to the listener or rendered.
+     */
+    synchronized void onDelivered(int track) {
+        if (!mDeliveryPending[track]) {
+            return;
+        }
+        mDeliveryPending[track] = false;
+        mDiscardUntilUs[track] = Long.MIN_VALUE;
+        if (track == mLatencyTrack && mCurrent != null) {
+            mLastLatencyUs = (System.nanoTime() - mCurrent.requestTimeNs) / 1000;
+            mCurrent = null;
+        }
+    }
+
+    /**
+     * Forgets the pending request and the state of the last seek, keeps the statistics.
+     */
+    synchronized void reset() {
+        mPending.set(null);
+        mDeliveryPending[TRACK_VIDEO] = false;
+        mDeliveryPending[TRACK_AUDIO] = false;
+        mDiscardUntilUs[TRACK_VIDEO] = Long.MIN_VALUE;
+        mDiscardUntilUs[TRACK_AUDIO] = Long.MIN_VALUE;
+        mCurrent = null;
+    }
+
+    //request to first frame at the target of the last completed seek, -1 if none completed yet
+    synchronized long lastLatencyUs() {
+        return mLastLatencyUs;
+    }
+
+    synchronized int requestedCount() {
+        return mRequested;
+    }
+
+    synchronized int executedCount() {
+        return mExecuted;
+    }
+}
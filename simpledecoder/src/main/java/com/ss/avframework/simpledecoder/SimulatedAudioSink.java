@@ -0,0 +1,201 @@
+package com.ss.avframework.simpledecoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * An {@link AudioSink} without a device, for headless playback and tests: a buffer of
+ * {@code bufferMs} consumed in real time at the sample rate while playing, the way a device
+ * would.  The PCM is discarded, or written to a WAV file holding the PCM since the last
+ * configure().  Counts underruns, the times it ran dry while playing.
+ * <p>
+ * For tests it can run off another time source, and at a rate off by some parts per million
+ * the way a device's crystal is.  Thread-safe.
+ */
+public final class SimulatedAudioSink implements AudioSink {
+    private static final int WAV_HEADER_SIZE = 44;
+
+    private final File mFile;
+    private final int mBufferMs;
+    private final MediaClock.TimeSource mTime;
+    private final double mSkew;                 // the device's rate over the nominal one
+    private FileChannel mChannel;
+    private final ByteBuffer mHeader = ByteBuffer.allocate(WAV_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private int mSampleRate;
+    private int mChannelCount;
+    private int mBufferFrames;
+    private long mWrittenFrames;
+    private double mPlayedFrames;
+    private long mLastNs;
+    private boolean mPlaying;
+    private boolean mStarved;
+    private long mUnderruns;
+
+    //discards the PCM
+    public static SimulatedAudioSink discarding(int bufferMs) {
+        return new SimulatedAudioSink(null, bufferMs, MediaClock.SYSTEM_TIME, 0);
+    }
+
+    //writes the PCM to file, a WAV file
+    public static SimulatedAudioSink wavFile(File file, int bufferMs) {
+        if (file == null) {
+            throw new IllegalArgumentException("file is null");
+        }
+        return new SimulatedAudioSink(file, bufferMs, MediaClock.SYSTEM_TIME, 0);
+    }
+
+    /**
+     * @param file the WAV file to write, null to discard the PCM
+     * @param skewPpm how much faster than the sample rate the device consumes, e.g. -50
+     */
+    SimulatedAudioSink(File file, int bufferMs, MediaClock.TimeSource time, double skewPpm) {
+        if (bufferMs <= 0) {
+            throw new IllegalArgumentException("buffer " + bufferMs + "ms");
+        }
+        mFile = file;
+        mBufferMs = bufferMs;
+        mTime = time;
+        mSkew = 1 + skewPpm / 1e6;
+    }
+
+    @Override
+    public synchronized void configure(int sampleRate, int channelCount) throws IOException {
+        if (sampleRate <= 0 || channelCount <= 0) {
+            throw new IllegalArgumentException(sampleRate + "Hz " + channelCount + "ch");
+        }
+        release();
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        mBufferFrames = (int) ((long) sampleRate * mBufferMs / 1000);
+        mWrittenFrames = 0;
+        mPlayedFrames = 0;
+        mPlaying = false;
+        mStarved = false;
+        if (mFile != null) {
+            mChannel = new RandomAccessFile(mFile, "rw").getChannel();
+            mChannel.truncate(0);
+            WriteHeader();
+        }
+    }
+
+    @Override
+    public synchronized int writableFrames() {
+        Advance();
+        return (int) Math.max(0, mBufferFrames - (mWrittenFrames - (long) mPlayedFrames));
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer pcm) throws IOException {
+        int frameBytes = mChannelCount * 2;
+        int frames = Math.min(pcm.remaining() / frameBytes, writableFrames());
+        if (frames == 0) {
+            return 0;
+        }
+        int limit = pcm.limit();
+        pcm.limit(pcm.position() + frames * frameBytes);
+        try {
+            if (mChannel != null) {
+                while (pcm.hasRemaining()) {
+                    mChannel.write(pcm);
+                }
+            } else {
+                pcm.position(pcm.limit());
+            }
+        } finally {
+            pcm.limit(limit);
+        }
+        mWrittenFrames += frames;
+        mStarved = false;
+        return frames;
+    }
+
+    @Override
+    public synchronized long playedFrames() {
+        Advance();
+        return (long) mPlayedFrames;
+    }
+
+    @Override
+    public synchronized void play() {
+        Advance();
+        mPlaying = true;
+    }
+
+    @Override
+    public synchronized void pause() {
+        Advance();
+        mPlaying = false;
+    }
+
+    @Override
+    public synchronized void flush() {
+        Advance();
+        mWrittenFrames = 0;
+        mPlayedFrames = 0;
+        mStarved = false;
+    }
+
+    @Override
+    public synchronized void release() {
+        if (mChannel != null) {
+            try {
+                WriteHeader();
+                mChannel.close();
+            } catch (IOException e) {
+                //the PCM is in, only the sizes in the header may be off
+            }
+            mChannel = null;
+        }
+    }
+
+    //the times it ran dry while playing
+    public synchronized long getUnderruns() {
+        return mUnderruns;
+    }
+
+    //frames written since configure() or flush(), consumed or not
+    public synchronized long getWrittenFrames() {
+        return mWrittenFrames;
+    }
+
+    //consumes what the time since the last call played
+    private void Advance() {
+        long nowNs = mTime.nanoTime();
+        if (mPlaying && mSampleRate > 0) {
+            mPlayedFrames += (nowNs - mLastNs) / 1e9 * mSampleRate * mSkew;
+            if (mPlayedFrames >= mWrittenFrames) {
+                if (!mStarved && mPlayedFrames > mWrittenFrames && mWrittenFrames > 0) {
+                    mStarved = true;
+                    mUnderruns++;
+                }
+                mPlayedFrames = mWrittenFrames;
+            }
+        }
+        mLastNs = nowNs;
+    }
+
+    //the header for the PCM written so far, at the start of the file
+    private void WriteHeader() throws IOException {
+        long dataSize = mChannel.size() - WAV_HEADER_SIZE;
+        if (dataSize < 0) {
+            dataSize = 0;
+        }
+        mHeader.clear();
+        mHeader.put(new byte[]{'R', 'I', 'F', 'F'}).putInt((int) (36 + dataSize));
+        mHeader.put(new byte[]{'W', 'A', 'V', 'E', 'f', 'm', 't', ' '}).putInt(16);
+        mHeader.putShort((short) 1).putShort((short) mChannelCount).putInt(mSampleRate)
+                .putInt(mSampleRate * mChannelCount * 2).putShort((short) (mChannelCount * 2)).putShort((short) 16);
+        mHeader.put(new byte[]{'d', 'a', 't', 'a'}).putInt((int) dataSize);
+        mHeader.flip();
+        long position = mChannel.position();
+        mChannel.position(0);
+        while (mHeader.hasRemaining()) {
+            mChannel.write(mHeader);
+        }
+        mChannel.position(Math.max(position, WAV_HEADER_SIZE));
+    }
+}
@@ -0,0 +1,259 @@
+package com.ss.avframework.simpledecoder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single-producer/single-consumer ring buffer used to hand codec buffers and decoded
+ * frames from one pipeline thread to another.
+ * <p>
+ * Exactly one thread may call the producer methods ({@link #offer}, {@link #put},
+ * {@link #endOfStream()}) and exactly one thread the consumer methods ({@link #poll},
+ * {@link #take}), or one task of a {@link DecoderScheduler} each, as its steps never overlap
+ * and the scheduler orders them.  Neither side takes a lock: the ring is indexed by two monotonically
+ * increasing counters, each written by one side only.  A side that has to wait parks
+ * itself and is unparked by the other side as soon as there is something to do, so a
+ * handoff costs one wakeup instead of a sleep-polling interval.
+ * <p>
+ * End of stream is a state of the queue rather than a magic element: once the producer
+ * calls {@link #endOfStream()} and the consumer has drained every element queued before
+ * it, the blocking consumer calls return {@code null} and {@link #isEndOfStream()} turns
+ * true.  {@link #cancel()} releases both sides for good, e.g. when decoding is stopped.
+ */
+final class SpscQueue<E> {
+    private final Object[] mRing;
+    private final int mMask;
+    private final int mCapacity;
+    private final AtomicLong mHead = new AtomicLong();     // next slot to read, written by the consumer
+    private final AtomicLong mTail = new AtomicLong();     // next slot to write, written by the producer
+    private volatile boolean mEndOfStream;
+    private volatile boolean mCancelled;
+    private volatile Thread mWaitingProducer;
+    private volatile Thread mWaitingConsumer;
+
+    /**
+     * @param capacity maximum number of queued elements
+     */
+    SpscQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mRing = new Object[size];
+        mMask = size - 1;
+        mCapacity = capacity;
+    }
+
+    int capacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Number of queued elements.  Exact from either side, approximate from anywhere else.
+     */
+    int size() {
+        long size = mTail.get() - mHead.get();
+        return (int) Math.max(0, Math.min(size, mCapacity));
+    }
+
+    boolean isEmpty() {
+        return mHead.get() == mTail.get();
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////
+    // producer side
+
+    /**
+     * Queues {@code e} if there is room.
+     *
+     * @return false if the queue is full or cancelled
+     */
+    boolean offer(E e) {
+        if (mCancelled) {
+            return false;
+        }
+        long tail = mTail.get();
+        if (tail - mHead.get() >= mCapacity) {
+            return false;
+        }
+        mRing[(int) tail & mMask] = e;
+        mTail.set(tail + 1);
+        unpark(mWaitingConsumer);
+        return true;
+    }
+
+    /**
+     * Queues {@code e}, waiting up to {@code timeout} for room.
+     *
+     * @return false if the queue stayed full or was cancelled
+     */
+    boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadlineNs = System.nanoTime() + unit.toNanos(timeout);
+        while (!offer(e)) {
+            if (mCancelled || !awaitRoom(deadlineNs)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Queues {@code e}, waiting as long as it takes for room.
+     *
+     * @return false if the queue was cancelled while waiting
+     */
+    boolean put(E e) throws InterruptedException {
+        while (!offer(e)) {
+            if (mCancelled) {
+                return false;
+            }
+            awaitRoom(Long.MAX_VALUE);
+        }
+        return true;
+    }
+
+    /**
+     * Signals that no element will follow the ones already queued.
+     */
+    void endOfStream() {
+        mEndOfStream = true;
+        unpark(mWaitingConsumer);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////
+    // consumer side
+
+    /**
+     * @return the oldest element, or null if the queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    E poll() {
+        long head = mHead.get();
+        if (head >= mTail.get()) {
+            return null;
+        }
+        int index = (int) head & mMask;
+        E e = (E) mRing[index];
+        mRing[index] = null;
+        mHead.set(head + 1);
+        unpark(mWaitingProducer);
+        return e;
+    }
+
+    /**
+     * Waits up to {@code timeout} for an element.
+     *
+     * @return the oldest element, or null on timeout, end of stream or cancellation
+     */
+    E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadlineNs = System.nanoTime() + unit.toNanos(timeout);
+        E e;
+        while ((e = poll()) == null) {
+            if (mCancelled || isEndOfStream() || !awaitElement(deadlineNs)) {
+                return null;
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Waits for an element.
+     *
+     * @return the oldest element, or null on end of stream or cancellation
+     */
+    E take() throws InterruptedException {
+        E e;
+        while ((e = poll()) == null) {
+            if (mCancelled || isEndOfStream()) {
+                return null;
+            }
+            awaitElement(Long.MAX_VALUE);
+        }
+        return e;
+    }
+
+    /**
+     * True once end of stream was signalled and every element before it was taken.
+     */
+    boolean isEndOfStream() {
+        return mEndOfStream && isEmpty();
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////
+    // either side
+
+    /**
+     * Wakes up both sides and makes every further call fail fast.
+     */
+    void cancel() {
+        mCancelled = true;
+        unpark(mWaitingConsumer);
+        unpark(mWaitingProducer);
+    }
+
+    boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Clears the end of stream state so the queue can carry another stream.  Only call this
+     * while neither side is using the queue.
+     */
+    void reset() {
+        mEndOfStream = false;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////
+
+    //returns false on timeout; the caller re-checks the queue either way
+    private boolean awaitRoom(long deadlineNs) throws InterruptedException {
+        mWaitingProducer = Thread.currentThread();
+        try {
+            //re-check after publishing ourselves, the consumer may have polled in between
+            if (mTail.get() - mHead.get() < mCapacity || mCancelled) {
+                return true;
+            }
+            return park(deadlineNs);
+        } finally {
+            mWaitingProducer = null;
+        }
+    }
+
+    private boolean awaitElement(long deadlineNs) throws InterruptedException {
+        mWaitingConsumer = Thread.currentThread();
+        try {
+            if (mHead.get() < mTail.get() || mEndOfStream || mCancelled) {
+                return true;
+            }
+            return park(deadlineNs);
+        } finally {
+            mWaitingConsumer = null;
+        }
+    }
+
+    private boolean park(long deadlineNs) throws InterruptedException {
+        if (deadlineNs == Long.MAX_VALUE) {
+            LockSupport.park(this);
+        } else {
+            long remainingNs = deadlineNs - System.nanoTime();
+            if (remainingNs <= 0) {
+                return false;
+            }
+            LockSupport.parkNanos(this, remainingNs);
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        return true;
+    }
+
+    private static void unpark(Thread thread) {
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+}
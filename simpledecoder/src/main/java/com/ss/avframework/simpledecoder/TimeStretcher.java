@@ -0,0 +1,321 @@
+package com.ss.avframework.simpledecoder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Changes the speed of 16-bit PCM without changing its pitch, WSOLA style: the output is
+ * made of 20ms segments of the input taken every {@code rate} * 10ms and overlap-added every
+ * 10ms.  Each segment is picked within +-5ms of where it should start so that it continues
+ * the previous one best, by the normalized cross-correlation of a mono mix (coarsely on a
+ * decimated mix first), which keeps the waveform from cancelling out at the joins.
+ * <p>
+ * {@link #write} input, {@link #read} what is ready of the output, which lags the input by
+ * about 30ms while stretching.  At rate 1 the samples pass through untouched.  The buffers
+ * grow to the largest block written and are reused from then on, so a steady stream of
+ * blocks doesn't allocate.  Not thread-safe.
+ */
+final class TimeStretcher {
+    static final float MIN_RATE = 0.25f;
+    static final float MAX_RATE = 4.0f;
+
+    private final int mSampleRate;
+    private final int mChannelCount;
+    private final int mOverlap;         // frames, the synthesis hop and half a segment
+    private final int mTolerance;       // frames a segment may start early or late
+    private final int mDecimation;      // of the coarse search
+    private final float[] mFadeIn;
+    private float mRate = 1.0f;
+
+    //input not consumed yet, interleaved, and its mono mix
+    private short[] mInput = new short[0];
+    private float[] mMono = new float[0];
+    private int mInputFrames;
+    private double mPosition;           // in mInput, where the next segment should start
+    private boolean mStretching;
+    //the second half of the last segment, faded out under the next one
+    private boolean mHasTail;
+    private final float[] mTail;
+    private final float[] mTailMono;
+
+    //output ready to read, interleaved
+    private short[] mOutput = new short[0];
+    private int mOutputStart;
+    private int mOutputFrames;
+
+    TimeStretcher(int sampleRate, int channelCount) {
+        if (sampleRate <= 0 || channelCount <= 0) {
+            throw new IllegalArgumentException("sample rate " + sampleRate + ", channels " + channelCount);
+        }
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        mOverlap = Math.max(16, sampleRate / 100);
+        mTolerance = Math.max(4, sampleRate / 200);
+        mDecimation = Math.max(1, sampleRate / 11025);
+        mFadeIn = new float[mOverlap];
+        for (int i = 0; i < mOverlap; i++) { //raised cosine, fade in + fade out = 1
+            mFadeIn[i] = (float) (0.5 - 0.5 * Math.cos(Math.PI * (i + 0.5) / mOverlap));
+        }
+        mTail = new float[mOverlap * channelCount];
+        mTailMono = new float[mOverlap];
+    }
+
+    int getSampleRate() {
+        return mSampleRate;
+    }
+
+    int getChannelCount() {
+        return mChannelCount;
+    }
+
+    //rate: MIN_RATE - MAX_RATE, 2 plays twice as fast. Applies to what is written from now on
+    void setRate(float rate) {
+        if (!(rate >= MIN_RATE && rate <= MAX_RATE)) {
+            throw new IllegalArgumentException("rate out of range: " + rate);
+        }
+        mRate = rate;
+    }
+
+    float getRate() {
+        return mRate;
+    }
+
+    //false at rate 1 once everything stretched before is out, then write() is a copy
+    boolean isStretching() {
+        return mStretching;
+    }
+
+    //drops all input and output, e.g. after a seek
+    void clear() {
+        mInputFrames = 0;
+        mPosition = 0;
+        mStretching = false;
+        mHasTail = false;
+        mOutputStart = 0;
+        mOutputFrames = 0;
+    }
+
+    //appends size bytes of interleaved little-endian 16-bit PCM at offset of pcm
+    void write(ByteBuffer pcm, int offset, int size) {
+        int frames = size / 2 / mChannelCount;
+        int channels = mChannelCount;
+        if (!mStretching && mRate == 1.0f) {
+            EnsureOutputRoom(frames);
+            int out = (mOutputStart + mOutputFrames) * channels;
+            for (int i = 0, n = frames * channels; i < n; i++) {
+                mOutput[out + i] = ReadSample(pcm, offset + 2 * i);
+            }
+            mOutputFrames += frames;
+            return;
+        }
+        EnsureInputRoom(frames);
+        int in = mInputFrames * channels;
+        int index = offset;
+        for (int frame = 0; frame < frames; frame++) {
+            float mono = 0;
+            for (int c = 0; c < channels; c++, in++, index += 2) {
+                short sample = ReadSample(pcm, index);
+                mInput[in] = sample;
+                mono += sample;
+            }
+            mMono[mInputFrames + frame] = mono / channels;
+        }
+        mInputFrames += frames;
+        mStretching = true;
+        Process();
+    }
+
+    int availableFrames() {
+        return mOutputFrames;
+    }
+
+    //moves up to the room left in out of the output there, little-endian. The frames moved
+    int read(ByteBuffer out) {
+        int channels = mChannelCount;
+        int frames = Math.min(mOutputFrames, out.remaining() / 2 / channels);
+        int position = out.position();
+        int from = mOutputStart * channels;
+        for (int i = 0, n = frames * channels; i < n; i++) {
+            short sample = mOutput[from + i];
+            out.put(position++, (byte) sample);
+            out.put(position++, (byte) (sample >> 8));
+        }
+        out.position(position);
+        mOutputStart += frames;
+        mOutputFrames -= frames;
+        if (mOutputFrames == 0) {
+            mOutputStart = 0;
+        }
+        return frames;
+    }
+
+    private void Process() {
+        int channels = mChannelCount;
+        if (!mHasTail && mInputFrames >= mOverlap) {
+            //the first segment continues itself
+            LoadTail(0);
+            mHasTail = true;
+            mPosition = 0;
+        }
+        while (mHasTail) {
+            int start = (int) Math.round(mPosition);
+            if (start + mTolerance + 2 * mOverlap > mInputFrames) {
+                break; //wait for more input
+            }
+            int offset = BestOffset(start, Math.max(-mTolerance, -start), mTolerance);
+            int segment = start + offset;
+            EnsureOutputRoom(mOverlap);
+            int out = (mOutputStart + mOutputFrames) * channels;
+            for (int i = 0; i < mOverlap; i++) {
+                float fadeIn = mFadeIn[i];
+                for (int c = 0; c < channels; c++) {
+                    int k = i * channels + c;
+                    float value = mTail[k] + (mInput[segment * channels + k] - mTail[k]) * fadeIn;
+                    mOutput[out + k] = Clip(value);
+                }
+            }
+            mOutputFrames += mOverlap;
+            LoadTail(segment + mOverlap);
+            if (mRate == 1.0f) {
+                //back to passing through: the rest of the input continues the tail as is
+                Finish(segment + mOverlap);
+                return;
+            }
+            mPosition += mOverlap * (double) mRate;
+        }
+        Compact();
+    }
+
+    //outputs the input from frame on unchanged and stops stretching
+    private void Finish(int frame) {
+        int frames = mInputFrames - frame;
+        EnsureOutputRoom(frames);
+        System.arraycopy(mInput, frame * mChannelCount, mOutput, (mOutputStart + mOutputFrames) * mChannelCount, frames * mChannelCount);
+        mOutputFrames += frames;
+        mInputFrames = 0;
+        mPosition = 0;
+        mHasTail = false;
+        mStretching = false;
+    }
+
+    private void LoadTail(int frame) {
+        int channels = mChannelCount;
+        for (int i = 0, n = mOverlap * channels; i < n; i++) {
+            mTail[i] = mInput[frame * channels + i];
+        }
+        System.arraycopy(mMono, frame, mTailMono, 0, mOverlap);
+    }
+
+    //the offset from start in [low, high] where the input continues the tail best
+    private int BestOffset(int start, int low, int high) {
+        int step = mDecimation;
+        int count = (mOverlap + step - 1) / step;
+        float[] mono = mMono;
+        float[] tail = mTailMono;
+        //coarse, every step-th offset and sample, sliding the energy of the candidate along
+        int best = low;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        double energy = 0;
+        for (int k = 0; k < count; k++) {
+            double v = mono[start + low + k * step];
+            energy += v * v;
+        }
+        for (int offset = low; offset <= high; offset += step) {
+            int base = start + offset;
+            if (offset > low) {
+                double out = mono[base - step];
+                double in = mono[base + (count - 1) * step];
+                energy += in * in - out * out;
+            }
+            double correlation = 0;
+            for (int k = 0, i = 0; k < count; k++, i += step) {
+                correlation += tail[i] * mono[base + i];
+            }
+            double score = Score(correlation, energy);
+            if (score > bestScore) {
+                bestScore = score;
+                best = offset;
+            }
+        }
+        if (step == 1) {
+            return best;
+        }
+        //fine, every sample around the coarse best
+        int coarse = best;
+        bestScore = Double.NEGATIVE_INFINITY;
+        for (int offset = Math.max(low, coarse - step + 1); offset <= Math.min(high, coarse + step - 1); offset++) {
+            int base = start + offset;
+            double correlation = 0;
+            double fineEnergy = 0;
+            for (int i = 0; i < mOverlap; i++) {
+                float v = mono[base + i];
+                correlation += tail[i] * v;
+                fineEnergy += v * v;
+            }
+            double score = Score(correlation, fineEnergy);
+            if (score > bestScore) {
+                bestScore = score;
+                best = offset;
+            }
+        }
+        return best;
+    }
+
+    //correlation normalized by the candidate's energy, keeping the sign, without a square root
+    private static double Score(double correlation, double energy) {
+        if (energy < 1e-3) {
+            return 0;
+        }
+        return correlation * Math.abs(correlation) / energy;
+    }
+
+    //drops the input no later segment can use
+    private void Compact() {
+        //fast enough the next segment starts beyond what was written so far
+        int keep = Math.min(mInputFrames, (int) Math.floor(mPosition) - mTolerance);
+        if (keep <= 0 || keep < mInputFrames / 2) {
+            return;
+        }
+        int channels = mChannelCount;
+        System.arraycopy(mInput, keep * channels, mInput, 0, (mInputFrames - keep) * channels);
+        System.arraycopy(mMono, keep, mMono, 0, mInputFrames - keep);
+        mInputFrames -= keep;
+        mPosition -= keep;
+    }
+
+    private void EnsureInputRoom(int frames) {
+        int needed = mInputFrames + frames;
+        if (needed > mMono.length) {
+            int capacity = Math.max(needed, mMono.length * 2);
+            short[] input = new short[capacity * mChannelCount];
+            System.arraycopy(mInput, 0, input, 0, mInputFrames * mChannelCount);
+            mInput = input;
+            float[] mono = new float[capacity];
+            System.arraycopy(mMono, 0, mono, 0, mInputFrames);
+            mMono = mono;
+        }
+    }
+
+    private void EnsureOutputRoom(int frames) {
+        int channels = mChannelCount;
+        if (mOutputStart > 0 && (mOutputStart + mOutputFrames + frames) * channels > mOutput.length) {
+            System.arraycopy(mOutput, mOutputStart * channels, mOutput, 0, mOutputFrames * channels);
+            mOutputStart = 0;
+        }
+        int needed = (mOutputFrames + frames) * channels;
+        if (needed > mOutput.length) {
+            short[] output = new short[Math.max(needed, mOutput.length * 2)];
+            System.arraycopy(mOutput, mOutputStart * channels, output, 0, mOutputFrames * channels);
+            mOutput = output;
+            mOutputStart = 0;
+        }
+    }
+
+    private static short ReadSample(ByteBuffer pcm, int index) {
+        return (short) ((pcm.get(index) & 0xff) | pcm.get(index + 1) << 8);
+    }
+
+    private static short Clip(float value) {
+        int sample = Math.round(value);
+        return (short) (sample > Short.MAX_VALUE ? Short.MAX_VALUE : sample < Short.MIN_VALUE ? Short.MIN_VALUE : sample);
+    }
+}
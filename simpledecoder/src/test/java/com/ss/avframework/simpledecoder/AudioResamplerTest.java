@@ -0,0 +1,235 @@
+package com.ss.avframework.simpledecoder;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class AudioResamplerTest {
+    private static final int BLOCK = 1024;          // frames, an AAC frame
+    private static final int[][] PAIRS = {{44100, 48000}, {32000, 48000}, {22050, 48000}, {48000, 44100}, {11025, 48000}};
+
+    //a sine of amplitude (of full scale) in every channel
+    private static short[] Tone(int rate, int channels, int frames, double hz, double amplitude) {
+        short[] pcm = new short[frames * channels];
+        for (int i = 0; i < frames; i++) {
+            short value = (short) Math.round(amplitude * 32767 * Math.sin(2 * Math.PI * hz * i / rate));
+            for (int c = 0; c < channels; c++) {
+                pcm[i * channels + c] = value;
+            }
+        }
+        return pcm;
+    }
+
+    //converts input a block at a time, then drains it
+    private static short[] Run(AudioResampler resampler, short[] input) {
+        int inChannels = resampler.getInputChannels();
+        int outChannels = resampler.getOutputChannels();
+        int frames = input.length / inChannels;
+        short[] output = new short[(int) ((long) (frames + BLOCK) * resampler.getOutputRate() / resampler.getInputRate() + BLOCK) * outChannels];
+        int out = 0;
+        for (int i = 0; i < frames; i += BLOCK) {
+            int count = Math.min(BLOCK, frames - i);
+            assertTrue(out + resampler.maxOutputFrames(count) * outChannels <= output.length);
+            int produced = resampler.process(input, i * inChannels, count, output, out);
+            out += produced * outChannels;
+        }
+        out += resampler.drain(output, out) * outChannels;
+        short[] result = new short[out];
+        System.arraycopy(output, 0, result, 0, out);
+        return result;
+    }
+
+    //a least squares fit of a sine at hz to channel of pcm between from and to: {amplitude, residual rms}
+    private static double[] Fit(short[] pcm, int channels, int channel, int rate, double hz, int from, int to) {
+        double ss = 0, sc = 0, cc = 0, ys = 0, yc = 0;
+        for (int i = from; i < to; i++) {
+            double s = Math.sin(2 * Math.PI * hz * i / rate);
+            double c = Math.cos(2 * Math.PI * hz * i / rate);
+            double y = pcm[i * channels + channel];
+            ss += s * s;
+            sc += s * c;
+            cc += c * c;
+            ys += y * s;
+            yc += y * c;
+        }
+        double det = ss * cc - sc * sc;
+        double a = (ys * cc - yc * sc) / det;
+        double b = (yc * ss - ys * sc) / det;
+        double residual = 0;
+        for (int i = from; i < to; i++) {
+            double fit = a * Math.sin(2 * Math.PI * hz * i / rate) + b * Math.cos(2 * Math.PI * hz * i / rate);
+            double e = pcm[i * channels + channel] - fit;
+            residual += e * e;
+        }
+        return new double[]{Math.hypot(a, b), Math.sqrt(residual / (to - from))};
+    }
+
+    private static double Db(double ratio) {
+        return 20 * Math.log10(ratio);
+    }
+
+    @Test
+    public void passesThroughTheSameFormat() {
+        AudioResampler resampler = new AudioResampler(44100, 2, 44100, 2);
+        short[] input = Tone(44100, 2, 3000, 440, 0.5);
+        assertArrayEquals(input, Run(resampler, input));
+    }
+
+    @Test
+    public void remixesChannels() {
+        short[] stereo = new short[]{1000, 3000, -2000, 2000};
+        short[] mono = new short[2];
+        assertEquals(2, new AudioResampler(48000, 2, 48000, 1).process(stereo, 0, 2, mono, 0));
+        assertArrayEquals(new short[]{2000, 0}, mono);
+
+        short[] up = new short[4];
+        new AudioResampler(48000, 1, 48000, 2).process(new short[]{1234, -5}, 0, 2, up, 0);
+        assertArrayEquals(new short[]{1234, 1234, -5, -5}, up);
+
+        //5.1: the centre goes to both sides, the LFE nowhere, nothing clips at full scale
+        short[] surround = new short[]{0, 0, 10000, 30000, 0, 0, 32767, 32767, 32767, 32767, 32767, 32767};
+        short[] down = new short[4];
+        new AudioResampler(48000, 6, 48000, 2).process(surround, 0, 2, down, 0);
+        assertEquals(down[0], down[1]);
+        assertTrue(down[0] > 0 && down[0] < 10000);
+        assertTrue(down[2] >= 32766 && down[3] >= 32766);
+    }
+
+    @Test
+    public void outputsTheFramesOfTheDuration() {
+        for (int[] pair : PAIRS) {
+            int frames = pair[0] * 2;
+            short[] output = Run(new AudioResampler(pair[0], 2, pair[1], 2), new short[frames * 2]);
+            long expected = (long) frames * pair[1] / pair[0];
+            assertEquals(pair[0] + " to " + pair[1], expected, output.length / 2, 1);
+        }
+    }
+
+    @Test
+    public void staysAlignedWithTheInput() {
+        //a click at 0.5s comes out at 0.5s
+        int[] clicks = {0, 22050};
+        short[] input = new short[44100];
+        for (int click : clicks) {
+            input[click] = 20000;
+        }
+        short[] output = Run(new AudioResampler(44100, 1, 48000, 1), input);
+        for (int click : clicks) {
+            int expected = click * 48000 / 44100;
+            int peak = expected;
+            for (int i = Math.max(0, expected - 50); i < expected + 50; i++) {
+                if (output[i] > output[peak]) {
+                    peak = i;
+                }
+            }
+            assertEquals(expected, peak);
+        }
+        //and so does every block, by the offset of its first frame
+        AudioResampler resampler = new AudioResampler(44100, 2, 48000, 2);
+        short[] out = new short[resampler.maxOutputFrames(BLOCK) * 2 + 4];
+        long produced = 0;
+        for (int block = 0; block < 20; block++) {
+            int frames = resampler.process(new short[BLOCK * 2], 0, BLOCK, out, 0);
+            double positionUs = (block * BLOCK + resampler.lastOutputOffset()) * 1e6 / 44100;
+            assertEquals(produced * 1e6 / 48000, positionUs, 0.01);
+            produced += frames;
+        }
+    }
+
+    @Test
+    public void lowDistortionAndNoise() {
+        for (int[] pair : PAIRS) {
+            AudioResampler resampler = new AudioResampler(pair[0], 2, pair[1], 2);
+            int frames = pair[0];
+            short[] output = Run(resampler, Tone(pair[0], 2, frames, 1000, 0.5));
+            int outFrames = output.length / 2;
+            double[] fit = Fit(output, 2, 1, pair[1], 1000, AudioResampler.TAPS * 4, outFrames - AudioResampler.TAPS * 4);
+            double thdN = Db(fit[1] / (fit[0] / Math.sqrt(2)));
+            System.out.printf("AudioResampler %d to %d: 1kHz THD+N %.1fdB%n", pair[0], pair[1], thdN);
+            //16 bit output of a -6dB tone can't do better than about -92dB
+            assertTrue(pair[0] + " to " + pair[1] + ": " + thdN, thdN < -85);
+            assertEquals(0.5 * 32767, fit[0], 0.5 * 32767 * 0.002);
+        }
+    }
+
+    @Test
+    public void flatPassbandAndStoppedAliases() {
+        for (int[] pair : PAIRS) {
+            int lower = Math.min(pair[0], pair[1]);
+            double worstDb = 0;
+            for (double hz = 100; hz <= 0.44 * lower; hz = hz * 1.5 < 0.44 * lower ? hz * 1.5 : hz < 0.44 * lower ? 0.44 * lower : Double.MAX_VALUE) {
+                short[] output = Run(new AudioResampler(pair[0], 1, pair[1], 1), Tone(pair[0], 1, pair[0] / 2, hz, 0.5));
+                double[] fit = Fit(output, 1, 0, pair[1], hz, AudioResampler.TAPS * 4, output.length - AudioResampler.TAPS * 4);
+                double db = Db(fit[0] / (0.5 * 32767));
+                worstDb = Math.max(worstDb, Math.abs(db));
+            }
+            System.out.printf("AudioResampler %d to %d: passband to %.0fHz within %.3fdB%n", pair[0], pair[1], 0.44 * lower, worstDb);
+            assertTrue(pair[0] + " to " + pair[1] + ": " + worstDb, worstDb < 0.1);
+        }
+        //decimating, a tone just above the output's Nyquist frequency is filtered out rather than aliased down
+        short[] output = Run(new AudioResampler(48000, 1, 22050, 1), Tone(48000, 1, 48000, 12000, 0.5));
+        double rms = 0;
+        for (int i = AudioResampler.TAPS * 4; i < output.length - AudioResampler.TAPS * 4; i++) {
+            rms += (double) output[i] * output[i];
+        }
+        rms = Math.sqrt(rms / (output.length - AudioResampler.TAPS * 8));
+        double db = Db(rms / (0.5 * 32767 / Math.sqrt(2)));
+        System.out.printf("AudioResampler 48000 to 22050: 12kHz alias %.1fdB%n", db);
+        assertTrue("alias " + db, db < -80);
+    }
+
+    @Test
+    public void bytesLikeShorts() {
+        AudioResampler shorts = new AudioResampler(32000, 1, 48000, 2);
+        AudioResampler bytes = new AudioResampler(32000, 1, 48000, 2);
+        short[] input = Tone(32000, 1, BLOCK, 440, 0.3);
+        ByteBuffer pcm = ByteBuffer.allocateDirect(BLOCK * 2).order(ByteOrder.LITTLE_ENDIAN);
+        pcm.asShortBuffer().put(input);
+        ByteBuffer out = ByteBuffer.allocateDirect(bytes.maxOutputFrames(BLOCK) * 4).order(ByteOrder.LITTLE_ENDIAN);
+        short[] expected = new short[shorts.maxOutputFrames(BLOCK) * 2];
+        int frames = shorts.process(input, 0, BLOCK, expected, 0);
+        assertEquals(frames, bytes.process(pcm, 0, BLOCK * 2, out));
+        assertEquals(frames * 4, out.position());
+        assertEquals(shorts.lastOutputOffset(), bytes.lastOutputOffset(), 0);
+        for (int i = 0; i < frames * 2; i++) {
+            assertEquals(expected[i], out.getShort(i * 2));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNoChannels() {
+        new AudioResampler(44100, 0, 48000, 2);
+    }
+
+    @Test
+    public void steadyStateDoesNotAllocate() {
+        AudioResampler resampler = new AudioResampler(44100, 2, 48000, 2);
+        ByteBuffer pcm = ByteBuffer.allocateDirect(BLOCK * 4).order(ByteOrder.LITTLE_ENDIAN);
+        pcm.asShortBuffer().put(Tone(44100, 2, BLOCK, 440, 0.5));
+        ByteBuffer out = ByteBuffer.allocateDirect(BLOCK * 4 * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < 100; i++) { //grow the buffers
+            out.clear();
+            resampler.process(pcm, 0, BLOCK * 4, out);
+        }
+        ThreadMXBean mxBean = ManagementFactory.getThreadMXBean();
+        boolean measureHeap = mxBean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) mxBean).isThreadAllocatedMemorySupported();
+        long threadId = Thread.currentThread().getId();
+        long heapBefore = measureHeap ? ((com.sun.management.ThreadMXBean) mxBean).getThreadAllocatedBytes(threadId) : 0;
+        int blocks = 2000;
+        for (int i = 0; i < blocks; i++) {
+            out.clear();
+            resampler.process(pcm, 0, BLOCK * 4, out);
+        }
+        long heapAfter = measureHeap ? ((com.sun.management.ThreadMXBean) mxBean).getThreadAllocatedBytes(threadId) : 0;
+        if (measureHeap) {
+            System.out.println("AudioResampler steady state: " + (heapAfter - heapBefore) + " heap bytes for " + blocks + " blocks");
+            assertEquals("heap bytes per block", 0, (heapAfter - heapBefore) / blocks);
+        }
+    }
+}
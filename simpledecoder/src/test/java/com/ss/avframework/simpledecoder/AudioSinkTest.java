@@ -0,0 +1,277 @@
+package com.ss.avframework.simpledecoder;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class AudioSinkTest {
+    private static final int RATE = 44100;
+    private static final int BLOCK = 1024;          // frames, an AAC frame
+
+    //time that only moves when told to
+    private static final class FakeTime implements MediaClock.TimeSource {
+        long nowNs = 1000000000L;
+
+        @Override
+        public long nanoTime() {
+            return nowNs;
+        }
+
+        void advanceUs(long us) {
+            nowNs += us * 1000;
+        }
+    }
+
+    private static ByteBuffer Pcm(int frames) {
+        return ByteBuffer.allocateDirect(frames * 4).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Test
+    public void consumesInRealTime() throws Exception {
+        FakeTime time = new FakeTime();
+        SimulatedAudioSink sink = new SimulatedAudioSink(null, 100, time, 0);
+        sink.configure(RATE, 2);
+        assertEquals(4410, sink.writableFrames());
+        assertEquals(4410, sink.write(Pcm(5000)));
+        assertEquals(0, sink.writableFrames());
+        time.advanceUs(50000);
+        assertEquals(0, sink.playedFrames()); //not playing yet
+
+        sink.play();
+        time.advanceUs(50000);
+        assertEquals(2205, sink.playedFrames());
+        assertEquals(2205, sink.writableFrames());
+        sink.pause();
+        time.advanceUs(50000);
+        assertEquals(2205, sink.playedFrames());
+        assertEquals(0, sink.getUnderruns());
+
+        //it runs dry, and never plays more than it was given
+        sink.play();
+        time.advanceUs(200000);
+        assertEquals(4410, sink.playedFrames());
+        assertEquals(1, sink.getUnderruns());
+        sink.write(Pcm(100));
+        time.advanceUs(200000);
+        assertEquals(4510, sink.playedFrames());
+        assertEquals(2, sink.getUnderruns());
+
+        sink.flush();
+        assertEquals(0, sink.playedFrames());
+        assertEquals(0, sink.getWrittenFrames());
+    }
+
+    @Test
+    public void consumesAtTheSkewedRate() throws Exception {
+        FakeTime time = new FakeTime();
+        SimulatedAudioSink sink = new SimulatedAudioSink(null, 20000, time, 1000);
+        sink.configure(RATE, 1);
+        sink.write(ByteBuffer.allocateDirect(RATE * 20 * 2));
+        sink.play();
+        time.advanceUs(10000000);
+        assertEquals(RATE * 10 * 1.001, sink.playedFrames(), 1);
+    }
+
+    @Test
+    public void writesAWavFile() throws Exception {
+        File file = File.createTempFile("sink", ".wav");
+        try {
+            SimulatedAudioSink sink = SimulatedAudioSink.wavFile(file, 1000);
+            sink.configure(48000, 2);
+            ByteBuffer pcm = Pcm(480);
+            for (int i = 0; i < 480 * 2; i++) {
+                pcm.putShort((short) i);
+            }
+            pcm.flip();
+            assertEquals(480, sink.write(pcm));
+            sink.release();
+
+            RandomAccessFile wav = new RandomAccessFile(file, "r");
+            try {
+                assertEquals(44 + 480 * 4, wav.length());
+                ByteBuffer header = ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN);
+                wav.getChannel().read(header, 0);
+                assertEquals(0x46464952, header.getInt(0));       // "RIFF"
+                assertEquals(36 + 480 * 4, header.getInt(4));
+                assertEquals(2, header.getShort(22));
+                assertEquals(48000, header.getInt(24));
+                assertEquals(480 * 4, header.getInt(40));
+                ByteBuffer data = ByteBuffer.allocate(480 * 4).order(ByteOrder.LITTLE_ENDIAN);
+                wav.getChannel().read(data, 44);
+                assertEquals(959, data.getShort(958 * 2 + 2));
+            } finally {
+                wav.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void mapsThePlayedFramesToThePts() throws Exception {
+        FakeTime time = new FakeTime();
+        AudioSinkWriter writer = new AudioSinkWriter(new SimulatedAudioSink(null, 100, time, 0));
+        writer.setPaused(false);
+        assertEquals(Long.MIN_VALUE, writer.playingPtsUs(0));
+        //a buffer at normal speed, then one at double speed
+        writer.write(Pcm(BLOCK), RATE, 2, 1000000, 1.0f, 0);
+        writer.write(Pcm(BLOCK), RATE, 2, 5000000, 2.0f, 0);
+        assertEquals(Long.MIN_VALUE, writer.playingPtsUs(0));
+        time.advanceUs(BLOCK / 2 * 1000000L / RATE);
+        assertEquals(1000000 + BLOCK / 2 * 1000000L / RATE, writer.playingPtsUs(0), 25);
+        time.advanceUs(BLOCK * 1000000L / RATE);
+        assertEquals(5000000 + BLOCK / 2 * 2 * 1000000L / RATE, writer.playingPtsUs(0), 50);
+        assertEquals(Long.MIN_VALUE, writer.playingPtsUs(1));
+
+        //a new generation drops what is left of the old one
+        writer.write(Pcm(BLOCK), RATE, 2, 9000000, 1.0f, 1);
+        assertEquals(BLOCK * 1000000L / RATE, writer.unplayedUs());
+        time.advanceUs(1000);
+        assertEquals(9001000, writer.playingPtsUs(1), 25);
+    }
+
+    @Test
+    public void keepsWhatTheSinkHasNoRoomFor() throws Exception {
+        FakeTime time = new FakeTime();
+        SimulatedAudioSink sink = new SimulatedAudioSink(null, 50, time, 0);
+        AudioSinkWriter writer = new AudioSinkWriter(sink);
+        writer.setPaused(false);
+        ByteBuffer pcm = Pcm(BLOCK);
+        long ptsUs = 0;
+        long written = 0;
+        //twice as much as fits
+        while (written < RATE / 10) {
+            pcm.clear();
+            writer.write(pcm, RATE, 2, ptsUs, 1.0f, 0);
+            assertFalse(pcm.hasRemaining());
+            written += BLOCK;
+            ptsUs += BLOCK * 1000000L / RATE;
+        }
+        assertEquals(RATE / 20, sink.getWrittenFrames());
+        long roomUs = writer.roomInUs(BLOCK);
+        assertTrue("" + roomUs, roomUs > 50000);
+        assertEquals(written * 1000000 / RATE, writer.unplayedUs(), 1);
+
+        //it goes in as the sink plays, none of it lost
+        while (writer.unplayedUs() > 0) {
+            time.advanceUs(5000);
+        }
+        assertEquals(written, sink.getWrittenFrames());
+        assertEquals(0, writer.roomInUs(BLOCK));
+        assertTrue(sink.getUnderruns() <= 1);
+    }
+
+    /**
+     * Ten minutes of playback with a device 300ppm fast, in simulated time: the core writes
+     * whenever there is room, a few ms late at random.  The clock following what the sink
+     * played stays on what is heard; a clock the first buffer only anchored, the way it was
+     * paced before, drifts off by 180ms.
+     */
+    @Test
+    public void clockStaysOnWhatIsHeard() throws Exception {
+        FakeTime time = new FakeTime();
+        SimulatedAudioSink sink = new SimulatedAudioSink(null, 100, time, 300);
+        AudioSinkWriter writer = new AudioSinkWriter(sink);
+        MediaClock clock = new MediaClock(time);
+        MediaClock anchoredOnly = new MediaClock(time);
+        Random random = new Random(22);
+        ByteBuffer pcm = Pcm(BLOCK);
+        writer.setPaused(false);
+        long ptsUs = 0;
+        long blocks = 0;
+        long worstUs = 0;
+        long driftUs = 0;
+        long endNs = time.nowNs + 600 * 1000000000L;
+        while (time.nowNs < endNs) {
+            long heardUs = writer.playingPtsUs(0);
+            if (heardUs != Long.MIN_VALUE) {
+                clock.sync(heardUs);
+                if (time.nowNs - endNs > -590 * 1000000000L) { //once it settled
+                    worstUs = Math.max(worstUs, Math.abs(clock.positionUs() - heardUs));
+                    driftUs = heardUs - anchoredOnly.positionUs();
+                }
+            }
+            while (writer.roomInUs(BLOCK) == 0) {
+                clock.tryAnchor(ptsUs);
+                anchoredOnly.tryAnchor(ptsUs);
+                pcm.clear();
+                writer.write(pcm, RATE, 2, ptsUs, 1.0f, 0);
+                blocks++;
+                ptsUs = blocks * BLOCK * 1000000 / RATE;
+            }
+            time.advanceUs(writer.roomInUs(BLOCK) + random.nextInt(5000));
+        }
+        System.out.printf("AudioSink 10 minutes at +300ppm: clock within %dus of the sink, %dus drift anchored only, %d underruns%n",
+                worstUs, driftUs, sink.getUnderruns());
+        assertTrue("" + worstUs, worstUs < 3000);
+        assertTrue("" + driftUs, driftUs > 150000);
+        assertEquals(0, sink.getUnderruns());
+    }
+
+    @Test(timeout = 20000)
+    public void playerPlaysThroughTheSink() throws Exception {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        fixture.frameDuration = 1500;          // 60 fps
+        fixture.videoSamples = 60;             // 1s
+        fixture.audioSamples = 43;             // 1s at 1024 samples of 44.1 kHz
+        File file = fixture.write(File.createTempFile("sink", ".mp4"));
+        try {
+            FakePlayer player = new FakePlayer(file);
+            SimulatedAudioSink sink = SimulatedAudioSink.discarding(100);
+            player.sink = sink;
+            long startNs = System.nanoTime();
+            player.start();
+            player.join();
+            long elapsedUs = (System.nanoTime() - startNs) / 1000;
+            assertNull(player.failure.get());
+            assertEquals(fixture.audioSamples, player.audioPts().size());
+            assertEquals(fixture.audioSamples * BLOCK, sink.getWrittenFrames());
+            //it finished once the sink played it all, not once it was written
+            assertTrue("" + elapsedUs, elapsedUs >= fixture.audioSamples * BLOCK * 1000000L / RATE);
+            assertTrue("" + sink.getUnderruns(), sink.getUnderruns() <= 1);
+
+            List<Long> video = player.videoPts();
+            assertTrue(video.size() + " of " + fixture.videoSamples, video.size() >= fixture.videoSamples - 3);
+            assertEquals(fixture.videoPtsUs(fixture.videoSamples - 1), (long) video.get(video.size() - 1));
+            assertTrue(player.audioReleased);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void pausingPausesTheSink() throws Exception {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        fixture.frameDuration = 1500;
+        fixture.videoSamples = 60;
+        fixture.audioSamples = 43;
+        File file = fixture.write(File.createTempFile("sink", ".mp4"));
+        try {
+            FakePlayer player = new FakePlayer(file);
+            SimulatedAudioSink sink = SimulatedAudioSink.discarding(100);
+            player.sink = sink;
+            player.start();
+            Thread.sleep(300);
+            player.clock.pause();
+            player.core.onPlaybackChanged();
+            Thread.sleep(50);
+            long played = sink.playedFrames();
+            Thread.sleep(200);
+            assertEquals(played, sink.playedFrames());
+            player.clock.resume();
+            player.core.onPlaybackChanged();
+            player.join();
+            assertNull(player.failure.get());
+            assertEquals(fixture.audioSamples * BLOCK, sink.getWrittenFrames());
+        } finally {
+            file.delete();
+        }
+    }
+}
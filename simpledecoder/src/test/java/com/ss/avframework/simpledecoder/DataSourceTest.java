@@ -0,0 +1,372 @@
+package com.ss.avframework.simpledecoder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DataSourceTest {
+    private static final int BLOCK = 16 << 10;
+
+    private final ArrayList<File> mFiles = new ArrayList<File>();
+    private Server mServer;
+
+    /**
+     * Serves one file over HTTP at bytesPerSecond, with or without range requests, the way a
+     * CDN would.
+     */
+    private static final class Server implements HttpHandler {
+        final HttpServer server;
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        final byte[] data;
+        final long bytesPerSecond;
+        final boolean ranges;
+        final AtomicInteger requests = new AtomicInteger();
+
+        Server(byte[] data, long bytesPerSecond, boolean ranges) throws IOException {
+            this.data = data;
+            this.bytesPerSecond = bytesPerSecond;
+            this.ranges = ranges;
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.createContext("/media.mp4", this);
+            server.setExecutor(executor);
+            server.start();
+        }
+
+        URL url() throws IOException {
+            return new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/media.mp4");
+        }
+
+        void stop() {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            requests.incrementAndGet();
+            int start = 0;
+            int end = data.length - 1;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (ranges && range != null && range.startsWith("bytes=")) {
+                String[] bounds = range.substring(6).split("-");
+                start = Integer.parseInt(bounds[0]);
+                end = bounds.length > 1 ? Math.min(end, Integer.parseInt(bounds[1])) : end;
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + data.length);
+                exchange.sendResponseHeaders(206, end - start + 1);
+            } else {
+                exchange.sendResponseHeaders(200, data.length);
+            }
+            OutputStream out = exchange.getResponseBody();
+            try {
+                int piece = 4096;
+                long startNs = System.nanoTime();
+                for (int sent = 0; start + sent <= end; sent += piece) {
+                    out.write(data, start + sent, Math.min(piece, end + 1 - start - sent));
+                    long dueNs = startNs + (sent + piece) * 1000000000L / bytesPerSecond;
+                    long sleepMs = (dueNs - System.nanoTime()) / 1000000;
+                    if (sleepMs > 0) {
+                        Thread.sleep(sleepMs);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                //the client hung up
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (mServer != null) {
+            mServer.stop();
+        }
+        for (File file : mFiles) {
+            Delete(file);
+        }
+    }
+
+    private File Write(Mp4Fixtures fixture) throws IOException {
+        File file = fixture.write(File.createTempFile("source", ".mp4"));
+        mFiles.add(file);
+        return file;
+    }
+
+    private File CacheDir() throws IOException {
+        File dir = File.createTempFile("blocks", "");
+        dir.delete();
+        mFiles.add(dir);
+        return dir;
+    }
+
+    private static void Delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                child.delete();
+            }
+        }
+        file.delete();
+    }
+
+    private static byte[] Bytes(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    //every sample of the source's demuxer is the one of the file's, bytes and all
+    private static void AssertSameSamples(File file, Mp4Demuxer demuxer) throws IOException {
+        Mp4Demuxer expected = new Mp4Demuxer(file.getPath());
+        try {
+            assertEquals(expected.getTrackCount(), demuxer.getTrackCount());
+            for (int i = 0; i < expected.getTrackCount(); i++) {
+                expected.selectTrack(i);
+                demuxer.selectTrack(i);
+            }
+            int samples = 0;
+            while (expected.getSampleTrackIndex() >= 0) {
+                assertEquals(expected.getSampleTrackIndex(), demuxer.getSampleTrackIndex());
+                assertEquals(expected.getSampleTime(), demuxer.getSampleTime());
+                assertEquals(expected.getSampleFlags(), demuxer.getSampleFlags());
+                assertEquals("sample " + samples, expected.getSampleData(), demuxer.getSampleData());
+                expected.advance();
+                demuxer.advance();
+                samples++;
+            }
+            assertEquals(-1, demuxer.getSampleTrackIndex());
+            //and after a seek
+            expected.seekTo(1500000, Mp4Demuxer.SEEK_TO_PREVIOUS_SYNC);
+            demuxer.seekTo(1500000, Mp4Demuxer.SEEK_TO_PREVIOUS_SYNC);
+            assertEquals(expected.getSampleTime(), demuxer.getSampleTime());
+            assertEquals(expected.getSampleData(), demuxer.getSampleData());
+        } finally {
+            expected.release();
+            demuxer.release();
+        }
+    }
+
+    @Test
+    public void readsAtAnyPosition() throws Exception {
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        File file = File.createTempFile("source", ".bin");
+        mFiles.add(file);
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        out.write(data);
+        out.close();
+        DataSource[] sources = {new ByteArrayDataSource(data), new FileDataSource(file)};
+        for (DataSource source : sources) {
+            assertEquals(1000, source.size());
+            ByteBuffer buffer = ByteBuffer.allocate(100);
+            assertEquals(100, source.readAt(500, buffer));
+            assertEquals((byte) 500, buffer.get(0));
+            assertFalse(buffer.hasRemaining());
+            buffer.clear();
+            assertEquals(10, source.readAt(990, buffer));
+            assertEquals(-1, source.readAt(1000, buffer));
+            assertTrue(source.isCached(0, 1000));
+            source.close();
+        }
+        ByteArrayDataSource slice = new ByteArrayDataSource(data, 100, 50);
+        ByteBuffer buffer = ByteBuffer.allocate(100);
+        assertEquals(50, slice.readAt(0, buffer));
+        assertEquals((byte) 100, buffer.get(0));
+    }
+
+    @Test
+    public void demuxesFromEverySource() throws Exception {
+        for (boolean moovFirst : new boolean[]{false, true}) {
+            Mp4Fixtures fixture = Mp4Fixtures.create();
+            fixture.moovFirst = moovFirst;
+            fixture.bFrames = true;
+            File file = Write(fixture);
+            AssertSameSamples(file, new Mp4Demuxer(new ByteArrayDataSource(Bytes(file))));
+            AssertSameSamples(file, new Mp4Demuxer(new FileDataSource(file)));
+
+            Server server = new Server(Bytes(file), 100 << 20, true);
+            try {
+                HttpDataSource source = new HttpDataSource(server.url(), new BlockCache(CacheDir(), BLOCK, 1 << 20), 2);
+                AssertSameSamples(file, new Mp4Demuxer(source));
+            } finally {
+                server.stop();
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsWhatIsNotAnMp4File() throws Exception {
+        new Mp4Demuxer(new ByteArrayDataSource(new byte[4096]));
+    }
+
+    @Test
+    public void readsAheadOfTheReads() throws Exception {
+        byte[] data = new byte[BLOCK * 20 + 100];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        mServer = new Server(data, 100 << 20, true);
+        HttpDataSource source = new HttpDataSource(mServer.url(), new BlockCache(CacheDir(), BLOCK, 1 << 20), 4);
+        try {
+            assertEquals(data.length, source.size());
+            ByteBuffer buffer = ByteBuffer.allocate(10);
+            assertEquals(10, source.readAt(BLOCK + 5, buffer));
+            assertEquals(data[BLOCK + 5], buffer.get(0));
+            long untilNs = System.nanoTime() + 5000000000L;
+            while (!source.isCached(BLOCK, BLOCK * 5) && System.nanoTime() < untilNs) {
+                Thread.sleep(5);
+            }
+            assertFalse(source.isCached(0, 1)); //only after the read
+            assertTrue(source.isCached(BLOCK, BLOCK * 5));
+            Thread.sleep(50);
+            assertFalse(source.isCached(BLOCK * 6, 1));
+
+            //a read past the read-ahead, a seek, fetches there
+            buffer.clear();
+            assertEquals(10, source.readAt(data.length - 10, buffer));
+            assertEquals(data[data.length - 1], buffer.get(9));
+            buffer.clear();
+            assertEquals(-1, source.readAt(data.length, buffer));
+            //a read across a block boundary stops at it
+            ByteBuffer across = ByteBuffer.allocate(100);
+            assertEquals(50, source.readAt(BLOCK * 2 - 50, across));
+        } finally {
+            source.close();
+        }
+    }
+
+    @Test
+    public void playsAgainFromTheCache() throws Exception {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        File file = Write(fixture);
+        mServer = new Server(Bytes(file), 100 << 20, true);
+        File dir = CacheDir();
+        HttpDataSource first = new HttpDataSource(mServer.url(), new BlockCache(dir, BLOCK, 1 << 20), 2);
+        AssertSameSamples(file, new Mp4Demuxer(first));
+        assertEquals(file.length(), first.getFetchedBytes());
+
+        //another cache over the same directory, as after a restart
+        int requests = mServer.requests.get();
+        HttpDataSource second = new HttpDataSource(mServer.url(), new BlockCache(dir, BLOCK, 1 << 20), 2);
+        AssertSameSamples(file, new Mp4Demuxer(second));
+        assertEquals(0, second.getFetchedBytes());
+        assertEquals(0, second.getRequestCount());
+        assertEquals(requests, mServer.requests.get());
+    }
+
+    @Test
+    public void readsFromServersIgnoringRanges() throws Exception {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        File file = Write(fixture);
+        mServer = new Server(Bytes(file), 100 << 20, false);
+        HttpDataSource source = new HttpDataSource(mServer.url(), new BlockCache(CacheDir(), BLOCK, 1 << 20), 0);
+        AssertSameSamples(file, new Mp4Demuxer(source));
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedBlocks() throws Exception {
+        File dir = CacheDir();
+        BlockCache cache = new BlockCache(dir, 100, 300);
+        byte[] block = new byte[100];
+        for (int i = 0; i < 3; i++) {
+            block[0] = (byte) i;
+            cache.write("a", i, block, 100);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(100);
+        assertEquals(100, cache.read("a", 0, 0, buffer)); //used, so 1 is the oldest now
+        cache.write("b", 0, block, 50);
+        assertTrue(cache.contains("a", 0));
+        assertFalse(cache.contains("a", 1));
+        assertTrue(cache.contains("a", 2));
+        assertEquals(250, cache.bytes());
+        buffer.clear();
+        assertEquals(-1, cache.read("a", 1, 0, buffer));
+        buffer.clear();
+        assertEquals(30, cache.read("b", 0, 20, buffer));
+
+        //picked up again, trimmed to the limit of the new one
+        BlockCache again = new BlockCache(dir, 100, 200);
+        long onDisk = 0;
+        for (File entry : dir.listFiles()) {
+            onDisk += entry.getName().endsWith(".blk") ? entry.length() : 0;
+        }
+        assertTrue(again.bytes() <= 200);
+        assertEquals(onDisk, again.bytes());
+    }
+
+    /**
+     * A 4 MB/s link to a 10s file with moov first: playing while it downloads shows the first
+     * frame once moov and the first GOP are in, long before the whole file is.
+     */
+    @Test(timeout = 60000)
+    public void firstFrameBeforeTheDownloadCompletes() throws Exception {
+        Mp4Fixtures fixture = new Mp4Fixtures() {
+            @Override
+            int videoSampleSize(int i) {
+                return isKeyFrame(i) ? 60000 + i : 6000 + (i * 37) % 2000;
+            }
+        };
+        fixture.moovFirst = true;
+        fixture.videoSamples = 300;
+        fixture.audioSamples = 430;
+        File file = Write(fixture);
+        mServer = new Server(Bytes(file), 4 << 20, true);
+
+        //the whole file first, the way it was played before
+        long startNs = System.nanoTime();
+        HttpURLConnection connection = (HttpURLConnection) mServer.url().openConnection();
+        InputStream in = connection.getInputStream();
+        byte[] piece = new byte[65536];
+        long downloaded = 0;
+        for (int count; (count = in.read(piece)) > 0; ) {
+            downloaded += count;
+        }
+        in.close();
+        long downloadUs = (System.nanoTime() - startNs) / 1000;
+        assertEquals(file.length(), downloaded);
+
+        startNs = System.nanoTime();
+        HttpDataSource source = new HttpDataSource(mServer.url(), new BlockCache(CacheDir(), 64 << 10, 64 << 20), 4);
+        FakePlayer player = new FakePlayer(new Mp4Demuxer(source), null, LatenessPolicy.NEVER_DROP);
+        player.start();
+        while (player.firstVideoNs == 0 && player.failure.get() == null) {
+            Thread.sleep(1);
+        }
+        long firstFrameUs = (player.firstVideoNs - startNs) / 1000;
+        long fetchedAtFirstFrame = source.getFetchedBytes();
+        player.core.stop();
+        player.join();
+        assertNull(player.failure.get());
+        System.out.printf("HTTP %d KB at 4 MB/s: first frame after %dms and %d KB fetched, the whole file in %dms%n",
+                file.length() >> 10, firstFrameUs / 1000, fetchedAtFirstFrame >> 10, downloadUs / 1000);
+        assertTrue(firstFrameUs + " vs " + downloadUs, firstFrameUs * 2 < downloadUs);
+    }
+}
@@ -0,0 +1,398 @@
+package com.ss.avframework.simpledecoder;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DecoderSchedulerTest {
+    @Test(timeout = 10000)
+    public void earliestDeadlineFirst() throws Exception {
+        DecoderScheduler scheduler = new DecoderScheduler(1, 20000);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        //a frame due in 10ms
+        final long dueNs = System.nanoTime() + 10000000;
+        new DecoderScheduler.Task(scheduler) {
+            boolean mWaited;
+
+            @Override
+            protected long run() {
+                if (!mWaited) {
+                    mWaited = true;
+                    return dueNs;
+                }
+                order.add("due");
+                return DecoderScheduler.DONE;
+            }
+        }.wakeUp();
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch unblock = new CountDownLatch(1);
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                blocked.countDown();
+                try {
+                    unblock.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        blocked.await();
+        //woken up before the frame is due, but due within the slack of 20ms, first come first served
+        Recording(scheduler, "woken 1", order).wakeUp();
+        Recording(scheduler, "woken 2", order).wakeUp();
+        Thread.sleep(15);
+        Recording(scheduler, "woken 3", order).wakeUp();
+        unblock.countDown();
+        while (order.size() < 4) {
+            Thread.sleep(1);
+        }
+        scheduler.shutdown();
+        assertEquals(Arrays("due", "woken 1", "woken 2", "woken 3"), order);
+        assertEquals(6, scheduler.getStepCount()); //the one blocking, and the timed one twice
+    }
+
+    @Test(timeout = 10000)
+    public void aTaskNeverRunsTwiceAtOnce() throws Exception {
+        DecoderScheduler scheduler = new DecoderScheduler(4);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger most = new AtomicInteger();
+        final AtomicInteger steps = new AtomicInteger();
+        DecoderScheduler.Task task = new DecoderScheduler.Task(scheduler) {
+            @Override
+            protected long run() {
+                most.set(Math.max(most.get(), running.incrementAndGet()));
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+                steps.incrementAndGet();
+                return DecoderScheduler.IDLE;
+            }
+        };
+        for (int i = 0; i < 100; i++) {
+            task.wakeUp();
+            Thread.sleep(0, 500000);
+        }
+        Thread.sleep(20);
+        int stepsBefore = steps.get();
+        //woken up while running runs once more, however often
+        assertTrue(stepsBefore > 10 && stepsBefore <= 100);
+        Thread.sleep(20);
+        assertEquals(stepsBefore, steps.get());
+        scheduler.shutdown();
+        assertEquals(1, most.get());
+    }
+
+    @Test(timeout = 10000)
+    public void timedStepsRunWhenDue() throws Exception {
+        DecoderScheduler scheduler = new DecoderScheduler(2);
+        final long[] lateNs = new long[5];
+        final CountDownLatch done = new CountDownLatch(1);
+        new DecoderScheduler.Task(scheduler) {
+            int mStep = -1;
+            long mDueNs;
+
+            @Override
+            protected long run() {
+                if (mStep >= 0) {
+                    lateNs[mStep] = System.nanoTime() - mDueNs;
+                }
+                if (++mStep == lateNs.length) {
+                    done.countDown();
+                    return DecoderScheduler.DONE;
+                }
+                mDueNs = System.nanoTime() + 15000000;
+                return mDueNs;
+            }
+        }.wakeUp();
+        done.await();
+        scheduler.shutdown();
+        for (long late : lateNs) {
+            assertTrue(late + "ns", late >= 0 && late < 10000000);
+        }
+    }
+
+    //busy tasks asking to run again right away don't keep a task woken up from running
+    @Test(timeout = 10000)
+    public void busyTasksDontStarveTheOthers() throws Exception {
+        long slackUs = 5000;
+        final DecoderScheduler scheduler = new DecoderScheduler(1, slackUs);
+        final CountDownLatch stop = new CountDownLatch(1);
+        for (int i = 0; i < 3; i++) {
+            new DecoderScheduler.Task(scheduler) {
+                @Override
+                protected long run() {
+                    Spin(1000);
+                    return stop.getCount() > 0 ? DecoderScheduler.SOON : DecoderScheduler.DONE;
+                }
+            }.wakeUp();
+        }
+        final long[] wokenNs = new long[1];
+        final long[] ranNs = new long[1];
+        final CountDownLatch ran = new CountDownLatch(1);
+        DecoderScheduler.Task woken = new DecoderScheduler.Task(scheduler) {
+            @Override
+            protected long run() {
+                ranNs[0] = System.nanoTime();
+                ran.countDown();
+                return DecoderScheduler.DONE;
+            }
+        };
+        Thread.sleep(20);
+        wokenNs[0] = System.nanoTime();
+        woken.wakeUp();
+        assertTrue(ran.await(1, TimeUnit.SECONDS));
+        stop.countDown();
+        scheduler.shutdown();
+        long waitedUs = (ranNs[0] - wokenNs[0]) / 1000;
+        assertTrue(waitedUs + "us", waitedUs < slackUs + 5000);
+    }
+
+    @Test(timeout = 10000)
+    public void shutdownStopsTheWorkers() throws Exception {
+        DecoderScheduler scheduler = new DecoderScheduler(3);
+        final CountDownLatch ran = new CountDownLatch(1);
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        });
+        assertTrue(ran.await(1, TimeUnit.SECONDS));
+        int before = Workers();
+        assertEquals(3, before);
+        scheduler.shutdown();
+        assertEquals(0, Workers());
+        assertEquals(1, scheduler.getStepCount());
+    }
+
+    @Test
+    public void rejectsBadArguments() {
+        try {
+            new DecoderScheduler(0);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new DecoderScheduler(1, -1);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    //a feed of players, each on two workers of its own, against all of them on one scheduler of
+    //a few workers. Presenting a frame costs some CPU, the way drawing it would. The shared
+    //scheduler must present frames about as late as the players on their own: missed steps alone
+    //would flatter the own schedulers, whose workers wait for the CPU where it isn't counted, so
+    //it's frames rendered late by the clock. Not the frames due while the machine stalled, or the
+    //one after, which are as late as the stall whatever runs them
+    @Test(timeout = 120000)
+    public void scalesToAFeedOfPlayers() throws Exception {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        fixture.frameDuration = 1500;       // 60 fps
+        fixture.videoSamples = 120;         // 2s
+        fixture.audioSamples = 86;
+        File file = fixture.write(File.createTempFile("scheduler", ".mp4"));
+        long frameUs = fixture.frameDuration * 1000000L / Mp4Fixtures.VIDEO_TIMESCALE;
+        int workers = 4;
+        try {
+            System.out.println("players | threads own/shared | CPU ms per s own/shared"
+                    + " | p99 render latency us own/shared | late frames own/shared | dropped frames own/shared"
+                    + " | missed steps own/shared | stalls own/shared"
+                    + " | p99 latency us outside stalls own/shared | late frames outside stalls own/shared");
+            for (int players : new int[]{1, 4, 9, 16}) {
+                Feed own = Play(file, players, 0, frameUs);
+                Feed shared = Play(file, players, workers, frameUs);
+                System.out.println(String.format("%7d | %d/%d | %.0f/%.0f | %d/%d | %d/%d | %d/%d | %d/%d | %d/%d | %d/%d | %d/%d",
+                        players, own.threads, shared.threads, own.cpuMsPerS, shared.cpuMsPerS,
+                        own.p99RenderLatencyUs, shared.p99RenderLatencyUs, own.lateFrames, shared.lateFrames,
+                        own.dropped, shared.dropped, own.missedSteps, shared.missedSteps, own.stalls, shared.stalls,
+                        own.p99UnstalledUs, shared.p99UnstalledUs, own.lateUnstalled, shared.lateUnstalled));
+                assertEquals(players * 2, own.threads);
+                assertEquals(workers, shared.threads);
+                assertTrue(shared.p99UnstalledUs + "us", shared.p99UnstalledUs < 100000);
+                assertTrue(shared.lateUnstalled + " late frames and p99 " + shared.p99UnstalledUs + "us shared, "
+                        + own.lateUnstalled + " and " + own.p99UnstalledUs + "us own", AsGood(shared, own, players));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static final class Feed {
+        int threads;
+        double cpuMsPerS;
+        long p99RenderLatencyUs;
+        long lateFrames;        // rendered more than MISSED_DEADLINE_US after they were due
+        long dropped;
+        long missedSteps;
+        int stalls;
+        long p99UnstalledUs;    // by the clock once presented, of the frames not due in a stall
+        long lateUnstalled;
+    }
+
+    //late frames and p99 latency outside the stalls no more than half as much again as the
+    //other's, give or take a frame a player and the ms a timed wait may take longer
+    private static boolean AsGood(Feed feed, Feed other, int players) {
+        return feed.lateUnstalled <= other.lateUnstalled * 3 / 2 + players
+                && feed.p99UnstalledUs <= other.p99UnstalledUs * 3 / 2 + 1000;
+    }
+
+    //a thread sleeping a ms at a time, which finds that took more than MISSED_DEADLINE_US longer
+    //whenever the machine stalls, e.g. while the host runs something else
+    private static final class Stalls implements Runnable {
+        private final Thread mThread = new Thread(this, "Stalls");
+        private final List<long[]> mStalls = new ArrayList<long[]>();   // {fromNs, toNs}
+        private volatile boolean mStopped;
+
+        Stalls() {
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+
+        @Override
+        public void run() {
+            while (!mStopped) {
+                long fromNs = System.nanoTime();
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long toNs = System.nanoTime();
+                if (toNs - fromNs > 1000000 + DecoderScheduler.MISSED_DEADLINE_US * 1000) {
+                    synchronized (this) {
+                        mStalls.add(new long[]{fromNs, toNs});
+                    }
+                }
+            }
+        }
+
+        void stop() throws InterruptedException {
+            mStopped = true;
+            mThread.join();
+        }
+
+        synchronized int count() {
+            return mStalls.size();
+        }
+
+        //whether a frame due at dueNs was due during a stall, or within frameNs after one
+        synchronized boolean covers(long dueNs, long frameNs) {
+            for (long[] stall : mStalls) {
+                if (dueNs >= stall[0] && dueNs <= stall[1] + frameNs) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    //workers 0: a scheduler of its own for every player. They start one after another, once the
+    //one before presents, the way a feed starts them as it scrolls. Started all at once on the
+    //shared scheduler, they go through their first steps together, so the frames of all of them
+    //are due within a few ms of each other for the rest of the run and wait for the one CPU
+    private static Feed Play(File file, int count, int workers, long frameUs) throws Exception {
+        int before = Workers();
+        DecoderScheduler shared = workers > 0 ? new DecoderScheduler(workers) : null;
+        FakePlayer[] players = new FakePlayer[count];
+        for (int i = 0; i < count; i++) {
+            players[i] = new FakePlayer(file, shared, LatenessPolicy.DEFAULT);
+            players[i].renderCostUs = 300;
+        }
+        Feed feed = new Feed();
+        Stalls stalls = new Stalls();
+        long cpuNs = ProcessCpuNs();
+        long startNs = System.nanoTime();
+        for (FakePlayer player : players) {
+            player.start();
+            for (int waitedMs = 0; player.firstVideoNs == 0 && waitedMs < 1000; waitedMs++) {
+                Thread.sleep(1);
+            }
+        }
+        feed.threads = Workers() - before;
+        for (FakePlayer player : players) {
+            player.join();
+            assertNull(player.failure.get());
+            assertEquals(86, player.audioPts().size());
+        }
+        long elapsedNs = System.nanoTime() - startNs;
+        feed.cpuMsPerS = (ProcessCpuNs() - cpuNs) / 1e6 / (elapsedNs / 1e9);
+        stalls.stop();
+        feed.stalls = stalls.count();
+        Histogram unstalledUs = new Histogram();
+        for (FakePlayer player : players) {
+            for (long[] late : player.videoLates()) {
+                if (!stalls.covers(late[0], frameUs * 1000)) {
+                    unstalledUs.record(Math.max(0, late[1]));
+                    if (late[1] > DecoderScheduler.MISSED_DEADLINE_US) {
+                        feed.lateUnstalled++;
+                    }
+                }
+            }
+        }
+        feed.p99UnstalledUs = unstalledUs.snapshot().valueAtPercentile(99);
+        for (FakePlayer player : players) {
+            DecoderStats.TrackStats video = player.stats.snapshot(0, 0).video;
+            feed.p99RenderLatencyUs = Math.max(feed.p99RenderLatencyUs, video.renderLatencyUs.valueAtPercentile(99));
+            feed.lateFrames += video.renderLatencyUs.countAbove(DecoderScheduler.MISSED_DEADLINE_US);
+            feed.dropped += video.framesDropped + video.framesSkipped;
+            feed.missedSteps += player.missedDeadlines();
+        }
+        if (shared != null) {
+            feed.missedSteps = shared.getMissedDeadlineCount();
+            shared.shutdown();
+        }
+        return feed;
+    }
+
+    private static long ProcessCpuNs() {
+        java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return 0;
+    }
+
+    private static int Workers() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().startsWith("Decoder Scheduler")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static DecoderScheduler.Task Recording(DecoderScheduler scheduler, final String name, final List<String> order) {
+        return new DecoderScheduler.Task(scheduler) {
+            @Override
+            protected long run() {
+                order.add(name);
+                return DecoderScheduler.DONE;
+            }
+        };
+    }
+
+    private static List<String> Arrays(String... values) {
+        return java.util.Arrays.asList(values);
+    }
+
+    private static void Spin(long us) {
+        long untilNs = System.nanoTime() + us * 1000;
+        while (System.nanoTime() < untilNs) {
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.ss.avframework.simpledecoder;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class EventTracerTest {
+
+    @Test
+    public void disabledRecordsNothing() throws Exception {
+        EventTracer tracer = new EventTracer(16);
+        EventTracer.Ring ring = tracer.ring();
+        ring.record(EventTracer.DEMUX, EventTracer.TRACK_VIDEO, 0, 100);
+        assertEquals(0, tracer.eventCount());
+
+        tracer.setEnabled(true);
+        ring.record(EventTracer.DEMUX, EventTracer.TRACK_VIDEO, 0, 100);
+        tracer.setEnabled(false);
+        ring.record(EventTracer.DEMUX, EventTracer.TRACK_VIDEO, 33333, 100);
+        assertEquals(1, tracer.eventCount());
+    }
+
+    @Test
+    public void keepsTheLatestEvents() throws Exception {
+        EventTracer tracer = new EventTracer(8);
+        tracer.setEnabled(true);
+        EventTracer.Ring ring = tracer.ring();
+        for (int i = 0; i < 20; i++) {
+            ring.record(EventTracer.DROP, EventTracer.TRACK_AUDIO, i * 1000 + 7, 0);
+        }
+        assertEquals(8, tracer.eventCount());
+        String trace = Export(tracer);
+        for (int i = 0; i < 20; i++) {
+            assertEquals("pts " + i, i >= 12, trace.contains("{\"pts\":" + (i * 1000 + 7) + "}"));
+        }
+    }
+
+    @Test
+    public void sameThreadSameRing() {
+        EventTracer tracer = new EventTracer(8);
+        assertSame(tracer.ring(), tracer.ring());
+    }
+
+    @Test
+    public void chromeTrace() throws Exception {
+        final EventTracer tracer = new EventTracer(64);
+        tracer.setEnabled(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        //a frame through the pipeline threads, the input thread queues it, the output thread renders it
+        Thread input = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    EventTracer.Ring ring = tracer.ring();
+                    ring.record(EventTracer.DECODE_IN, EventTracer.TRACK_VIDEO, 66666, 1500);
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        }, "Video \"Input\"");
+        input.start();
+        input.join();
+        EventTracer.Ring ring = tracer.ring();
+        ring.record(EventTracer.DEMUX, EventTracer.TRACK_VIDEO, 66666, 4096);
+        ring.record(EventTracer.QUEUE, EventTracer.TRACK_VIDEO, 66666, 3);
+        ring.record(EventTracer.DECODE_OUT, EventTracer.TRACK_VIDEO, 66666, 0);
+        ring.record(EventTracer.SLEEP, EventTracer.TRACK_VIDEO, 66666, 12000);
+        ring.record(EventTracer.RENDER, EventTracer.TRACK_VIDEO, 66666, 800);
+        assertNull(failure.get());
+
+        String trace = Export(tracer);
+        new JsonChecker(trace).check();
+        assertTrue(trace, trace.startsWith("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":1,\"args\":{\"name\":\"Video 'Input'\"}}"));
+        assertTrue(trace, trace.contains("{\"name\":\"decode-in\",\"cat\":\"video\",\"pid\":1,\"tid\":1,"));
+        assertTrue(trace, trace.contains(",\"ph\":\"X\",\"dur\":1500,\"args\":{\"pts\":66666}}"));
+        assertTrue(trace, trace.contains("{\"name\":\"video decode\",\"cat\":\"video\",\"id\":66666,\"ph\":\"b\",\"pid\":1,\"tid\":1,"));
+        assertTrue(trace, trace.contains("{\"name\":\"video decode\",\"cat\":\"video\",\"id\":66666,\"ph\":\"e\",\"pid\":1,\"tid\":2,"));
+        assertTrue(trace, trace.contains(",\"ph\":\"i\",\"s\":\"t\",\"args\":{\"pts\":66666,\"size\":4096}}"));
+        assertTrue(trace, trace.contains(",\"ph\":\"i\",\"s\":\"t\",\"args\":{\"pts\":66666,\"depth\":3}}"));
+        assertTrue(trace, trace.contains(",\"ph\":\"X\",\"dur\":12000,"));
+        assertTrue(trace, trace.contains("{\"name\":\"render\",\"cat\":\"video\",\"pid\":1,\"tid\":2,"));
+    }
+
+    @Test
+    public void emptyTrace() throws Exception {
+        String trace = Export(new EventTracer(8));
+        new JsonChecker(trace).check();
+        assertEquals("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[]}", trace);
+    }
+
+    private static String Export(EventTracer tracer) throws Exception {
+        StringWriter writer = new StringWriter();
+        tracer.writeChromeTrace(writer);
+        return writer.toString();
+    }
+
+    //just enough of a JSON parser to tell the trace is well-formed
+    private static final class JsonChecker {
+        private final String mJson;
+        private int mPos;
+
+        JsonChecker(String json) {
+            mJson = json;
+        }
+
+        void check() {
+            Value();
+            assertEquals("trailing characters", mJson.length(), mPos);
+        }
+
+        private void Value() {
+            char c = mJson.charAt(mPos);
+            if (c == '{') {
+                mPos++;
+                if (!Consume('}')) {
+                    do {
+                        String();
+                        Expect(':');
+                        Value();
+                    } while (Consume(','));
+                    Expect('}');
+                }
+            } else if (c == '[') {
+                mPos++;
+                if (!Consume(']')) {
+                    do {
+                        Value();
+                    } while (Consume(','));
+                    Expect(']');
+                }
+            } else if (c == '"') {
+                String();
+            } else if (mJson.startsWith("null", mPos)) {
+                mPos += 4;
+            } else {
+                int start = mPos;
+                while (mPos < mJson.length() && "-0123456789.eE+".indexOf(mJson.charAt(mPos)) >= 0) {
+                    mPos++;
+                }
+                assertTrue("value at " + start, mPos > start);
+                Double.parseDouble(mJson.substring(start, mPos));
+            }
+        }
+
+        private void String() {
+            Expect('"');
+            while (mJson.charAt(mPos) != '"') {
+                mPos += mJson.charAt(mPos) == '\\' ? 2 : 1;
+            }
+            mPos++;
+        }
+
+        private boolean Consume(char c) {
+            if (mPos < mJson.length() && mJson.charAt(mPos) == c) {
+                mPos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void Expect(char c) {
+            assertTrue("expected " + c + " at " + mPos + " of " + mJson, Consume(c));
+        }
+    }
+}
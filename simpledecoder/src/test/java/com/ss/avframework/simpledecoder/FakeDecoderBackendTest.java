@@ -0,0 +1,379 @@
+package com.ss.avframework.simpledecoder;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class FakeDecoderBackendTest {
+    private static final DecoderBackend.OutputFormat FORMAT = DecoderBackend.OutputFormat.video(640, 360, 21);
+
+    @Test
+    public void formatIsReportedBeforeTheFirstFrame() {
+        FakeDecoderBackend decoder = new FakeDecoderBackend(FORMAT, 2, 1024, 2);
+        DecoderBackend.BufferInfo info = new DecoderBackend.BufferInfo();
+        assertEquals(DecoderBackend.INFO_TRY_AGAIN_LATER, decoder.dequeueOutputBuffer(info, 0));
+        assertNull(decoder.getOutputFormat());
+
+        queue(decoder, 0, 100, 0);
+        assertEquals(DecoderBackend.INFO_OUTPUT_FORMAT_CHANGED, decoder.dequeueOutputBuffer(info, 100000));
+        assertSame(FORMAT, decoder.getOutputFormat());
+        int index = decoder.dequeueOutputBuffer(info, 100000);
+        assertTrue(index >= 0);
+        assertEquals(100, info.size);
+        assertEquals(0, decoder.getOutputBuffer(index).getLong(0));
+        decoder.releaseOutputBuffer(index, true);
+        assertEquals(1, decoder.getRenderedCount());
+    }
+
+    @Test
+    public void framesTakeTheDecodeLatency() {
+        FakeDecoderBackend decoder = new FakeDecoderBackend(FORMAT, 8, 1024, 8);
+        decoder.setDecodeLatencyUs(10000);
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            queue(decoder, i * 33333, 100, 0);
+        }
+        DecoderBackend.BufferInfo info = new DecoderBackend.BufferInfo();
+        long[] outputNs = new long[5];
+        for (int i = 0; i < 5; i++) {
+            int index = dequeue(decoder, info);
+            outputNs[i] = System.nanoTime() - start;
+            decoder.releaseOutputBuffer(index, false);
+        }
+        //decoded one after the other
+        for (int i = 0; i < 5; i++) {
+            assertTrue("frame " + i + " after " + outputNs[i] / 1000 + "us", outputNs[i] >= (i + 1) * 10000000L);
+        }
+        assertEquals(5, decoder.getDroppedCount());
+    }
+
+    @Test
+    public void stallHoldsUpTheFollowingFrames() {
+        FakeDecoderBackend decoder = new FakeDecoderBackend(FORMAT, 8, 1024, 8);
+        decoder.setDecodeLatencyUs(1000);
+        decoder.addStall(1, 50000);
+        long start = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            queue(decoder, i * 33333, 100, 0);
+        }
+        DecoderBackend.BufferInfo info = new DecoderBackend.BufferInfo();
+        long[] outputNs = new long[3];
+        for (int i = 0; i < 3; i++) {
+            decoder.releaseOutputBuffer(dequeue(decoder, info), true);
+            outputNs[i] = System.nanoTime() - start;
+        }
+        assertTrue("frame 0 after " + outputNs[0] / 1000 + "us", outputNs[0] < 50000000L);
+        assertTrue("frame 1 after " + outputNs[1] / 1000 + "us", outputNs[1] >= 52000000L);
+        assertTrue("frame 2 after " + outputNs[2] / 1000 + "us", outputNs[2] >= 53000000L);
+    }
+
+    @Test
+    public void inputBuffersAreHeldUntilDecoded() {
+        FakeDecoderBackend decoder = new FakeDecoderBackend(FORMAT, 2, 1024, 4);
+        decoder.setDecodeLatencyUs(30000);
+        queue(decoder, 0, 100, 0);
+        queue(decoder, 33333, 100, 0);
+        assertEquals(DecoderBackend.INFO_TRY_AGAIN_LATER, decoder.dequeueInputBuffer(0));
+        assertTrue(decoder.dequeueInputBuffer(1000000) >= 0);
+    }
+
+    @Test
+    public void outputInPresentationOrder() {
+        FakeDecoderBackend decoder = new FakeDecoderBackend(FORMAT, 16, 1024, 4);
+        decoder.setReorderDepth(2);
+        //decode order I P B B P B B, presentation order I B B P B B P
+        long[] decodeOrder = {0, 3, 1, 2, 6, 4, 5};
+        for (long pts : decodeOrder) {
+            queue(decoder, pts * 1000, 100, 0);
+        }
+        DecoderBackend.BufferInfo info = new DecoderBackend.BufferInfo();
+        //the last frames are held back for a reorder until the end of stream
+        for (int i = 0; i < decodeOrder.length - 2; i++) {
+            int index = dequeue(decoder, info);
+            assertEquals(i * 1000, info.presentationTimeUs);
+            decoder.releaseOutputBuffer(index, true);
+        }
+        assertEquals(DecoderBackend.INFO_TRY_AGAIN_LATER, decoder.dequeueOutputBuffer(info, 20000));
+        queue(decoder, 0, 0, DecoderBackend.BUFFER_FLAG_END_OF_STREAM);
+        for (int i = decodeOrder.length - 2; i < decodeOrder.length; i++) {
+            int index = dequeue(decoder, info);
+            assertEquals(i * 1000, info.presentationTimeUs);
+            decoder.releaseOutputBuffer(index, true);
+        }
+        int index = dequeue(decoder, info);
+        assertTrue((info.flags & DecoderBackend.BUFFER_FLAG_END_OF_STREAM) != 0);
+        assertEquals(0, info.size);
+        decoder.releaseOutputBuffer(index, false);
+    }
+
+    @Test
+    public void formatChangesMidStream() {
+        FakeDecoderBackend decoder = new FakeDecoderBackend(FORMAT, 8, 1024, 8);
+        DecoderBackend.OutputFormat larger = DecoderBackend.OutputFormat.video(1280, 720, 21);
+        decoder.addFormatChange(3, larger);
+        for (int i = 0; i < 6; i++) {
+            queue(decoder, i * 1000, 100, 0);
+        }
+        DecoderBackend.BufferInfo info = new DecoderBackend.BufferInfo();
+        ArrayList<String> events = new ArrayList<String>();
+        for (int i = 0; i < 8; i++) {
+            int index = decoder.dequeueOutputBuffer(info, 100000);
+            if (index == DecoderBackend.INFO_OUTPUT_FORMAT_CHANGED) {
+                events.add(decoder.getOutputFormat().width + "x" + decoder.getOutputFormat().height);
+            } else {
+                assertTrue(index >= 0);
+                events.add(String.valueOf(info.presentationTimeUs));
+                decoder.releaseOutputBuffer(index, true);
+            }
+        }
+        assertEquals("[640x360, 0, 1000, 2000, 1280x720, 3000, 4000, 5000]", events.toString());
+    }
+
+    @Test
+    public void outputWaitsForAFreeBuffer() {
+        FakeDecoderBackend decoder = new FakeDecoderBackend(FORMAT, 8, 1024, 2);
+        for (int i = 0; i < 4; i++) {
+            queue(decoder, i * 1000, 100, 0);
+        }
+        DecoderBackend.BufferInfo info = new DecoderBackend.BufferInfo();
+        int first = dequeue(decoder, info);
+        dequeue(decoder, info);
+        assertEquals(DecoderBackend.INFO_TRY_AGAIN_LATER, decoder.dequeueOutputBuffer(info, 10000));
+        decoder.releaseOutputBuffer(first, true);
+        assertTrue(decoder.dequeueOutputBuffer(info, 0) >= 0);
+        assertEquals(2000, info.presentationTimeUs);
+    }
+
+    @Test
+    public void flushDropsEverything() {
+        FakeDecoderBackend decoder = new FakeDecoderBackend(FORMAT, 4, 1024, 4);
+        for (int i = 0; i < 3; i++) {
+            queue(decoder, i * 1000, 100, 0);
+        }
+        DecoderBackend.BufferInfo info = new DecoderBackend.BufferInfo();
+        int index = dequeue(decoder, info);
+        int input = decoder.dequeueInputBuffer(0);
+        decoder.flush();
+        assertEquals(1, decoder.getFlushCount());
+        try {
+            decoder.releaseOutputBuffer(index, true);
+            fail("output buffers dequeued before a flush are gone");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            decoder.queueInputBuffer(input, 0, 100, 0, 0);
+            fail("input buffers dequeued before a flush are gone");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(DecoderBackend.INFO_TRY_AGAIN_LATER, decoder.dequeueOutputBuffer(info, 10000));
+        for (int i = 0; i < 4; i++) {
+            assertTrue(decoder.dequeueInputBuffer(0) >= 0);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void asynchronousBuffersComeThroughTheCallback() throws Exception {
+        FakeDecoderBackend decoder = new FakeDecoderBackend(FORMAT, 2, 1024, 2);
+        decoder.setDecodeLatencyUs(1000);
+        RecordingCallback callback = new RecordingCallback();
+        decoder.setCallback(callback);
+        int input0 = callback.next("in");
+        int input1 = callback.next("in");
+        assertTrue(input0 != input1);
+        try {
+            decoder.dequeueInputBuffer(0);
+            fail("no dequeueing in asynchronous mode");
+        } catch (IllegalStateException expected) {
+        }
+        decoder.getInputBuffer(input0).put(new byte[100]);
+        decoder.queueInputBuffer(input0, 0, 100, 1000, 0);
+        //the input buffer is free again once its frame is decoded
+        assertEquals(input0, callback.next("in"));
+        assertEquals(0, callback.next("format"));
+        int output = callback.next("out");
+        assertEquals(1000, callback.lastPtsUs);
+        assertEquals(1000, decoder.getOutputBuffer(output).getLong(0));
+        decoder.releaseOutputBuffer(output, true);
+        decoder.queueInputBuffer(input1, 0, 0, 0, DecoderBackend.BUFFER_FLAG_END_OF_STREAM);
+        assertEquals(input1, callback.next("in"));
+        callback.next("out");
+        assertEquals(DecoderBackend.BUFFER_FLAG_END_OF_STREAM, callback.lastFlags);
+        decoder.release();
+    }
+
+    @Test(timeout = 10000)
+    public void asynchronousFlushIsQuietUntilStarted() throws Exception {
+        FakeDecoderBackend decoder = new FakeDecoderBackend(FORMAT, 2, 1024, 2);
+        decoder.setDecodeLatencyUs(20000);
+        RecordingCallback callback = new RecordingCallback();
+        decoder.setCallback(callback);
+        int input = callback.next("in");
+        callback.next("in");
+        decoder.queueInputBuffer(input, 0, 100, 0, 0);
+        decoder.flush();
+        //the frame being decoded is gone, and no buffers are offered before start()
+        assertNull(callback.events.poll(50, TimeUnit.MILLISECONDS));
+        decoder.start();
+        assertTrue(callback.next("in") >= 0);
+        assertTrue(callback.next("in") >= 0);
+        assertNull(callback.events.poll(50, TimeUnit.MILLISECONDS));
+        decoder.release();
+    }
+
+    //samples of a real file through the demuxer, the packet queue and an input and an output thread
+    @Test(timeout = 60000)
+    public void pipelineUnderLoad() throws Exception {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        fixture.videoSamples = 3000;
+        fixture.bFrames = true;
+        File file = fixture.write(File.createTempFile("fake", ".mp4"));
+        final Mp4Demuxer demuxer = new Mp4Demuxer(file.getPath());
+        try {
+            demuxer.selectTrack(0);
+            final MediaSource source = new Mp4MediaSource(demuxer);
+            final FakeDecoderBackend decoder = new FakeDecoderBackend(FORMAT, 4, 64 << 10, 4);
+            decoder.setDecodeLatencyUs(50);
+            decoder.setReorderDepth(2);
+            final SpscQueue<PacketBuffer> queue = new SpscQueue<PacketBuffer>(20);
+            final PacketPool pool = new PacketPool(22, 0);
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+            Thread demux = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 << 10);
+                        int size;
+                        while ((size = source.readSampleData(readBuffer, 0)) >= 0) {
+                            PacketBuffer packet = pool.acquire(size);
+                            packet.fill(readBuffer, size, source.getSampleTime());
+                            queue.put(packet);
+                            source.advance();
+                        }
+                        queue.endOfStream();
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            });
+            Thread input = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            PacketBuffer packet = queue.take();
+                            int index;
+                            while ((index = decoder.dequeueInputBuffer(10000)) < 0) {
+                            }
+                            if (packet == null) {
+                                decoder.queueInputBuffer(index, 0, 0, 0, DecoderBackend.BUFFER_FLAG_END_OF_STREAM);
+                                break;
+                            }
+                            packet.copyTo(decoder.getInputBuffer(index));
+                            decoder.queueInputBuffer(index, 0, packet.size, packet.ptsUs, 0);
+                            pool.release(packet);
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            });
+
+            long start = System.nanoTime();
+            demux.start();
+            input.start();
+            ArrayList<Long> output = new ArrayList<Long>();
+            DecoderBackend.BufferInfo info = new DecoderBackend.BufferInfo();
+            while (failure.get() == null) {
+                int index = decoder.dequeueOutputBuffer(info, 10000);
+                if (index >= 0) {
+                    if ((info.flags & DecoderBackend.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        decoder.releaseOutputBuffer(index, false);
+                        break;
+                    }
+                    assertEquals(info.presentationTimeUs, decoder.getOutputBuffer(index).getLong(0));
+                    output.add(info.presentationTimeUs);
+                    decoder.releaseOutputBuffer(index, true);
+                }
+            }
+            long elapsedNs = System.nanoTime() - start;
+            demux.join();
+            input.join();
+            decoder.release();
+            assertNull(failure.get());
+
+            System.out.println("fake pipeline: " + output.size() + " frames in " + elapsedNs / 1000000 + "ms, "
+                    + output.size() * 1000000000L / elapsedNs + " fps");
+            assertEquals(fixture.videoSamples, output.size());
+            ArrayList<Long> sorted = new ArrayList<Long>(output);
+            Collections.sort(sorted);
+            assertEquals(sorted, output);
+            assertEquals(fixture.videoSamples, decoder.getRenderedCount());
+        } finally {
+            demuxer.release();
+            file.delete();
+        }
+    }
+
+    //the callbacks as "in 1", "out 0", "format 0" events
+    private static final class RecordingCallback implements DecoderBackend.Callback {
+        final LinkedBlockingQueue<String> events = new LinkedBlockingQueue<String>();
+        volatile long lastPtsUs;
+        volatile int lastFlags;
+
+        @Override
+        public void onInputBufferAvailable(DecoderBackend decoder, int index) {
+            events.add("in " + index);
+        }
+
+        @Override
+        public void onOutputBufferAvailable(DecoderBackend decoder, int index, DecoderBackend.BufferInfo info) {
+            lastPtsUs = info.presentationTimeUs;
+            lastFlags = info.flags;
+            events.add("out " + index);
+        }
+
+        @Override
+        public void onOutputFormatChanged(DecoderBackend decoder, DecoderBackend.OutputFormat format) {
+            events.add("format 0");
+        }
+
+        @Override
+        public void onError(DecoderBackend decoder, Exception e) {
+            events.add("error 0");
+        }
+
+        //the index of the next event, which must be of the type
+        int next(String type) throws InterruptedException {
+            String event = events.take();
+            assertTrue(event, event.startsWith(type + " "));
+            return Integer.parseInt(event.substring(type.length() + 1));
+        }
+    }
+
+    private static void queue(FakeDecoderBackend decoder, long ptsUs, int size, int flags) {
+        int index = decoder.dequeueInputBuffer(1000000);
+        assertTrue(index >= 0);
+        decoder.getInputBuffer(index).put(new byte[size]);
+        decoder.queueInputBuffer(index, 0, size, ptsUs, flags);
+    }
+
+    //the next frame, skipping format changes
+    private static int dequeue(FakeDecoderBackend decoder, DecoderBackend.BufferInfo info) {
+        while (true) {
+            int index = decoder.dequeueOutputBuffer(info, 1000000);
+            if (index >= 0) {
+                return index;
+            }
+            assertEquals(DecoderBackend.INFO_OUTPUT_FORMAT_CHANGED, index);
+        }
+    }
+}
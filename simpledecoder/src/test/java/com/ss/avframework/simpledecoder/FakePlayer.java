@@ -0,0 +1,255 @@
+package com.ss.avframework.simpledecoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A {@link PlayerCore} playing a fixture file with {@link FakeDecoderBackend}s, for the JVM
+ * tests: on a {@link DecoderScheduler} of its own like {@link Mp4Decoder}'s, or a shared one.
+ * Records the pts of everything it presents, and when the video was due and how late by the
+ * clock, and can burn some CPU per video frame the way drawing it would.  The audio can go
+ * through a {@link PcmRing} to a listener task the way {@link Mp4Decoder}'s does, recording the
+ * chunks instead, and play through an {@link AudioSink} the clock follows.
+ */
+class FakePlayer {
+    final FakeDecoderBackend.Factory factory = new FakeDecoderBackend.Factory();
+    final DecoderScheduler scheduler;
+    final MediaSource source;
+    final SeekController seeks = new SeekController();
+    final MediaClock clock = new MediaClock();
+    final PipelineStats stats = new PipelineStats(true, true);
+    final PlayerCore core;
+    final List<Long> video = new ArrayList<Long>();
+    final List<long[]> videoLates = new ArrayList<long[]>();   // {dueNs, lateUs} of every one in video
+    final List<Long> audio = new ArrayList<Long>();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    volatile boolean videoReleased;
+    volatile boolean audioReleased;
+    volatile long firstVideoNs;         // when the first video frame was presented, 0 before
+    long renderCostUs = 0;              // spent presenting every video frame
+    long listenerCostUs = 0;            // spent by the audio listener on every call, sleeping
+    PcmRing pcm;                        // null: the audio listener is called from deliver()
+    final List<long[]> chunks = new ArrayList<long[]>();   // {frames, ptsUs} of the chunks of pcm
+    AudioSink sink;                     // null: the audio is paced by the clock instead
+    private final CountDownLatch mPcmDone = new CountDownLatch(1);
+    private DecoderScheduler mOwnScheduler;
+    private DecoderScheduler mScheduler;            // the one it plays on
+
+    FakePlayer(File file) throws Exception {
+        this(file, null, LatenessPolicy.NEVER_DROP);
+    }
+
+    //scheduler: null for one of its own
+    FakePlayer(File file, DecoderScheduler scheduler, LatenessPolicy policy) throws Exception {
+        this(new Mp4Demuxer(file.getPath()), scheduler, policy);
+    }
+
+    FakePlayer(Mp4Demuxer demuxer, DecoderScheduler scheduler, LatenessPolicy policy) {
+        this(new Mp4MediaSource(demuxer), scheduler, policy);
+    }
+
+    //source: of a fixture, video track 0 and audio track 1
+    FakePlayer(MediaSource source, DecoderScheduler scheduler, LatenessPolicy policy) {
+        this.scheduler = scheduler;
+        factory.videoLatencyUs = 2000;
+        factory.audioLatencyUs = 500;
+        this.source = source;
+        source.selectTrack(0);
+        source.selectTrack(1);
+        core = new PlayerCore(source, 0, 1, 64 << 10, 3, stats,
+                seeks, clock, new LatenessController(policy), new EventTracer(256));
+    }
+
+    void start() {
+        DecoderScheduler scheduler = this.scheduler;
+        if (scheduler == null) {
+            scheduler = mOwnScheduler = new DecoderScheduler(2);
+        }
+        mScheduler = scheduler;
+        core.start(scheduler, new Video(), sink != null ? new SinkAudio(new AudioSinkWriter(sink)) : new Audio(), new Runnable() {
+            @Override
+            public void run() {
+                source.release();
+                stats.stop();
+            }
+        });
+    }
+
+    //until it played to the end or was stopped, and the audio listener had every chunk
+    void join() throws InterruptedException {
+        try {
+            core.await();
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            failure.set(e);
+        }
+        if (pcm != null) {
+            mPcmDone.await();
+        }
+        if (mOwnScheduler != null) {
+            mOwnScheduler.shutdown();
+        }
+    }
+
+    long wakeups() {
+        return core.wakeups() + core.renderWakeups();
+    }
+
+    //steps of the scheduler of its own that missed their deadline, 0 on a shared one
+    long missedDeadlines() {
+        return mOwnScheduler != null ? mOwnScheduler.getMissedDeadlineCount() : 0;
+    }
+
+    synchronized List<Long> videoPts() {
+        return new ArrayList<Long>(video);
+    }
+
+    synchronized List<long[]> videoLates() {
+        return new ArrayList<long[]>(videoLates);
+    }
+
+    synchronized List<Long> audioPts() {
+        return new ArrayList<Long>(audio);
+    }
+
+    synchronized List<long[]> chunks() {
+        return new ArrayList<long[]>(chunks);
+    }
+
+    private void Listen() {
+        if (listenerCostUs > 0) {
+            try {
+                Thread.sleep(listenerCostUs / 1000, (int) (listenerCostUs % 1000) * 1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private final class Video implements PlayerCore.VideoOutput {
+        @Override
+        public DecoderBackend createDecoder(DecoderBackend.Callback callback) throws Exception {
+            return factory.createVideoDecoder(null, null, callback);
+        }
+
+        @Override
+        public void prepare(DecoderBackend decoder) {
+        }
+
+        @Override
+        public void present(DecoderBackend.OutputFormat format, long ptsUs) {
+            long untilNs = System.nanoTime() + renderCostUs * 1000;
+            while (System.nanoTime() < untilNs) {
+            }
+            long nowNs = System.nanoTime();
+            long lateUs = -clock.timeUntilUs(ptsUs);
+            synchronized (FakePlayer.this) {
+                video.add(ptsUs);
+                videoLates.add(new long[]{nowNs - lateUs * 1000, lateUs});
+            }
+            if (firstVideoNs == 0) {
+                firstVideoNs = System.nanoTime();
+            }
+        }
+
+        @Override
+        public void release(DecoderBackend decoder) {
+            decoder.release();
+            videoReleased = true;
+        }
+    }
+
+    private class Audio implements PlayerCore.AudioOutput {
+        private DecoderScheduler.Task mListener;
+        AudioSinkWriter mWriter;
+
+        @Override
+        public DecoderBackend createDecoder(DecoderBackend.Callback callback) {
+            if (pcm != null) {
+                mListener = pcm.consumerTask(mScheduler, new PcmRing.Consumer() {
+                    @Override
+                    public void onChunk(PcmRing.Chunk chunk) {
+                        Listen();
+                        synchronized (FakePlayer.this) {
+                            chunks.add(new long[]{chunk.frames, chunk.ptsUs});
+                        }
+                    }
+
+                    @Override
+                    public void onEndOfStream() {
+                        mPcmDone.countDown();
+                    }
+                });
+            }
+            return factory.createAudioDecoder(null, callback);
+        }
+
+        @Override
+        public void deliver(ByteBuffer buffer, DecoderBackend.BufferInfo info, DecoderBackend.OutputFormat format, int generation) throws IOException {
+            synchronized (FakePlayer.this) {
+                audio.add(info.presentationTimeUs);
+            }
+            buffer.limit(info.offset + info.size);
+            buffer.position(info.offset);
+            if (pcm == null) {
+                Listen();
+            } else if (pcm.write(buffer, format.sampleRate, format.channelCount, info.presentationTimeUs, 1.0f, generation)) {
+                mListener.wakeUp();
+            }
+            if (mWriter != null) {
+                mWriter.write(buffer, format.sampleRate, format.channelCount, info.presentationTimeUs, 1.0f, generation);
+            }
+        }
+
+        @Override
+        public void release(DecoderBackend decoder) {
+            decoder.release();
+            if (pcm != null) {
+                pcm.flush();
+                pcm.endOfStream();
+                mListener.wakeUp();
+            }
+            if (mWriter != null) {
+                mWriter.release();
+            }
+            audioReleased = true;
+        }
+    }
+
+    private final class SinkAudio extends Audio implements PlayerCore.PlayingAudioOutput {
+        SinkAudio(AudioSinkWriter writer) {
+            mWriter = writer;
+        }
+
+        @Override
+        public long roomInUs(int size, DecoderBackend.OutputFormat format) throws IOException {
+            return mWriter.roomInUs(size / 2 / format.channelCount);
+        }
+
+        @Override
+        public long playingPtsUs(int generation) {
+            return mWriter.playingPtsUs(generation);
+        }
+
+        @Override
+        public long unplayedUs() throws IOException {
+            return mWriter.unplayedUs();
+        }
+
+        @Override
+        public void setPaused(boolean paused) {
+            mWriter.setPaused(paused);
+        }
+
+        @Override
+        public void flush() {
+            mWriter.flush();
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package com.ss.avframework.simpledecoder;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FragmentedMp4DemuxerTest {
+    private final ArrayList<File> mFiles = new ArrayList<File>();
+
+    @After
+    public void tearDown() {
+        for (File file : mFiles) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void parsesTheInitSegment() throws Exception {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        FragmentedMp4Demuxer demuxer = new FragmentedMp4Demuxer();
+        byte[] init = fixture.initSegment();
+        demuxer.append(ByteBuffer.wrap(init, 0, init.length - 1));
+        assertFalse(demuxer.isInitialized());
+        demuxer.append(ByteBuffer.wrap(init, init.length - 1, 1));
+        assertTrue(demuxer.isInitialized());
+        assertEquals(2, demuxer.getTrackCount());
+
+        Mp4Track video = demuxer.getTrack(0);
+        assertTrue(video.isVideo());
+        assertEquals(Mp4Track.MIME_AVC, video.mime);
+        assertEquals(fixture.width, video.width);
+        assertEquals(fixture.height, video.height);
+        assertEquals(4, video.nalLengthSize);
+        assertEquals(2, video.csd.length);
+        Mp4Track audio = demuxer.getTrack(1);
+        assertTrue(audio.isAudio());
+        assertEquals(44100, audio.sampleRate);
+        assertEquals(2, audio.channelCount);
+
+        demuxer.selectTrack(0);
+        demuxer.selectTrack(1);
+        assertEquals(-1, demuxer.getSampleTrackIndex());
+        assertFalse(demuxer.isEnded());
+        demuxer.endOfStream();
+        assertTrue(demuxer.isEnded());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAFileThatIsNotFragmented() throws Exception {
+        File file = File.createTempFile("plain", ".mp4");
+        mFiles.add(file);
+        Mp4Fixtures.create().write(file);
+        new FragmentedMp4MediaSource(new FileDataSource(file), 0);
+    }
+
+    @Test
+    public void demuxesFragmentsArrivingInPiecesOfAnySize() throws Exception {
+        for (boolean bFrames : new boolean[]{false, true}) {
+            Mp4Fixtures fixture = Mp4Fixtures.create();
+            fixture.bFrames = bFrames;
+            fixture.keyFrameInterval = 15;
+            byte[] stream = Stream(fixture);
+            FragmentedMp4Demuxer demuxer = Open(fixture);
+            Random random = new Random(bFrames ? 1 : 2);
+            List<long[]> samples = new ArrayList<long[]>();
+            int position = fixture.initSegment().length;
+            while (position < stream.length) {
+                int size = Math.min(1 + random.nextInt(3000), stream.length - position);
+                demuxer.append(ByteBuffer.wrap(stream, position, size));
+                position += size;
+                ReadAll(fixture, demuxer, samples);
+            }
+            assertFalse(demuxer.isEnded());
+            demuxer.endOfStream();
+            assertTrue(demuxer.isEnded());
+
+            int video = 0;
+            int audio = 0;
+            long frameUs = bFrames ? fixture.frameDuration * 1000000L / Mp4Fixtures.VIDEO_TIMESCALE : 0;
+            long lastDtsUs = -frameUs;
+            for (long[] sample : samples) { // {track, index, dtsUs}
+                //but for the audio of a fragment past the B-frames' delay into the next one
+                assertTrue("interleaved by decode time", sample[2] >= lastDtsUs - frameUs);
+                lastDtsUs = Math.max(lastDtsUs, sample[2]);
+                assertEquals(sample[0] == 0 ? video++ : audio++, sample[1]);
+            }
+            assertEquals(fixture.videoSamples, video);
+            assertEquals(fixture.audioSamples, audio);
+        }
+    }
+
+    @Test
+    public void samplesComeBeforeTheirFragmentIsComplete() throws Exception {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        FragmentedMp4Demuxer demuxer = Open(fixture);
+        byte[] fragment = fixture.fragment(0);
+        int moofSize = ByteBuffer.wrap(fragment).getInt(0);
+        //the moof, the mdat header and the first video sample but one byte
+        int firstSampleEnd = moofSize + 8 + fixture.videoSampleSize(0);
+        demuxer.append(ByteBuffer.wrap(fragment, 0, firstSampleEnd - 1));
+        assertEquals(-1, demuxer.getSampleTrackIndex());
+        demuxer.append(ByteBuffer.wrap(fragment, firstSampleEnd - 1, 1));
+        assertEquals(0, demuxer.getSampleTrackIndex());
+        assertEquals(0, demuxer.getSampleTime());
+        assertEquals(Mp4Demuxer.SAMPLE_FLAG_SYNC, demuxer.getSampleFlags());
+        assertEquals(ByteBuffer.wrap(fixture.videoSample(0)), demuxer.getSampleData());
+        //the audio at the same time is at the end of the mdat
+        assertFalse(demuxer.advance());
+        assertFalse(demuxer.isEnded());
+        demuxer.append(ByteBuffer.wrap(fragment, firstSampleEnd, fragment.length - firstSampleEnd));
+        assertEquals(1, demuxer.getSampleTrackIndex());
+        assertEquals(ByteBuffer.wrap(fixture.audioSample(0)), demuxer.getSampleData());
+    }
+
+    @Test
+    public void memoryIsBoundedByTheFragmentNotTheDuration() throws Exception {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        fixture.videoSamples = 30 * 60 * 5;                 // 5 minutes of 1 s fragments
+        fixture.audioSamples = (int) (fixture.videoSamples / 30L * Mp4Fixtures.AUDIO_TIMESCALE / Mp4Fixtures.AUDIO_SAMPLE_DURATION);
+        FragmentedMp4Demuxer demuxer = Open(fixture);
+        List<long[]> samples = new ArrayList<long[]>();
+        long total = 0;
+        int largestFragment = 0;
+        int largestBuffer = 0;
+        long startNs = System.nanoTime();
+        for (int i = 0; i < fixture.fragmentCount(); i++) {
+            byte[] fragment = fixture.fragment(i);
+            largestFragment = Math.max(largestFragment, fragment.length);
+            for (int at = 0; at < fragment.length; at += 4096) {
+                demuxer.append(ByteBuffer.wrap(fragment, at, Math.min(4096, fragment.length - at)));
+                ReadAll(fixture, demuxer, samples);
+                largestBuffer = Math.max(largestBuffer, demuxer.getBufferCapacity());
+            }
+            total += fragment.length;
+            samples.clear();
+        }
+        long elapsedNs = System.nanoTime() - startNs;
+        System.out.printf("fragmented: %d fragments, %d KB in %.1f ms, buffer at most %d KB, largest fragment %d KB%n",
+                fixture.fragmentCount(), total >> 10, elapsedNs / 1e6, largestBuffer >> 10, largestFragment >> 10);
+        assertTrue(largestBuffer + " bytes buffered", largestBuffer <= 2 * largestFragment + (64 << 10));
+        assertTrue(total > 50 * largestBuffer);
+    }
+
+    @Test
+    public void latencyTargetDropsUpToAKeyFrameNearTheNewest() throws Exception {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        fixture.videoSamples = 30 * 30;
+        fixture.audioSamples = 30 * Mp4Fixtures.AUDIO_TIMESCALE / Mp4Fixtures.AUDIO_SAMPLE_DURATION;
+        FragmentedMp4Demuxer demuxer = Open(fixture);
+        demuxer.setLatencyTargetUs(2500000);
+        int largestBuffer = 0;
+        long total = 0;
+        for (int i = 0; i < fixture.fragmentCount(); i++) { //nobody reads
+            byte[] fragment = fixture.fragment(i);
+            demuxer.append(ByteBuffer.wrap(fragment));
+            total += fragment.length;
+            largestBuffer = Math.max(largestBuffer, demuxer.getBufferCapacity());
+        }
+        long edgeUs = demuxer.getLiveEdgeUs();
+        assertEquals(fixture.videoPtsUs(fixture.videoSamples - 1), edgeUs);
+        //the key frame of the last fragment but one is the first within the target of the newest sample
+        assertEquals(0, demuxer.getSampleTrackIndex());
+        assertEquals(Mp4Demuxer.SAMPLE_FLAG_SYNC, demuxer.getSampleFlags());
+        assertEquals(28000000, demuxer.getSampleTime());
+        assertTrue(demuxer.getDroppedSamples() > 0);
+        assertTrue(largestBuffer + " of " + total + " bytes buffered", largestBuffer < total / 2);
+
+        List<long[]> samples = new ArrayList<long[]>();
+        ReadAll(fixture, demuxer, samples);
+        assertEquals(60, CountTrack(samples, 0));
+        for (long[] sample : samples) {
+            assertTrue(sample[2] >= 28000000 - 30000);
+        }
+    }
+
+    @Test
+    public void seeksWithinWhatIsBufferedAndPastIt() throws Exception {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        fixture.videoSamples = 150;
+        fixture.audioSamples = 5 * Mp4Fixtures.AUDIO_TIMESCALE / Mp4Fixtures.AUDIO_SAMPLE_DURATION;
+        FragmentedMp4Demuxer demuxer = Open(fixture);
+        for (int i = 0; i < 2; i++) {
+            demuxer.append(ByteBuffer.wrap(fixture.fragment(i)));
+        }
+        demuxer.seekTo(1500000, Mp4Demuxer.SEEK_TO_PREVIOUS_SYNC);
+        assertEquals(0, demuxer.getSampleTrackIndex());
+        assertEquals(1000000, demuxer.getSampleTime());
+        demuxer.advance();
+        assertEquals(1, demuxer.getSampleTrackIndex());
+        assertTrue(demuxer.getSampleTime() >= 1000000 - 23220);
+
+        //past the buffered samples: to the next key frame, once it comes
+        demuxer.seekTo(2500000, Mp4Demuxer.SEEK_TO_NEXT_SYNC);
+        assertEquals(-1, demuxer.getSampleTrackIndex());
+        assertFalse(demuxer.isEnded());
+        demuxer.append(ByteBuffer.wrap(fixture.fragment(2)));
+        assertEquals(-1, demuxer.getSampleTrackIndex());
+        demuxer.append(ByteBuffer.wrap(fixture.fragment(3)));
+        assertEquals(0, demuxer.getSampleTrackIndex());
+        assertEquals(3000000, demuxer.getSampleTime());
+        assertEquals(Mp4Demuxer.SAMPLE_FLAG_SYNC, demuxer.getSampleFlags());
+    }
+
+    @Test
+    public void mediaSourcePlaysAFileAndSeeksBackByReadingItAgain() throws Exception {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        File file = File.createTempFile("fragmented", ".mp4");
+        mFiles.add(file);
+        fixture.writeFragmented(file);
+        MediaSource source = MediaSource.Factory.open(new FileDataSource(file), 0);
+        assertTrue(source instanceof FragmentedMp4MediaSource);
+        source.selectTrack(0);
+        source.selectTrack(1);
+        ByteBuffer buffer = ByteBuffer.allocate(64 << 10);
+        int video = 0;
+        int audio = 0;
+        int size;
+        while ((size = source.readSampleData(buffer, 0)) >= 0) {
+            if (source.getSampleTrackIndex() == 0) {
+                assertEquals(fixture.videoPtsUs(video), source.getSampleTime());
+                //AVCC rewritten to Annex B: a start code for each of the two NAL units
+                assertEquals(fixture.videoSampleSize(video), size);
+                assertEquals(1, buffer.getInt(0));
+                video++;
+            } else {
+                assertEquals(ByteBuffer.wrap(fixture.audioSample(audio)), buffer);
+                audio++;
+            }
+            source.advance();
+        }
+        assertEquals(-1, size);
+        assertEquals(fixture.videoSamples, video);
+        assertEquals(fixture.audioSamples, audio);
+
+        source.seekTo(1100000, Mp4Demuxer.SEEK_TO_PREVIOUS_SYNC);
+        assertTrue(source.readSampleData(buffer, 0) > 0);
+        assertEquals(0, source.getSampleTrackIndex());
+        assertEquals(1000000, source.getSampleTime());
+        source.release();
+    }
+
+    @Test
+    public void mediaSourceWaitsForAGrowingFileLive() throws Exception {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        File file = File.createTempFile("live", ".mp4");
+        mFiles.add(file);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(fixture.initSegment());
+        out.write(fixture.fragment(0));
+        out.flush();
+        MediaSource source = MediaSource.Factory.open(new FileDataSource(file), 5000000);
+        source.selectTrack(0);
+        source.selectTrack(1);
+        ByteBuffer buffer = ByteBuffer.allocate(64 << 10);
+        int read = 0;
+        int size;
+        while ((size = source.readSampleData(buffer, 0)) >= 0) {
+            read++;
+            source.advance();
+        }
+        assertEquals(MediaSource.SAMPLE_PENDING, size);
+        assertEquals(fixture.fragmentAudioStart(1) + fixture.fragmentFrames, read);
+
+        out.write(fixture.fragment(1));
+        out.flush();
+        assertTrue(source.readSampleData(buffer, 0) >= 0);
+        assertEquals(fixture.videoPtsUs(fixture.fragmentFrames), source.getSampleTime());
+        assertEquals(fixture.audioPtsUs(fixture.fragmentAudioStart(2) - 1), ((PlayerCore.LiveSource) source).liveEdgeUs());
+        out.close();
+        source.release();
+    }
+
+    @Test
+    public void playerCatchesUpWithALiveFile() throws Exception {
+        final Mp4Fixtures fixture = Mp4Fixtures.create();
+        fixture.fragmentFrames = 15;                        // 0.5 s fragments, each starting with a key frame
+        fixture.keyFrameInterval = 15;
+        fixture.videoSamples = 30 * 8;
+        fixture.audioSamples = 8 * Mp4Fixtures.AUDIO_TIMESCALE / Mp4Fixtures.AUDIO_SAMPLE_DURATION;
+        File file = File.createTempFile("live", ".mp4");
+        mFiles.add(file);
+        final FileOutputStream out = new FileOutputStream(file);
+        out.write(fixture.initSegment());
+        final int written = 2;                              // within the target when it starts
+        for (int i = 0; i < written; i++) {
+            out.write(fixture.fragment(i));
+        }
+        out.flush();
+
+        FakePlayer player = new FakePlayer(MediaSource.Factory.open(new FileDataSource(file), 1000000), null, LatenessPolicy.NEVER_DROP);
+        player.start();
+        //a fragment every 0.25 s from now on, twice as fast as it plays, the way a live encoder
+        //catching up after a stall writes them
+        for (int i = written; i < fixture.fragmentCount(); i++) {
+            Thread.sleep(250);
+            out.write(fixture.fragment(i));
+            out.flush();
+        }
+        Thread.sleep(300);
+        List<Long> video = player.videoPts();
+        player.core.stop();
+        player.join();
+        out.close();
+        assertNull(player.failure.get());
+        assertNull(player.core.error());
+        long newestUs = fixture.videoPtsUs(fixture.videoSamples - 1);
+        long playedUs = video.get(video.size() - 1);
+        System.out.printf("live: %d catch-ups, %d frames shown, %d ms behind the newest at the end%n",
+                player.core.liveCatchUps(), video.size(), (newestUs - playedUs) / 1000);
+        assertEquals(0, (long) video.get(0));
+        assertTrue(player.core.liveCatchUps() >= 1);
+        //skipped ahead rather than played everything
+        assertTrue(video.size() < playedUs * 30 / 1000000);
+        assertTrue(newestUs - playedUs + " us behind", newestUs - playedUs <= 1500000 + 300000);
+    }
+
+    //what a fixture writes as a file, init segment included
+    private static byte[] Stream(Mp4Fixtures fixture) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(fixture.initSegment());
+        for (int i = 0; i < fixture.fragmentCount(); i++) {
+            out.write(fixture.fragment(i));
+        }
+        return out.toByteArray();
+    }
+
+    //a demuxer given the init segment, both tracks selected
+    private static FragmentedMp4Demuxer Open(Mp4Fixtures fixture) throws IOException {
+        FragmentedMp4Demuxer demuxer = new FragmentedMp4Demuxer();
+        demuxer.append(ByteBuffer.wrap(fixture.initSegment()));
+        demuxer.selectTrack(0);
+        demuxer.selectTrack(1);
+        return demuxer;
+    }
+
+    //reads and checks every sample in now, adding {track, index, dtsUs} for each
+    private static void ReadAll(Mp4Fixtures fixture, FragmentedMp4Demuxer demuxer, List<long[]> samples) {
+        while (demuxer.getSampleTrackIndex() >= 0) {
+            int track = demuxer.getSampleTrackIndex();
+            long ptsUs = demuxer.getSampleTime();
+            int index;
+            if (track == 0) {
+                index = (int) Math.round(ptsUs / 1e6 * Mp4Fixtures.VIDEO_TIMESCALE / fixture.frameDuration);
+                index = FindVideo(fixture, ptsUs, index);
+                assertEquals(ByteBuffer.wrap(fixture.videoSample(index)), demuxer.getSampleData());
+                assertEquals(fixture.isKeyFrame(index), demuxer.getSampleFlags() == Mp4Demuxer.SAMPLE_FLAG_SYNC);
+                //decode time: the B-frames' reordering delay is edited out
+                long dts = (index - (fixture.bFrames ? 1 : 0)) * (long) fixture.frameDuration;
+                samples.add(new long[]{track, index, dts * 1000000L / Mp4Fixtures.VIDEO_TIMESCALE});
+            } else {
+                index = (int) (ptsUs * Mp4Fixtures.AUDIO_TIMESCALE / 1000000L / Mp4Fixtures.AUDIO_SAMPLE_DURATION);
+                if (fixture.audioPtsUs(index) != ptsUs) {
+                    index++;
+                }
+                assertEquals(fixture.audioPtsUs(index), ptsUs);
+                assertEquals(ByteBuffer.wrap(fixture.audioSample(index)), demuxer.getSampleData());
+                assertEquals(Mp4Demuxer.SAMPLE_FLAG_SYNC, demuxer.getSampleFlags());
+                samples.add(new long[]{track, index, ptsUs});
+            }
+            demuxer.advance();
+        }
+    }
+
+    //the decode position of the video sample presented at ptsUs, near its presentation position
+    private static int FindVideo(Mp4Fixtures fixture, long ptsUs, int near) {
+        for (int i = Math.max(0, near - 3); i < Math.min(fixture.videoSamples, near + 4); i++) {
+            if (fixture.videoPtsUs(i) == ptsUs) {
+                return i;
+            }
+        }
+        throw new AssertionError("No video sample at " + ptsUs);
+    }
+
+    private static int CountTrack(List<long[]> samples, int track) {
+        int count = 0;
+        for (long[] sample : samples) {
+            if (sample[0] == track) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
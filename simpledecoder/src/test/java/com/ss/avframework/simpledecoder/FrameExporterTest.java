@@ -0,0 +1,324 @@
+package com.ss.avframework.simpledecoder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class FrameExporterTest {
+    private File mDir;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("export", "");
+        mDir.delete();
+        assertTrue(mDir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Test(timeout = 10000)
+    public void rgbaStreamHasEveryFrameAtItsIndex() throws Exception {
+        File file = new File(mDir, "frames.rgba");
+        FrameExporter exporter = new FrameExporter(32, 18, FrameExporter.rgbaStream(file), 3, 4);
+        ByteBuffer frame = ByteBuffer.allocateDirect(32 * 18 * 4);
+        for (int i = 0; i < 50; i++) {
+            Fill(frame, i);
+            exporter.export(frame, 32, 18, i, i * 33333L);
+        }
+        exporter.finish();
+        assertEquals(50, exporter.getExportedCount());
+        assertTrue(exporter.getMostInFlight() <= 3);
+        byte[] bytes = ReadAll(file);
+        assertEquals(50 * 32 * 18 * 4, bytes.length);
+        for (int i = 0; i < 50; i++) {
+            for (int j = 0; j < 32 * 18 * 4; j += 97) {
+                assertEquals(Pixel(i, j), bytes[i * 32 * 18 * 4 + j]);
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void rgbaFilesOnePerFrame() throws Exception {
+        FrameExporter exporter = new FrameExporter(8, 8, FrameExporter.rgbaFiles(mDir));
+        ByteBuffer frame = ByteBuffer.allocateDirect(8 * 8 * 4);
+        for (int i = 0; i < 5; i++) {
+            Fill(frame, i * 3);
+            exporter.export(frame, 8, 8, i * 3, 0);
+        }
+        exporter.finish();
+        for (int i = 0; i < 5; i++) {
+            byte[] bytes = ReadAll(new File(mDir, String.format("frame_%06d.rgba", i * 3)));
+            assertEquals(8 * 8 * 4, bytes.length);
+            assertEquals(Pixel(i * 3, 17), bytes[17]);
+        }
+        assertEquals(5, mDir.list().length);
+    }
+
+    @Test(timeout = 10000)
+    public void y4mIsAPlayableStream() throws Exception {
+        File file = new File(mDir, "frames.y4m");
+        int width = 6;              // odd chroma columns
+        int height = 5;
+        FrameExporter exporter = new FrameExporter(width, height, FrameExporter.y4m(file, 30000, 1001), 2, 2);
+        ByteBuffer frame = ByteBuffer.allocateDirect(width * height * 4);
+        int[][] colors = {{255, 0, 0}, {0, 255, 0}, {0, 0, 255}, {255, 255, 255}};
+        for (int i = 0; i < colors.length; i++) {
+            frame.clear();
+            for (int p = 0; p < width * height; p++) {
+                frame.put((byte) colors[i][0]).put((byte) colors[i][1]).put((byte) colors[i][2]).put((byte) 255);
+            }
+            frame.flip();
+            exporter.export(frame, width, height, i, 0);
+        }
+        exporter.finish();
+
+        byte[] bytes = ReadAll(file);
+        String header = "YUV4MPEG2 W6 H5 F30000:1001 Ip A1:1 C420jpeg\n";
+        assertEquals(header, new String(bytes, 0, header.length(), Charset.forName("US-ASCII")));
+        int chroma = 3 * 3;
+        int frameSize = 6 + width * height + 2 * chroma;
+        assertEquals(header.length() + colors.length * frameSize, bytes.length);
+        //Y U V of full range BT.601 red, green, blue and white
+        int[][] yuv = {{76, 85, 255}, {150, 44, 21}, {29, 255, 107}, {255, 128, 128}};
+        for (int i = 0; i < colors.length; i++) {
+            int at = header.length() + i * frameSize;
+            assertEquals("FRAME\n", new String(bytes, at, 6, Charset.forName("US-ASCII")));
+            int y = at + 6;
+            int u = y + width * height;
+            int v = u + chroma;
+            assertEquals(yuv[i][0], bytes[y + width * height - 1] & 0xff, 1);
+            assertEquals(yuv[i][1], bytes[u + chroma - 1] & 0xff, 1);
+            assertEquals(yuv[i][2], bytes[v] & 0xff, 1);
+        }
+    }
+
+    //writers slower than the producer hold it back at the pool size, and write every frame
+    @Test(timeout = 10000)
+    public void slowWritersHoldTheProducerBack() throws Exception {
+        final AtomicInteger writing = new AtomicInteger();
+        final AtomicInteger mostWriting = new AtomicInteger();
+        final AtomicInteger written = new AtomicInteger();
+        FrameExporter exporter = new FrameExporter(4, 4, new FrameExporter.Format() {
+            @Override
+            public void write(ByteBuffer rgba, int width, int height, int index, long ptsUs) throws IOException {
+                mostWriting.set(Math.max(mostWriting.get(), writing.incrementAndGet()));
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                writing.decrementAndGet();
+                written.incrementAndGet();
+            }
+
+            @Override
+            public void close() {
+            }
+        }, 3, 2);
+        ByteBuffer frame = ByteBuffer.allocateDirect(4 * 4 * 4);
+        long startNs = System.nanoTime();
+        for (int i = 0; i < 40; i++) {
+            exporter.export(frame, 4, 4, i, 0);
+            frame.rewind();
+        }
+        long exportMs = (System.nanoTime() - startNs) / 1000000;
+        exporter.finish();
+        assertEquals(40, written.get());
+        assertTrue(mostWriting.get() <= 2);
+        assertEquals(3, exporter.getMostInFlight());
+        //the two writers free a buffer each at about the same time, one of them is waited for
+        assertTrue(exporter.getStallCount() + " stalls", exporter.getStallCount() >= (40 - 3) / 2);
+        //two writers 5ms a frame: the producer is done by the time all but the pool is written
+        assertTrue(exportMs + "ms", exportMs >= (40 - 3) / 2 * 5);
+    }
+
+    @Test(timeout = 10000)
+    public void aFailedWriteComesOutOfFinish() throws Exception {
+        final IOException failure = new IOException("disk full");
+        FrameExporter exporter = new FrameExporter(4, 4, new FrameExporter.Format() {
+            @Override
+            public void write(ByteBuffer rgba, int width, int height, int index, long ptsUs) throws IOException {
+                if (index == 5) {
+                    throw failure;
+                }
+            }
+
+            @Override
+            public void close() {
+            }
+        }, 2, 1);
+        ByteBuffer frame = ByteBuffer.allocateDirect(4 * 4 * 4);
+        //as the listener of the extraction, which can't throw
+        for (int i = 0; i < 100; i++) {
+            exporter.onFrameExtracted(i, 0, 0, frame, 4, 4);
+        }
+        try {
+            exporter.finish();
+            fail();
+        } catch (IOException e) {
+            assertSame(failure, e);
+        }
+        assertEquals(5, exporter.getExportedCount());
+        try {
+            exporter.export(frame, 8, 4, 0, 0);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsBadArguments() throws Exception {
+        try {
+            new FrameExporter(0, 4, FrameExporter.rgbaFiles(mDir));
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new FrameExporter(4, 4, null);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new FrameExporter(4, 4, FrameExporter.rgbaFiles(mDir), 0, 1);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        FrameExporter exporter = new FrameExporter(4, 4, FrameExporter.rgbaFiles(mDir));
+        try {
+            exporter.export(ByteBuffer.allocate(4 * 4 * 4), 4, 2, 0, 0);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        exporter.finish();
+    }
+
+    //640x360 frames from a producer spending 2ms on every one, the way a decoder would, written as
+    //they come on the producer's thread like saveFrame(), and through the exporter
+    @Test(timeout = 60000)
+    public void sustainedExport() throws Exception {
+        int width = 640;
+        int height = 360;
+        int frames = 240;
+        ByteBuffer frame = ByteBuffer.allocateDirect(width * height * 4);
+        Fill(frame, 1);
+
+        File serialFile = new File(mDir, "serial.rgba");
+        FrameExporter.Format serial = FrameExporter.rgbaStream(serialFile);
+        MemorySampler sampler = new MemorySampler();
+        long startNs = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            Thread.sleep(2);
+            serial.write(frame.duplicate(), width, height, i, 0);
+        }
+        serial.close();
+        double serialFps = frames / ((System.nanoTime() - startNs) / 1e9);
+        sampler.stop();
+        serialFile.delete();
+
+        File file = new File(mDir, "exported.rgba");
+        FrameExporter exporter = new FrameExporter(width, height, FrameExporter.rgbaStream(file));
+        sampler = new MemorySampler();
+        startNs = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            Thread.sleep(2);
+            exporter.export(frame, width, height, i, 0);
+        }
+        exporter.finish();
+        double exportFps = frames / ((System.nanoTime() - startNs) / 1e9);
+        sampler.stop();
+        assertEquals(frames, exporter.getExportedCount());
+        assertEquals((long) frames * width * height * 4, file.length());
+
+        System.out.println(String.format("export %dx%d: on the producer %.0f fps, exporter %.0f fps (%d stalls, %dms); "
+                        + "high-water direct +%d KB (pool %d KB), heap +%d KB",
+                width, height, serialFps, exportFps, exporter.getStallCount(), exporter.getStallUs() / 1000,
+                sampler.mostDirect / 1024, exporter.getPoolBytes() / 1024, sampler.mostHeap / 1024));
+        //the pool was allocated before sampling, nothing else is per frame
+        assertTrue(sampler.mostDirect + " bytes", sampler.mostDirect < width * height * 4);
+    }
+
+    //the most direct and heap memory above what was used when started, sampled every millisecond
+    private static final class MemorySampler implements Runnable {
+        private final BufferPoolMXBean mDirect;
+        private final long mDirectBase;
+        private final long mHeapBase;
+        private final Thread mThread;
+        private volatile boolean mStop;
+        volatile long mostDirect;
+        volatile long mostHeap;
+
+        MemorySampler() {
+            BufferPoolMXBean direct = null;
+            for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+                if (pool.getName().equals("direct")) {
+                    direct = pool;
+                }
+            }
+            mDirect = direct;
+            mDirectBase = mDirect.getMemoryUsed();
+            mHeapBase = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            mThread = new Thread(this);
+            mThread.start();
+        }
+
+        @Override
+        public void run() {
+            while (!mStop) {
+                mostDirect = Math.max(mostDirect, mDirect.getMemoryUsed() - mDirectBase);
+                mostHeap = Math.max(mostHeap, ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() - mHeapBase);
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        void stop() throws InterruptedException {
+            mStop = true;
+            mThread.join();
+        }
+    }
+
+    private static byte Pixel(int frame, int offset) {
+        return (byte) (frame * 31 + offset);
+    }
+
+    private static void Fill(ByteBuffer buffer, int frame) {
+        buffer.clear();
+        for (int j = 0; j < buffer.capacity(); j++) {
+            buffer.put(j, Pixel(frame, j));
+        }
+    }
+
+    private static byte[] ReadAll(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+}
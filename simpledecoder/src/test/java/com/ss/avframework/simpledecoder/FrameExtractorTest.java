@@ -0,0 +1,257 @@
+package com.ss.avframework.simpledecoder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FrameExtractorTest {
+    private Mp4Fixtures mFixture;
+    private File mFile;
+    private Mp4Demuxer mDemuxer;
+
+    @Before
+    public void setUp() throws Exception {
+        mFixture = Mp4Fixtures.create();
+        mFixture.videoSamples = 300;            // 10s at 30 fps
+        mFixture.keyFrameInterval = 30;         // a key frame a second
+        mFixture.audioSamples = 10;
+        mFile = mFixture.write(File.createTempFile("extract", ".mp4"));
+    }
+
+    @After
+    public void tearDown() {
+        if (mDemuxer != null) {
+            mDemuxer.release();
+        }
+        mFile.delete();
+    }
+
+    @Test(timeout = 10000)
+    public void syncModesDecodeOnlyTheKeyFrames() throws Exception {
+        long frameUs = mFixture.videoPtsUs(1);
+        //three times in the second second, one past the end, out of order
+        long[] times = {5600000, 1000000, 1000000 + 10 * frameUs, 20000000, 1000000 + 20 * frameUs, 0};
+        Recorder previous = Extract(Mp4Decoder.SeekMode.PREVIOUS_SYNC, times, new FakeDecoderBackend.Factory());
+        assertEquals(times.length, previous.frames.size());
+        assertEquals(4, previous.extractor.samplesDecoded()); //the key frames at 0, 1, 5 and 9s
+        assertEquals(0, previous.extractor.flushes());
+        assertEquals(KeyFrameUs(5600000), previous.ptsOf(0));
+        assertEquals(1000000, previous.ptsOf(1));
+        assertEquals(1000000, previous.ptsOf(2));
+        assertEquals(KeyFrameUs(20000000), previous.ptsOf(3));
+        assertEquals(1000000, previous.ptsOf(4));
+        assertEquals(0, previous.ptsOf(5));
+        //in file order, as they were decoded
+        for (int i = 1; i < previous.frames.size(); i++) {
+            assertTrue(previous.frames.get(i)[2] >= previous.frames.get(i - 1)[2]);
+        }
+
+        Recorder next = Extract(Mp4Decoder.SeekMode.NEXT_SYNC, times, new FakeDecoderBackend.Factory());
+        assertEquals(times.length - 1, next.frames.size()); //no key frame after 20s
+        assertEquals(6000000, next.ptsOf(0));
+        assertEquals(1000000, next.ptsOf(1));
+        assertEquals(2000000, next.ptsOf(2));
+        assertEquals(-1, next.ptsOf(3));
+
+        Recorder closest = Extract(Mp4Decoder.SeekMode.CLOSEST_SYNC, times, new FakeDecoderBackend.Factory());
+        assertEquals(6000000, closest.ptsOf(0));
+        assertEquals(1000000, closest.ptsOf(2));
+        assertEquals(2000000, closest.ptsOf(4));
+    }
+
+    @Test(timeout = 10000)
+    public void exactModeDecodesUpToTheFrameAtTheTime() throws Exception {
+        mFixture.bFrames = true;
+        mFile = mFixture.write(mFile);
+        FakeDecoderBackend.Factory factory = new FakeDecoderBackend.Factory();
+        factory.reorderDepth = 2;
+        long[] times = {FramePtsUs(102) + 1, FramePtsUs(239), FramePtsUs(94), 20000000, FramePtsUs(90)};
+        Recorder recorder = Extract(Mp4Decoder.SeekMode.EXACT, times, factory);
+        assertEquals(times.length - 1, recorder.frames.size()); //the last frame is before 20s
+        assertEquals(FramePtsUs(103), recorder.ptsOf(0));
+        assertEquals(FramePtsUs(239), recorder.ptsOf(1));
+        assertEquals(FramePtsUs(94), recorder.ptsOf(2));
+        assertEquals(-1, recorder.ptsOf(3));
+        assertEquals(FramePtsUs(90), recorder.ptsOf(4));
+        //from the key frames at 3, 7 and 9s, the three times in the fourth second decoding it once,
+        //a few samples more than needed queued
+        assertTrue(recorder.extractor.samplesDecoded() + " samples",
+                recorder.extractor.samplesDecoded() <= 3 * (mFixture.keyFrameInterval + 4));
+        assertEquals(2, recorder.extractor.flushes());
+        //the pixels are those of the frame delivered
+        for (long[] frame : recorder.frames) {
+            assertEquals(frame[2], frame[3]);
+        }
+    }
+
+    //a strip of 20 thumbnails against decoding every frame, the fake taking 2ms a frame
+    @Test(timeout = 30000)
+    public void thumbnailsDecodeAnOrderOfMagnitudeLess() throws Exception {
+        mFixture.videoSamples = 600;
+        mFile = mFixture.write(mFile);
+        FakeDecoderBackend.Factory factory = new FakeDecoderBackend.Factory();
+        factory.videoLatencyUs = 2000;
+        long durationUs = mFixture.videoPtsUs(mFixture.videoSamples - 1);
+        long[] times = new long[20];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = durationUs * i / times.length + durationUs / times.length / 2;
+        }
+        long startNs = System.nanoTime();
+        Recorder recorder = Extract(Mp4Decoder.SeekMode.PREVIOUS_SYNC, times, factory);
+        long extractNs = System.nanoTime() - startNs;
+        assertEquals(times.length, recorder.frames.size());
+
+        mDemuxer.release();
+        startNs = System.nanoTime();
+        int decoded = DecodeEverything(factory);
+        long decodeNs = System.nanoTime() - startNs;
+        assertEquals(mFixture.videoSamples, decoded);
+
+        System.out.println(String.format("%d thumbnails: %d frames decoded in %.1fms, every frame: %d in %.1fms, %.1fx faster",
+                times.length, recorder.extractor.samplesDecoded(), extractNs / 1e6, decoded, decodeNs / 1e6,
+                decodeNs / (double) extractNs));
+        assertTrue(recorder.extractor.samplesDecoded() * 10 <= decoded);
+        assertTrue(extractNs * 10 < decodeNs);
+    }
+
+    //of the frame n-th in presentation order
+    private long FramePtsUs(int n) {
+        return n * (long) mFixture.frameDuration * 1000000L / Mp4Fixtures.VIDEO_TIMESCALE;
+    }
+
+    private long KeyFrameUs(long timeUs) {
+        long keyUs = 0;
+        for (int i = 0; i < mFixture.videoSamples; i += mFixture.keyFrameInterval) {
+            if (mFixture.videoPtsUs(i) <= timeUs) {
+                keyUs = mFixture.videoPtsUs(i);
+            }
+        }
+        return keyUs;
+    }
+
+    private Recorder Extract(Mp4Decoder.SeekMode mode, long[] times, FakeDecoderBackend.Factory factory) throws Exception {
+        if (mDemuxer != null) {
+            mDemuxer.release();
+        }
+        mDemuxer = new Mp4Demuxer(mFile.getPath());
+        mDemuxer.selectTrack(0);
+        Recorder recorder = new Recorder(new FrameExtractor(new Mp4MediaSource(mDemuxer), 0, mode), times.length);
+        int delivered = recorder.extractor.extract(times, new FakeOutput(factory), recorder);
+        assertEquals(recorder.frames.size(), delivered);
+        return recorder;
+    }
+
+    //every sample through the codec in decode order, the way playing would, how many frames came out
+    private int DecodeEverything(FakeDecoderBackend.Factory factory) throws Exception {
+        mDemuxer = new Mp4Demuxer(mFile.getPath());
+        mDemuxer.selectTrack(0);
+        MediaSource source = new Mp4MediaSource(mDemuxer);
+        DecoderBackend decoder = factory.createVideoDecoder(null, null, null);
+        DecoderBackend.BufferInfo info = new DecoderBackend.BufferInfo();
+        ByteBuffer sample = ByteBuffer.allocate(64 << 10);
+        boolean endQueued = false;
+        int decoded = 0;
+        while (true) {
+            int input = endQueued ? -1 : decoder.dequeueInputBuffer(0);
+            if (input >= 0) {
+                if (source.getSampleTrackIndex() < 0) {
+                    decoder.queueInputBuffer(input, 0, 0, 0, DecoderBackend.BUFFER_FLAG_END_OF_STREAM);
+                    endQueued = true;
+                } else {
+                    sample.clear();
+                    int size = source.readSampleData(sample, 0);
+                    decoder.getInputBuffer(input).clear();
+                    decoder.getInputBuffer(input).put(sample.array(), 0, size);
+                    decoder.queueInputBuffer(input, 0, size, source.getSampleTime(), 0);
+                    source.advance();
+                }
+                continue;
+            }
+            int output = decoder.dequeueOutputBuffer(info, 10000);
+            if (output < 0) {
+                continue;
+            }
+            decoder.releaseOutputBuffer(output, true);
+            if ((info.flags & DecoderBackend.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                break;
+            }
+            decoded++;
+        }
+        decoder.release();
+        return decoded;
+    }
+
+    //"reads back" the pts at the start of the fake's output buffer into one pixel buffer
+    private static final class FakeOutput implements FrameExtractor.Output {
+        private final FakeDecoderBackend.Factory mFactory;
+        private final ByteBuffer mPixels = ByteBuffer.allocateDirect(16 * 9 * 4);
+
+        FakeOutput(FakeDecoderBackend.Factory factory) {
+            mFactory = factory;
+        }
+
+        @Override
+        public DecoderBackend createDecoder() throws Exception {
+            return mFactory.createVideoDecoder(null, null, null);
+        }
+
+        @Override
+        public ByteBuffer read(DecoderBackend decoder, int index, DecoderBackend.BufferInfo info) {
+            mPixels.clear();
+            mPixels.putLong(0, decoder.getOutputBuffer(index).getLong(0));
+            decoder.releaseOutputBuffer(index, true);
+            return mPixels;
+        }
+
+        @Override
+        public int width() {
+            return 16;
+        }
+
+        @Override
+        public int height() {
+            return 9;
+        }
+
+        @Override
+        public void release(DecoderBackend decoder) {
+            decoder.release();
+        }
+    }
+
+    //{index, requested, pts, pts in the pixels} of every frame delivered
+    private static final class Recorder implements FrameExtractor.Listener {
+        final FrameExtractor extractor;
+        final List<long[]> frames = new ArrayList<long[]>();
+        private final int mRequests;
+
+        Recorder(FrameExtractor extractor, int requests) {
+            this.extractor = extractor;
+            mRequests = requests;
+        }
+
+        @Override
+        public void onFrame(int index, long requestedUs, long ptsUs, ByteBuffer pixels, int width, int height) {
+            assertTrue(index >= 0 && index < mRequests);
+            assertEquals(16 * 9 * 4, pixels.remaining());
+            frames.add(new long[]{index, requestedUs, ptsUs, pixels.getLong(0)});
+        }
+
+        //-1 if none was delivered
+        long ptsOf(int index) {
+            for (long[] frame : frames) {
+                if (frame[0] == index) {
+                    return frame[2];
+                }
+            }
+            return -1;
+        }
+    }
+}
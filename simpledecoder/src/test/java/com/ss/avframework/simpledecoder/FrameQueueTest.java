@@ -0,0 +1,204 @@
+package com.ss.avframework.simpledecoder;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class FrameQueueTest {
+    private static final DecoderBackend.OutputFormat FORMAT = DecoderBackend.OutputFormat.video(1920, 1080, 21);
+
+    @Test
+    public void framesGoRoundInOrder() throws Exception {
+        FrameQueue frames = new FrameQueue(3);
+        DecoderBackend.BufferInfo info = new DecoderBackend.BufferInfo();
+        for (int i = 0; i < 10; i++) {
+            FrameQueue.Frame frame = frames.acquire(0, TimeUnit.MILLISECONDS);
+            info.set(0, 100, i * 33333, 0);
+            frame.set(i % 4, info, FORMAT, 1, i);
+            assertTrue(frames.put(frame));
+            FrameQueue.Frame taken = frames.take(0, TimeUnit.MILLISECONDS);
+            assertSame(frame, taken);
+            assertEquals(i * 33333, taken.ptsUs);
+            assertSame(FORMAT, taken.format);
+            assertEquals(1, frames.inFlight());
+            frames.release(taken);
+            assertEquals(0, frames.inFlight());
+        }
+    }
+
+    @Test
+    public void depthBoundsTheFramesInFlight() throws Exception {
+        FrameQueue frames = new FrameQueue(2);
+        FrameQueue.Frame first = frames.acquire(0, TimeUnit.MILLISECONDS);
+        FrameQueue.Frame second = frames.acquire(0, TimeUnit.MILLISECONDS);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNull(frames.acquire(10, TimeUnit.MILLISECONDS));
+        frames.put(first);
+        frames.put(second);
+        assertEquals(2, frames.size());
+        //taking a frame doesn't free it, the codec still has its buffer out
+        FrameQueue.Frame taken = frames.take(0, TimeUnit.MILLISECONDS);
+        assertNull(frames.acquire(10, TimeUnit.MILLISECONDS));
+        frames.release(taken);
+        assertSame(taken, frames.acquire(0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void endOfStreamAfterTheLastFrame() throws Exception {
+        FrameQueue frames = new FrameQueue(2);
+        frames.put(frames.acquire(0, TimeUnit.MILLISECONDS));
+        frames.endOfStream();
+        assertFalse(frames.isEndOfStream());
+        assertNotNull(frames.take(0, TimeUnit.MILLISECONDS));
+        assertNull(frames.take(10, TimeUnit.MILLISECONDS));
+        assertTrue(frames.isEndOfStream());
+    }
+
+    @Test(timeout = 10000)
+    public void cancelWakesBothSides() throws Exception {
+        final FrameQueue frames = new FrameQueue(1);
+        final FrameQueue.Frame frame = frames.acquire(0, TimeUnit.MILLISECONDS);
+        Thread drain = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    frames.acquire(1, TimeUnit.HOURS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        drain.start();
+        Thread.sleep(20);
+        frames.cancel();
+        drain.join();
+        assertFalse(frames.put(frame));
+        assertNull(frames.take(1, TimeUnit.HOURS));
+    }
+
+    //high bitrate content: the decoder takes 14ms a frame and 45ms a key frame, presenting a frame
+    //takes 6ms and a slow swap 40ms now and then. The codec decodes into every output buffer the
+    //app doesn't hold, and both loops hand a buffer back before drawing, so the codec's own buffers
+    //absorb a stuck render stage either way: the render stage must keep up, it can't beat decoding
+    @Test(timeout = 60000)
+    public void renderStageKeepsUpWithHighBitrateDecoding() throws Exception {
+        int frames = 240;
+        double serial = Play(frames, 0);
+        double pipelined = Play(frames, 3);
+        System.out.println(String.format("high bitrate, %d frames: serial output %.1f fps, drain + render stage %.1f fps",
+                frames, serial, pipelined));
+        double decodeFps = 1e6 * KEY_FRAME_INTERVAL / (KEY_FRAME_DECODE_US + (KEY_FRAME_INTERVAL - 1) * DECODE_US);
+        assertTrue(pipelined + " vs " + serial, pipelined > serial * 0.9);
+        assertTrue(pipelined + " vs " + decodeFps, pipelined > decodeFps * 0.9);
+    }
+
+    private static final int KEY_FRAME_INTERVAL = 30;
+    private static final long DECODE_US = 14000;
+    private static final long KEY_FRAME_DECODE_US = 45000;
+    private static final long RENDER_US = 6000;
+    private static final long SLOW_SWAP_US = 40000;
+    private static final int SLOW_SWAP_INTERVAL = 9;
+
+    //frames per second rendering as fast as the frames come, on one output thread as Mp4Decoder used
+    //to if depth is 0, else with a drain thread handing frames to the render thread
+    private static double Play(final int count, int depth) throws Exception {
+        final FakeDecoderBackend decoder = new FakeDecoderBackend(FORMAT, 4, 1024, 4);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread input = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i <= count; i++) {
+                        int index;
+                        while ((index = decoder.dequeueInputBuffer(10000)) < 0) {
+                        }
+                        decoder.setDecodeLatencyUs(i % KEY_FRAME_INTERVAL == 0 ? KEY_FRAME_DECODE_US : DECODE_US);
+                        decoder.queueInputBuffer(index, 0, i < count ? 100 : 0, i * 16667L,
+                                i < count ? 0 : DecoderBackend.BUFFER_FLAG_END_OF_STREAM);
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        });
+        long startNs = System.nanoTime();
+        input.start();
+        int rendered = 0;
+        if (depth == 0) {
+            DecoderBackend.BufferInfo info = new DecoderBackend.BufferInfo();
+            while (failure.get() == null) {
+                int index = decoder.dequeueOutputBuffer(info, 0);
+                if (index == DecoderBackend.INFO_TRY_AGAIN_LATER) {
+                    Thread.sleep(5);
+                } else if (index >= 0) {
+                    decoder.releaseOutputBuffer(index, true);
+                    if ((info.flags & DecoderBackend.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        break;
+                    }
+                    Render(rendered++);
+                }
+            }
+        } else {
+            final FrameQueue frames = new FrameQueue(depth);
+            Thread drain = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        DecoderBackend.BufferInfo info = new DecoderBackend.BufferInfo();
+                        FrameQueue.Frame frame = null;
+                        while (true) {
+                            if (frame == null && (frame = frames.acquire(10, TimeUnit.MILLISECONDS)) == null) {
+                                continue;
+                            }
+                            int index = decoder.dequeueOutputBuffer(info, 0);
+                            if (index == DecoderBackend.INFO_TRY_AGAIN_LATER) {
+                                Thread.sleep(2);
+                            } else if (index >= 0) {
+                                if ((info.flags & DecoderBackend.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                                    decoder.releaseOutputBuffer(index, false);
+                                    frames.endOfStream();
+                                    break;
+                                }
+                                frame.set(index, info, decoder.getOutputFormat(), 0, System.nanoTime());
+                                frames.put(frame);
+                                frame = null;
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            });
+            drain.start();
+            while (failure.get() == null) {
+                FrameQueue.Frame frame = frames.take(10, TimeUnit.MILLISECONDS);
+                if (frame == null) {
+                    if (frames.isEndOfStream()) {
+                        break;
+                    }
+                    continue;
+                }
+                decoder.releaseOutputBuffer(frame.index, true);
+                frames.release(frame);
+                Render(rendered++);
+            }
+            drain.join();
+        }
+        long elapsedNs = System.nanoTime() - startNs;
+        input.join();
+        decoder.release();
+        assertNull(failure.get());
+        assertEquals(count, rendered);
+        return count * 1e9 / elapsedNs;
+    }
+
+    //awaitNewImage(), drawImage() and the swap
+    private static void Render(int frame) throws InterruptedException {
+        long us = frame % SLOW_SWAP_INTERVAL == SLOW_SWAP_INTERVAL - 1 ? SLOW_SWAP_US : RENDER_US;
+        Thread.sleep(us / 1000);
+    }
+}
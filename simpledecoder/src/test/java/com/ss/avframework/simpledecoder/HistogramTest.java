@@ -0,0 +1,82 @@
+package com.ss.avframework.simpledecoder;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+
+    @Test
+    public void bucketsCoverEveryValueOnce() {
+        assertEquals(0, Histogram.bucketStart(0));
+        for (int i = 1; i < Histogram.BUCKET_COUNT; i++) {
+            assertEquals("bucket " + i, Histogram.bucketEnd(i - 1) + 1, Histogram.bucketStart(i));
+            assertEquals(i, Histogram.bucketIndex(Histogram.bucketStart(i)));
+            assertEquals(i, Histogram.bucketIndex(Histogram.bucketEnd(i)));
+        }
+        assertEquals(Histogram.BUCKET_COUNT - 1, Histogram.bucketIndex(Histogram.MAX_VALUE));
+    }
+
+    @Test
+    public void bucketsAreNarrow() {
+        for (int i = 64; i < Histogram.BUCKET_COUNT - 1; i++) {
+            long start = Histogram.bucketStart(i);
+            long width = Histogram.bucketEnd(i) - start + 1;
+            assertTrue("bucket " + i, width * 32 <= start);
+        }
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 50; i++) {
+            histogram.record(i);
+        }
+        DecoderStats.Distribution distribution = histogram.snapshot();
+        assertEquals(50, distribution.count);
+        assertEquals(1, distribution.min);
+        assertEquals(50, distribution.max);
+        assertEquals(25.5, distribution.mean(), 1e-9);
+        assertEquals(25, distribution.valueAtPercentile(50));
+        assertEquals(45, distribution.valueAtPercentile(90));
+        assertEquals(50, distribution.valueAtPercentile(100));
+        assertEquals(10, distribution.countAbove(40));
+        assertEquals(0, distribution.countAbove(50));
+        assertEquals(50, distribution.countAbove(-1));
+    }
+
+    @Test
+    public void percentilesWithinThreePercent() {
+        Random random = new Random(7);
+        long[] values = new long[100000];
+        Histogram histogram = new Histogram();
+        for (int i = 0; i < values.length; i++) {
+            //long tailed, like latencies
+            values[i] = (long) (1000 * Math.exp(random.nextGaussian() * 1.5));
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        DecoderStats.Distribution distribution = histogram.snapshot();
+        for (double percentile : new double[] {1, 10, 50, 90, 99, 99.9}) {
+            long expected = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            long actual = distribution.valueAtPercentile(percentile);
+            assertEquals("p" + percentile, expected, actual, expected * 0.03 + 1);
+        }
+        assertEquals(values[0], distribution.min);
+        assertEquals(values[values.length - 1], distribution.max);
+    }
+
+    @Test
+    public void outOfRangeValuesAreClamped() {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        DecoderStats.Distribution distribution = histogram.snapshot();
+        assertEquals(0, distribution.min);
+        assertEquals(Histogram.MAX_VALUE, distribution.max);
+        assertEquals(0, new Histogram().snapshot().valueAtPercentile(50));
+    }
+}
@@ -0,0 +1,164 @@
+package com.ss.avframework.simpledecoder;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LatenessControllerTest {
+    private static final LatenessPolicy POLICY = new LatenessPolicy(40000, 300000, 100000, 20000);
+
+    private final LatenessController mController = new LatenessController(POLICY);
+
+    @Test
+    public void framesOnTimeAreRendered() {
+        for (long latenessUs : new long[] {-50000, -1, 0, 15000, 40000}) {
+            assertEquals("late " + latenessUs, LatenessController.RENDER, mController.onFrame(0, latenessUs));
+        }
+        assertFalse(mController.isCatchingUp());
+        assertFalse(mController.isSkipping());
+    }
+
+    @Test
+    public void framesPastTheThresholdAreDropped() {
+        assertEquals(LatenessController.DROP, mController.onFrame(0, 40001));
+        assertEquals(LatenessController.DROP, mController.onFrame(33333, 90000));
+        assertEquals(LatenessController.RENDER, mController.onFrame(66666, 30000));
+        assertFalse(mController.isCatchingUp());
+    }
+
+    @Test
+    public void catchUpHysteresis() {
+        assertEquals(LatenessController.DROP, mController.onFrame(0, 120000));
+        assertTrue(mController.isCatchingUp());
+        //within the drop threshold, but not caught up yet
+        assertEquals(LatenessController.DROP, mController.onFrame(33333, 35000));
+        assertEquals(LatenessController.DROP, mController.onFrame(66666, 20000));
+        assertEquals(LatenessController.RENDER, mController.onFrame(99999, 19999));
+        assertFalse(mController.isCatchingUp());
+        //back to the drop threshold, until far behind again
+        assertEquals(LatenessController.RENDER, mController.onFrame(133333, 35000));
+        assertEquals(LatenessController.DROP, mController.onFrame(166666, 90000));
+        assertFalse(mController.isCatchingUp());
+        assertEquals(1, mController.getCatchUpCount());
+    }
+
+    @Test
+    public void catchingUpStillShowsAFrameNowAndThen() {
+        int rendered = 0;
+        for (int i = 0; i < 10 * (LatenessController.MAX_CONSECUTIVE_DROPS + 1); i++) {
+            if (mController.onFrame(i * 33333, 200000) == LatenessController.RENDER) {
+                rendered++;
+            }
+        }
+        assertEquals(10, rendered);
+        assertTrue(mController.isCatchingUp());
+    }
+
+    @Test
+    public void farBehindSkipsToTheNextKeyFrame() {
+        assertFalse(mController.shouldSkip(false, 0));
+        mController.onFrame(100000, 400000);
+        assertTrue(mController.isSkipping());
+        assertTrue(mController.shouldSkip(false, 500000));
+        assertTrue(mController.shouldSkip(false, 533333));
+        //decoded from the key frame on
+        assertFalse(mController.shouldSkip(true, 1000000));
+        assertFalse(mController.shouldSkip(false, 1033333));
+        assertFalse(mController.isSkipping());
+
+        //the frames queued before the key frame come out late too, but it has been skipped to already
+        mController.onFrame(133333, 400000);
+        assertFalse(mController.isSkipping());
+        //from the key frame on it's a new stall
+        mController.onFrame(1000000, 400000);
+        assertTrue(mController.isSkipping());
+    }
+
+    @Test
+    public void resetForgetsTheStall() {
+        mController.onFrame(0, 400000);
+        assertTrue(mController.isCatchingUp());
+        mController.reset();
+        assertFalse(mController.isCatchingUp());
+        assertFalse(mController.shouldSkip(false, 0));
+        assertEquals(LatenessController.RENDER, mController.onFrame(0, 0));
+    }
+
+    @Test
+    public void neverDrop() {
+        mController.setPolicy(LatenessPolicy.NEVER_DROP);
+        for (long latenessUs : new long[] {0, 100000, 10000000, Long.MAX_VALUE - 1}) {
+            assertEquals(LatenessController.RENDER, mController.onFrame(0, latenessUs));
+        }
+        assertFalse(mController.isSkipping());
+        assertFalse(mController.isCatchingUp());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void exitAboveEnter() {
+        new LatenessPolicy(40000, 500000, 20000, 100000);
+    }
+
+    //the video decoder stalls for longer than the skip threshold, holding up the demuxing and so the
+    //audio too, which syncs the clock back once it plays again
+    @Test(timeout = 30000)
+    public void decoderStall() throws Exception {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        File file = fixture.write(File.createTempFile("stall", ".mp4"));
+        try {
+            FakePlayer behind = Play(file, LatenessPolicy.NEVER_DROP);
+            DecoderStats.TrackStats video = behind.stats.snapshot(0, 0).video;
+            long latestUs = Latest(behind.videoLates());
+            System.out.println("decoder stall, never dropping: " + Counts(video) + ", the latest " + latestUs / 1000 + "ms late");
+            assertEquals(0, video.framesDropped);
+            assertEquals(0, video.framesSkipped);
+            assertEquals(fixture.videoSamples, video.framesRendered);
+            assertEquals(fixture.videoSamples, behind.videoPts().size());
+            //it decodes a few frames ahead at most, not half the stall
+            assertTrue(latestUs + "us", latestUs > STALL_US / 2);
+
+            FakePlayer caughtUp = Play(file, LatenessPolicy.DEFAULT);
+            video = caughtUp.stats.snapshot(0, 0).video;
+            System.out.println("decoder stall, " + LatenessPolicy.DEFAULT + ": " + Counts(video) + ", the latest "
+                    + Latest(caughtUp.videoLates()) / 1000 + "ms late");
+            assertTrue(Counts(video), video.framesSkipped > 0);
+            assertEquals(fixture.videoSamples, video.framesRendered + video.framesDropped + video.framesSkipped);
+            assertEquals(video.framesRendered, caughtUp.videoPts().size());
+            //none of the frames from the stalled one to the key frame skipped to, but one now and then while catching up
+            long behindKeyFrame = fixture.keyFrameInterval - STALL_FRAME;
+            assertTrue(Counts(video), video.framesDropped + video.framesSkipped
+                    >= behindKeyFrame * LatenessController.MAX_CONSECUTIVE_DROPS / (LatenessController.MAX_CONSECUTIVE_DROPS + 1));
+            //and playing on from there
+            assertTrue(Counts(video), video.framesRendered >= fixture.keyFrameInterval);
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static final long STALL_FRAME = 10;
+    private static final long STALL_US = 1500000;      // three times the default skip threshold
+
+    private static FakePlayer Play(File file, LatenessPolicy policy) throws Exception {
+        FakePlayer player = new FakePlayer(file, null, policy);
+        player.factory.videoStallsUs.put(STALL_FRAME, STALL_US);
+        player.start();
+        player.join();
+        assertNull(player.failure.get());
+        return player;
+    }
+
+    private static long Latest(List<long[]> lates) {
+        long latestUs = 0;
+        for (long[] late : lates) {
+            latestUs = Math.max(latestUs, late[1]);
+        }
+        return latestUs;
+    }
+
+    private static String Counts(DecoderStats.TrackStats video) {
+        return video.framesRendered + " rendered, " + video.framesDropped + " dropped, " + video.framesSkipped + " skipped";
+    }
+}
@@ -0,0 +1,182 @@
+package com.ss.avframework.simpledecoder;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class LoopingMediaSourceTest {
+    private File mFile;
+    private MediaSource mSource;
+
+    @After
+    public void tearDown() {
+        if (mSource != null) {
+            mSource.release();
+        }
+        if (mFile != null) {
+            mFile.delete();
+        }
+    }
+
+    //the frames around the loop point, in presentation order and as timely as the rest
+    @Test
+    public void noGapAtTheLoopPoint() throws Exception {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        fixture.bFrames = true;
+        fixture.audioSamples = 129;     // a bit shorter than the video
+        LoopingMediaSource source = open(fixture, -1);
+        long periodUs = source.getLoopPeriodUs();
+        assertEquals(3000000, periodUs);
+        long frameUs = fixture.frameDuration * 1000000L / Mp4Fixtures.VIDEO_TIMESCALE;
+
+        ArrayList<Long> videoPts = new ArrayList<Long>();
+        long lastAudioPts = -1;
+        long maxReadNs = 0;
+        long wrapReadNs = 0;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+        int samples = 3 * (fixture.videoSamples + fixture.audioSamples);
+        for (int i = 0; i < samples; i++) {
+            int loops = source.getLoopCount();
+            long start = System.nanoTime();
+            assertTrue(source.readSampleData(buffer, 0) > 0);
+            long readNs = System.nanoTime() - start;
+            if (source.getLoopCount() != loops) {
+                wrapReadNs = Math.max(wrapReadNs, readNs);
+            } else {
+                maxReadNs = Math.max(maxReadNs, readNs);
+            }
+            long ptsUs = source.getSampleTime();
+            if (source.getSampleTrackIndex() == 0) {
+                videoPts.add(ptsUs);
+            } else {
+                assertTrue("audio went back from " + lastAudioPts + " to " + ptsUs, ptsUs > lastAudioPts);
+                lastAudioPts = ptsUs;
+            }
+            assertTrue(source.advance());
+        }
+        assertEquals(2, source.getLoopCount());
+        System.out.println("sample read (us): longest " + maxReadNs / 1000 + ", at the loop point " + wrapReadNs / 1000);
+        assertTrue(wrapReadNs / 1000 < frameUs);
+
+        Collections.sort(videoPts);
+        assertEquals(3 * fixture.videoSamples, videoPts.size());
+        assertEquals(0, (long) videoPts.get(0));
+        for (int i = 1; i < videoPts.size(); i++) {
+            long gapUs = videoPts.get(i) - videoPts.get(i - 1);
+            assertTrue("gap of " + gapUs + "us at " + videoPts.get(i), gapUs > 0 && gapUs <= frameUs + 1);
+        }
+        assertEquals(2 * periodUs, (long) videoPts.get(2 * fixture.videoSamples));
+    }
+
+    //the shorter track waits for the longer one, so they stay in sync on every pass
+    @Test
+    public void loopPeriodIsTheLongestTrack() throws Exception {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        LoopingMediaSource source = open(fixture, -1);
+        long audioDurationUs = fixture.audioSamples * 1024 * 1000000L / Mp4Fixtures.AUDIO_TIMESCALE;
+        assertEquals(audioDurationUs, source.getLoopPeriodUs());
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+        readUntilTheLoopPoint(source, buffer);
+        assertEquals(0, source.getSampleTrackIndex());
+        assertEquals(audioDurationUs, source.getSampleTime());
+    }
+
+    @Test
+    public void unknownDurationIsMeasured() throws Exception {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        LoopingMediaSource source = open(fixture, 0);
+        assertEquals(0, source.getLoopPeriodUs());
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+        for (int i = 0; i < fixture.videoSamples + fixture.audioSamples; i++) {
+            assertTrue(source.readSampleData(buffer, 0) > 0);
+            source.advance();
+        }
+        long audioDurationUs = fixture.audioSamples * 1024 * 1000000L / Mp4Fixtures.AUDIO_TIMESCALE;
+        assertEquals(audioDurationUs, source.getLoopPeriodUs(), 1);
+        assertTrue(source.readSampleData(buffer, 0) > 0);
+        assertEquals(1, source.getLoopCount());
+    }
+
+    @Test
+    public void seekingStartsOverFromFileTimes() throws Exception {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        LoopingMediaSource source = open(fixture, -1);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+        readUntilTheLoopPoint(source, buffer);
+        assertEquals(source.getLoopPeriodUs(), source.getSampleTime());
+
+        source.seekTo(1000000, Mp4Demuxer.SEEK_TO_PREVIOUS_SYNC);
+        long firstVideoPts = -1;
+        while (firstVideoPts < 0) {
+            assertTrue(source.readSampleData(buffer, 0) > 0);
+            assertTrue(source.getSampleTime() < source.getLoopPeriodUs());
+            if (source.getSampleTrackIndex() == 0) {
+                firstVideoPts = source.getSampleTime();
+            }
+            source.advance();
+        }
+        assertEquals(1000000, firstVideoPts);
+        assertEquals(1, source.getLoopCount());
+    }
+
+    //a sample of a mapped file is kept where the first pass read it from, a data source keeps none
+    @Test
+    public void keepsTheSamplesOfAMappedFile() throws Exception {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        LoopingMediaSource source = open(fixture, -1);
+        long offset = source.getSampleOffset();
+        int size = source.getSampleSize();
+        assertTrue(offset >= 0);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+        readUntilTheLoopPoint(source, buffer);
+        assertEquals(offset, source.getSampleOffset());
+        byte[] read = new byte[buffer.remaining()];
+        buffer.get(read);
+        byte[] kept = new byte[source.readSampleAt(source.getSampleTrackIndex(), offset, size, buffer, 0)];
+        buffer.get(kept);
+        assertArrayEquals(read, kept);
+
+        LoopingMediaSource unmapped = new LoopingMediaSource(new Mp4MediaSource(new Mp4Demuxer(new FileDataSource(mFile))), 0);
+        unmapped.selectTrack(0);
+        assertEquals(-1, unmapped.getSampleOffset());
+        assertEquals(fixture.videoSampleSize(0), unmapped.readSampleData(buffer, 0));
+        unmapped.release();
+    }
+
+    //stops at the first sample of the second pass
+    private static void readUntilTheLoopPoint(LoopingMediaSource source, ByteBuffer buffer) {
+        while (true) {
+            assertTrue(source.readSampleData(buffer, 0) > 0);
+            if (source.getLoopCount() > 0) {
+                return;
+            }
+            source.advance();
+        }
+    }
+
+    //durationUs < 0: the longest track of the file
+    private LoopingMediaSource open(Mp4Fixtures fixture, long durationUs) throws Exception {
+        mFile = fixture.write(File.createTempFile("loop", ".mp4"));
+        Mp4Demuxer demuxer = new Mp4Demuxer(mFile.getPath());
+        if (durationUs < 0) {
+            durationUs = 0;
+            for (int i = 0; i < demuxer.getTrackCount(); i++) {
+                durationUs = Math.max(durationUs, demuxer.getTrack(i).durationUs);
+            }
+        }
+        for (int i = 0; i < demuxer.getTrackCount(); i++) {
+            demuxer.selectTrack(i);
+        }
+        LoopingMediaSource source = new LoopingMediaSource(new Mp4MediaSource(demuxer), durationUs);
+        mSource = source;
+        return source;
+    }
+}
@@ -0,0 +1,189 @@
+package com.ss.avframework.simpledecoder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MediaClockTest {
+
+    //time moves only when the test says so
+    private static final class SimulatedTime implements MediaClock.TimeSource {
+        long nowNs = 1000000000000L;
+
+        @Override
+        public long nanoTime() {
+            return nowNs;
+        }
+
+        void advanceUs(long us) {
+            nowNs += us * 1000;
+        }
+    }
+
+    private final SimulatedTime mTime = new SimulatedTime();
+    private final MediaClock mClock = new MediaClock(mTime);
+
+    @Test
+    public void runsFromTheAnchor() {
+        assertFalse(mClock.isAnchored());
+        assertEquals(Long.MIN_VALUE, mClock.positionUs());
+        assertEquals(Long.MAX_VALUE, mClock.timeUntilUs(0));
+
+        mClock.anchor(5000000);
+        mTime.advanceUs(40000);
+        assertEquals(5040000, mClock.positionUs());
+        assertEquals(26666, mClock.timeUntilUs(5066666));
+        assertEquals(-40000, mClock.timeUntilUs(5000000));
+    }
+
+    @Test
+    public void tryAnchorOnlyStartsAStoppedClock() {
+        assertTrue(mClock.tryAnchor(1000));
+        mTime.advanceUs(500);
+        assertFalse(mClock.tryAnchor(99999));
+        assertEquals(1500, mClock.positionUs());
+
+        mClock.reset();
+        assertFalse(mClock.isAnchored());
+        assertTrue(mClock.tryAnchor(99999));
+        assertEquals(99999, mClock.positionUs());
+    }
+
+    @Test
+    public void nanosecondPrecision() {
+        mClock.anchor(0);
+        mTime.nowNs += 1500;
+        assertEquals(1, mClock.positionUs());
+        mTime.nowNs += 500;
+        assertEquals(2, mClock.positionUs());
+    }
+
+    @Test
+    public void pauseFreezes() {
+        mClock.anchor(0);
+        mTime.advanceUs(100000);
+        mClock.pause();
+        assertTrue(mClock.isPaused());
+        mTime.advanceUs(5000000);
+        assertEquals(100000, mClock.positionUs());
+        //the frames after the pause point wait, the ones before are late
+        assertEquals(Long.MAX_VALUE, mClock.timeUntilUs(133333));
+        assertEquals(-33333, mClock.timeUntilUs(66667));
+
+        mClock.resume();
+        mTime.advanceUs(33333);
+        assertEquals(133333, mClock.positionUs());
+        assertEquals(0, mClock.timeUntilUs(133333));
+    }
+
+    @Test
+    public void anchorWhilePaused() {
+        mClock.pause();
+        mClock.anchor(7000000); //e.g. a seek while paused shows its frame
+        mTime.advanceUs(1000000);
+        assertEquals(7000000, mClock.positionUs());
+        assertEquals(0, mClock.timeUntilUs(7000000));
+        mClock.resume();
+        mTime.advanceUs(1000);
+        assertEquals(7001000, mClock.positionUs());
+    }
+
+    @Test
+    public void rateScalesFromTheRateChangeOn() {
+        mClock.anchor(0);
+        mTime.advanceUs(1000000);
+        mClock.setRate(2.0);
+        assertEquals(1000000, mClock.positionUs());
+        mTime.advanceUs(1000000);
+        assertEquals(3000000, mClock.positionUs());
+        //media time passes twice as fast, so a frame 100ms ahead is due in 50ms
+        assertEquals(50000, mClock.timeUntilUs(3100000));
+
+        mClock.setRate(0.5);
+        mTime.advanceUs(1000000);
+        assertEquals(3500000, mClock.positionUs());
+        assertEquals(200000, mClock.timeUntilUs(3600000));
+    }
+
+    @Test
+    public void rateChangeWhilePaused() {
+        mClock.anchor(0);
+        mTime.advanceUs(1000000);
+        mClock.pause();
+        mClock.setRate(2.0);
+        mTime.advanceUs(1000000);
+        mClock.resume();
+        mTime.advanceUs(1000000);
+        assertEquals(3000000, mClock.positionUs());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rateMustBePositive() {
+        mClock.setRate(0);
+    }
+
+    @Test
+    public void syncWithinToleranceLeavesTheClock() {
+        mClock.anchor(0);
+        mTime.advanceUs(100000);
+        assertEquals(1500, mClock.sync(101500));
+        assertEquals(100000, mClock.positionUs());
+    }
+
+    @Test
+    public void syncSlewsOutSmallDrift() {
+        mClock.anchor(0);
+        //the audio plays 1% slow, 100ms behind after 10s
+        long driftUs = 0;
+        for (int frame = 1; frame <= 500; frame++) {
+            mTime.advanceUs(20000);
+            driftUs = mClock.sync(frame * 19800);
+            //never a jump, only fractions of the drift
+            assertTrue("frame " + frame + " drift " + driftUs, Math.abs(driftUs) < MediaClock.SNAP_THRESHOLD_US);
+        }
+        //follows the audio closely, lagging by about the drift per frame times the divisor
+        assertTrue("drift " + driftUs, Math.abs(driftUs) <= 200 * MediaClock.SLEW_DIVISOR + MediaClock.DRIFT_TOLERANCE_US);
+        assertEquals(500 * 19800, mClock.positionUs(), 200 * MediaClock.SLEW_DIVISOR + MediaClock.DRIFT_TOLERANCE_US);
+    }
+
+    @Test
+    public void syncSnapsAfterAStall() {
+        mClock.anchor(0);
+        mTime.advanceUs(1000000);
+        //the audio stalled for half a second
+        assertEquals(-500000, mClock.sync(500000));
+        assertEquals(500000, mClock.positionUs());
+        mTime.advanceUs(10000);
+        assertEquals(510000, mClock.positionUs());
+    }
+
+    @Test
+    public void syncAnchorsAStoppedClock() {
+        assertEquals(0, mClock.sync(42000));
+        assertTrue(mClock.isAnchored());
+        assertEquals(42000, mClock.positionUs());
+    }
+
+    //the video sleeping against a clock the audio keeps in sync: no frame shown early, none late by more than the drift
+    @Test
+    public void videoFollowsTheAudio() {
+        mClock.anchor(0);
+        long audioPtsUs = 0;
+        long nextVideoPtsUs = 0;
+        for (int step = 0; step < 3000; step++) {
+            mTime.advanceUs(1000);
+            //the audio runs 0.5% fast
+            if (step % 20 == 19) {
+                audioPtsUs += 20100;
+                mClock.sync(audioPtsUs);
+            }
+            long untilUs = mClock.timeUntilUs(nextVideoPtsUs);
+            if (untilUs <= 0) {
+                assertTrue("late " + untilUs, untilUs > -5000);
+                nextVideoPtsUs += 33333;
+            }
+        }
+        //3s of real time played about 3.015s of media, on the video too
+        assertEquals(audioPtsUs, nextVideoPtsUs, 40000);
+    }
+}
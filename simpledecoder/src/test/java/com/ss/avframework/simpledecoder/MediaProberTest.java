@@ -0,0 +1,185 @@
+package com.ss.avframework.simpledecoder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.*;
+
+public class MediaProberTest {
+    private File mDir;
+    private MediaProber mProber;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("probe", "");
+        mDir.delete();
+        mDir.mkdirs();
+        mProber = new MediaProber(100, MediaProber.MP4);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void probeReportsEveryTrack() throws Exception {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        fixture.width = 1920;
+        fixture.height = 1088;      // coded size in the sample entry, the SPS crops it
+        fixture.sps = Mp4Fixtures.sps(1920, 1080);
+        File file = write(fixture, "clip.mp4");
+
+        MediaInfo info = mProber.probe(file.getPath());
+        assertNotNull(info);
+        assertEquals(file.getPath(), info.path);
+        assertEquals(file.length(), info.fileSize);
+        assertEquals(2, info.tracks.size());
+        assertEquals(130 * 1024 * 1000000L / 44100, info.durationUs); // the audio track is a bit longer
+        assertEquals(file.length() * 8 * 1000000L / info.durationUs, info.bitrate);
+
+        MediaInfo.TrackInfo video = info.getVideoTrack(null);
+        assertSame(video, info.getVideoTrack(Mp4Track.MIME_AVC));
+        assertNull(info.getVideoTrack(Mp4Track.MIME_HEVC));
+        assertEquals(0, video.index);
+        assertEquals(1920, video.width);
+        assertEquals(1080, video.height);
+        assertEquals(30f, video.frameRate, 0.01f);
+        assertEquals(3000000, video.durationUs);
+        assertEquals(90, video.sampleCount);
+        assertEquals(3, video.keyFrameCount);
+        long videoBytes = 0;
+        for (int i = 0; i < fixture.videoSamples; i++) {
+            videoBytes += fixture.videoSampleSize(i);
+        }
+        assertEquals(videoBytes * 8 / 3, video.bitrate);
+
+        MediaInfo.TrackInfo audio = info.getAudioTrack(Mp4Track.MIME_AAC);
+        assertEquals(1, audio.index);
+        assertEquals(44100, audio.sampleRate);
+        assertEquals(2, audio.channelCount);
+        assertEquals(130, audio.keyFrameCount);
+        assertEquals(0, audio.width);
+
+        try {
+            info.tracks.clear();
+            fail("tracks should be immutable");
+        } catch (UnsupportedOperationException expected) {
+        }
+    }
+
+    @Test
+    public void spsSizeAfterCropping() {
+        int[][] sizes = {{176, 144}, {640, 360}, {1280, 720}, {1920, 1080}, {1080, 1920}, {720, 406}};
+        for (int[] size : sizes) {
+            byte[] sps = Mp4Fixtures.sps(size[0], size[1]);
+            assertArrayEquals(size, AvcUtils.parseSpsSize(sps));
+            byte[] withStartCode = new byte[sps.length + 4];
+            withStartCode[3] = 1;
+            System.arraycopy(sps, 0, withStartCode, 4, sps.length);
+            assertArrayEquals(size, AvcUtils.parseSpsSize(withStartCode));
+        }
+        assertNull(AvcUtils.parseSpsSize(Mp4Fixtures.PPS));
+        assertNull(AvcUtils.parseSpsSize(new byte[]{0x67, 0x42}));
+    }
+
+    @Test
+    public void repeatedProbesHitTheCache() throws Exception {
+        File file = write(Mp4Fixtures.create(), "clip.mp4");
+        MediaInfo first = mProber.probe(file.getPath());
+        MediaInfo second = mProber.probe(file.getPath());
+        assertSame(first, second);
+        assertEquals(1, mProber.misses());
+        assertEquals(1, mProber.hits());
+    }
+
+    @Test
+    public void changedFileIsProbedAgain() throws Exception {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        File file = write(fixture, "clip.mp4");
+        MediaInfo first = mProber.probe(file.getPath());
+
+        fixture.videoSamples = 60;
+        fixture.write(file);
+        file.setLastModified(file.lastModified() + 2000);
+        MediaInfo second = mProber.probe(file.getPath());
+        assertNotSame(first, second);
+        assertEquals(60, second.getVideoTrack(null).sampleCount);
+        assertEquals(2, mProber.misses());
+    }
+
+    @Test
+    public void cacheIsBounded() throws Exception {
+        MediaProber prober = new MediaProber(2, MediaProber.MP4);
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        File[] files = {write(fixture, "a.mp4"), write(fixture, "b.mp4"), write(fixture, "c.mp4")};
+        prober.probe(files[0].getPath());
+        prober.probe(files[1].getPath());
+        prober.probe(files[0].getPath()); //a is now more recent than b
+        prober.probe(files[2].getPath());
+        assertEquals(2, prober.size());
+        assertEquals(3, prober.misses());
+
+        prober.probe(files[0].getPath());
+        assertEquals(3, prober.misses());
+        prober.probe(files[1].getPath());
+        assertEquals(4, prober.misses());
+    }
+
+    @Test
+    public void unreadableFilesAreRemembered() throws Exception {
+        File text = new File(mDir, "notes.mp4");
+        FileOutputStream out = new FileOutputStream(text);
+        out.write("not a media file".getBytes("UTF-8"));
+        out.close();
+        assertNull(mProber.probe(text.getPath()));
+        assertNull(mProber.probe(text.getPath()));
+        assertEquals(1, mProber.misses());
+        assertEquals(1, mProber.hits());
+
+        assertNull(mProber.probe(new File(mDir, "missing.mp4").getPath()));
+        assertEquals(1, mProber.size());
+    }
+
+    //a gallery screen probing 200 clips, then scrolling back over them
+    @Test(timeout = 60000)
+    public void galleryScroll() throws Exception {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        fixture.videoSamples = 900;
+        fixture.audioSamples = 1300;
+        int count = 200;
+        String[] paths = new String[count];
+        for (int i = 0; i < count; i++) {
+            paths[i] = write(fixture, "clip" + i + ".mp4").getPath();
+        }
+        MediaProber prober = new MediaProber(count, MediaProber.MP4);
+        long start = System.nanoTime();
+        for (String path : paths) {
+            assertNotNull(prober.probe(path));
+        }
+        long coldNs = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (String path : paths) {
+            assertNotNull(prober.probe(path));
+        }
+        long cachedNs = System.nanoTime() - start;
+        System.out.println("probe " + count + " files (us per file): cold " + coldNs / count / 1000
+                + ", cached " + cachedNs / count / 1000);
+        assertEquals(count, prober.hits());
+        assertTrue(cachedNs < coldNs);
+    }
+
+    private File write(Mp4Fixtures fixture, String name) throws Exception {
+        return fixture.write(new File(mDir, name));
+    }
+}
@@ -0,0 +1,328 @@
+package com.ss.avframework.simpledecoder;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class Mp4DemuxerTest {
+    private final ArrayList<File> mFiles = new ArrayList<File>();
+    private Mp4Demuxer mDemuxer;
+
+    @After
+    public void tearDown() {
+        if (mDemuxer != null) {
+            mDemuxer.release();
+        }
+        for (File file : mFiles) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void parsesTrackDescriptions() throws Exception {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        mDemuxer = new Mp4Demuxer(write(fixture).getPath());
+        assertEquals(2, mDemuxer.getTrackCount());
+
+        Mp4Track video = mDemuxer.getTrack(0);
+        assertTrue(video.isVideo());
+        assertEquals("avc1", video.codec);
+        assertEquals(Mp4Track.MIME_AVC, video.mime);
+        assertEquals(640, video.width);
+        assertEquals(360, video.height);
+        assertEquals(4, video.nalLengthSize);
+        assertEquals(3000000, video.durationUs);
+        assertArrayEquals(annexB(Mp4Fixtures.SPS), video.csd[0]);
+        assertArrayEquals(annexB(Mp4Fixtures.PPS), video.csd[1]);
+        assertEquals(90, video.sampleCount);
+        assertEquals(3, video.syncSampleCount());
+        assertEquals(fixture.videoSampleSize(60), video.maxSampleSize);
+
+        Mp4Track audio = mDemuxer.getTrack(1);
+        assertTrue(audio.isAudio());
+        assertEquals(Mp4Track.MIME_AAC, audio.mime);
+        assertEquals(44100, audio.sampleRate);
+        assertEquals(2, audio.channelCount);
+        assertArrayEquals(Mp4Fixtures.AUDIO_SPECIFIC_CONFIG, audio.csd[0]);
+        assertEquals(130, audio.sampleCount);
+        assertEquals(130, audio.syncSampleCount());
+    }
+
+    @Test
+    public void samplesComeOutInFileOrder() throws Exception {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        fixture.bFrames = true;
+        checkAllSamples(fixture);
+    }
+
+    @Test
+    public void moovBeforeMdat() throws Exception {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        fixture.moovFirst = true;
+        fixture.samplesPerChunk = 1;
+        checkAllSamples(fixture);
+    }
+
+    @Test
+    public void compositionOffsetsAndEditList() throws Exception {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        fixture.bFrames = true;
+        mDemuxer = new Mp4Demuxer(write(fixture).getPath());
+        Mp4Track video = mDemuxer.getTrack(0);
+        //decode order I P B B, presentation order I B B P, starting at 0 after the edit list
+        assertEquals(0, video.getPtsUs(0));
+        assertEquals(100000, video.getPtsUs(1));
+        assertEquals(33333, video.getPtsUs(2));
+        assertEquals(66666, video.getPtsUs(3));
+        assertEquals(-33333, video.getDtsUs(0));
+        long[] pts = new long[video.sampleCount];
+        for (int i = 0; i < pts.length; i++) {
+            pts[i] = video.getPtsUs(i);
+        }
+        Arrays.sort(pts);
+        for (int i = 0; i < pts.length; i++) {
+            assertEquals(i * 3000 * 1000000L / 90000, pts[i]);
+        }
+    }
+
+    @Test
+    public void selectingOneTrack() throws Exception {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        mDemuxer = new Mp4Demuxer(write(fixture).getPath());
+        mDemuxer.selectTrack(1);
+        int count = 0;
+        while (mDemuxer.getSampleTrackIndex() >= 0) {
+            assertEquals(1, mDemuxer.getSampleTrackIndex());
+            assertEquals(count, mDemuxer.getSampleIndex());
+            assertEquals(fixture.audioPtsUs(count), mDemuxer.getSampleTime());
+            assertEquals(Mp4Demuxer.SAMPLE_FLAG_SYNC, mDemuxer.getSampleFlags());
+            count++;
+            mDemuxer.advance();
+        }
+        assertEquals(fixture.audioSamples, count);
+        assertFalse(mDemuxer.advance());
+        assertNull(mDemuxer.getSampleData());
+        assertEquals(-1, mDemuxer.getSampleTime());
+    }
+
+    @Test
+    public void seekToSyncSamples() throws Exception {
+        mDemuxer = new Mp4Demuxer(write(Mp4Fixtures.create()).getPath());
+        mDemuxer.selectTrack(0);
+
+        mDemuxer.seekTo(1500000, Mp4Demuxer.SEEK_TO_PREVIOUS_SYNC);
+        assertEquals(30, mDemuxer.getSampleIndex());
+        assertEquals(1000000, mDemuxer.getSampleTime());
+
+        mDemuxer.seekTo(1500000, Mp4Demuxer.SEEK_TO_NEXT_SYNC);
+        assertEquals(60, mDemuxer.getSampleIndex());
+
+        mDemuxer.seekTo(1400000, Mp4Demuxer.SEEK_TO_CLOSEST_SYNC);
+        assertEquals(30, mDemuxer.getSampleIndex());
+        mDemuxer.seekTo(1600000, Mp4Demuxer.SEEK_TO_CLOSEST_SYNC);
+        assertEquals(60, mDemuxer.getSampleIndex());
+
+        mDemuxer.seekTo(2500000, Mp4Demuxer.SEEK_TO_NEXT_SYNC);
+        assertEquals(-1, mDemuxer.getSampleTrackIndex());
+
+        mDemuxer.seekTo(0, Mp4Demuxer.SEEK_TO_PREVIOUS_SYNC);
+        assertEquals(0, mDemuxer.getSampleIndex());
+        assertEquals(Mp4Demuxer.SAMPLE_FLAG_SYNC, mDemuxer.getSampleFlags());
+        mDemuxer.advance();
+        assertEquals(0, mDemuxer.getSampleFlags());
+    }
+
+    @Test
+    public void readSampleDataCopiesLikeMediaExtractor() throws Exception {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        mDemuxer = new Mp4Demuxer(write(fixture).getPath());
+        mDemuxer.selectTrack(0);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(8192);
+        assertEquals(fixture.videoSampleSize(0), mDemuxer.readSampleData(buffer, 16));
+        assertEquals(16, buffer.position());
+        assertEquals(16 + fixture.videoSampleSize(0), buffer.limit());
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        assertArrayEquals(fixture.videoSample(0), bytes);
+
+        try {
+            mDemuxer.readSampleData(ByteBuffer.allocate(100), 0);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void keptSamplesReadLaterAreTheOnesCopiedOut() throws Exception {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        File file = write(fixture);
+        Mp4MediaSource source = new Mp4MediaSource(new Mp4Demuxer(file.getPath()));
+        source.selectTrack(0);
+        source.selectTrack(1);
+        ArrayList<long[]> kept = new ArrayList<long[]>();    // {track, offset, size}
+        ArrayList<byte[]> copied = new ArrayList<byte[]>();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(8192);
+        while (source.getSampleOffset() >= 0) {
+            kept.add(new long[]{source.getSampleTrackIndex(), source.getSampleOffset(), source.getSampleSize()});
+            byte[] bytes = new byte[source.readSampleData(buffer, 0)];
+            buffer.get(bytes);
+            copied.add(bytes);
+            source.advance();
+        }
+        assertEquals(fixture.videoSamples + fixture.audioSamples, kept.size());
+        assertEquals(-1, source.readSampleData(buffer, 0));
+        for (int i = kept.size() - 1; i >= 0; i--) { //long after, in any order
+            long[] sample = kept.get(i);
+            int size = source.readSampleAt((int) sample[0], sample[1], (int) sample[2], buffer, 8);
+            assertEquals(8, buffer.position());
+            byte[] bytes = new byte[size];
+            buffer.get(bytes);
+            assertArrayEquals(copied.get(i), bytes);
+        }
+        source.release();
+
+        //a data source keeps nothing, the samples are read as they are asked for
+        source = new Mp4MediaSource(new Mp4Demuxer(new FileDataSource(file)));
+        source.selectTrack(0);
+        assertEquals(-1, source.getSampleOffset());
+        assertEquals(fixture.videoSampleSize(0), source.readSampleData(buffer, 0));
+        source.release();
+    }
+
+    @Test
+    public void convertsSamplesToAnnexB() throws Exception {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        byte[] sample = fixture.videoSample(3);
+        ByteBuffer dst = ByteBuffer.allocate(AvcUtils.maxAnnexBSize(sample.length, 4));
+        assertEquals(sample.length, AvcUtils.copyAsAnnexB(ByteBuffer.wrap(sample), dst, 4));
+        byte[] expected = sample.clone();
+        int firstNal = sample.length / 3;
+        expected[0] = expected[1] = expected[2] = 0;
+        expected[3] = 1;
+        expected[firstNal] = expected[firstNal + 1] = expected[firstNal + 2] = 0;
+        expected[firstNal + 3] = 1;
+        assertArrayEquals(expected, Arrays.copyOf(dst.array(), dst.position()));
+
+        //2-byte length prefixes grow by two bytes per NAL unit
+        byte[] shortPrefixed = {0, 2, 0x65, 0x11, 0, 1, 0x41};
+        dst = ByteBuffer.allocate(AvcUtils.maxAnnexBSize(shortPrefixed.length, 2));
+        assertEquals(11, AvcUtils.copyAsAnnexB(ByteBuffer.wrap(shortPrefixed), dst, 2));
+        assertArrayEquals(new byte[]{0, 0, 0, 1, 0x65, 0x11, 0, 0, 0, 1, 0x41}, Arrays.copyOf(dst.array(), 11));
+    }
+
+    @Test
+    public void rejectsTruncatedFiles() throws Exception {
+        File file = write(Mp4Fixtures.create());
+        java.io.RandomAccessFile raf = new java.io.RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 200); //cut into the audio trak at the end
+        raf.close();
+        try {
+            mDemuxer = new Mp4Demuxer(file.getPath());
+            fail("expected IOException");
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * Runs every MP4 file in the directory named by the {@code mp4.samples.dir} system
+     * property through the demuxer and checks the sample tables are consistent.
+     */
+    @Test
+    public void realFiles() throws Exception {
+        String dir = System.getProperty("mp4.samples.dir");
+        Assume.assumeTrue(dir != null);
+        File[] files = new File(dir).listFiles();
+        assertNotNull(files);
+        for (File file : files) {
+            String name = file.getName().toLowerCase();
+            if (!name.endsWith(".mp4") && !name.endsWith(".m4a") && !name.endsWith(".mov")) {
+                continue;
+            }
+            Mp4Demuxer demuxer = new Mp4Demuxer(file.getPath());
+            try {
+                int total = 0;
+                for (int i = 0; i < demuxer.getTrackCount(); i++) {
+                    demuxer.selectTrack(i);
+                    total += demuxer.getTrack(i).sampleCount;
+                }
+                int[] next = new int[demuxer.getTrackCount()];
+                long lastOffset = -1;
+                int count = 0;
+                ByteBuffer data;
+                while ((data = demuxer.getSampleData()) != null) {
+                    int track = demuxer.getSampleTrackIndex();
+                    assertEquals(file.getName(), next[track]++, demuxer.getSampleIndex());
+                    long offset = demuxer.getTrack(track).getOffset(demuxer.getSampleIndex());
+                    assertTrue(file.getName(), offset >= lastOffset);
+                    assertTrue(file.getName(), offset + data.remaining() <= file.length());
+                    lastOffset = offset;
+                    count++;
+                    demuxer.advance();
+                }
+                assertEquals(file.getName(), total, count);
+                System.out.println(file.getName() + ": " + demuxer.getTrackCount() + " tracks, " + count + " samples");
+            } finally {
+                demuxer.release();
+            }
+        }
+    }
+
+    private void checkAllSamples(Mp4Fixtures fixture) throws Exception {
+        mDemuxer = new Mp4Demuxer(write(fixture).getPath());
+        mDemuxer.selectTrack(0);
+        mDemuxer.selectTrack(1);
+        int video = 0;
+        int audio = 0;
+        long lastOffset = -1;
+        ByteBuffer previousView = null;
+        while (mDemuxer.getSampleTrackIndex() >= 0) {
+            ByteBuffer data = mDemuxer.getSampleData();
+            assertTrue(data.isDirect());
+            if (previousView != null) {
+                assertSame(previousView, data); //zero-copy view, reused
+            }
+            previousView = data;
+            byte[] bytes = new byte[data.remaining()];
+            data.duplicate().get(bytes);
+            long offset;
+            if (mDemuxer.getSampleTrackIndex() == 0) {
+                assertEquals(video, mDemuxer.getSampleIndex());
+                assertEquals(fixture.videoPtsUs(video), mDemuxer.getSampleTime());
+                assertEquals(fixture.isKeyFrame(video) ? Mp4Demuxer.SAMPLE_FLAG_SYNC : 0, mDemuxer.getSampleFlags());
+                assertArrayEquals(fixture.videoSample(video), bytes);
+                offset = fixture.videoOffsets[video++];
+            } else {
+                assertEquals(audio, mDemuxer.getSampleIndex());
+                assertEquals(fixture.audioPtsUs(audio), mDemuxer.getSampleTime());
+                assertArrayEquals(fixture.audioSample(audio), bytes);
+                offset = fixture.audioOffsets[audio++];
+            }
+            assertTrue(offset > lastOffset);
+            lastOffset = offset;
+            mDemuxer.advance();
+        }
+        assertEquals(fixture.videoSamples, video);
+        assertEquals(fixture.audioSamples, audio);
+    }
+
+    private File write(Mp4Fixtures fixture) throws IOException {
+        File file = File.createTempFile("fixture", ".mp4");
+        mFiles.add(file);
+        return fixture.write(file);
+    }
+
+    private static byte[] annexB(byte[] nal) {
+        byte[] out = new byte[nal.length + 4];
+        out[3] = 1;
+        System.arraycopy(nal, 0, out, 4, nal.length);
+        return out;
+    }
+}
@@ -0,0 +1,540 @@
+package com.ss.avframework.simpledecoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Writes small but well-formed MP4 files for the JVM tests: an H.264 track with
+ * length-prefixed NAL units and optional B-frame reordering, and an AAC track.  The
+ * payload bytes are derived from the track and sample number so tests can check that
+ * the demuxer hands out the right bytes.
+ */
+class Mp4Fixtures {
+    static final int VIDEO_TIMESCALE = 90000;
+    static final int AUDIO_TIMESCALE = 44100;
+    static final int AUDIO_SAMPLE_DURATION = 1024;
+    static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1e, (byte) 0xda, 0x02, (byte) 0x80, (byte) 0xbf, (byte) 0xe5};
+    static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+    static final byte[] AUDIO_SPECIFIC_CONFIG = {0x12, 0x10};
+    static final int SYNC_SAMPLE_FLAGS = 0x02000000;        // depends on no other sample
+    static final int NON_SYNC_SAMPLE_FLAGS = 0x01010000;    // depends on others, sample_is_non_sync_sample
+
+    int width = 640;
+    int height = 360;
+    int videoSamples = 90;
+    int frameDuration = 3000;           // 30 fps at 90 kHz
+    int keyFrameInterval = 30;
+    int videoSampleScale = 1;           // the video sample sizes times it, for a higher bitrate
+    boolean bFrames = false;            // IPBB... with a ctts box and an edit list
+    int audioSamples = 130;
+    int channelCount = 2;
+    boolean moovFirst = false;
+    int samplesPerChunk = 5;
+    byte[] sps = SPS;
+
+    int fragmentFrames = 30;            // video samples per fragment of writeFragmented()
+
+    //filled by write()
+    long[] videoOffsets;
+    long[] audioOffsets;
+
+    static Mp4Fixtures create() {
+        return new Mp4Fixtures();
+    }
+
+    int videoSampleSize(int i) {
+        return ((i % keyFrameInterval == 0) ? 3000 + i : 200 + (i * 37) % 500) * videoSampleScale;
+    }
+
+    int audioSampleSize(int i) {
+        return 100 + (i * 13) % 200;
+    }
+
+    boolean isKeyFrame(int i) {
+        return i % keyFrameInterval == 0;
+    }
+
+    /**
+     * Presentation order of the sample at decode position {@code i}: with B-frames the
+     * decode order is I P B B P B B ..., displayed as I B B P B B P.
+     */
+    int presentationIndex(int i) {
+        if (!bFrames || i % keyFrameInterval == 0) {
+            return i;
+        }
+        int inGop = i % keyFrameInterval;
+        int base = i - inGop;
+        int group = (inGop - 1) / 3;
+        int pos = (inGop - 1) % 3;
+        int groupStart = base + 1 + group * 3;
+        if (groupStart + 2 >= base + keyFrameInterval || groupStart + 2 >= videoSamples) {
+            return i; //incomplete trailing group stays in order
+        }
+        return pos == 0 ? groupStart + 2 : groupStart + pos - 1;
+    }
+
+    //expected pts in microseconds of the sample at decode position i
+    long videoPtsUs(int i) {
+        return presentationIndex(i) * (long) frameDuration * 1000000L / VIDEO_TIMESCALE;
+    }
+
+    long audioPtsUs(int i) {
+        return i * (long) AUDIO_SAMPLE_DURATION * 1000000L / AUDIO_TIMESCALE;
+    }
+
+    //the sample as stored in the file: 4-byte length prefixed NAL units
+    byte[] videoSample(int i) {
+        int size = videoSampleSize(i);
+        byte[] data = new byte[size];
+        int firstNal = size / 3;
+        writeNal(data, 0, firstNal, isKeyFrame(i) ? 0x65 : 0x41, i);
+        writeNal(data, firstNal, size - firstNal, 0x01, i);
+        return data;
+    }
+
+    byte[] audioSample(int i) {
+        byte[] data = new byte[audioSampleSize(i)];
+        for (int j = 0; j < data.length; j++) {
+            data[j] = (byte) (0x80 + i + j);
+        }
+        return data;
+    }
+
+    private static void writeNal(byte[] data, int offset, int size, int header, int sample) {
+        int payload = size - 4;
+        data[offset] = (byte) (payload >>> 24);
+        data[offset + 1] = (byte) (payload >>> 16);
+        data[offset + 2] = (byte) (payload >>> 8);
+        data[offset + 3] = (byte) payload;
+        data[offset + 4] = (byte) header;
+        for (int j = 5; j < size; j++) {
+            data[offset + j] = (byte) (sample * 7 + j);
+        }
+    }
+
+    File write(File file) throws IOException {
+        byte[] ftyp = box("ftyp", concat(ascii("isom"), int32(0x200), ascii("isomiso2avc1mp41")));
+
+        //interleave chunks: samplesPerChunk video samples, then the audio covering the same time
+        ByteArrayOutputStream mdatPayload = new ByteArrayOutputStream();
+        videoOffsets = new long[videoSamples];
+        audioOffsets = new long[audioSamples];
+        ArrayList<long[]> videoChunks = new ArrayList<long[]>(); // {payload offset, sample count}
+        ArrayList<long[]> audioChunks = new ArrayList<long[]>();
+        int v = 0;
+        int a = 0;
+        while (v < videoSamples || a < audioSamples) {
+            if (v < videoSamples) {
+                int count = Math.min(samplesPerChunk, videoSamples - v);
+                videoChunks.add(new long[]{mdatPayload.size(), count});
+                for (int i = 0; i < count; i++, v++) {
+                    videoOffsets[v] = mdatPayload.size();
+                    mdatPayload.write(videoSample(v));
+                }
+            }
+            if (a < audioSamples) {
+                long untilUs = videoSamples > 0 && v < videoSamples ? (long) v * frameDuration * 1000000L / VIDEO_TIMESCALE : Long.MAX_VALUE;
+                int count = 0;
+                long start = mdatPayload.size();
+                while (a < audioSamples && (count == 0 || audioPtsUs(a) < untilUs)) {
+                    audioOffsets[a] = mdatPayload.size();
+                    mdatPayload.write(audioSample(a));
+                    a++;
+                    count++;
+                }
+                audioChunks.add(new long[]{start, count});
+            }
+        }
+        byte[] mdatBytes = mdatPayload.toByteArray();
+
+        long mdatStart;
+        byte[] moov;
+        if (moovFirst) {
+            moov = moov(videoChunks, audioChunks, 0, false);
+            mdatStart = ftyp.length + moov.length + 8;
+            moov = moov(videoChunks, audioChunks, mdatStart, false); //same size, real offsets
+        } else {
+            mdatStart = ftyp.length + 8;
+            moov = moov(videoChunks, audioChunks, mdatStart, false);
+        }
+        for (int i = 0; i < videoSamples; i++) {
+            videoOffsets[i] += mdatStart;
+        }
+        for (int i = 0; i < audioSamples; i++) {
+            audioOffsets[i] += mdatStart;
+        }
+
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(ftyp);
+            if (moovFirst) {
+                out.write(moov);
+            }
+            out.write(int32(mdatBytes.length + 8));
+            out.write(ascii("mdat"));
+            out.write(mdatBytes);
+            if (!moovFirst) {
+                out.write(moov);
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    //fragmented: the sample tables are empty and an mvex box says the samples come in fragments
+    /**
+     * Writes the same tracks as fragmented MP4: the init segment, then a fragment of
+     * {@code fragmentFrames} video samples and the audio of the same time at a time.
+     */
+    File writeFragmented(File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(initSegment());
+            for (int i = 0; i < fragmentCount(); i++) {
+                out.write(fragment(i));
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    //ftyp and a moov with empty sample tables and an mvex
+    byte[] initSegment() throws IOException {
+        byte[] ftyp = box("ftyp", concat(ascii("iso6"), int32(0x200), ascii("iso6avc1mp41")));
+        return concat(ftyp, moov(new ArrayList<long[]>(), new ArrayList<long[]>(), 0, true));
+    }
+
+    int fragmentCount() {
+        return (videoSamples + fragmentFrames - 1) / fragmentFrames;
+    }
+
+    //the first video sample of fragment index, and the first audio one
+    int fragmentVideoStart(int index) {
+        return Math.min(index * fragmentFrames, videoSamples);
+    }
+
+    int fragmentAudioStart(int index) {
+        if (index >= fragmentCount()) {
+            return audioSamples;
+        }
+        long startUs = fragmentVideoStart(index) * (long) frameDuration * 1000000L / VIDEO_TIMESCALE;
+        int a = 0;
+        while (a < audioSamples && audioPtsUs(a) < startUs) {
+            a++;
+        }
+        return a;
+    }
+
+    /**
+     * A moof with a traf per track, the video one with per-sample sizes, flags and composition
+     * offsets, the audio one with sizes and defaults from the trex, then the mdat.
+     */
+    byte[] fragment(int index) throws IOException {
+        int firstVideo = fragmentVideoStart(index);
+        int endVideo = fragmentVideoStart(index + 1);
+        int firstAudio = fragmentAudioStart(index);
+        int endAudio = fragmentAudioStart(index + 1);
+        ByteArrayOutputStream mdat = new ByteArrayOutputStream();
+        for (int i = firstVideo; i < endVideo; i++) {
+            mdat.write(videoSample(i));
+        }
+        int audioStart = mdat.size();
+        for (int i = firstAudio; i < endAudio; i++) {
+            mdat.write(audioSample(i));
+        }
+        byte[] moof = moof(index, firstVideo, endVideo, firstAudio, endAudio, 0, 0);
+        moof = moof(index, firstVideo, endVideo, firstAudio, endAudio, moof.length + 8, moof.length + 8 + audioStart);
+        return concat(moof, box("mdat", mdat.toByteArray()));
+    }
+
+    private byte[] moof(int index, int firstVideo, int endVideo, int firstAudio, int endAudio,
+                        int videoDataOffset, int audioDataOffset) throws IOException {
+        int reorderDelay = bFrames ? frameDuration : 0;
+        ByteArrayOutputStream videoRun = new ByteArrayOutputStream();
+        videoRun.write(int32(endVideo - firstVideo));
+        videoRun.write(int32(videoDataOffset));
+        for (int i = firstVideo; i < endVideo; i++) {
+            videoRun.write(int32(videoSampleSize(i)));
+            videoRun.write(int32(isKeyFrame(i) ? SYNC_SAMPLE_FLAGS : NON_SYNC_SAMPLE_FLAGS));
+            if (bFrames) {
+                videoRun.write(int32((presentationIndex(i) - i) * frameDuration + reorderDelay));
+            }
+        }
+        //default-base-is-moof, with the duration of the trex overridden by the same one
+        byte[] videoTraf = box("traf", concat(
+                fullBox("tfhd", 0x20008, concat(int32(1), int32(frameDuration))),
+                fullBox("tfdt", 0x01000000, int64(firstVideo * (long) frameDuration)),
+                fullBox("trun", 0x601 | (bFrames ? 0x800 : 0), videoRun.toByteArray())));
+        ByteArrayOutputStream audioRun = new ByteArrayOutputStream();
+        audioRun.write(int32(endAudio - firstAudio));
+        audioRun.write(int32(audioDataOffset));
+        for (int i = firstAudio; i < endAudio; i++) {
+            audioRun.write(int32(audioSampleSize(i)));
+        }
+        byte[] audioTraf = box("traf", concat(
+                fullBox("tfhd", 0x20000, int32(2)),
+                fullBox("tfdt", 0, int32(firstAudio * AUDIO_SAMPLE_DURATION)),
+                fullBox("trun", 0x201, audioRun.toByteArray())));
+        return box("moof", concat(fullBox("mfhd", 0, int32(index + 1)), videoTraf, audioTraf));
+    }
+
+    private byte[] moov(ArrayList<long[]> videoChunks, ArrayList<long[]> audioChunks, long mdatStart, boolean fragmented) throws IOException {
+        long durationMs = Math.max(videoSamples * (long) frameDuration * 1000 / VIDEO_TIMESCALE,
+                audioSamples * (long) AUDIO_SAMPLE_DURATION * 1000 / AUDIO_TIMESCALE);
+        byte[] mvhd = fullBox("mvhd", 0, concat(int32(0), int32(0), int32(1000), int32((int) durationMs),
+                int32(0x10000), new byte[]{1, 0}, new byte[10], matrix(), new byte[24], int32(3)));
+        ByteArrayOutputStream moov = new ByteArrayOutputStream();
+        moov.write(mvhd);
+        if (videoSamples > 0) {
+            moov.write(videoTrak(fragmented ? 0 : videoSamples, videoChunks, mdatStart));
+        }
+        if (audioSamples > 0) {
+            moov.write(audioTrak(fragmented ? 0 : audioSamples, audioChunks, mdatStart));
+        }
+        if (fragmented) { //trex: track, sample description, duration, size, flags
+            moov.write(box("mvex", concat(
+                    fullBox("trex", 0, concat(int32(1), int32(1), int32(frameDuration), int32(0), int32(NON_SYNC_SAMPLE_FLAGS))),
+                    fullBox("trex", 0, concat(int32(2), int32(1), int32(AUDIO_SAMPLE_DURATION), int32(0), int32(0))))));
+        }
+        return box("moov", moov.toByteArray());
+    }
+
+    private byte[] videoTrak(int videoSamples, ArrayList<long[]> chunks, long mdatStart) throws IOException {
+        byte[] avcC = box("avcC", concat(new byte[]{1, sps[1], sps[2], sps[3], (byte) 0xff, (byte) 0xe1},
+                int16(sps.length), sps, new byte[]{1}, int16(PPS.length), PPS));
+        byte[] avc1 = box("avc1", concat(new byte[6], int16(1), new byte[16], int16(width), int16(height),
+                int32(0x480000), int32(0x480000), int32(0), int16(1), new byte[32], int16(0x18), int16(-1), avcC));
+        ByteArrayOutputStream stbl = new ByteArrayOutputStream();
+        stbl.write(fullBox("stsd", 0, concat(int32(1), avc1)));
+        stbl.write(fullBox("stts", 0, concat(int32(1), int32(videoSamples), int32(frameDuration))));
+        int reorderDelay = 0;
+        if (bFrames) {
+            //decode time + ctts offset - edit media time == presentation time
+            reorderDelay = frameDuration;
+            ByteArrayOutputStream ctts = new ByteArrayOutputStream();
+            ctts.write(int32(videoSamples));
+            for (int i = 0; i < videoSamples; i++) {
+                ctts.write(int32(1));
+                ctts.write(int32((presentationIndex(i) - i) * frameDuration + reorderDelay));
+            }
+            stbl.write(fullBox("ctts", 0, ctts.toByteArray()));
+        }
+        ByteArrayOutputStream stss = new ByteArrayOutputStream();
+        int keyFrames = (videoSamples + keyFrameInterval - 1) / keyFrameInterval;
+        stss.write(int32(keyFrames));
+        for (int i = 0; i < videoSamples; i += keyFrameInterval) {
+            stss.write(int32(i + 1));
+        }
+        stbl.write(fullBox("stss", 0, stss.toByteArray()));
+        ByteArrayOutputStream stsz = new ByteArrayOutputStream();
+        stsz.write(int32(0));
+        stsz.write(int32(videoSamples));
+        for (int i = 0; i < videoSamples; i++) {
+            stsz.write(int32(videoSampleSize(i)));
+        }
+        stbl.write(fullBox("stsz", 0, stsz.toByteArray()));
+        stbl.write(stsc(chunks));
+        stbl.write(stco(chunks, mdatStart));
+
+        long duration = videoSamples * (long) frameDuration;
+        byte[] edts = bFrames ? box("edts", fullBox("elst", 0, concat(int32(1), int32((int) (duration / 90)), int32(reorderDelay), int32(0x10000)))) : new byte[0];
+        return box("trak", concat(
+                fullBox("tkhd", 3, concat(int32(0), int32(0), int32(1), int32(0), int32((int) (duration / 90)), new byte[8],
+                        int16(0), int16(0), int16(0), int16(0), matrix(), int32(width << 16), int32(height << 16))),
+                edts,
+                box("mdia", concat(
+                        fullBox("mdhd", 0, concat(int32(0), int32(0), int32(VIDEO_TIMESCALE), int32((int) duration), int16(0x55c4), int16(0))),
+                        fullBox("hdlr", 0, concat(int32(0), ascii("vide"), new byte[12], ascii("VideoHandler"), new byte[1])),
+                        box("minf", concat(
+                                fullBox("vmhd", 1, new byte[8]),
+                                box("dinf", fullBox("dref", 0, concat(int32(1), fullBox("url ", 1, new byte[0])))),
+                                box("stbl", stbl.toByteArray())))))));
+    }
+
+    private byte[] audioTrak(int audioSamples, ArrayList<long[]> chunks, long mdatStart) throws IOException {
+        byte[] decoderSpecificInfo = concat(new byte[]{0x05, (byte) AUDIO_SPECIFIC_CONFIG.length}, AUDIO_SPECIFIC_CONFIG);
+        byte[] decoderConfig = concat(new byte[]{0x04, (byte) (13 + decoderSpecificInfo.length), 0x40, 0x15, 0, 0, 0},
+                int32(128000), int32(128000), decoderSpecificInfo);
+        byte[] esDescriptor = concat(new byte[]{0x03, (byte) (3 + decoderConfig.length + 3), 0, 1, 0}, decoderConfig,
+                new byte[]{0x06, 1, 2});
+        byte[] esds = fullBox("esds", 0, esDescriptor);
+        byte[] mp4a = box("mp4a", concat(new byte[6], int16(1), new byte[8], int16(channelCount), int16(16),
+                int32(0), int32(AUDIO_TIMESCALE << 16), esds));
+        ByteArrayOutputStream stbl = new ByteArrayOutputStream();
+        stbl.write(fullBox("stsd", 0, concat(int32(1), mp4a)));
+        stbl.write(fullBox("stts", 0, concat(int32(1), int32(audioSamples), int32(AUDIO_SAMPLE_DURATION))));
+        ByteArrayOutputStream stsz = new ByteArrayOutputStream();
+        stsz.write(int32(0));
+        stsz.write(int32(audioSamples));
+        for (int i = 0; i < audioSamples; i++) {
+            stsz.write(int32(audioSampleSize(i)));
+        }
+        stbl.write(fullBox("stsz", 0, stsz.toByteArray()));
+        stbl.write(stsc(chunks));
+        stbl.write(stco(chunks, mdatStart));
+        long duration = audioSamples * (long) AUDIO_SAMPLE_DURATION;
+        return box("trak", concat(
+                fullBox("tkhd", 3, concat(int32(0), int32(0), int32(2), int32(0), int32((int) (duration * 1000 / AUDIO_TIMESCALE)), new byte[8],
+                        int16(0), int16(0), int16(0x100), int16(0), matrix(), int32(0), int32(0))),
+                box("mdia", concat(
+                        fullBox("mdhd", 0, concat(int32(0), int32(0), int32(AUDIO_TIMESCALE), int32((int) duration), int16(0x55c4), int16(0))),
+                        fullBox("hdlr", 0, concat(int32(0), ascii("soun"), new byte[12], ascii("SoundHandler"), new byte[1])),
+                        box("minf", concat(
+                                fullBox("smhd", 0, new byte[4]),
+                                box("dinf", fullBox("dref", 0, concat(int32(1), fullBox("url ", 1, new byte[0])))),
+                                box("stbl", stbl.toByteArray())))))));
+    }
+
+    //one stsc entry per chunk keeps it simple and exercises the run logic
+    private static byte[] stsc(ArrayList<long[]> chunks) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(int32(chunks.size()));
+        for (int i = 0; i < chunks.size(); i++) {
+            out.write(int32(i + 1));
+            out.write(int32((int) chunks.get(i)[1]));
+            out.write(int32(1));
+        }
+        return fullBox("stsc", 0, out.toByteArray());
+    }
+
+    private static byte[] stco(ArrayList<long[]> chunks, long mdatStart) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(int32(chunks.size()));
+        for (long[] chunk : chunks) {
+            out.write(int32((int) (mdatStart + chunk[0])));
+        }
+        return fullBox("stco", 0, out.toByteArray());
+    }
+
+    /**
+     * A Baseline profile SPS for a {@code width} x {@code height} picture, coded in whole
+     * macroblocks with frame cropping for the remainder, e.g. 1920x1088 cropped to 1080.
+     */
+    static byte[] sps(int width, int height) {
+        BitWriter bits = new BitWriter();
+        bits.write(0x67, 8);
+        bits.write(66, 8);                  // profile_idc
+        bits.write(0xc0, 8);                // constraint flags
+        bits.write(30, 8);                  // level_idc
+        bits.writeUe(0);                    // seq_parameter_set_id
+        bits.writeUe(0);                    // log2_max_frame_num_minus4
+        bits.writeUe(2);                    // pic_order_cnt_type
+        bits.writeUe(1);                    // max_num_ref_frames
+        bits.write(0, 1);                   // gaps_in_frame_num_value_allowed_flag
+        int widthInMbs = (width + 15) / 16;
+        int heightInMbs = (height + 15) / 16;
+        bits.writeUe(widthInMbs - 1);
+        bits.writeUe(heightInMbs - 1);
+        bits.write(1, 1);                   // frame_mbs_only_flag
+        bits.write(1, 1);                   // direct_8x8_inference_flag
+        int cropRight = widthInMbs * 16 - width;
+        int cropBottom = heightInMbs * 16 - height;
+        if (cropRight != 0 || cropBottom != 0) {
+            bits.write(1, 1);
+            bits.writeUe(0);
+            bits.writeUe(cropRight / 2);    // in 4:2:0 chroma units
+            bits.writeUe(0);
+            bits.writeUe(cropBottom / 2);
+        } else {
+            bits.write(0, 1);
+        }
+        bits.write(0, 1);                   // vui_parameters_present_flag
+        bits.write(1, 1);                   // rbsp_stop_one_bit
+        return bits.toNal();
+    }
+
+    private static final class BitWriter {
+        private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        private int mCurrent;
+        private int mBits;
+
+        void write(int value, int count) {
+            for (int i = count - 1; i >= 0; i--) {
+                mCurrent = (mCurrent << 1) | ((value >>> i) & 1);
+                if (++mBits == 8) {
+                    mBytes.write(mCurrent);
+                    mCurrent = 0;
+                    mBits = 0;
+                }
+            }
+        }
+
+        void writeUe(int value) {
+            int bits = 32 - Integer.numberOfLeadingZeros(value + 1);
+            write(0, bits - 1);
+            write(value + 1, bits);
+        }
+
+        //pads to a byte and inserts emulation prevention bytes
+        byte[] toNal() {
+            while (mBits != 0) {
+                write(0, 1);
+            }
+            byte[] rbsp = mBytes.toByteArray();
+            ByteArrayOutputStream nal = new ByteArrayOutputStream();
+            int zeros = 0;
+            for (byte b : rbsp) {
+                if (zeros >= 2 && (b & 0xff) <= 3) {
+                    nal.write(3);
+                    zeros = 0;
+                }
+                nal.write(b);
+                zeros = b == 0 ? zeros + 1 : 0;
+            }
+            return nal.toByteArray();
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////
+
+    static byte[] box(String type, byte[] payload) {
+        return concat(int32(payload.length + 8), ascii(type), payload);
+    }
+
+    static byte[] fullBox(String type, int flags, byte[] payload) {
+        return box(type, concat(int32(flags), payload));
+    }
+
+    static byte[] matrix() {
+        return concat(int32(0x10000), int32(0), int32(0), int32(0), int32(0x10000), int32(0), int32(0), int32(0), int32(0x40000000));
+    }
+
+    static byte[] int32(int value) {
+        return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+    static byte[] int64(long value) {
+        return concat(int32((int) (value >>> 32)), int32((int) value));
+    }
+
+    static byte[] int16(int value) {
+        return new byte[]{(byte) (value >>> 8), (byte) value};
+    }
+
+    static byte[] ascii(String text) {
+        byte[] bytes = new byte[text.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) text.charAt(i);
+        }
+        return bytes;
+    }
+
+    static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(out);
+        try {
+            for (byte[] part : parts) {
+                data.write(part);
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,100 @@
+package com.ss.avframework.simpledecoder;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import static org.junit.Assert.*;
+
+public class PacketPoolTest {
+    private static final int QUEUE_DEPTH = 20;
+    private static final int MAX_SAMPLE_SIZE = 256 * 1024;
+
+    @Test
+    public void acquireGrowsToSampleSize() {
+        PacketPool pool = new PacketPool(4, 0);
+        PacketBuffer small = pool.acquire(100);
+        assertEquals(PacketPool.ALIGNMENT, small.data.capacity());
+        assertTrue(small.data.isDirect());
+        pool.release(small);
+
+        PacketBuffer large = pool.acquire(PacketPool.ALIGNMENT + 1);
+        assertSame(small, large);
+        assertEquals(2 * PacketPool.ALIGNMENT, large.data.capacity());
+        assertEquals(2, pool.allocations());
+    }
+
+    @Test
+    public void fillAndCopyRoundTrip() {
+        PacketPool pool = new PacketPool(1, 0);
+        ByteBuffer src = ByteBuffer.allocate(16);
+        for (int i = 0; i < 16; i++) {
+            src.put((byte) i);
+        }
+        src.position(4);
+        PacketBuffer packet = pool.acquire(8);
+        packet.fill(src, 8, 1234);
+        assertEquals(12, src.position());
+        assertEquals(16, src.limit());
+        assertEquals(8, packet.size);
+        assertEquals(1234, packet.ptsUs);
+
+        ByteBuffer dst = ByteBuffer.allocate(8);
+        packet.copyTo(dst);
+        packet.copyTo(ByteBuffer.allocate(8)); //copying twice must see the same payload
+        for (int i = 0; i < 8; i++) {
+            assertEquals(i + 4, dst.get(i));
+        }
+    }
+
+    @Test
+    public void steadyStateDoesNotAllocate() {
+        PacketPool pool = new PacketPool(QUEUE_DEPTH + 2, 0);
+        ArrayDeque<PacketBuffer> queue = new ArrayDeque<PacketBuffer>(QUEUE_DEPTH + 2);
+        ByteBuffer source = ByteBuffer.allocateDirect(MAX_SAMPLE_SIZE);
+        ByteBuffer codecInput = ByteBuffer.allocateDirect(MAX_SAMPLE_SIZE);
+
+        //warm up: every pooled packet has to see the largest sample once
+        runDemux(pool, queue, source, codecInput, 0, 40000);
+        long allocations = pool.allocations();
+
+        ThreadMXBean mxBean = ManagementFactory.getThreadMXBean();
+        boolean measureHeap = mxBean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) mxBean).isThreadAllocatedMemorySupported();
+        long threadId = Thread.currentThread().getId();
+        long heapBefore = measureHeap ? ((com.sun.management.ThreadMXBean) mxBean).getThreadAllocatedBytes(threadId) : 0;
+
+        int samples = 100000;
+        runDemux(pool, queue, source, codecInput, 40000, 40000 + samples);
+
+        long heapAfter = measureHeap ? ((com.sun.management.ThreadMXBean) mxBean).getThreadAllocatedBytes(threadId) : 0;
+        assertEquals("direct buffers allocated in steady state", allocations, pool.allocations());
+        if (measureHeap) {
+            long perSample = (heapAfter - heapBefore) / samples;
+            System.out.println("PacketPool steady state: " + (heapAfter - heapBefore) + " heap bytes for " + samples + " samples");
+            assertEquals("heap bytes per sample", 0, perSample);
+        }
+    }
+
+    //the demux -> input handoff without the threads: acquire, fill, queue, copy out, release
+    private static void runDemux(PacketPool pool, ArrayDeque<PacketBuffer> queue, ByteBuffer source,
+                                 ByteBuffer codecInput, int from, int to) {
+        for (int i = from; i < to; i++) {
+            //a keyframe every 30 samples, small P frames in between
+            int size = (i % 30 == 0) ? MAX_SAMPLE_SIZE : 1000 + (i * 7919) % 20000; //repeats every 20000 samples
+            source.clear();
+            PacketBuffer packet = pool.acquire(size);
+            packet.fill(source, size, i * 33333L);
+            queue.addLast(packet);
+            if (queue.size() >= QUEUE_DEPTH) {
+                PacketBuffer input = queue.pollFirst();
+                codecInput.clear();
+                input.copyTo(codecInput);
+                pool.release(input);
+            }
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.ss.avframework.simpledecoder;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PcmRingTest {
+    private static final int RATE = 44100;
+
+    //frames of 16 bit PCM, every sample the index of its frame times the channel count plus its channel
+    private static ByteBuffer Pcm(int firstFrame, int frames, int channels) {
+        ByteBuffer pcm = ByteBuffer.allocateDirect(frames * channels * 2).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < frames * channels; i++) {
+            pcm.putShort((short) (firstFrame * channels + i));
+        }
+        pcm.flip();
+        return pcm;
+    }
+
+    private static long PtsUs(long frame) {
+        return frame * 1000000 / RATE;
+    }
+
+    @Test
+    public void chunksOfTheConfiguredDurationWithTheirPts() {
+        PcmRing ring = new PcmRing(10, 64);
+        assertEquals(441, ring.chunkFrames(RATE));
+        int frames = 0;
+        for (int i = 0; i < 20; i++) {
+            ByteBuffer pcm = Pcm(frames, 1024, 2);
+            ring.write(pcm, RATE, 2, PtsUs(frames), 1.0f, 0);
+            assertEquals(0, pcm.position());
+            assertEquals(1024 * 4, pcm.limit());
+            frames += 1024;
+        }
+        ring.flush();
+        ring.endOfStream();
+
+        int frame = 0;
+        PcmRing.Chunk chunk;
+        while ((chunk = ring.poll()) != null) {
+            assertEquals(2, chunk.channelCount);
+            assertEquals(RATE, chunk.sampleRate);
+            assertEquals(chunk.frames * 4, chunk.data.remaining());
+            //within a microsecond of the frame's own time, the writes' pts being rounded down
+            assertEquals(PtsUs(frame), chunk.ptsUs, 1);
+            for (int i = 0; i < chunk.frames * 2; i++) {
+                assertEquals((short) (frame * 2 + i), chunk.data.getShort(i * 2));
+            }
+            frame += chunk.frames;
+            if (frame < frames) {
+                assertEquals(441, chunk.frames);
+            }
+            ring.release(chunk);
+        }
+        assertEquals(frames, frame);
+        assertTrue(ring.isEndOfStream());
+    }
+
+    @Test
+    public void framesArePerChannel() {
+        PcmRing ring = new PcmRing(0, 4);
+        ring.write(Pcm(0, 1024, 1), RATE, 1, 0, 1.0f, 0);
+        ring.write(Pcm(0, 1024, 2), RATE, 2, PtsUs(1024), 1.0f, 0);
+        ring.write(Pcm(0, 480, 6), 48000, 6, 50000, 1.0f, 0);
+        PcmRing.Chunk mono = ring.poll();
+        assertEquals(1024, mono.frames);
+        assertEquals(2048, mono.data.remaining());
+        ring.release(mono);
+        PcmRing.Chunk stereo = ring.poll();
+        assertEquals(1024, stereo.frames);
+        assertEquals(4096, stereo.data.remaining());
+        assertEquals(PtsUs(1024), stereo.ptsUs);
+        ring.release(stereo);
+        PcmRing.Chunk surround = ring.poll();
+        assertEquals(480, surround.frames);
+        assertEquals(6, surround.channelCount);
+        assertEquals(48000, surround.sampleRate);
+        ring.release(surround);
+        assertNull(ring.poll());
+    }
+
+    @Test
+    public void aFormatChangeEndsTheChunk() {
+        PcmRing ring = new PcmRing(10, 8);
+        ring.write(Pcm(0, 100, 2), RATE, 2, 0, 1.0f, 0);
+        ring.write(Pcm(0, 100, 1), 48000, 1, PtsUs(100), 1.0f, 0);
+        ring.flush();
+        PcmRing.Chunk first = ring.poll();
+        assertEquals(100, first.frames);
+        assertEquals(2, first.channelCount);
+        ring.release(first);
+        PcmRing.Chunk second = ring.poll();
+        assertEquals(100, second.frames);
+        assertEquals(1, second.channelCount);
+        assertEquals(PtsUs(100), second.ptsUs);
+        ring.release(second);
+    }
+
+    @Test
+    public void thePtsFollowTheMediaTimeAtOtherRates() {
+        PcmRing ring = new PcmRing(10, 8);
+        //what is played in 1024 frames at twice the speed is 2048 frames of the media
+        ring.write(Pcm(0, 1024, 2), RATE, 2, 1000000, 2.0f, 0);
+        ring.poll();
+        PcmRing.Chunk second = ring.poll();
+        assertEquals(1000000 + 2 * PtsUs(441), second.ptsUs, 1);
+    }
+
+    @Test
+    public void aSeekDropsThePartialChunk() {
+        PcmRing ring = new PcmRing(10, 8);
+        ring.write(Pcm(0, 300, 2), RATE, 2, 0, 1.0f, 0);
+        ring.write(Pcm(5000, 500, 2), RATE, 2, 2000000, 1.0f, 1);
+        PcmRing.Chunk chunk = ring.poll();
+        assertEquals(1, chunk.generation);
+        assertEquals(2000000, chunk.ptsUs);
+        assertEquals((short) (5000 * 2), chunk.data.getShort(0));
+        ring.release(chunk);
+        assertNull(ring.poll());
+    }
+
+    @Test
+    public void copiesOncePerChunkAndAllocatesOnlyThePool() {
+        int chunks = 8;
+        PcmRing ring = new PcmRing(10, chunks);
+        long written = 0;
+        int frames = 0;
+        for (int i = 0; i < 500; i++) {
+            ByteBuffer pcm = Pcm(frames, 1024, 2);
+            ring.write(pcm, RATE, 2, PtsUs(frames), 1.0f, 0);
+            written += pcm.remaining();
+            frames += 1024;
+            PcmRing.Chunk chunk;
+            while ((chunk = ring.poll()) != null) {
+                ring.release(chunk);
+            }
+        }
+        ring.flush();
+        PcmRing.Chunk chunk;
+        while ((chunk = ring.poll()) != null) {
+            ring.release(chunk);
+        }
+        System.out.println("PcmRing: " + written + " bytes written, " + ring.copiedBytes() + " copied, "
+                + ring.allocations() + " chunks allocated for " + (frames / 441 + 1) + " chunks");
+        //every byte is copied once, into its chunk, and the consumer reads it from there
+        assertEquals(written, ring.copiedBytes());
+        assertEquals(written, ring.releasedBytes());
+        assertEquals(0, ring.overrunFrames());
+        assertTrue(ring.allocations() <= chunks);
+    }
+
+    @Test
+    public void theProducerNeverWaitsForTheConsumer() {
+        PcmRing ring = new PcmRing(10, 4);
+        for (int i = 0; i < 10; i++) {
+            ring.write(Pcm(0, 1024, 2), RATE, 2, 0, 1.0f, 0);
+        }
+        //4 chunks of 441 frames held by the consumer, the rest dropped
+        assertEquals(10 * 1024 - 4 * 441, ring.overrunFrames());
+        int taken = 0;
+        PcmRing.Chunk chunk;
+        while ((chunk = ring.poll()) != null) {
+            ring.release(chunk);
+            taken++;
+        }
+        assertEquals(4, taken);
+        ring.write(Pcm(0, 441, 2), RATE, 2, 0, 1.0f, 0);
+        assertNotNull(ring.poll());
+    }
+
+    @Test(timeout = 10000)
+    public void consumerOnAnotherThread() throws Exception {
+        final PcmRing ring = new PcmRing(5, 16);
+        final int writes = 2000;
+        final List<long[]> chunks = new ArrayList<long[]>();
+        final long[] mismatches = {0};
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long frame = 0;
+                while (true) {
+                    PcmRing.Chunk chunk = ring.poll();
+                    if (chunk == null) {
+                        if (ring.isEndOfStream()) {
+                            return;
+                        }
+                        Thread.yield();
+                        continue;
+                    }
+                    if (chunk.data.getShort(0) != (short) (frame * 2)) {
+                        mismatches[0]++;
+                    }
+                    frame += chunk.frames;
+                    chunks.add(new long[]{chunk.frames, chunk.ptsUs});
+                    ring.release(chunk);
+                }
+            }
+        });
+        consumer.start();
+        int frames = 0;
+        int written = 0;
+        while (written < writes) {
+            //waits for the consumer rather than overrunning, to check nothing is lost or reordered
+            if (ring.overrunFrames() > 0) {
+                fail("overrun");
+            }
+            if (ring.copiedBytes() - ring.releasedBytes() > 8 * 220 * 4) {
+                Thread.yield();
+                continue;
+            }
+            ring.write(Pcm(frames, 256, 2), 44100, 2, PtsUs(frames), 1.0f, 0);
+            frames += 256;
+            written++;
+        }
+        ring.flush();
+        ring.endOfStream();
+        consumer.join();
+        assertEquals(0, mismatches[0]);
+        long total = 0;
+        for (long[] chunk : chunks) {
+            assertEquals(PtsUs(total), chunk[1], 1);
+            total += chunk[0];
+        }
+        assertEquals(frames, total);
+    }
+
+    @Test(timeout = 30000)
+    public void aSlowListenerDoesntHoldUpTheCodec() throws Exception {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        fixture.frameDuration = 1500;
+        fixture.videoSamples = 60;
+        fixture.audioSamples = 43;
+        File file = fixture.write(File.createTempFile("pcm", ".mp4"));
+        try {
+            //the listener taking as long as the audio it gets
+            long costUs = 20000;
+            FakePlayer direct = new FakePlayer(file);
+            direct.listenerCostUs = costUs;
+            direct.start();
+            direct.join();
+            assertNull(direct.failure.get());
+
+            FakePlayer ring = new FakePlayer(file);
+            ring.listenerCostUs = costUs;
+            ring.pcm = new PcmRing(10, 128);
+            ring.start();
+            ring.join();
+            assertNull(ring.failure.get());
+
+            long directUs = direct.stats.snapshot(0, 0).audio.renderLatencyUs.valueAtPercentile(50);
+            long ringUs = ring.stats.snapshot(0, 0).audio.renderLatencyUs.valueAtPercentile(50);
+            System.out.println("PcmRing: audio output buffer held " + directUs + "us calling the listener, "
+                    + ringUs + "us through the ring");
+            assertTrue(directUs >= costUs);
+            assertTrue(ringUs < costUs / 4);
+
+            List<long[]> chunks = ring.chunks();
+            long frames = 0;
+            for (long[] chunk : chunks) {
+                assertEquals(PtsUs(frames), chunk[1], 1);
+                frames += chunk[0];
+            }
+            assertEquals(fixture.audioSamples * 1024, frames);
+            assertEquals(0, ring.pcm.overrunFrames());
+            assertEquals(ring.pcm.copiedBytes(), ring.pcm.releasedBytes());
+        } finally {
+            file.delete();
+        }
+    }
+}
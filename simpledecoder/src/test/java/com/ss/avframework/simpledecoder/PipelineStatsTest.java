@@ -0,0 +1,138 @@
+package com.ss.avframework.simpledecoder;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class PipelineStatsTest {
+    private static final long MS = 1000000;
+
+    @Test
+    public void countsAndRates() {
+        PipelineStats stats = new PipelineStats(true, false, 0);
+        PipelineStats.Track video = stats.track(PipelineStats.TRACK_VIDEO);
+        assertNull(stats.track(PipelineStats.TRACK_AUDIO));
+        for (int i = 0; i < 60; i++) {
+            video.onDemuxed(1000, i % 5);
+            if (i % 20 == 0) {
+                video.onSkipped();
+            }
+            video.onScheduled(i % 2 == 0 ? 20000 : -3000);
+            if (i % 10 == 9) {
+                video.onDropped();
+            } else {
+                video.onRendered(i * 33 * MS, i * 33 * MS + 2 * MS);
+            }
+        }
+        DecoderStats snapshot = stats.snapshot(3, 0, 2000 * MS);
+        assertEquals(2000, snapshot.elapsedMs);
+        assertNull(snapshot.audio);
+        DecoderStats.TrackStats track = snapshot.video;
+        assertEquals(60, track.samplesDemuxed);
+        assertEquals(60000, track.bytesDemuxed);
+        assertEquals(30, track.demuxRate, 0.01);
+        assertEquals(3, track.queueDepth);
+        assertEquals(4, track.queueDepths.max);
+        assertEquals(54, track.framesRendered);
+        assertEquals(6, track.framesDropped);
+        assertEquals(3, track.framesSkipped);
+        assertEquals(27, track.fps, 0.01);
+        assertEquals(30, track.sleepUs.count);
+        assertEquals(30, track.lateUs.count);
+        assertEquals(3000, track.lateUs.max);
+        assertEquals(2000, track.renderLatencyUs.valueAtPercentile(50));
+
+        //recent fps only counts what was rendered since the previous snapshot
+        for (int i = 0; i < 10; i++) {
+            video.onRendered(0, 0);
+        }
+        track = stats.snapshot(0, 0, 2500 * MS).video;
+        assertEquals(20, track.recentFps, 0.01);
+        assertEquals(64, track.framesRendered);
+    }
+
+    @Test
+    public void decodeLatencyMatchedByPts() {
+        PipelineStats stats = new PipelineStats(true, false, 0);
+        PipelineStats.Track track = stats.track(PipelineStats.TRACK_VIDEO);
+        //decode order with B frames, output in presentation order
+        long[] decodeOrder = {0, 3, 1, 2};
+        for (int i = 0; i < decodeOrder.length; i++) {
+            track.onQueued(decodeOrder[i] * 33333, 0, i * MS);
+        }
+        track.onDecoded(0, 10 * MS);
+        track.onDecoded(33333, 12 * MS);
+        track.onDecoded(66666, 13 * MS);
+        track.onDecoded(99999, 14 * MS);
+        track.onDecoded(99999, 15 * MS); //already taken
+        track.onDecoded(5, 15 * MS); //never queued
+        DecoderStats.Distribution latency = stats.snapshot(0, 0, 20 * MS).video.decodeLatencyUs;
+        assertEquals(4, latency.count);
+        assertEquals(10000, latency.min);   //pts 0, queued at 0
+        assertEquals(13000, latency.max);   //pts 99999, queued at 1ms
+        assertEquals((10000 + 13000 + 10000 + 10000) / 4.0, latency.mean(), 1e-9);
+    }
+
+    @Test
+    public void ptsTimesAcrossThreads() throws Exception {
+        final PipelineStats.PtsTimes times = new PipelineStats.PtsTimes(256);
+        final SpscQueue<Long> inFlight = new SpscQueue<Long>(16);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final int count = 200000;
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (long pts = 0; pts < count; pts++) {
+                        times.put(pts * 1000, pts);
+                        inFlight.put(pts * 1000);
+                    }
+                    inFlight.endOfStream();
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        });
+        producer.start();
+        int found = 0;
+        Long pts;
+        while ((pts = inFlight.take()) != null) {
+            long time = times.take(pts);
+            if (time >= 0) {
+                assertEquals(pts / 1000, time);
+                found++;
+            }
+        }
+        producer.join();
+        assertNull(failure.get());
+        //at most 16 in flight over 256 slots, only a few collide
+        assertTrue("found " + found, found > count * 9 / 10);
+    }
+
+    @Test
+    public void json() {
+        PipelineStats stats = new PipelineStats(false, true, 0);
+        PipelineStats.Track audio = stats.track(PipelineStats.TRACK_AUDIO);
+        audio.onDemuxed(400, 1);
+        audio.onQueued(0, 1500 * 1000, MS);
+        audio.onDecoded(0, 3 * MS);
+        audio.onRendered(3 * MS, 4 * MS);
+        String json = stats.snapshot(0, 1, 1000 * MS).toJson();
+        assertTrue(json, json.startsWith("{\"elapsedMs\":1000,\"video\":null,\"audio\":{\"samplesDemuxed\":1,\"bytesDemuxed\":400,\"demuxRate\":1.00,\"queueDepth\":1,"));
+        assertTrue(json, json.contains("\"inputWaitUs\":{\"count\":1,\"min\":1500,\"mean\":1500.00,\"p50\":1500,"));
+        assertTrue(json, json.contains("\"decodeLatencyUs\":{\"count\":1,\"min\":2000,"));
+        assertTrue(json, json.contains("\"sleepUs\":{\"count\":0,\"min\":0,\"mean\":0.00,\"p50\":0,\"p90\":0,\"p99\":0,\"p999\":0,\"max\":0}"));
+        assertTrue(json, json.endsWith("\"framesRendered\":1,\"framesDropped\":0,\"framesSkipped\":0,\"fps\":1.00,\"recentFps\":1.00}}"));
+    }
+
+    @Test
+    public void elapsedStopsAtStop() throws Exception {
+        PipelineStats stats = new PipelineStats(true, true);
+        stats.stop();
+        long elapsedMs = stats.snapshot(0, 0).elapsedMs;
+        Thread.sleep(20);
+        assertEquals(elapsedMs, stats.snapshot(0, 0).elapsedMs);
+    }
+}
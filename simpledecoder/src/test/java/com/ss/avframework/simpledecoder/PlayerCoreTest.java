@@ -0,0 +1,227 @@
+package com.ss.avframework.simpledecoder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PlayerCoreTest {
+    //what Mp4Decoder ran per player before: Demux, Video Output, Video Drain, Video Input, Audio Output, Audio Input
+    private static final int POLLING_THREADS_PER_PLAYER = 6;
+
+    private Mp4Fixtures mFixture;
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFixture = Mp4Fixtures.create();
+        mFixture.frameDuration = 1500;          // 60 fps
+        mFixture.videoSamples = 60;             // 1s
+        mFixture.audioSamples = 43;             // 1s at 1024 samples of 44.1 kHz
+        mFile = mFixture.write(File.createTempFile("core", ".mp4"));
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test(timeout = 20000)
+    public void playsBothTracksToTheEnd() throws Exception {
+        FakePlayer player = new FakePlayer(mFile);
+        player.start();
+        player.join();
+        assertNull(player.failure.get());
+
+        List<Long> audio = player.audioPts();
+        assertEquals(mFixture.audioSamples, audio.size());
+        for (int i = 0; i < audio.size(); i++) {
+            assertEquals(mFixture.audioPtsUs(i), (long) audio.get(i));
+        }
+        //every frame, the first ones too: they wait for the audio to start the clock
+        List<Long> video = player.videoPts();
+        assertEquals(mFixture.videoSamples, video.size());
+        for (int i = 0; i < video.size(); i++) {
+            assertEquals(mFixture.videoPtsUs(i), (long) video.get(i));
+        }
+        assertTrue(player.videoReleased && player.audioReleased);
+    }
+
+    //the first video frame waits for the audio to start the clock, but not for long should the audio be held up
+    @Test(timeout = 20000)
+    public void theVideoStartsTheClockIfTheAudioIsHeldUp() throws Exception {
+        FakePlayer player = new FakePlayer(mFile);
+        player.factory.audioStallsUs.put(0L, 1000000L);
+        long startNs = System.nanoTime();
+        player.start();
+        player.join();
+        assertNull(player.failure.get());
+        long firstUs = (player.firstVideoNs - startNs) / 1000;
+        System.out.println("first video frame after " + firstUs / 1000 + " ms, the first audio after 1000 ms");
+        assertTrue(firstUs + "us", firstUs < 1000000);
+        assertEquals(mFixture.videoPtsUs(0), (long) player.videoPts().get(0));
+        assertEquals(mFixture.audioSamples, player.audioPts().size());
+    }
+
+    @Test(timeout = 20000)
+    public void twoThreadsPerPlayer() throws Exception {
+        FakePlayer[] players = new FakePlayer[4];
+        for (int i = 0; i < players.length; i++) {
+            players[i] = new FakePlayer(mFile);
+        }
+        int before = PipelineThreads();
+        for (FakePlayer player : players) {
+            player.start();
+        }
+        int most = 0;
+        while (players[0].audioPts().size() < mFixture.audioSamples / 2) {
+            most = Math.max(most, PipelineThreads() - before);
+            Thread.sleep(5);
+        }
+        for (FakePlayer player : players) {
+            player.join();
+            assertNull(player.failure.get());
+        }
+        System.out.println(String.format("%d players: %d pipeline threads, %d with the polling threads",
+                players.length, most, players.length * POLLING_THREADS_PER_PLAYER));
+        assertEquals(players.length * 2, most);
+    }
+
+    @Test(timeout = 20000)
+    public void noWakeupsWhilePaused() throws Exception {
+        FakePlayer player = new FakePlayer(mFile);
+        player.start();
+        while (player.audioPts().size() < 10) {
+            Thread.sleep(5);
+        }
+        player.clock.pause();
+        player.core.onPlaybackChanged();
+        Thread.sleep(100); //what was due or decoding when pausing settles
+        long wakeups = player.wakeups();
+        int delivered = player.audioPts().size() + player.videoPts().size();
+        Thread.sleep(500);
+        long pausedWakeups = player.wakeups() - wakeups;
+        assertEquals(delivered, player.audioPts().size() + player.videoPts().size());
+
+        player.clock.resume();
+        player.core.onPlaybackChanged();
+        player.join();
+        assertNull(player.failure.get());
+        assertEquals(mFixture.audioSamples, player.audioPts().size());
+        long frames = mFixture.audioSamples + mFixture.videoSamples;
+        System.out.println(String.format("paused 500ms: %d wakeups, the polling threads slept 10ms at a time; "
+                + "playing: %.1f wakeups a frame", pausedWakeups, player.wakeups() / (double) frames));
+        assertTrue(pausedWakeups + " wakeups while paused", pausedWakeups <= 2);
+        //a few events per frame: its input buffer, its output, its deadline and its release
+        assertTrue(player.wakeups() + " wakeups for " + frames + " frames", player.wakeups() < frames * 8);
+    }
+
+    @Test(timeout = 20000)
+    public void seekFlushesAndMovesOn() throws Exception {
+        FakePlayer player = new FakePlayer(mFile);
+        player.start();
+        while (player.audioPts().size() < 5) {
+            Thread.sleep(5);
+        }
+        long targetUs = 600000;
+        player.seeks.request(targetUs, Mp4Decoder.SeekMode.EXACT);
+        int videoBefore;
+        int audioBefore;
+        synchronized (player) {
+            videoBefore = player.video.size();
+            audioBefore = player.audio.size();
+        }
+        player.core.onPlaybackChanged();
+        player.join();
+        assertNull(player.failure.get());
+        assertEquals(1, player.seeks.executedCount());
+        assertTrue(player.seeks.lastLatencyUs() >= 0);
+        for (FakeDecoderBackend decoder : player.factory.created) {
+            assertEquals(1, decoder.getFlushCount());
+        }
+        //a frame or two may have come between the request and the flush, then it's the target on
+        List<Long> video = player.videoPts();
+        List<Long> audio = player.audioPts();
+        assertTrue(video.get(video.size() - 1) >= targetUs);
+        assertTrue(audio.get(audio.size() - 1) >= targetUs);
+        int firstAfter = 0;
+        for (int i = audioBefore; i < audio.size(); i++) {
+            if (audio.get(i) >= targetUs) {
+                firstAfter = i;
+                break;
+            }
+        }
+        for (int i = firstAfter; i < audio.size(); i++) {
+            assertTrue(audio.get(i) >= targetUs);
+        }
+        assertTrue(video.size() > videoBefore);
+    }
+
+    @Test(timeout = 20000)
+    public void stopsWhilePaused() throws Exception {
+        FakePlayer player = new FakePlayer(mFile);
+        player.clock.pause();
+        player.start();
+        Thread.sleep(100);
+        player.core.stop();
+        player.join();
+        assertNull(player.failure.get());
+        assertTrue(player.videoReleased && player.audioReleased);
+    }
+
+    @Test(timeout = 20000)
+    public void aVideoDecoderThatFailsStopsPlaybackWithItsError() throws Exception {
+        FakePlayer player = new FakePlayer(mFile);
+        Exception error = new IllegalStateException("configure failed");
+        player.factory.videoError = error;
+        player.start();
+        player.join();
+        assertSame(error, player.failure.get());
+        assertSame(error, player.core.error());
+        assertTrue(player.videoPts().isEmpty());
+        assertTrue(player.audioPts().size() < mFixture.audioSamples);
+        assertTrue(player.audioReleased);
+    }
+
+    @Test(timeout = 20000)
+    public void mappedSamplesAreCopiedOnceStraightIntoTheCodec() throws Exception {
+        long bytes = 0;
+        for (int i = 0; i < mFixture.videoSamples; i++) {
+            bytes += mFixture.videoSampleSize(i);
+        }
+        for (int i = 0; i < mFixture.audioSamples; i++) {
+            bytes += mFixture.audioSampleSize(i);
+        }
+        int samples = mFixture.videoSamples + mFixture.audioSamples;
+        FakePlayer mapped = new FakePlayer(mFile);
+        //the same file read rather than mapped: into the read buffer, the packet, then the codec
+        FakePlayer read = new FakePlayer(new Mp4MediaSource(new Mp4Demuxer(new FileDataSource(mFile))), null, LatenessPolicy.NEVER_DROP);
+        mapped.start();
+        read.start();
+        mapped.join();
+        read.join();
+        assertNull(mapped.failure.get());
+        assertNull(read.failure.get());
+        System.out.printf("bytes copied per sample: %.0f mapped, %.0f read, of %.0f%n",
+                (double) mapped.core.copiedBytes() / samples, (double) read.core.copiedBytes() / samples, (double) bytes / samples);
+        assertEquals(bytes, mapped.core.copiedBytes());
+        assertEquals(3 * bytes, read.core.copiedBytes());
+        assertEquals(read.audioPts(), mapped.audioPts());
+        assertEquals(mFixture.audioSamples, mapped.audioPts().size());
+    }
+
+    //live threads other than the fake codecs' callback thread
+    private static int PipelineThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && !thread.getName().equals("FakeDecoderBackend Callbacks")) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,191 @@
+package com.ss.avframework.simpledecoder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class SampleIndexCacheTest {
+    private File mDir;
+    private File mFile;
+    private SampleIndexCache mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("sidx", "");
+        mDir.delete();
+        mDir.mkdirs();
+        mFile = File.createTempFile("fixture", ".mp4");
+        mCache = new SampleIndexCache(mDir);
+    }
+
+    @After
+    public void tearDown() {
+        mCache.clear();
+        mDir.delete();
+        mFile.delete();
+    }
+
+    @Test
+    public void reopenUsesTheCachedTables() throws Exception {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        fixture.bFrames = true;
+        fixture.write(mFile);
+
+        Mp4Demuxer parsed = new Mp4Demuxer(mFile.getPath(), mCache);
+        parsed.release();
+        assertEquals(0, mCache.hits());
+        assertEquals(1, mCache.misses());
+        assertTrue(mCache.entryFile(mFile).isFile());
+
+        Mp4Demuxer cached = new Mp4Demuxer(mFile.getPath(), mCache);
+        cached.release();
+        assertEquals(1, mCache.hits());
+        assertEquals(parsed.getTrackCount(), cached.getTrackCount());
+        for (int i = 0; i < parsed.getTrackCount(); i++) {
+            assertSameTrack(parsed.getTrack(i), cached.getTrack(i));
+        }
+    }
+
+    @Test
+    public void cachedDemuxerReturnsTheSameSamples() throws Exception {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        fixture.write(mFile);
+        new Mp4Demuxer(mFile.getPath(), mCache).release();
+
+        Mp4Demuxer demuxer = new Mp4Demuxer(mFile.getPath(), mCache);
+        try {
+            assertEquals(1, mCache.hits());
+            demuxer.selectTrack(0);
+            demuxer.seekTo(1000000, Mp4Demuxer.SEEK_TO_PREVIOUS_SYNC);
+            assertEquals(30, demuxer.getSampleIndex());
+            byte[] bytes = new byte[demuxer.getSampleSize()];
+            demuxer.getSampleData().get(bytes);
+            assertArrayEquals(fixture.videoSample(30), bytes);
+        } finally {
+            demuxer.release();
+        }
+    }
+
+    @Test
+    public void changedFileIsParsedAgain() throws Exception {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        fixture.write(mFile);
+        new Mp4Demuxer(mFile.getPath(), mCache).release();
+
+        fixture.videoSamples = 60;
+        fixture.write(mFile);
+        mFile.setLastModified(mFile.lastModified() + 2000);
+        Mp4Demuxer demuxer = new Mp4Demuxer(mFile.getPath(), mCache);
+        demuxer.release();
+        assertEquals(0, mCache.hits());
+        assertEquals(2, mCache.misses());
+        assertEquals(60, demuxer.getTrack(0).sampleCount);
+
+        //and the new entry is used from now on
+        demuxer = new Mp4Demuxer(mFile.getPath(), mCache);
+        demuxer.release();
+        assertEquals(1, mCache.hits());
+        assertEquals(60, demuxer.getTrack(0).sampleCount);
+    }
+
+    @Test
+    public void corruptEntryIsDropped() throws Exception {
+        Mp4Fixtures.create().write(mFile);
+        new Mp4Demuxer(mFile.getPath(), mCache).release();
+        File entry = mCache.entryFile(mFile);
+        RandomAccessFile raf = new RandomAccessFile(entry, "rw");
+        raf.setLength(raf.length() / 2);
+        raf.close();
+
+        assertNull(mCache.load(mFile));
+        assertFalse(entry.exists());
+        Mp4Demuxer demuxer = new Mp4Demuxer(mFile.getPath(), mCache);
+        demuxer.release();
+        assertEquals(90, demuxer.getTrack(0).sampleCount);
+        assertTrue(entry.isFile());
+    }
+
+    @Test
+    public void oldestEntriesAreTrimmed() throws Exception {
+        SampleIndexCache cache = new SampleIndexCache(mDir, 2);
+        Mp4Track[] tracks = new Mp4Track[0];
+        File[] files = new File[3];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = new File(mDir, "clip" + i + ".mp4");
+            cache.store(files[i], tracks);
+            cache.entryFile(files[i]).setLastModified(System.currentTimeMillis() - (10 - i) * 1000L);
+        }
+        cache.store(files[2], tracks);
+        assertFalse(cache.entryFile(files[0]).exists());
+        assertTrue(cache.entryFile(files[1]).exists());
+        assertTrue(cache.entryFile(files[2]).exists());
+    }
+
+    /**
+     * Time-to-ready of a 10 minute clip with one chunk per sample: parsing the container
+     * (cold) against loading the cached index (warm).
+     */
+    @Test(timeout = 120000)
+    public void coldVersusWarmOpen() throws Exception {
+        Mp4Fixtures fixture = Mp4Fixtures.create();
+        fixture.videoSamples = 18000;
+        fixture.audioSamples = 25800;
+        fixture.samplesPerChunk = 1;
+        fixture.bFrames = true;
+        fixture.write(mFile);
+        new Mp4Demuxer(mFile.getPath(), mCache).release();
+
+        int runs = 30;
+        long[] cold = new long[runs];
+        long[] warm = new long[runs];
+        for (int round = 0; round < 2; round++) { //the first round warms up the JIT
+            for (int i = 0; i < runs; i++) {
+                long start = System.nanoTime();
+                new Mp4Demuxer(mFile.getPath()).release();
+                cold[i] = System.nanoTime() - start;
+                start = System.nanoTime();
+                new Mp4Demuxer(mFile.getPath(), mCache).release();
+                warm[i] = System.nanoTime() - start;
+            }
+        }
+        Arrays.sort(cold);
+        Arrays.sort(warm);
+        System.out.println("time-to-ready p50 (us): cold " + cold[runs / 2] / 1000 + ", warm " + warm[runs / 2] / 1000
+                + ", index " + mCache.entryFile(mFile).length() / 1024 + " KB");
+        assertEquals(2 * runs, mCache.hits());
+        assertTrue(warm[runs / 2] < cold[runs / 2]);
+    }
+
+    private static void assertSameTrack(Mp4Track expected, Mp4Track actual) {
+        assertEquals(expected.trackId, actual.trackId);
+        assertEquals(expected.type, actual.type);
+        assertEquals(expected.codec, actual.codec);
+        assertEquals(expected.mime, actual.mime);
+        assertEquals(expected.timescale, actual.timescale);
+        assertEquals(expected.durationUs, actual.durationUs);
+        assertEquals(expected.width, actual.width);
+        assertEquals(expected.height, actual.height);
+        assertEquals(expected.nalLengthSize, actual.nalLengthSize);
+        assertEquals(expected.sampleRate, actual.sampleRate);
+        assertEquals(expected.channelCount, actual.channelCount);
+        assertEquals(expected.csd.length, actual.csd.length);
+        for (int i = 0; i < expected.csd.length; i++) {
+            assertArrayEquals(expected.csd[i], actual.csd[i]);
+        }
+        assertEquals(expected.sampleCount, actual.sampleCount);
+        //Buffer.equals() compares the elements
+        assertEquals(expected.offsets, actual.offsets);
+        assertEquals(expected.sizes, actual.sizes);
+        assertEquals(expected.dts, actual.dts);
+        assertEquals(expected.ctsOffsets, actual.ctsOffsets);
+        assertEquals(expected.editMediaTime, actual.editMediaTime);
+        assertEquals(expected.syncBits, actual.syncBits);
+        assertEquals(expected.maxSampleSize, actual.maxSampleSize);
+    }
+}
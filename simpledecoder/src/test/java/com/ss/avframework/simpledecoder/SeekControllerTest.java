@@ -0,0 +1,131 @@
+package com.ss.avframework.simpledecoder;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class SeekControllerTest {
+
+    @Test
+    public void burstOfSeeksExecutesTheLatest() throws Exception {
+        final SeekController controller = new SeekController();
+        final int threads = 4;
+        final int perThread = 250;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        controller.request(i * 1000L, Mp4Decoder.SeekMode.EXACT);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        controller.request(5000000, Mp4Decoder.SeekMode.CLOSEST_SYNC);
+
+        assertTrue(controller.hasPending());
+        SeekController.Request request = controller.take();
+        assertEquals(5000000, request.ptsUs);
+        assertEquals(Mp4Decoder.SeekMode.CLOSEST_SYNC, request.mode);
+        assertFalse(controller.hasPending());
+        assertNull(controller.take());
+
+        controller.begin(request, true, true);
+        assertEquals(threads * perThread + 1, controller.requestedCount());
+        assertEquals(1, controller.executedCount());
+    }
+
+    @Test
+    public void everySeekStartsANewGeneration() {
+        SeekController controller = new SeekController();
+        assertEquals(0, controller.generation());
+        controller.request(1000, Mp4Decoder.SeekMode.PREVIOUS_SYNC);
+        assertEquals(0, controller.generation()); //only once it's executed
+        assertEquals(1, controller.begin(controller.take(), true, false));
+        controller.request(2000, Mp4Decoder.SeekMode.PREVIOUS_SYNC);
+        assertEquals(2, controller.begin(controller.take(), true, false));
+        assertEquals(2, controller.generation());
+    }
+
+    @Test
+    public void exactSeekDiscardsUntilTheTarget() {
+        SeekController controller = new SeekController();
+        controller.request(1500000, Mp4Decoder.SeekMode.EXACT);
+        controller.begin(controller.take(), true, true);
+
+        //decoding restarts at the key frame at 1s
+        for (long pts = 1000000; pts < 1500000; pts += 33333) {
+            assertTrue(controller.shouldDiscard(SeekController.TRACK_VIDEO, pts));
+        }
+        assertFalse(controller.shouldDiscard(SeekController.TRACK_VIDEO, 1500000));
+        assertTrue(controller.shouldDiscard(SeekController.TRACK_AUDIO, 1499000));
+        assertFalse(controller.shouldDiscard(SeekController.TRACK_AUDIO, 1510000));
+
+        assertTrue(controller.isDeliveryPending(SeekController.TRACK_VIDEO));
+        controller.onDelivered(SeekController.TRACK_VIDEO);
+        assertFalse(controller.isDeliveryPending(SeekController.TRACK_VIDEO));
+        //a B frame after the target may come out with an earlier pts, it's not discarded any more
+        assertFalse(controller.shouldDiscard(SeekController.TRACK_VIDEO, 1400000));
+        assertTrue(controller.shouldDiscard(SeekController.TRACK_AUDIO, 1400000));
+    }
+
+    @Test
+    public void syncSeeksDiscardNothing() {
+        SeekController controller = new SeekController();
+        Mp4Decoder.SeekMode[] modes = {Mp4Decoder.SeekMode.PREVIOUS_SYNC, Mp4Decoder.SeekMode.NEXT_SYNC,
+                Mp4Decoder.SeekMode.CLOSEST_SYNC};
+        for (Mp4Decoder.SeekMode mode : modes) {
+            controller.request(1500000, mode);
+            controller.begin(controller.take(), true, true);
+            assertFalse(controller.shouldDiscard(SeekController.TRACK_VIDEO, 0));
+            assertFalse(controller.shouldDiscard(SeekController.TRACK_AUDIO, 1000000));
+            assertTrue(controller.isDeliveryPending(SeekController.TRACK_VIDEO));
+        }
+    }
+
+    @Test
+    public void latencyEndsWithTheFirstVideoFrame() throws Exception {
+        SeekController controller = new SeekController();
+        assertEquals(-1, controller.lastLatencyUs());
+        controller.request(0, Mp4Decoder.SeekMode.EXACT);
+        controller.begin(controller.take(), true, true);
+        Thread.sleep(20);
+        controller.onDelivered(SeekController.TRACK_AUDIO);
+        assertEquals(-1, controller.lastLatencyUs()); //audio doesn't end it when there is video
+        controller.onDelivered(SeekController.TRACK_VIDEO);
+        long latencyUs = controller.lastLatencyUs();
+        assertTrue(latencyUs >= 20000);
+
+        controller.onDelivered(SeekController.TRACK_VIDEO); //later frames don't change it
+        assertEquals(latencyUs, controller.lastLatencyUs());
+    }
+
+    @Test
+    public void latencyOfAudioOnlyFiles() {
+        SeekController controller = new SeekController();
+        controller.request(0, Mp4Decoder.SeekMode.PREVIOUS_SYNC);
+        controller.begin(controller.take(), false, true);
+        assertFalse(controller.isDeliveryPending(SeekController.TRACK_VIDEO));
+        controller.onDelivered(SeekController.TRACK_AUDIO);
+        assertTrue(controller.lastLatencyUs() >= 0);
+    }
+
+    @Test
+    public void resetForgetsTheSeekButNotTheStatistics() {
+        SeekController controller = new SeekController();
+        controller.request(1000, Mp4Decoder.SeekMode.EXACT);
+        controller.begin(controller.take(), true, true);
+        controller.request(2000, Mp4Decoder.SeekMode.EXACT);
+        controller.reset();
+        assertFalse(controller.hasPending());
+        assertFalse(controller.isDeliveryPending(SeekController.TRACK_VIDEO));
+        assertFalse(controller.shouldDiscard(SeekController.TRACK_VIDEO, 0));
+        assertEquals(2, controller.requestedCount());
+        assertEquals(1, controller.executedCount());
+    }
+}
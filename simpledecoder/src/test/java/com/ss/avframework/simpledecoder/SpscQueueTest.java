@@ -0,0 +1,229 @@
+package com.ss.avframework.simpledecoder;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SpscQueueTest {
+
+    @Test
+    public void fifoAndCapacity() {
+        SpscQueue<Integer> queue = new SpscQueue<Integer>(3);
+        assertEquals(3, queue.capacity());
+        assertTrue(queue.offer(1));
+        assertTrue(queue.offer(2));
+        assertTrue(queue.offer(3));
+        assertFalse(queue.offer(4));
+        assertEquals(3, queue.size());
+        assertEquals(Integer.valueOf(1), queue.poll());
+        assertTrue(queue.offer(4));
+        assertEquals(Integer.valueOf(2), queue.poll());
+        assertEquals(Integer.valueOf(3), queue.poll());
+        assertEquals(Integer.valueOf(4), queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void endOfStreamAfterDrain() throws Exception {
+        SpscQueue<Integer> queue = new SpscQueue<Integer>(4);
+        queue.offer(1);
+        queue.endOfStream();
+        assertFalse(queue.isEndOfStream());
+        assertEquals(Integer.valueOf(1), queue.take());
+        assertTrue(queue.isEndOfStream());
+        assertNull(queue.take());
+        assertNull(queue.poll(1, TimeUnit.SECONDS));
+
+        queue.reset();
+        assertFalse(queue.isEndOfStream());
+        assertNull(queue.poll(1, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void timedVariantsTimeOut() throws Exception {
+        SpscQueue<Integer> queue = new SpscQueue<Integer>(1);
+        long start = System.nanoTime();
+        assertNull(queue.poll(20, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertTrue(queue.offer(1, 20, TimeUnit.MILLISECONDS));
+        assertFalse(queue.offer(2, 20, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(timeout = 5000)
+    public void cancelReleasesBlockedConsumer() throws Exception {
+        final SpscQueue<Integer> queue = new SpscQueue<Integer>(1);
+        final Object[] result = new Object[]{"not returned"};
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result[0] = queue.take();
+                } catch (InterruptedException e) {
+                    result[0] = e;
+                }
+            }
+        });
+        consumer.start();
+        Thread.sleep(50);
+        queue.cancel();
+        consumer.join(1000);
+        assertFalse(consumer.isAlive());
+        assertNull(result[0]);
+        assertFalse(queue.offer(1));
+    }
+
+    @Test(timeout = 20000)
+    public void crossThreadHandoffKeepsOrder() throws Exception {
+        final SpscQueue<Integer> queue = new SpscQueue<Integer>(20);
+        final int count = 200000;
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        queue.put(i);
+                    }
+                    queue.endOfStream();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        producer.start();
+        int expected = 0;
+        Integer value;
+        while ((value = queue.take()) != null) {
+            assertEquals(expected++, value.intValue());
+        }
+        assertEquals(count, expected);
+        producer.join();
+    }
+
+    /**
+     * Microbenchmark of one demux -> input hop: the SPSC queue against the former
+     * ArrayList + synchronized + Thread.sleep(10) polling handoff.
+     */
+    @Test(timeout = 60000)
+    public void handoffAgainstSleepPolling() throws Exception {
+        int paced = 100;
+        long[] queueLatency = measureLatency(new SpscHandoff(20), paced);
+        long[] listLatency = measureLatency(new PollingListHandoff(20), paced);
+        System.out.println("handoff latency p50/p99 (us): SpscQueue " + percentile(queueLatency, 50) / 1000 + "/" + percentile(queueLatency, 99) / 1000
+                + ", polled ArrayList " + percentile(listLatency, 50) / 1000 + "/" + percentile(listLatency, 99) / 1000);
+
+        int burst = 2000;
+        long queueNs = measureThroughput(new SpscHandoff(20), burst);
+        long listNs = measureThroughput(new PollingListHandoff(20), burst);
+        System.out.println("handoff throughput (packets/s): SpscQueue " + burst * 1000000000L / queueNs
+                + ", polled ArrayList " + burst * 1000000000L / listNs);
+
+        assertTrue(percentile(queueLatency, 50) < percentile(listLatency, 50));
+        assertTrue(queueNs < listNs);
+    }
+
+    private interface Handoff {
+        void put(long value) throws InterruptedException;
+        long take() throws InterruptedException;
+    }
+
+    private static class SpscHandoff implements Handoff {
+        final SpscQueue<long[]> queue;
+
+        SpscHandoff(int capacity) {
+            queue = new SpscQueue<long[]>(capacity);
+        }
+
+        public void put(long value) throws InterruptedException {
+            queue.put(new long[]{value});
+        }
+
+        public long take() throws InterruptedException {
+            return queue.take()[0];
+        }
+    }
+
+    //what Mp4Decoder did before SpscQueue
+    private static class PollingListHandoff implements Handoff {
+        final ArrayList<long[]> list = new ArrayList<long[]>();
+        final Object sync = new Object();
+        final int capacity;
+
+        PollingListHandoff(int capacity) {
+            this.capacity = capacity;
+        }
+
+        public void put(long value) throws InterruptedException {
+            while (list.size() >= capacity) {
+                Thread.sleep(10);
+            }
+            synchronized (sync) {
+                list.add(new long[]{value});
+            }
+        }
+
+        public long take() throws InterruptedException {
+            while (list.size() <= 0) {
+                Thread.sleep(10);
+            }
+            synchronized (sync) {
+                return list.remove(0)[0];
+            }
+        }
+    }
+
+    //producer sends its nanoTime every 2ms, the consumer records how late it sees it
+    private static long[] measureLatency(final Handoff handoff, final int count) throws Exception {
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        handoff.put(System.nanoTime());
+                        Thread.sleep(2);
+                    }
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        producer.start();
+        long[] latency = new long[count];
+        for (int i = 0; i < count; i++) {
+            long sentNs = handoff.take();
+            latency[i] = System.nanoTime() - sentNs;
+        }
+        producer.join();
+        Arrays.sort(latency);
+        return latency;
+    }
+
+    private static long measureThroughput(final Handoff handoff, final int count) throws Exception {
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        handoff.put(i);
+                    }
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        long start = System.nanoTime();
+        producer.start();
+        for (int i = 0; i < count; i++) {
+            handoff.take();
+        }
+        producer.join();
+        return System.nanoTime() - start;
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+    }
+}
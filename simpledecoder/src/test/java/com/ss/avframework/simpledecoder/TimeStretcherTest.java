@@ -0,0 +1,206 @@
+package com.ss.avframework.simpledecoder;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class TimeStretcherTest {
+    private static final int SAMPLE_RATE = 44100;
+    private static final int BLOCK = 1024;      // frames per AAC frame
+
+    @Test
+    public void normalSpeedPassesThrough() {
+        TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, 2);
+        short[] input = Tone(SAMPLE_RATE, 2, 10 * BLOCK, 440, 660);
+        short[] output = Run(stretcher, input, 2);
+        assertArrayEquals(input, output);
+        assertFalse(stretcher.isStretching());
+    }
+
+    @Test
+    public void durationScalesWithTheRate() {
+        for (float rate : new float[] {0.25f, 0.5f, 0.8f, 1.5f, 2.0f, 4.0f}) {
+            TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, 1);
+            stretcher.setRate(rate);
+            int frames = SAMPLE_RATE * 4;
+            short[] output = Run(stretcher, Tone(SAMPLE_RATE, 1, frames, 440), 1);
+            //short of what is still buffered, up to two segments and the search range
+            double expected = frames / rate;
+            assertEquals("rate " + rate, expected, output.length, SAMPLE_RATE * 0.03 / rate + SAMPLE_RATE * 0.02);
+        }
+    }
+
+    @Test
+    public void pitchIsKept() {
+        for (float rate : new float[] {0.5f, 2.0f}) {
+            TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, 1);
+            stretcher.setRate(rate);
+            short[] output = Run(stretcher, Tone(SAMPLE_RATE, 1, SAMPLE_RATE * 2, 440), 1);
+            assertEquals("rate " + rate, 440, Frequency(output, 1, 0, SAMPLE_RATE), 440 * 0.01);
+        }
+    }
+
+    @Test
+    public void channelsStaySeparate() {
+        TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, 2);
+        stretcher.setRate(1.5f);
+        short[] output = Run(stretcher, Tone(SAMPLE_RATE, 2, SAMPLE_RATE * 2, 440, 660), 2);
+        assertEquals(440, Frequency(output, 2, 0, SAMPLE_RATE), 440 * 0.01);
+        assertEquals(660, Frequency(output, 2, 1, SAMPLE_RATE), 660 * 0.01);
+    }
+
+    //WSOLA picks the segments to continue the waveform, so a tone stays as loud as it was
+    @Test
+    public void noCancellationAtTheJoins() {
+        for (float rate : new float[] {0.5f, 1.25f, 2.0f, 3.0f}) {
+            TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, 1);
+            stretcher.setRate(rate);
+            short[] output = Run(stretcher, Tone(SAMPLE_RATE, 1, SAMPLE_RATE * 2, 330), 1);
+            double min = Double.MAX_VALUE;
+            int window = SAMPLE_RATE / 100;
+            for (int start = 0; start + window <= output.length; start += window / 2) {
+                min = Math.min(min, Rms(output, start, window));
+            }
+            //a pure tone of amplitude 10000 has an RMS of 7071
+            assertTrue("rate " + rate + " dips to RMS " + min, min > 7071 * 0.9);
+        }
+    }
+
+    @Test
+    public void rateChangesAreSmooth() {
+        TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, 1);
+        short[] input = Tone(SAMPLE_RATE, 1, SAMPLE_RATE * 3, 220);
+        ByteBuffer pcm = Pcm(input);
+        ByteBuffer out = ByteBuffer.allocate(input.length * 2 * 4 + 65536).order(ByteOrder.LITTLE_ENDIAN);
+        float[] rates = {1.0f, 2.0f, 1.0f, 0.5f, 1.0f};
+        for (int block = 0; block * BLOCK < input.length; block++) {
+            //normal speed, stretching and back, passing through again at the end
+            stretcher.setRate(rates[Math.min(rates.length - 1, block * rates.length * BLOCK / input.length)]);
+            int frames = Math.min(BLOCK, input.length - block * BLOCK);
+            stretcher.write(pcm, block * BLOCK * 2, frames * 2);
+            stretcher.read(out);
+        }
+        assertFalse(stretcher.isStretching());
+        short[] output = Samples(out);
+        //220Hz at amplitude 10000 moves at most 314 per sample, a seam would jump
+        int maxStep = 0;
+        for (int i = 1; i < output.length; i++) {
+            maxStep = Math.max(maxStep, Math.abs(output[i] - output[i - 1]));
+        }
+        assertTrue("step " + maxStep, maxStep < 314 * 1.5);
+    }
+
+    @Test
+    public void clearDropsEverything() {
+        TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, 1);
+        stretcher.setRate(2.0f);
+        ByteBuffer pcm = Pcm(Tone(SAMPLE_RATE, 1, 4 * BLOCK, 440));
+        stretcher.write(pcm, 0, 4 * BLOCK * 2);
+        assertTrue(stretcher.availableFrames() > 0);
+        stretcher.clear();
+        assertEquals(0, stretcher.availableFrames());
+        assertFalse(stretcher.isStretching());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rateOutOfRange() {
+        new TimeStretcher(SAMPLE_RATE, 2).setRate(5.0f);
+    }
+
+    @Test
+    public void steadyStateDoesNotAllocate() {
+        TimeStretcher stretcher = new TimeStretcher(48000, 2);
+        stretcher.setRate(1.5f);
+        ByteBuffer pcm = Pcm(Tone(48000, 2, BLOCK, 440, 440));
+        ByteBuffer out = ByteBuffer.allocate(BLOCK * 2 * 2 * 4);
+        for (int i = 0; i < 100; i++) { //grow the buffers
+            stretcher.write(pcm, 0, BLOCK * 4);
+            out.clear();
+            stretcher.read(out);
+        }
+        ThreadMXBean mxBean = ManagementFactory.getThreadMXBean();
+        boolean measureHeap = mxBean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) mxBean).isThreadAllocatedMemorySupported();
+        long threadId = Thread.currentThread().getId();
+        long heapBefore = measureHeap ? ((com.sun.management.ThreadMXBean) mxBean).getThreadAllocatedBytes(threadId) : 0;
+        int blocks = 2000;
+        for (int i = 0; i < blocks; i++) {
+            stretcher.write(pcm, 0, BLOCK * 4);
+            out.clear();
+            stretcher.read(out);
+        }
+        long heapAfter = measureHeap ? ((com.sun.management.ThreadMXBean) mxBean).getThreadAllocatedBytes(threadId) : 0;
+        if (measureHeap) {
+            System.out.println("TimeStretcher steady state: " + (heapAfter - heapBefore) + " heap bytes for " + blocks + " blocks");
+            assertEquals("heap bytes per block", 0, (heapAfter - heapBefore) / blocks);
+        }
+    }
+
+    //interleaved, amplitude 10000, a frequency per channel
+    static short[] Tone(int sampleRate, int channels, int frames, double... frequencies) {
+        short[] samples = new short[frames * channels];
+        for (int i = 0; i < frames; i++) {
+            for (int c = 0; c < channels; c++) {
+                samples[i * channels + c] = (short) Math.round(10000 * Math.sin(2 * Math.PI * frequencies[c] * i / sampleRate));
+            }
+        }
+        return samples;
+    }
+
+    //everything that comes out for input, written in AAC frame sized blocks
+    private static short[] Run(TimeStretcher stretcher, short[] input, int channels) {
+        ByteBuffer pcm = Pcm(input);
+        ByteBuffer out = ByteBuffer.allocate((int) (input.length * 2 / stretcher.getRate()) + 65536).order(ByteOrder.LITTLE_ENDIAN);
+        int frames = input.length / channels;
+        for (int frame = 0; frame < frames; frame += BLOCK) {
+            int block = Math.min(BLOCK, frames - frame);
+            stretcher.write(pcm, frame * channels * 2, block * channels * 2);
+            stretcher.read(out);
+        }
+        return Samples(out);
+    }
+
+    private static ByteBuffer Pcm(short[] samples) {
+        ByteBuffer pcm = ByteBuffer.allocate(samples.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        pcm.asShortBuffer().put(samples);
+        return pcm;
+    }
+
+    private static short[] Samples(ByteBuffer out) {
+        out.flip();
+        short[] samples = new short[out.remaining() / 2];
+        out.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(samples);
+        return samples;
+    }
+
+    //by the rising zero crossings, skipping the start
+    private static double Frequency(short[] samples, int channels, int channel, int sampleRate) {
+        int first = -1;
+        int last = -1;
+        int crossings = 0;
+        for (int i = sampleRate / 10; i + 1 < samples.length / channels; i++) {
+            if (samples[i * channels + channel] < 0 && samples[(i + 1) * channels + channel] >= 0) {
+                if (first < 0) {
+                    first = i;
+                } else {
+                    crossings++;
+                }
+                last = i;
+            }
+        }
+        return (double) crossings * sampleRate / (last - first);
+    }
+
+    private static double Rms(short[] samples, int start, int count) {
+        double sum = 0;
+        for (int i = start; i < start + count; i++) {
+            sum += (double) samples[i] * samples[i];
+        }
+        return Math.sqrt(sum / count);
+    }
+}